@@ -1,9 +1,10 @@
 package com.cameraclicker;
 
 import android.Manifest;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
@@ -11,10 +12,9 @@ import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
 
-import com.cameraclicker.service.CameraService;
-import com.cameraclicker.service.BluetoothService;
+import com.cameraclicker.service.ServiceState;
+import com.cameraclicker.service.ServiceStateRegistry;
 import com.cameraclicker.util.PermissionManager;
 import com.cameraclicker.util.ServiceManager;
 
@@ -32,11 +32,20 @@ public class MainActivity extends AppCompatActivity {
     private Button stopServiceButton;
     private TextView statusText;
     private TextView connectionText;
+    private TextView readinessText;
     
     private ServiceManager serviceManager;
     private PermissionManager permissionManager;
     
-    private boolean isServiceRunning = false;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    // Delivered on the main thread, with the current state as soon as it subscribes
+    private final ServiceStateRegistry.Listener stateListener = new ServiceStateRegistry.Listener() {
+        @Override
+        public void onStateChanged(ServiceState state) {
+            updateUI(state);
+        }
+    };
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,8 +63,9 @@ public class MainActivity extends AppCompatActivity {
         stopServiceButton = findViewById(R.id.btn_stop_service);
         statusText = findViewById(R.id.tv_status);
         connectionText = findViewById(R.id.tv_connection);
+        readinessText = findViewById(R.id.tv_readiness);
         
-        updateUI();
+        updateUI(ServiceStateRegistry.getInstance().getState());
     }
     
     private void initializeManagers() {
@@ -96,9 +106,6 @@ public class MainActivity extends AppCompatActivity {
             serviceManager.startCameraService();
             serviceManager.startBluetoothService();
             
-            isServiceRunning = true;
-            updateUI();
-            
             Toast.makeText(this, "Camera Clicker started successfully", Toast.LENGTH_SHORT).show();
             
         } catch (Exception e) {
@@ -111,9 +118,6 @@ public class MainActivity extends AppCompatActivity {
             serviceManager.stopCameraService();
             serviceManager.stopBluetoothService();
             
-            isServiceRunning = false;
-            updateUI();
-            
             Toast.makeText(this, "Camera Clicker stopped", Toast.LENGTH_SHORT).show();
             
         } catch (Exception e) {
@@ -121,29 +125,36 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private void updateUI() {
-        if (isServiceRunning) {
+    private void updateUI(ServiceState state) {
+        if (state.isCameraServiceRunning() && state.isBluetoothServiceRunning()) {
             statusText.setText("Camera Clicker Active");
             statusText.setTextColor(getResources().getColor(R.color.success_green));
             startServiceButton.setVisibility(View.GONE);
             stopServiceButton.setVisibility(View.VISIBLE);
-            connectionText.setText("Ready for Garmin connection");
+            connectionText.setText(state.isWatchConnected() ? "Garmin watch connected" : "Ready for Garmin connection");
+            showReadiness(state);
         } else {
             statusText.setText("Camera Clicker Inactive");
             statusText.setTextColor(getResources().getColor(R.color.secondary_text));
             startServiceButton.setVisibility(View.VISIBLE);
             stopServiceButton.setVisibility(View.GONE);
             connectionText.setText("Service not running");
+            readinessText.setText("");
         }
     }
     
-    public void updateConnectionStatus(String status) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                connectionText.setText(status);
-            }
-        });
+    private void showReadiness(ServiceState state) {
+        StringBuilder text = new StringBuilder("Camera: ").append(state.getReadiness());
+        if (state.getReadyMillis() >= 0) {
+            text.append(" (ready ").append(state.getReadyMillis()).append(" ms after start)");
+        }
+        if (state.getSaveQueueDepth() > 0) {
+            text.append(", saving ").append(state.getSaveQueueDepth());
+        }
+        if (state.getLastCapturePath() != null) {
+            text.append("\nLast capture: ").append(state.getLastCapturePath());
+        }
+        readinessText.setText(text);
     }
     
     @Override
@@ -170,9 +181,13 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
-        // Check if services are actually running
-        isServiceRunning = serviceManager.isCameraServiceRunning() && serviceManager.isBluetoothServiceRunning();
-        updateUI();
+        ServiceStateRegistry.getInstance().subscribe(stateListener, mainHandler);
+    }
+    
+    @Override
+    protected void onPause() {
+        super.onPause();
+        ServiceStateRegistry.getInstance().unsubscribe(stateListener);
     }
     
     @Override
@@ -0,0 +1,480 @@
+package com.cameraclicker.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Camera backend on top of the Camera2 API
+ * Streams are ImageReaders and every callback runs on the handler given to the constructor.
+ * Each session keeps the request built for a spec and rebuilds it only when one of the
+ * spec's controls has changed, so repeated captures cost no request construction.
+ * 
+ * @author DrKhiLL
+ */
+public class Camera2Hal implements CameraHal {
+    
+    private final CameraManager cameraManager;
+    private final Handler handler;
+    
+    public Camera2Hal(CameraManager cameraManager, Handler handler) {
+        this.cameraManager = cameraManager;
+        this.handler = handler;
+    }
+    
+    @Override
+    public String getName() {
+        return "camera2";
+    }
+    
+    @Override
+    public List<CameraInfo> enumerateCameras() throws CameraHalException {
+        List<CameraInfo> cameras = new ArrayList<>();
+        try {
+            for (String id : cameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(id);
+                StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                if (map == null) {
+                    continue;
+                }
+                
+                CameraInfo info = new CameraInfo();
+                info.id = id;
+                info.facing = valueOr(characteristics.get(CameraCharacteristics.LENS_FACING), CameraInfo.FACING_BACK);
+                info.sensorOrientation = valueOr(characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION), 0);
+                info.hardwareLevel = valueOr(characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL), 0);
+                Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                info.flashAvailable = flash != null && flash;
+                info.realtimeTimestamps = valueOr(characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE),
+                    CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN)
+                    == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+                
+                info.jpegSizes = packSizes(map.getOutputSizes(ImageFormat.JPEG));
+                info.yuvSizes = packSizes(map.getOutputSizes(ImageFormat.YUV_420_888));
+                info.rawSizes = packSizes(map.getOutputSizes(ImageFormat.RAW_SENSOR));
+                if (info.jpegSizes.length > 0) {
+                    Size largest = new Size(info.getJpegWidth(), info.getJpegHeight());
+                    info.jpegMinFrameDurationNs = map.getOutputMinFrameDuration(ImageFormat.JPEG, largest);
+                    info.jpegStallDurationNs = map.getOutputStallDuration(ImageFormat.JPEG, largest);
+                }
+                if (info.yuvSizes.length > 0) {
+                    Size largest = new Size(info.yuvSizes[0], info.yuvSizes[1]);
+                    info.yuvMinFrameDurationNs = map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, largest);
+                }
+                
+                cameras.add(info);
+            }
+            
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                addConcurrentCameras(cameras);
+            }
+        } catch (CameraAccessException e) {
+            throw new CameraHalException("Failed to query cameras", e);
+        }
+        return cameras;
+    }
+    
+    private void addConcurrentCameras(List<CameraInfo> cameras) throws CameraAccessException {
+        for (CameraInfo info : cameras) {
+            Set<String> partners = new LinkedHashSet<>();
+            for (Set<String> combination : cameraManager.getConcurrentCameraIds()) {
+                if (combination.contains(info.id)) {
+                    partners.addAll(combination);
+                }
+            }
+            partners.remove(info.id);
+            info.concurrentIds = partners.toArray(new String[0]);
+        }
+    }
+    
+    @Override
+    public Stream createStream(int format, int width, int height, int maxFrames, final FrameListener listener) {
+        ImageReader reader = ImageReader.newInstance(width, height, format, maxFrames);
+        reader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                // Drain every queued frame; acquireLatestImage would silently drop burst frames
+                Image image;
+                while ((image = reader.acquireNextImage()) != null) {
+                    listener.onFrameAvailable(new Camera2Frame(image));
+                }
+            }
+        }, handler);
+        return new Camera2Stream(reader);
+    }
+    
+    @Override
+    public void openCamera(String cameraId, final DeviceCallback callback) throws CameraHalException {
+        final Camera2Device device = new Camera2Device(cameraId);
+        try {
+            cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
+                @Override
+                public void onOpened(@NonNull CameraDevice camera) {
+                    device.camera = camera;
+                    callback.onOpened(device);
+                }
+                
+                @Override
+                public void onDisconnected(@NonNull CameraDevice camera) {
+                    device.camera = camera;
+                    callback.onDisconnected(device);
+                }
+                
+                @Override
+                public void onError(@NonNull CameraDevice camera, int error) {
+                    device.camera = camera;
+                    callback.onError(device, error);
+                }
+            }, handler);
+        } catch (CameraAccessException | SecurityException e) {
+            throw new CameraHalException("Failed to open camera " + cameraId, e);
+        }
+    }
+    
+    @Override
+    public void release() {
+        // The camera manager is a system service; nothing to free
+    }
+    
+    private static int[] packSizes(Size[] sizes) {
+        if (sizes == null) {
+            return new int[0];
+        }
+        int[] packed = new int[sizes.length * 2];
+        for (int i = 0; i < sizes.length; i++) {
+            packed[i * 2] = sizes[i].getWidth();
+            packed[i * 2 + 1] = sizes[i].getHeight();
+        }
+        return CameraInfo.sortLargestFirst(packed);
+    }
+    
+    private static int valueOr(Integer value, int fallback) {
+        return value != null ? value : fallback;
+    }
+    
+    private static class Camera2Stream implements Stream {
+        final ImageReader reader;
+        final Surface surface;
+        
+        Camera2Stream(ImageReader reader) {
+            this.reader = reader;
+            this.surface = reader.getSurface();
+        }
+        
+        @Override
+        public int getFormat() {
+            return reader.getImageFormat();
+        }
+        
+        @Override
+        public int getWidth() {
+            return reader.getWidth();
+        }
+        
+        @Override
+        public int getHeight() {
+            return reader.getHeight();
+        }
+        
+        @Override
+        public int getMaxFrames() {
+            return reader.getMaxImages();
+        }
+        
+        @Override
+        public void close() {
+            reader.close();
+        }
+    }
+    
+    private class Camera2Device implements Device {
+        final String id;
+        CameraDevice camera;
+        
+        Camera2Device(String id) {
+            this.id = id;
+        }
+        
+        @Override
+        public String getId() {
+            return id;
+        }
+        
+        @Override
+        public void createSession(List<Stream> outputs, final SessionCallback callback) throws CameraHalException {
+            List<Surface> surfaces = new ArrayList<>(outputs.size());
+            for (Stream output : outputs) {
+                surfaces.add(((Camera2Stream) output).surface);
+            }
+            
+            try {
+                camera.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+                    @Override
+                    public void onConfigured(@NonNull CameraCaptureSession session) {
+                        callback.onConfigured(new Camera2Session(camera, session));
+                    }
+                    
+                    @Override
+                    public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                        callback.onConfigureFailed();
+                    }
+                }, handler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                throw new CameraHalException("Failed to create capture session", e);
+            }
+        }
+        
+        @Override
+        public void close() {
+            if (camera != null) {
+                camera.close();
+            }
+        }
+    }
+    
+    private class Camera2Session implements Session {
+        final CameraDevice camera;
+        final CameraCaptureSession session;
+        
+        // Requests belong to the device that built them, so the cache lives with the session
+        private final Map<CaptureSpec, CachedRequest> requests = new IdentityHashMap<>();
+        
+        Camera2Session(CameraDevice camera, CameraCaptureSession session) {
+            this.camera = camera;
+            this.session = session;
+        }
+        
+        @Override
+        public int capture(CaptureSpec spec, CaptureCallback callback) throws CameraHalException {
+            try {
+                return session.capture(toRequest(spec), adapt(callback), handler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                throw new CameraHalException("Failed to submit capture", e);
+            }
+        }
+        
+        @Override
+        public int captureBurst(List<CaptureSpec> specs, CaptureCallback callback) throws CameraHalException {
+            try {
+                List<CaptureRequest> burst = new ArrayList<>(specs.size());
+                for (CaptureSpec spec : specs) {
+                    burst.add(toRequest(spec));
+                }
+                return session.captureBurst(burst, adapt(callback), handler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                throw new CameraHalException("Failed to submit burst", e);
+            }
+        }
+        
+        @Override
+        public int setRepeating(CaptureSpec spec, CaptureCallback callback) throws CameraHalException {
+            try {
+                return session.setRepeatingRequest(toRequest(spec), adapt(callback), handler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                throw new CameraHalException("Failed to start repeating request", e);
+            }
+        }
+        
+        @Override
+        public void stopRepeating() throws CameraHalException {
+            try {
+                session.stopRepeating();
+            } catch (CameraAccessException | IllegalStateException e) {
+                throw new CameraHalException("Failed to stop repeating request", e);
+            }
+        }
+        
+        @Override
+        public void close() {
+            session.close();
+        }
+        
+        private CaptureRequest toRequest(CaptureSpec spec) throws CameraAccessException {
+            CachedRequest cached = requests.get(spec);
+            if (cached == null) {
+                cached = new CachedRequest(camera.createCaptureRequest(spec.template));
+                for (Stream target : spec.targets) {
+                    cached.builder.addTarget(((Camera2Stream) target).surface);
+                }
+                // Lets callbacks hand the spec back to the caller
+                cached.builder.setTag(spec);
+                requests.put(spec, cached);
+            }
+            
+            if (cached.request == null || cached.afMode != spec.afMode || cached.aeMode != spec.aeMode
+                    || cached.flashMode != spec.flashMode
+                    || cached.aePrecaptureTrigger != spec.aePrecaptureTrigger
+                    || cached.jpegQuality != spec.jpegQuality) {
+                setIfSet(cached.builder, CaptureRequest.CONTROL_AF_MODE, spec.afMode);
+                setIfSet(cached.builder, CaptureRequest.CONTROL_AE_MODE, spec.aeMode);
+                setIfSet(cached.builder, CaptureRequest.FLASH_MODE, spec.flashMode);
+                setIfSet(cached.builder, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, spec.aePrecaptureTrigger);
+                if (spec.jpegQuality != CaptureSpec.UNSET) {
+                    cached.builder.set(CaptureRequest.JPEG_QUALITY, (byte) spec.jpegQuality);
+                }
+                cached.afMode = spec.afMode;
+                cached.aeMode = spec.aeMode;
+                cached.flashMode = spec.flashMode;
+                cached.aePrecaptureTrigger = spec.aePrecaptureTrigger;
+                cached.jpegQuality = spec.jpegQuality;
+                cached.request = cached.builder.build();
+            }
+            return cached.request;
+        }
+    }
+    
+    private static void setIfSet(CaptureRequest.Builder builder, CaptureRequest.Key<Integer> key, int value) {
+        if (value != CaptureSpec.UNSET) {
+            builder.set(key, value);
+        }
+    }
+    
+    private static class CachedRequest {
+        final CaptureRequest.Builder builder;
+        CaptureRequest request;
+        int afMode;
+        int aeMode;
+        int flashMode;
+        int aePrecaptureTrigger;
+        int jpegQuality;
+        
+        CachedRequest(CaptureRequest.Builder builder) {
+            this.builder = builder;
+        }
+    }
+    
+    private static CameraCaptureSession.CaptureCallback adapt(final CaptureCallback callback) {
+        if (callback == null) {
+            return null;
+        }
+        
+        return new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       long timestamp, long frameNumber) {
+                callback.onCaptureStarted((CaptureSpec) request.getTag(), timestamp);
+            }
+            
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                         @NonNull CaptureRequest request,
+                                         @NonNull TotalCaptureResult result) {
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                callback.onCaptureCompleted((CaptureSpec) request.getTag(), timestamp != null ? timestamp : 0,
+                    afState != null ? afState : STATE_UNKNOWN, aeState != null ? aeState : STATE_UNKNOWN);
+            }
+            
+            @Override
+            public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                      @NonNull CaptureRequest request,
+                                      @NonNull CaptureFailure failure) {
+                callback.onCaptureFailed((CaptureSpec) request.getTag(), failure.wasImageCaptured());
+            }
+            
+            @Override
+            public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                          @NonNull CaptureRequest request,
+                                          @NonNull Surface target, long frameNumber) {
+                callback.onBufferLost((CaptureSpec) request.getTag());
+            }
+            
+            @Override
+            public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
+                callback.onSequenceAborted(sequenceId);
+            }
+        };
+    }
+    
+    /**
+     * Frame backed by an ImageReader image
+     */
+    private static class Camera2Frame implements CameraFrame {
+        final Image image;
+        private Image.Plane[] planes;
+        
+        Camera2Frame(Image image) {
+            this.image = image;
+        }
+        
+        @Override
+        public int getFormat() {
+            return image.getFormat();
+        }
+        
+        @Override
+        public int getWidth() {
+            return image.getWidth();
+        }
+        
+        @Override
+        public int getHeight() {
+            return image.getHeight();
+        }
+        
+        @Override
+        public long getTimestamp() {
+            return image.getTimestamp();
+        }
+        
+        @Override
+        public int getPlaneCount() {
+            return planes().length;
+        }
+        
+        @Override
+        public ByteBuffer getPlaneBuffer(int plane) {
+            return planes()[plane].getBuffer();
+        }
+        
+        @Override
+        public int getRowStride(int plane) {
+            return planes()[plane].getRowStride();
+        }
+        
+        @Override
+        public int getPixelStride(int plane) {
+            return planes()[plane].getPixelStride();
+        }
+        
+        @Override
+        public void close() {
+            image.close();
+        }
+        
+        private Image.Plane[] planes() {
+            // getPlanes() copies the array on every call
+            if (planes == null) {
+                planes = image.getPlanes();
+            }
+            return planes;
+        }
+    }
+}
+
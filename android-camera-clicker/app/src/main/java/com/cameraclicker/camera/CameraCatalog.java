@@ -0,0 +1,169 @@
+package com.cameraclicker.camera;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Capabilities of every camera on the device, built once and cached on disk
+ * The cache is keyed by the build fingerprint and the camera backend, so it is rebuilt
+ * after an OS update and otherwise lets startup and camera switches skip the HAL queries entirely.
+ * 
+ * @author DrKhiLL
+ */
+public class CameraCatalog {
+    
+    private static final String TAG = "CameraCatalog";
+    private static final String FILE_NAME = "camera_catalog.bin";
+    private static final int FILE_MAGIC = 0x43434154; // "CCAT"
+    private static final int FORMAT_VERSION = 2;
+    
+    private final List<CameraInfo> cameras;
+    private final long enumerationNanos;
+    private boolean fromCache = false;
+    
+    private CameraCatalog(List<CameraInfo> cameras, long enumerationNanos) {
+        this.cameras = Collections.unmodifiableList(cameras);
+        this.enumerationNanos = enumerationNanos;
+    }
+    
+    /**
+     * Load the catalog from the cache file, enumerating the cameras if it is missing or stale
+     * @return Catalog, possibly empty if the cameras cannot be queried
+     */
+    public static CameraCatalog load(Context context, CameraHal cameraHal) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        String key = Build.FINGERPRINT + "|" + cameraHal.getName();
+        
+        long start = SystemClock.elapsedRealtimeNanos();
+        CameraCatalog cached = read(file, key);
+        if (cached != null) {
+            long loadNanos = SystemClock.elapsedRealtimeNanos() - start;
+            cached.fromCache = true;
+            Log.d(TAG, "Loaded " + cached.cameras.size() + " cameras from cache in " + loadNanos / 1000 + " us, saving "
+                + (cached.enumerationNanos - loadNanos) / 1000 + " us of HAL queries");
+            return cached;
+        }
+        
+        try {
+            CameraCatalog catalog = enumerate(cameraHal);
+            Log.d(TAG, "Enumerated " + catalog.cameras.size() + " cameras in "
+                + catalog.enumerationNanos / 1000 + " us");
+            catalog.write(file, key);
+            return catalog;
+        } catch (CameraHalException | RuntimeException e) {
+            Log.e(TAG, "Failed to enumerate cameras", e);
+            return new CameraCatalog(new ArrayList<CameraInfo>(), 0);
+        }
+    }
+    
+    /**
+     * Query the backend for every camera
+     */
+    public static CameraCatalog enumerate(CameraHal cameraHal) throws CameraHalException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        List<CameraInfo> cameras = cameraHal.enumerateCameras();
+        return new CameraCatalog(cameras, SystemClock.elapsedRealtimeNanos() - start);
+    }
+    
+    public List<CameraInfo> getCameras() {
+        return cameras;
+    }
+    
+    public CameraInfo get(String id) {
+        for (CameraInfo info : cameras) {
+            if (info.id.equals(id)) {
+                return info;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * First camera with the given facing, in HAL order, which lists the main camera first
+     * @return Camera, or null if there is none
+     */
+    public CameraInfo findByFacing(int facing) {
+        for (CameraInfo info : cameras) {
+            if (info.facing == facing) {
+                return info;
+            }
+        }
+        return null;
+    }
+    
+    public boolean isFromCache() {
+        return fromCache;
+    }
+    
+    /**
+     * Time the HAL queries took when the catalog was built, even if it was loaded from cache
+     */
+    public long getEnumerationNanos() {
+        return enumerationNanos;
+    }
+    
+    private static CameraCatalog read(File file, String key) {
+        if (!file.exists()) {
+            return null;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            if (!key.equals(in.readUTF())) {
+                Log.d(TAG, "Build fingerprint or camera backend changed, rebuilding camera catalog");
+                return null;
+            }
+            
+            long enumerationNanos = in.readLong();
+            int count = in.readUnsignedByte();
+            List<CameraInfo> cameras = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                cameras.add(CameraInfo.readFrom(in));
+            }
+            return new CameraCatalog(cameras, enumerationNanos);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable camera catalog", e);
+            return null;
+        }
+    }
+    
+    private void write(File file, String key) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeLong(enumerationNanos);
+            out.writeByte(cameras.size());
+            for (CameraInfo info : cameras) {
+                info.writeTo(out);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write camera catalog", e);
+            temp.delete();
+            return;
+        }
+        
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace camera catalog");
+            temp.delete();
+        }
+    }
+}
+
@@ -0,0 +1,41 @@
+package com.cameraclicker.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One image produced by a camera stream
+ * Frames hold a buffer owned by the stream, so every frame must be closed once its
+ * data has been copied out, or the stream runs out of buffers.
+ * 
+ * @author DrKhiLL
+ */
+public interface CameraFrame {
+    
+    /**
+     * Image format, one of the CameraHal.FORMAT_* values
+     */
+    int getFormat();
+    
+    int getWidth();
+    
+    int getHeight();
+    
+    /**
+     * Start of exposure in the sensor time base, matching onCaptureStarted
+     */
+    long getTimestamp();
+    
+    /**
+     * Number of planes: one for JPEG, three (Y, U, V) for YUV
+     */
+    int getPlaneCount();
+    
+    ByteBuffer getPlaneBuffer(int plane);
+    
+    int getRowStride(int plane);
+    
+    int getPixelStride(int plane);
+    
+    void close();
+}
+
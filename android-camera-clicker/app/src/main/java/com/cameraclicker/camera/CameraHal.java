@@ -0,0 +1,164 @@
+package com.cameraclicker.camera;
+
+import java.util.List;
+
+/**
+ * Camera backend the capture logic is written against
+ * Covers the parts of Camera2 the app uses: output streams are created, a camera is opened,
+ * a session is configured with the streams and capture requests are submitted to it.
+ * Every callback and frame is delivered on the camera thread the backend was created with,
+ * so callers need no locking. No Android types appear here, which lets the simulated
+ * backend run on a plain JVM.
+ * 
+ * @author DrKhiLL
+ */
+public interface CameraHal {
+    
+    // Same values as CameraDevice.StateCallback.ERROR_*
+    int ERROR_CAMERA_IN_USE = 1;
+    int ERROR_MAX_CAMERAS_IN_USE = 2;
+    int ERROR_CAMERA_DISABLED = 3;
+    int ERROR_CAMERA_DEVICE = 4;
+    int ERROR_CAMERA_SERVICE = 5;
+    
+    // Same values as CaptureResult.CONTROL_AF_STATE_*
+    int AF_STATE_INACTIVE = 0;
+    int AF_STATE_PASSIVE_SCAN = 1;
+    int AF_STATE_PASSIVE_FOCUSED = 2;
+    int AF_STATE_ACTIVE_SCAN = 3;
+    int AF_STATE_FOCUSED_LOCKED = 4;
+    int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    int AF_STATE_PASSIVE_UNFOCUSED = 6;
+    
+    // Same values as CaptureResult.CONTROL_AE_STATE_*
+    int AE_STATE_INACTIVE = 0;
+    int AE_STATE_SEARCHING = 1;
+    int AE_STATE_CONVERGED = 2;
+    int AE_STATE_LOCKED = 3;
+    int AE_STATE_FLASH_REQUIRED = 4;
+    int AE_STATE_PRECAPTURE = 5;
+    
+    // The result did not report the state
+    int STATE_UNKNOWN = -1;
+    
+    // Same values as ImageFormat
+    int FORMAT_JPEG = 0x100;
+    int FORMAT_YUV_420_888 = 0x23;
+    
+    /**
+     * Short name of the backend, used to keep cached camera catalogs apart
+     */
+    String getName();
+    
+    /**
+     * Query the capabilities of every camera; slow on real hardware, so results are cached
+     */
+    List<CameraInfo> enumerateCameras() throws CameraHalException;
+    
+    /**
+     * Create an output stream that can be attached to sessions of any camera
+     * @param maxFrames Frames that may be held open at once before captures lose their buffer
+     * @param listener Receives every frame, which it must close
+     */
+    Stream createStream(int format, int width, int height, int maxFrames, FrameListener listener);
+    
+    /**
+     * Start opening a camera; the result arrives on the callback
+     */
+    void openCamera(String cameraId, DeviceCallback callback) throws CameraHalException;
+    
+    /**
+     * Free the backend's own resources once every camera is closed
+     */
+    void release();
+    
+    interface Stream {
+        int getFormat();
+        
+        int getWidth();
+        
+        int getHeight();
+        
+        int getMaxFrames();
+        
+        void close();
+    }
+    
+    interface Device {
+        String getId();
+        
+        /**
+         * Configure a session streaming to the given outputs, closing the previous one
+         */
+        void createSession(List<Stream> outputs, SessionCallback callback) throws CameraHalException;
+        
+        void close();
+    }
+    
+    interface Session {
+        /**
+         * @return Sequence id reported to onSequenceAborted
+         */
+        int capture(CaptureSpec spec, CaptureCallback callback) throws CameraHalException;
+        
+        int captureBurst(List<CaptureSpec> specs, CaptureCallback callback) throws CameraHalException;
+        
+        /**
+         * Capture continuously whenever no other request is queued
+         * @param callback Callback for every frame, or null
+         */
+        int setRepeating(CaptureSpec spec, CaptureCallback callback) throws CameraHalException;
+        
+        void stopRepeating() throws CameraHalException;
+        
+        void close();
+    }
+    
+    interface FrameListener {
+        void onFrameAvailable(CameraFrame frame);
+    }
+    
+    interface DeviceCallback {
+        void onOpened(Device device);
+        
+        void onDisconnected(Device device);
+        
+        void onError(Device device, int error);
+    }
+    
+    interface SessionCallback {
+        void onConfigured(Session session);
+        
+        void onConfigureFailed();
+    }
+    
+    /**
+     * Progress of submitted captures; override the events of interest
+     */
+    abstract class CaptureCallback {
+        public void onCaptureStarted(CaptureSpec spec, long timestamp) {
+        }
+        
+        public void onCaptureCompleted(CaptureSpec spec, long timestamp) {
+        }
+        
+        /**
+         * Completion with the 3A state of the result; forwards to the variant without it by default
+         * @param afState One of the AF_STATE_* values, or STATE_UNKNOWN
+         * @param aeState One of the AE_STATE_* values, or STATE_UNKNOWN
+         */
+        public void onCaptureCompleted(CaptureSpec spec, long timestamp, int afState, int aeState) {
+            onCaptureCompleted(spec, timestamp);
+        }
+        
+        public void onCaptureFailed(CaptureSpec spec, boolean imageCaptured) {
+        }
+        
+        public void onBufferLost(CaptureSpec spec) {
+        }
+        
+        public void onSequenceAborted(int sequenceId) {
+        }
+    }
+}
+
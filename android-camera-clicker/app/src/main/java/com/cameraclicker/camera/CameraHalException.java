@@ -0,0 +1,21 @@
+package com.cameraclicker.camera;
+
+/**
+ * Thrown when a camera operation cannot be started, for example because the camera
+ * is not available or the session has been closed
+ * 
+ * @author DrKhiLL
+ */
+public class CameraHalException extends Exception {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public CameraHalException(String message) {
+        super(message);
+    }
+    
+    public CameraHalException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
+
@@ -0,0 +1,182 @@
+package com.cameraclicker.camera;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Capabilities of one camera, as needed to configure it without querying the HAL
+ * Output sizes are packed as width, height pairs sorted largest first, so index 0 is
+ * the size used for still captures.
+ * 
+ * @author DrKhiLL
+ */
+public class CameraInfo {
+    
+    // Same values as CameraCharacteristics.LENS_FACING_*
+    public static final int FACING_FRONT = 0;
+    public static final int FACING_BACK = 1;
+    public static final int FACING_EXTERNAL = 2;
+    
+    private static final int[] NO_SIZES = new int[0];
+    private static final String[] NO_IDS = new String[0];
+    
+    public String id;
+    public int facing = FACING_BACK;
+    public int sensorOrientation;
+    public int hardwareLevel;
+    public boolean flashAvailable;
+    public boolean realtimeTimestamps;
+    
+    // Cameras that can stream at the same time as this one (Android 11+)
+    public String[] concurrentIds = NO_IDS;
+    
+    public int[] jpegSizes = NO_SIZES;
+    public int[] yuvSizes = NO_SIZES;
+    public int[] rawSizes = NO_SIZES;
+    
+    // Durations for the largest size of each format, nanoseconds
+    public long jpegMinFrameDurationNs;
+    public long jpegStallDurationNs;
+    public long yuvMinFrameDurationNs;
+    
+    public int getJpegWidth() {
+        return jpegSizes.length > 0 ? jpegSizes[0] : 0;
+    }
+    
+    public int getJpegHeight() {
+        return jpegSizes.length > 1 ? jpegSizes[1] : 0;
+    }
+    
+    /**
+     * Shortest interval between full-size JPEG captures, including the encoder stall
+     */
+    public long getJpegFrameDurationNs() {
+        return jpegMinFrameDurationNs + jpegStallDurationNs;
+    }
+    
+    /**
+     * Largest JPEG size within a pixel budget, preferring the aspect ratio of the largest size
+     * @param maxPixels Upper bound on width times height
+     * @return Offset of the width in jpegSizes, or -1 if there are no JPEG sizes
+     */
+    public int findJpegSize(long maxPixels) {
+        if (jpegSizes.length == 0) {
+            return -1;
+        }
+        // Sorted largest first, so the first fit is the largest; the smallest size is the fallback
+        int anyFit = -1;
+        for (int i = 0; i < jpegSizes.length; i += 2) {
+            if ((long) jpegSizes[i] * jpegSizes[i + 1] > maxPixels) {
+                continue;
+            }
+            // Cross-multiplied so no rounding is involved
+            if ((long) jpegSizes[i] * jpegSizes[1] == (long) jpegSizes[i + 1] * jpegSizes[0]) {
+                return i;
+            }
+            if (anyFit < 0) {
+                anyFit = i;
+            }
+        }
+        return anyFit >= 0 ? anyFit : jpegSizes.length - 2;
+    }
+    
+    public boolean hasRaw() {
+        return rawSizes.length > 0;
+    }
+    
+    public boolean isConcurrentWith(String otherId) {
+        for (String id : concurrentIds) {
+            if (id.equals(otherId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Sort packed width, height pairs by area, largest first
+     * @param sizes Pairs to sort in place
+     * @return The same array
+     */
+    public static int[] sortLargestFirst(int[] sizes) {
+        // Insertion sort; cameras report a few dozen sizes at most
+        for (int i = 2; i < sizes.length; i += 2) {
+            int width = sizes[i];
+            int height = sizes[i + 1];
+            long area = (long) width * height;
+            int j = i - 2;
+            while (j >= 0 && (long) sizes[j] * sizes[j + 1] < area) {
+                sizes[j + 2] = sizes[j];
+                sizes[j + 3] = sizes[j + 1];
+                j -= 2;
+            }
+            sizes[j + 2] = width;
+            sizes[j + 3] = height;
+        }
+        return sizes;
+    }
+    
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(id);
+        out.writeByte(facing);
+        out.writeShort(sensorOrientation);
+        out.writeByte(hardwareLevel);
+        out.writeBoolean(flashAvailable);
+        out.writeBoolean(realtimeTimestamps);
+        writeSizes(out, jpegSizes);
+        writeSizes(out, yuvSizes);
+        writeSizes(out, rawSizes);
+        out.writeLong(jpegMinFrameDurationNs);
+        out.writeLong(jpegStallDurationNs);
+        out.writeLong(yuvMinFrameDurationNs);
+        out.writeByte(concurrentIds.length);
+        for (String id : concurrentIds) {
+            out.writeUTF(id);
+        }
+    }
+    
+    public static CameraInfo readFrom(DataInputStream in) throws IOException {
+        CameraInfo info = new CameraInfo();
+        info.id = in.readUTF();
+        info.facing = in.readByte();
+        info.sensorOrientation = in.readShort();
+        info.hardwareLevel = in.readByte();
+        info.flashAvailable = in.readBoolean();
+        info.realtimeTimestamps = in.readBoolean();
+        info.jpegSizes = readSizes(in);
+        info.yuvSizes = readSizes(in);
+        info.rawSizes = readSizes(in);
+        info.jpegMinFrameDurationNs = in.readLong();
+        info.jpegStallDurationNs = in.readLong();
+        info.yuvMinFrameDurationNs = in.readLong();
+        int concurrent = in.readUnsignedByte();
+        if (concurrent > 0) {
+            info.concurrentIds = new String[concurrent];
+            for (int i = 0; i < concurrent; i++) {
+                info.concurrentIds[i] = in.readUTF();
+            }
+        }
+        return info;
+    }
+    
+    private static void writeSizes(DataOutputStream out, int[] sizes) throws IOException {
+        out.writeShort(sizes.length);
+        for (int value : sizes) {
+            out.writeShort(value);
+        }
+    }
+    
+    private static int[] readSizes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        if (count == 0) {
+            return NO_SIZES;
+        }
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = in.readUnsignedShort();
+        }
+        return sizes;
+    }
+}
+
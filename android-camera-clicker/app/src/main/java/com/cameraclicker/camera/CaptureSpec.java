@@ -0,0 +1,51 @@
+package com.cameraclicker.camera;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings for a capture request, independent of the camera backend
+ * Plays the role of a reusable CaptureRequest.Builder: the template and targets are fixed,
+ * the controls may change between captures. Backends cache the native request per spec
+ * and only rebuild it when a control has changed, so specs should be kept and reused.
+ * Control values are the same as the matching CaptureRequest constants. A trigger acts
+ * on every request built from the spec, so triggers belong on a spec of their own.
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureSpec {
+    
+    // Same values as CameraDevice.TEMPLATE_*
+    public static final int TEMPLATE_PREVIEW = 1;
+    public static final int TEMPLATE_STILL_CAPTURE = 2;
+    public static final int TEMPLATE_ZERO_SHUTTER_LAG = 5;
+    
+    // Leave the control at the template's default
+    public static final int UNSET = -1;
+    
+    public static final int AF_MODE_CONTINUOUS_PICTURE = 4;
+    
+    public static final int AE_MODE_ON = 1;
+    public static final int AE_MODE_ON_AUTO_FLASH = 2;
+    public static final int AE_MODE_ON_ALWAYS_FLASH = 3;
+    
+    public static final int FLASH_MODE_OFF = 0;
+    
+    public static final int AE_PRECAPTURE_TRIGGER_START = 1;
+    
+    public final int template;
+    public final List<CameraHal.Stream> targets;
+    
+    public int afMode = UNSET;
+    public int aeMode = UNSET;
+    public int flashMode = UNSET;
+    public int aePrecaptureTrigger = UNSET;
+    public int jpegQuality = UNSET; // 1 to 100
+    
+    public CaptureSpec(int template, CameraHal.Stream... targets) {
+        this.template = template;
+        this.targets = Collections.unmodifiableList(Arrays.asList(targets));
+    }
+}
+
@@ -0,0 +1,50 @@
+package com.cameraclicker.camera;
+
+/**
+ * How much of the camera is kept open while the watch is not using it
+ * Each tier trades memory and power for the time the next capture waits to re-warm.
+ * 
+ * @author DrKhiLL
+ */
+public enum IdleTier {
+    
+    /** Device, session, streams and 3A all running; captures start at once */
+    WARM,
+    
+    /** Device open, session and large image buffers released; re-warming configures a session */
+    COOL,
+    
+    /** Device closed; re-warming opens the camera again */
+    COLD;
+    
+    /**
+     * Tier a camera idle for a while should be in
+     * @param idleNanos Time since the last activity
+     * @param coolAfterNanos Idle time before cooling, or 0 to never cool
+     * @param coldAfterNanos Idle time before going cold, or 0 to never go cold
+     */
+    public static IdleTier forIdle(long idleNanos, long coolAfterNanos, long coldAfterNanos) {
+        if (coldAfterNanos > 0 && idleNanos >= coldAfterNanos) {
+            return COLD;
+        }
+        if (coolAfterNanos > 0 && idleNanos >= coolAfterNanos) {
+            return COOL;
+        }
+        return WARM;
+    }
+    
+    /**
+     * Idle time at which the tier after this one is due
+     * @return Nanoseconds of idle time, or -1 if no deeper tier is enabled
+     */
+    public long nextAfterNanos(long coolAfterNanos, long coldAfterNanos) {
+        if (this == WARM && coolAfterNanos > 0 && (coldAfterNanos <= 0 || coolAfterNanos < coldAfterNanos)) {
+            return coolAfterNanos;
+        }
+        if (this != COLD && coldAfterNanos > 0) {
+            return coldAfterNanos;
+        }
+        return -1;
+    }
+}
+
@@ -0,0 +1,106 @@
+package com.cameraclicker.camera;
+
+/**
+ * Decides how many steps below the requested quality profile captures should run
+ * Three pressures are watched: the save queue backing up, free storage running out and
+ * the device heating up. The worst of them sets the downshift straight away, so the next
+ * capture is already cheaper. Stepping back up goes one profile at a time, and only after
+ * no pressure has called for the current downshift for a while, so a queue that drains
+ * between shots does not make the resolution flap. Camera thread only.
+ * 
+ * @author DrKhiLL
+ */
+public class QualityPolicy {
+    
+    // Same values as PowerManager.THERMAL_STATUS_*
+    public static final int THERMAL_STATUS_NONE = 0;
+    public static final int THERMAL_STATUS_MODERATE = 2;
+    public static final int THERMAL_STATUS_SEVERE = 3;
+    
+    // Fraction of the save queue in use
+    private static final double QUEUE_BUSY = 0.5;
+    private static final double QUEUE_FULL = 0.85;
+    
+    private static final long STORAGE_LOW_BYTES = 1024L * 1024 * 1024;
+    private static final long STORAGE_CRITICAL_BYTES = 256L * 1024 * 1024;
+    
+    private final long stepUpHoldNanos;
+    
+    private int downshift = 0;
+    private String reason = "none";
+    private long lastPressureNanos;
+    private long downshiftCount = 0;
+    private long upshiftCount = 0;
+    
+    /**
+     * @param stepUpHoldNanos How long pressure must stay below the current downshift before stepping up
+     */
+    public QualityPolicy(long stepUpHoldNanos) {
+        this.stepUpHoldNanos = stepUpHoldNanos;
+    }
+    
+    /**
+     * Take new readings and return the downshift to apply
+     * @param queueFill Save queue depth over its capacity, 0 to 1
+     * @param freeBytes Free space where images are saved, or -1 if unknown
+     * @param thermalStatus One of the THERMAL_STATUS_* values
+     * @param nowNanos Current time on a monotonic clock
+     * @return Number of profiles to step down from the requested one
+     */
+    public int update(double queueFill, long freeBytes, int thermalStatus, long nowNanos) {
+        int required = 0;
+        String source = "none";
+        
+        int queue = queueFill >= QUEUE_FULL ? 2 : queueFill >= QUEUE_BUSY ? 1 : 0;
+        if (queue > required) {
+            required = queue;
+            source = "queue";
+        }
+        int storage = freeBytes < 0 ? 0 : freeBytes < STORAGE_CRITICAL_BYTES ? 2 : freeBytes < STORAGE_LOW_BYTES ? 1 : 0;
+        if (storage > required) {
+            required = storage;
+            source = "storage";
+        }
+        int thermal = thermalStatus >= THERMAL_STATUS_SEVERE ? 2 : thermalStatus >= THERMAL_STATUS_MODERATE ? 1 : 0;
+        if (thermal > required) {
+            required = thermal;
+            source = "thermal";
+        }
+        
+        if (required >= downshift) {
+            if (required > downshift) {
+                downshift = required;
+                downshiftCount++;
+            }
+            if (required > 0) {
+                reason = source;
+            }
+            lastPressureNanos = nowNanos;
+        } else if (nowNanos - lastPressureNanos >= stepUpHoldNanos) {
+            downshift--;
+            upshiftCount++;
+            // The next step up waits a full hold again
+            lastPressureNanos = nowNanos;
+            if (downshift == 0) {
+                reason = "none";
+            }
+        }
+        return downshift;
+    }
+    
+    public int getDownshift() {
+        return downshift;
+    }
+    
+    /**
+     * The pressure behind the current downshift: queue, storage, thermal or none
+     */
+    public String getReason() {
+        return reason;
+    }
+    
+    public String describe() {
+        return "downshift=" + downshift + " (" + reason + "), steps down=" + downshiftCount + " up=" + upshiftCount;
+    }
+}
+
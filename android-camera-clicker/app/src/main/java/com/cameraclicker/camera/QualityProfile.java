@@ -0,0 +1,55 @@
+package com.cameraclicker.camera;
+
+/**
+ * Named capture quality: output format, a pixel budget for the resolution and the JPEG quality
+ * Ordered from best to smallest, so stepping down under pressure moves towards the end.
+ * JPEG is the only format the saving pipeline writes, so every profile uses it for now;
+ * the format is part of the profile so a cheaper one can be added without changing callers.
+ * 
+ * @author DrKhiLL
+ */
+public enum QualityProfile {
+    
+    /** Largest size the sensor offers */
+    HIGH("high", CameraHal.FORMAT_JPEG, Long.MAX_VALUE, 95),
+    
+    /** Around 5 MP, still fine for prints; roughly a third of a 12 MP file */
+    MEDIUM("medium", CameraHal.FORMAT_JPEG, 5100000, 88),
+    
+    /** Around 2 MP, enough for sharing; keeps up with sustained shooting on slow storage */
+    LOW("low", CameraHal.FORMAT_JPEG, 2100000, 80);
+    
+    public final String wireName;
+    public final int format;
+    public final long maxPixels;
+    public final int jpegQuality;
+    
+    QualityProfile(String wireName, int format, long maxPixels, int jpegQuality) {
+        this.wireName = wireName;
+        this.format = format;
+        this.maxPixels = maxPixels;
+        this.jpegQuality = jpegQuality;
+    }
+    
+    /**
+     * @param name Name as sent by the watch or stored in the settings
+     * @return The profile, or null if the name is unknown
+     */
+    public static QualityProfile fromName(String name) {
+        for (QualityProfile profile : values()) {
+            if (profile.wireName.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * The profile a number of steps smaller, stopping at the smallest
+     */
+    public QualityProfile stepDown(int steps) {
+        QualityProfile[] profiles = values();
+        return profiles[Math.min(profiles.length - 1, ordinal() + Math.max(0, steps))];
+    }
+}
+
@@ -0,0 +1,837 @@
+package com.cameraclicker.camera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camera backend that produces synthetic frames with configurable timing and faults
+ * Uses only the JDK, so capture scheduling, queueing and saving can be exercised and
+ * timed on a plain JVM. A single sensor thread models the pipeline: requests are exposed
+ * one per frame interval, repeating requests fill idle frames, and each image is delivered
+ * a capture latency after its exposure started. Callbacks are handed to the executor
+ * given to the constructor, in the order they happened. Auto-exposure and continuous
+ * autofocus settle over consecutive frames and start over whenever the sensor idles,
+ * so one-off captures on an idle session report unconverged 3A states.
+ * 
+ * JPEG frames are a valid marker sequence (SOI, comment segments padded to the configured
+ * size, EOI) without decodable image data; YUV frames are a gradient with a moving block.
+ * Frame buffers are allocated once per stream and recycled when frames are closed.
+ * 
+ * @author DrKhiLL
+ */
+public class SimulatedCameraHal implements CameraHal {
+    
+    /**
+     * Simulated hardware; change fields before creating the backend
+     */
+    public static class Config {
+        public List<CameraInfo> cameras = defaultCameras();
+        
+        public long openLatencyMs = 150;
+        public long configureLatencyMs = 80;
+        // Start of exposure to image available
+        public long captureLatencyMs = 60;
+        // Shortest time between exposures
+        public long frameIntervalMs = 33;
+        
+        // Compressed size of a synthetic JPEG relative to its pixel count
+        public double jpegBytesPerPixel = 0.15;
+        
+        // Probabilities in [0, 1] for fault injection
+        public double openFailureRate = 0;
+        public double configureFailureRate = 0;
+        public double captureFailureRate = 0;
+        public double bufferLossRate = 0;
+        
+        // Back-to-back frames needed before AE and AF settle, and length of a precapture sequence
+        public int aeConvergeFrames = 8;
+        public int afConvergeFrames = 12;
+        public int precaptureFrames = 4;
+        // Auto-flash requests report that flash is required
+        public boolean lowLight = false;
+        
+        public long seed = 1;
+    }
+    
+    private static final int JPEG_SEGMENT_MAX = 65533;
+    private static final int BLOCK_SIZE = 16;
+    
+    private final Config config;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService sensor;
+    
+    // Only touched on the sensor thread
+    private final Random random;
+    private final List<SimulatedDevice> openDevices = new ArrayList<>();
+    
+    private final AtomicInteger nextSequenceId = new AtomicInteger();
+    private final AtomicLong framesDelivered = new AtomicLong();
+    private final AtomicLong buffersLost = new AtomicLong();
+    private final AtomicLong capturesFailed = new AtomicLong();
+    
+    /**
+     * @param callbackExecutor Runs every callback and frame delivery; must be single-threaded
+     */
+    public SimulatedCameraHal(Config config, Executor callbackExecutor) {
+        this.config = config;
+        this.callbackExecutor = callbackExecutor;
+        this.random = new Random(config.seed);
+        this.sensor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimulatedSensor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * A back and a front camera, each able to stream alongside the other
+     */
+    public static List<CameraInfo> defaultCameras() {
+        List<CameraInfo> cameras = new ArrayList<>();
+        cameras.add(createCamera("0", CameraInfo.FACING_BACK, 4032, 3024));
+        cameras.add(createCamera("1", CameraInfo.FACING_FRONT, 3264, 2448));
+        cameras.get(0).concurrentIds = new String[] {"1"};
+        cameras.get(1).concurrentIds = new String[] {"0"};
+        return cameras;
+    }
+    
+    private static CameraInfo createCamera(String id, int facing, int width, int height) {
+        CameraInfo info = new CameraInfo();
+        info.id = id;
+        info.facing = facing;
+        info.sensorOrientation = facing == CameraInfo.FACING_FRONT ? 270 : 90;
+        info.flashAvailable = facing == CameraInfo.FACING_BACK;
+        // Timestamps come from System.nanoTime, not the device's elapsed realtime clock
+        info.realtimeTimestamps = false;
+        info.jpegSizes = new int[] {width, height, 1920, 1080, 640, 480};
+        info.yuvSizes = new int[] {width, height, 1920, 1080, 640, 480, 320, 240};
+        info.jpegMinFrameDurationNs = 33333333L;
+        info.yuvMinFrameDurationNs = 33333333L;
+        return info;
+    }
+    
+    @Override
+    public String getName() {
+        return "simulated";
+    }
+    
+    @Override
+    public List<CameraInfo> enumerateCameras() {
+        return new ArrayList<>(config.cameras);
+    }
+    
+    @Override
+    public Stream createStream(int format, int width, int height, int maxFrames, FrameListener listener) {
+        if (format != FORMAT_JPEG && format != FORMAT_YUV_420_888) {
+            throw new IllegalArgumentException("Unsupported format " + format);
+        }
+        return new SimulatedStream(format, width, height, Math.max(1, maxFrames), listener);
+    }
+    
+    @Override
+    public void openCamera(String cameraId, final DeviceCallback callback) throws CameraHalException {
+        if (findCamera(cameraId) == null) {
+            throw new CameraHalException("Unknown camera " + cameraId);
+        }
+        
+        final SimulatedDevice device = new SimulatedDevice(cameraId);
+        schedule(config.openLatencyMs, new Runnable() {
+            @Override
+            public void run() {
+                if (chance(config.openFailureRate)) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onError(device, ERROR_CAMERA_DEVICE);
+                        }
+                    });
+                    return;
+                }
+                
+                device.callback = callback;
+                openDevices.add(device);
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onOpened(device);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Disconnect every open device of a camera, as when another app takes it over
+     */
+    public void injectDisconnect(final String cameraId) {
+        sensor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (final SimulatedDevice device : new ArrayList<>(openDevices)) {
+                    if (device.id.equals(cameraId)) {
+                        device.closeOnSensor();
+                        dispatch(new Runnable() {
+                            @Override
+                            public void run() {
+                                device.callback.onDisconnected(device);
+                            }
+                        });
+                    }
+                }
+            }
+        });
+    }
+    
+    @Override
+    public void release() {
+        sensor.shutdownNow();
+    }
+    
+    public long getFramesDelivered() {
+        return framesDelivered.get();
+    }
+    
+    public long getBuffersLost() {
+        return buffersLost.get();
+    }
+    
+    public long getCapturesFailed() {
+        return capturesFailed.get();
+    }
+    
+    private CameraInfo findCamera(String id) {
+        for (CameraInfo info : config.cameras) {
+            if (info.id.equals(id)) {
+                return info;
+            }
+        }
+        return null;
+    }
+    
+    private void schedule(long delayMs, Runnable task) {
+        sensor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+    
+    private void dispatch(Runnable callback) {
+        callbackExecutor.execute(callback);
+    }
+    
+    private boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+    
+    private class SimulatedDevice implements Device {
+        final String id;
+        DeviceCallback callback;
+        
+        // Sensor thread only
+        private SimulatedSession session;
+        private boolean closed = false;
+        
+        SimulatedDevice(String id) {
+            this.id = id;
+        }
+        
+        @Override
+        public String getId() {
+            return id;
+        }
+        
+        @Override
+        public void createSession(List<Stream> outputs, final SessionCallback callback) throws CameraHalException {
+            if (outputs.isEmpty()) {
+                throw new CameraHalException("No outputs for session");
+            }
+            final List<SimulatedStream> streams = new ArrayList<>(outputs.size());
+            for (Stream output : outputs) {
+                streams.add((SimulatedStream) output);
+            }
+            
+            schedule(config.configureLatencyMs, new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        return;
+                    }
+                    if (session != null) {
+                        session.closeOnSensor();
+                        session = null;
+                    }
+                    
+                    if (chance(config.configureFailureRate)) {
+                        dispatch(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onConfigureFailed();
+                            }
+                        });
+                        return;
+                    }
+                    
+                    final SimulatedSession configured = new SimulatedSession(SimulatedDevice.this, streams);
+                    session = configured;
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onConfigured(configured);
+                        }
+                    });
+                }
+            });
+        }
+        
+        @Override
+        public void close() {
+            sensor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeOnSensor();
+                }
+            });
+        }
+        
+        void closeOnSensor() {
+            closed = true;
+            if (session != null) {
+                session.closeOnSensor();
+                session = null;
+            }
+            openDevices.remove(this);
+        }
+    }
+    
+    /**
+     * A submitted capture; a repeating request is one instance reused for every frame
+     */
+    private static class Request {
+        final CaptureSpec spec;
+        final CaptureCallback callback;
+        final int sequenceId;
+        
+        Request(CaptureSpec spec, CaptureCallback callback, int sequenceId) {
+            this.spec = spec;
+            this.callback = callback;
+            this.sequenceId = sequenceId;
+        }
+    }
+    
+    private class SimulatedSession implements Session {
+        final SimulatedDevice device;
+        final List<SimulatedStream> outputs;
+        
+        // Sensor thread only
+        private final ArrayDeque<Request> queued = new ArrayDeque<>();
+        private final ArrayDeque<Request> exposing = new ArrayDeque<>();
+        private Request repeating;
+        private boolean frameScheduled = false;
+        private long nextFrameNanos = 0;
+        private long frameNumber = 0;
+        private volatile boolean closed = false;
+        
+        // 3A, sensor thread only
+        private long lastExposureNanos = 0;
+        private int meteredFrames = 0;
+        private int precaptureEndFrame = 0;
+        
+        private final Runnable exposeFrame = new Runnable() {
+            @Override
+            public void run() {
+                frameScheduled = false;
+                exposeNext();
+            }
+        };
+        
+        SimulatedSession(SimulatedDevice device, List<SimulatedStream> outputs) {
+            this.device = device;
+            this.outputs = outputs;
+        }
+        
+        @Override
+        public int capture(CaptureSpec spec, CaptureCallback callback) throws CameraHalException {
+            return captureBurst(Collections.singletonList(spec), callback);
+        }
+        
+        @Override
+        public int captureBurst(List<CaptureSpec> specs, CaptureCallback callback) throws CameraHalException {
+            checkTargets(specs);
+            final int sequenceId = nextSequenceId.incrementAndGet();
+            final List<Request> requests = new ArrayList<>(specs.size());
+            for (CaptureSpec spec : specs) {
+                requests.add(new Request(spec, callback, sequenceId));
+            }
+            sensor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        abort(requests);
+                        return;
+                    }
+                    queued.addAll(requests);
+                    scheduleFrame();
+                }
+            });
+            return sequenceId;
+        }
+        
+        @Override
+        public int setRepeating(CaptureSpec spec, CaptureCallback callback) throws CameraHalException {
+            checkTargets(Collections.singletonList(spec));
+            final Request request = new Request(spec, callback, nextSequenceId.incrementAndGet());
+            sensor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        return;
+                    }
+                    repeating = request;
+                    scheduleFrame();
+                }
+            });
+            return request.sequenceId;
+        }
+        
+        @Override
+        public void stopRepeating() throws CameraHalException {
+            checkOpen();
+            sensor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    repeating = null;
+                }
+            });
+        }
+        
+        @Override
+        public void close() {
+            sensor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeOnSensor();
+                }
+            });
+        }
+        
+        void closeOnSensor() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            repeating = null;
+            List<Request> unfinished = new ArrayList<>(queued);
+            unfinished.addAll(exposing);
+            queued.clear();
+            exposing.clear();
+            abort(unfinished);
+        }
+        
+        private void checkOpen() throws CameraHalException {
+            if (closed) {
+                throw new CameraHalException("Session closed");
+            }
+        }
+        
+        private void checkTargets(List<CaptureSpec> specs) throws CameraHalException {
+            checkOpen();
+            for (CaptureSpec spec : specs) {
+                for (Stream target : spec.targets) {
+                    if (!outputs.contains(target)) {
+                        throw new CameraHalException("Capture target is not an output of this session");
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Report each sequence with unfinished requests as aborted, once
+         */
+        private void abort(List<Request> requests) {
+            Set<Integer> reported = new LinkedHashSet<>();
+            for (final Request request : requests) {
+                if (request.callback != null && reported.add(request.sequenceId)) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            request.callback.onSequenceAborted(request.sequenceId);
+                        }
+                    });
+                }
+            }
+        }
+        
+        private void scheduleFrame() {
+            if (frameScheduled || closed || (queued.isEmpty() && repeating == null)) {
+                return;
+            }
+            frameScheduled = true;
+            long delay = Math.max(0, nextFrameNanos - System.nanoTime());
+            sensor.schedule(exposeFrame, delay, TimeUnit.NANOSECONDS);
+        }
+        
+        private void exposeNext() {
+            if (closed) {
+                return;
+            }
+            Request request = queued.poll();
+            if (request == null) {
+                request = repeating;
+            }
+            if (request == null) {
+                return;
+            }
+            
+            final long timestamp = System.nanoTime();
+            final long number = frameNumber++;
+            nextFrameNanos = timestamp + TimeUnit.MILLISECONDS.toNanos(config.frameIntervalMs);
+            exposing.add(request);
+            final int afState = updateAutoFocus(request.spec, timestamp);
+            final int aeState = updateAutoExposure(request.spec);
+            
+            final Request started = request;
+            if (started.callback != null) {
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.callback.onCaptureStarted(started.spec, timestamp);
+                    }
+                });
+            }
+            schedule(config.captureLatencyMs, new Runnable() {
+                @Override
+                public void run() {
+                    deliver(started, timestamp, number, afState, aeState);
+                }
+            });
+            scheduleFrame();
+        }
+        
+        /**
+         * Count this frame towards convergence, starting over if the sensor has been idle
+         */
+        private int updateAutoFocus(CaptureSpec spec, long timestamp) {
+            long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.frameIntervalMs * 4);
+            if (timestamp - lastExposureNanos > idleNanos) {
+                meteredFrames = 0;
+                precaptureEndFrame = 0;
+            }
+            lastExposureNanos = timestamp;
+            meteredFrames++;
+            
+            if (spec.afMode != CaptureSpec.AF_MODE_CONTINUOUS_PICTURE) {
+                return AF_STATE_INACTIVE;
+            }
+            return meteredFrames < config.afConvergeFrames ? AF_STATE_PASSIVE_SCAN : AF_STATE_PASSIVE_FOCUSED;
+        }
+        
+        private int updateAutoExposure(CaptureSpec spec) {
+            if (spec.aePrecaptureTrigger == CaptureSpec.AE_PRECAPTURE_TRIGGER_START) {
+                precaptureEndFrame = meteredFrames + config.precaptureFrames;
+            }
+            if (meteredFrames < precaptureEndFrame) {
+                return AE_STATE_PRECAPTURE;
+            }
+            if (meteredFrames < config.aeConvergeFrames) {
+                return AE_STATE_SEARCHING;
+            }
+            if (config.lowLight && spec.aeMode == CaptureSpec.AE_MODE_ON_AUTO_FLASH) {
+                return AE_STATE_FLASH_REQUIRED;
+            }
+            return AE_STATE_CONVERGED;
+        }
+        
+        private void deliver(final Request request, final long timestamp, long number,
+                             final int afState, final int aeState) {
+            if (closed || !exposing.remove(request)) {
+                return;
+            }
+            
+            final CaptureCallback callback = request.callback;
+            if (chance(config.captureFailureRate)) {
+                capturesFailed.incrementAndGet();
+                if (callback != null) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onCaptureFailed(request.spec, false);
+                        }
+                    });
+                }
+                return;
+            }
+            
+            for (Stream target : request.spec.targets) {
+                final SimulatedStream stream = (SimulatedStream) target;
+                if (stream.closed) {
+                    continue;
+                }
+                final SimulatedFrame frame = chance(config.bufferLossRate) ? null : stream.acquire(timestamp, number);
+                if (frame == null) {
+                    buffersLost.incrementAndGet();
+                    if (callback != null) {
+                        dispatch(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onBufferLost(request.spec);
+                            }
+                        });
+                    }
+                    continue;
+                }
+                framesDelivered.incrementAndGet();
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        stream.listener.onFrameAvailable(frame);
+                    }
+                });
+            }
+            
+            if (callback != null) {
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCaptureCompleted(request.spec, timestamp, afState, aeState);
+                    }
+                });
+            }
+        }
+    }
+    
+    private class SimulatedStream implements Stream {
+        final int format;
+        final int width;
+        final int height;
+        final int maxFrames;
+        final int jpegBytes;
+        final FrameListener listener;
+        
+        // Free buffers; frames are created lazily up to maxFrames and return here on close
+        private final ConcurrentLinkedQueue<SimulatedFrame> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger created = new AtomicInteger();
+        private volatile boolean closed = false;
+        
+        SimulatedStream(int format, int width, int height, int maxFrames, FrameListener listener) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.maxFrames = maxFrames;
+            this.jpegBytes = (int) Math.max(1024, (long) (width * (double) height * config.jpegBytesPerPixel));
+            this.listener = listener;
+        }
+        
+        @Override
+        public int getFormat() {
+            return format;
+        }
+        
+        @Override
+        public int getWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return height;
+        }
+        
+        @Override
+        public int getMaxFrames() {
+            return maxFrames;
+        }
+        
+        @Override
+        public void close() {
+            closed = true;
+            free.clear();
+        }
+        
+        /**
+         * Fill a free buffer for an exposure
+         * @return The frame, or null if every buffer is still held by the app
+         */
+        SimulatedFrame acquire(long timestamp, long frameNumber) {
+            SimulatedFrame frame = free.poll();
+            if (frame == null) {
+                if (created.incrementAndGet() > maxFrames) {
+                    created.decrementAndGet();
+                    return null;
+                }
+                frame = new SimulatedFrame(this);
+            }
+            frame.fill(timestamp, frameNumber);
+            return frame;
+        }
+        
+        void recycle(SimulatedFrame frame) {
+            if (!closed) {
+                free.add(frame);
+            }
+        }
+    }
+    
+    private static class SimulatedFrame implements CameraFrame {
+        final SimulatedStream stream;
+        final ByteBuffer[] planes;
+        final int[] rowStrides;
+        final int[] pixelStrides;
+        long timestamp;
+        private int blockX = -1;
+        
+        SimulatedFrame(SimulatedStream stream) {
+            this.stream = stream;
+            if (stream.format == FORMAT_JPEG) {
+                planes = new ByteBuffer[] {ByteBuffer.allocateDirect(stream.jpegBytes)};
+                rowStrides = new int[] {0};
+                pixelStrides = new int[] {0};
+            } else {
+                int chromaWidth = (stream.width + 1) / 2;
+                int chromaSize = chromaWidth * ((stream.height + 1) / 2);
+                planes = new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(stream.width * stream.height),
+                    ByteBuffer.allocateDirect(chromaSize),
+                    ByteBuffer.allocateDirect(chromaSize)
+                };
+                rowStrides = new int[] {stream.width, chromaWidth, chromaWidth};
+                pixelStrides = new int[] {1, 1, 1};
+                fillGradient();
+            }
+        }
+        
+        private void fillGradient() {
+            ByteBuffer luma = planes[0];
+            for (int y = 0; y < stream.height; y++) {
+                for (int x = 0; x < stream.width; x++) {
+                    luma.put(y * stream.width + x, (byte) ((x + y) * 255 / (stream.width + stream.height)));
+                }
+            }
+            for (int plane = 1; plane < 3; plane++) {
+                ByteBuffer chroma = planes[plane];
+                for (int i = 0; i < chroma.capacity(); i++) {
+                    chroma.put(i, (byte) 128);
+                }
+            }
+        }
+        
+        void fill(long timestamp, long frameNumber) {
+            this.timestamp = timestamp;
+            if (stream.format == FORMAT_JPEG) {
+                fillJpeg(frameNumber);
+            } else {
+                moveBlock(frameNumber);
+            }
+        }
+        
+        private void fillJpeg(long frameNumber) {
+            ByteBuffer data = planes[0];
+            data.clear();
+            data.put((byte) 0xFF).put((byte) 0xD8);
+            // Comment segments, the first one starting with the frame number and timestamp
+            boolean first = true;
+            while (data.remaining() > 2) {
+                int payload = Math.min(JPEG_SEGMENT_MAX, data.remaining() - 2 - 4);
+                if (payload < 16) {
+                    break;
+                }
+                data.put((byte) 0xFF).put((byte) 0xFE).putShort((short) (payload + 2));
+                int end = data.position() + payload;
+                if (first) {
+                    data.putLong(frameNumber).putLong(timestamp);
+                    first = false;
+                }
+                data.position(end);
+            }
+            data.put((byte) 0xFF).put((byte) 0xD9);
+            data.flip();
+        }
+        
+        private void moveBlock(long frameNumber) {
+            if (stream.width < BLOCK_SIZE || stream.height < BLOCK_SIZE) {
+                return;
+            }
+            ByteBuffer luma = planes[0];
+            if (blockX >= 0) {
+                // Restore the gradient under the previous block
+                paintBlock(luma, blockX, true);
+            }
+            blockX = (int) ((frameNumber * 4) % (stream.width - BLOCK_SIZE));
+            paintBlock(luma, blockX, false);
+        }
+        
+        private void paintBlock(ByteBuffer luma, int left, boolean restore) {
+            int top = (stream.height - BLOCK_SIZE) / 2;
+            for (int y = top; y < top + BLOCK_SIZE; y++) {
+                for (int x = left; x < left + BLOCK_SIZE; x++) {
+                    byte value = restore ? (byte) ((x + y) * 255 / (stream.width + stream.height)) : (byte) 255;
+                    luma.put(y * stream.width + x, value);
+                }
+            }
+        }
+        
+        @Override
+        public int getFormat() {
+            return stream.format;
+        }
+        
+        @Override
+        public int getWidth() {
+            return stream.width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return stream.height;
+        }
+        
+        @Override
+        public long getTimestamp() {
+            return timestamp;
+        }
+        
+        @Override
+        public int getPlaneCount() {
+            return planes.length;
+        }
+        
+        @Override
+        public ByteBuffer getPlaneBuffer(int plane) {
+            if (stream.format == FORMAT_JPEG) {
+                return planes[plane];
+            }
+            ByteBuffer buffer = planes[plane];
+            buffer.clear();
+            return buffer;
+        }
+        
+        @Override
+        public int getRowStride(int plane) {
+            return rowStrides[plane];
+        }
+        
+        @Override
+        public int getPixelStride(int plane) {
+            return pixelStrides[plane];
+        }
+        
+        @Override
+        public void close() {
+            stream.recycle(this);
+        }
+    }
+}
+
@@ -0,0 +1,38 @@
+package com.cameraclicker.camera;
+
+/**
+ * How the service moves between the front and rear cameras
+ * 
+ * @author DrKhiLL
+ */
+public enum SwitchStrategy {
+    
+    /** Both cameras stay open with configured sessions; a switch only moves the repeating request */
+    CONCURRENT,
+    
+    /** One camera open at a time; image readers and catalog data are kept across switches */
+    WARM_REUSE,
+    
+    /** Close everything and reinitialise, as before hot standby existed */
+    FULL_REOPEN;
+    
+    /**
+     * Pick a strategy for a pair of cameras
+     * @param requested Strategy asked for in the settings, or null to decide from the device
+     * @param back Rear camera, may be null
+     * @param front Front camera, may be null
+     * @return The requested strategy if the device supports it, otherwise the best supported one
+     */
+    public static SwitchStrategy choose(SwitchStrategy requested, CameraInfo back, CameraInfo front) {
+        boolean concurrent = back != null && front != null && back.isConcurrentWith(front.id);
+        
+        if (requested == null) {
+            return concurrent ? CONCURRENT : WARM_REUSE;
+        }
+        if (requested == CONCURRENT && !concurrent) {
+            return WARM_REUSE;
+        }
+        return requested;
+    }
+}
+
@@ -0,0 +1,289 @@
+package com.cameraclicker.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps autofocus and auto-exposure converged so still captures can fire at once
+ * A repeating metering request streams while the camera is ready and its results keep the
+ * latest AF and AE states. A capture asks to be released once 3A has settled: immediately
+ * if it already has, after convergence otherwise, and after an AE precapture sequence when
+ * the flash mode needs one. Waits are bounded by a timeout checked on every result, so no
+ * timer is needed while frames flow; stop() releases anything still waiting.
+ * Camera thread only.
+ * 
+ * @author DrKhiLL
+ */
+public class ThreeAManager {
+    
+    // How a capture was released, in order of increasing delay
+    public static final int OUTCOME_READY = 0; // Already converged
+    public static final int OUTCOME_CONVERGED = 1; // Waited for AF and AE to settle
+    public static final int OUTCOME_PRECAPTURE = 2; // Ran an AE precapture sequence for flash
+    public static final int OUTCOME_TIMED_OUT = 3; // Released unconverged after the timeout
+    public static final int OUTCOME_UNMETERED = 4; // No metering running, 3A state unknown
+    public static final int OUTCOME_ABORTED = 5; // Metering stopped while waiting; do not capture
+    public static final int OUTCOME_COUNT = 6;
+    
+    private static final String[] OUTCOME_NAMES = {
+        "ready", "converged", "precapture", "timedOut", "unmetered", "aborted"
+    };
+    
+    private static final int PRECAPTURE_IDLE = 0;
+    private static final int PRECAPTURE_SUBMITTED = 1;
+    private static final int PRECAPTURE_RUNNING = 2;
+    
+    public interface ReadyCallback {
+        /**
+         * @param outcome One of the OUTCOME_* values
+         * @param waitNanos Time from the request to the release
+         */
+        void onReady(int outcome, long waitNanos);
+    }
+    
+    private static class Waiter {
+        final ReadyCallback callback;
+        final long startNanos;
+        
+        Waiter(ReadyCallback callback, long startNanos) {
+            this.callback = callback;
+            this.startNanos = startNanos;
+        }
+    }
+    
+    private final CaptureSpec meteringRequest;
+    private final CaptureSpec precaptureRequest;
+    private final boolean meterFlash;
+    private final long timeoutNanos;
+    
+    private CameraHal.Session session;
+    private String flashMode = "auto";
+    private boolean hasResult = false;
+    private int afState = CameraHal.STATE_UNKNOWN;
+    private int aeState = CameraHal.STATE_UNKNOWN;
+    private int precapturePhase = PRECAPTURE_IDLE;
+    private final List<Waiter> waiters = new ArrayList<>();
+    private Runnable convergedListener;
+    
+    private final CameraHal.CaptureCallback resultCallback = new CameraHal.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CaptureSpec spec, long timestamp, int af, int ae) {
+            onResult(spec, af, ae);
+        }
+    };
+    
+    /**
+     * @param meteringRequest Repeating request to stream; should target a small, cheap output
+     * @param meterFlash Set the metering request's AE mode from the flash mode, so AE can report
+     *                   that flash is required. Leave false for a request that is itself saved.
+     * @param timeoutNanos Longest a capture waits for 3A before it is released anyway
+     */
+    public ThreeAManager(CaptureSpec meteringRequest, boolean meterFlash, long timeoutNanos) {
+        this.meteringRequest = meteringRequest;
+        this.meterFlash = meterFlash;
+        this.timeoutNanos = timeoutNanos;
+        
+        // Kept apart from the metering request: the trigger acts on every request built from a spec
+        precaptureRequest = new CaptureSpec(meteringRequest.template,
+            meteringRequest.targets.toArray(new CameraHal.Stream[0]));
+        precaptureRequest.afMode = meteringRequest.afMode;
+        precaptureRequest.aePrecaptureTrigger = CaptureSpec.AE_PRECAPTURE_TRIGGER_START;
+        applyFlashMode();
+    }
+    
+    public static String outcomeName(int outcome) {
+        return outcome >= 0 && outcome < OUTCOME_NAMES.length ? OUTCOME_NAMES[outcome] : "unknown";
+    }
+    
+    /**
+     * Start streaming the metering request on a configured session
+     */
+    public void start(CameraHal.Session session) throws CameraHalException {
+        stop();
+        session.setRepeating(meteringRequest, resultCallback);
+        this.session = session;
+    }
+    
+    /**
+     * Forget the session, for example because its repeating request was stopped or it closed
+     * Captures still waiting are released as aborted.
+     */
+    public void stop() {
+        session = null;
+        convergedListener = null;
+        hasResult = false;
+        afState = CameraHal.STATE_UNKNOWN;
+        aeState = CameraHal.STATE_UNKNOWN;
+        precapturePhase = PRECAPTURE_IDLE;
+        release(OUTCOME_ABORTED, System.nanoTime());
+    }
+    
+    /**
+     * @param mode auto, on or off
+     */
+    public void setFlashMode(String mode) throws CameraHalException {
+        if (mode.equals(flashMode)) {
+            return;
+        }
+        flashMode = mode;
+        int previousAeMode = meteringRequest.aeMode;
+        applyFlashMode();
+        if (session != null && meteringRequest.aeMode != previousAeMode) {
+            session.setRepeating(meteringRequest, resultCallback);
+        }
+    }
+    
+    /**
+     * Call back once the next capture can fire, possibly before returning
+     */
+    public void awaitReady(ReadyCallback callback) {
+        long now = System.nanoTime();
+        if (session == null) {
+            callback.onReady(OUTCOME_UNMETERED, 0);
+            return;
+        }
+        if (waiters.isEmpty() && precapturePhase == PRECAPTURE_IDLE && isConverged() && !needsPrecapture()) {
+            callback.onReady(OUTCOME_READY, 0);
+            return;
+        }
+        
+        waiters.add(new Waiter(callback, now));
+        evaluate(now);
+    }
+    
+    /**
+     * Run once AF and AE have settled, possibly before returning
+     * Unlike awaitReady this never triggers a precapture and has no timeout; stop() drops it.
+     */
+    public void awaitConverged(Runnable listener) {
+        if (isConverged()) {
+            listener.run();
+            return;
+        }
+        convergedListener = listener;
+    }
+    
+    /**
+     * Apply the timeout when no result may arrive, for example while a burst holds the sensor
+     */
+    public void checkTimeout() {
+        evaluate(System.nanoTime());
+    }
+    
+    /**
+     * True while a capture is waiting to be released
+     */
+    public boolean isWaiting() {
+        return !waiters.isEmpty();
+    }
+    
+    /**
+     * True once the latest result shows AF and AE settled
+     */
+    public boolean isConverged() {
+        return hasResult && isFocusSettled(afState) && isExposureSettled(aeState);
+    }
+    
+    public int getAfState() {
+        return afState;
+    }
+    
+    public int getAeState() {
+        return aeState;
+    }
+    
+    private void onResult(CaptureSpec spec, int af, int ae) {
+        if (session == null) {
+            return;
+        }
+        hasResult = true;
+        afState = af;
+        aeState = ae;
+        if (convergedListener != null && isConverged()) {
+            Runnable listener = convergedListener;
+            convergedListener = null;
+            listener.run();
+        }
+        
+        // Results of frames exposed before the trigger may still arrive after it was submitted
+        if (precapturePhase == PRECAPTURE_SUBMITTED
+                && (ae == CameraHal.AE_STATE_PRECAPTURE || spec == precaptureRequest)) {
+            precapturePhase = PRECAPTURE_RUNNING;
+        } else if (precapturePhase == PRECAPTURE_RUNNING && ae != CameraHal.AE_STATE_PRECAPTURE) {
+            precapturePhase = PRECAPTURE_IDLE;
+            release(OUTCOME_PRECAPTURE, System.nanoTime());
+            return;
+        }
+        evaluate(System.nanoTime());
+    }
+    
+    private void evaluate(long now) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        if (now - waiters.get(0).startNanos > timeoutNanos) {
+            precapturePhase = PRECAPTURE_IDLE;
+            release(OUTCOME_TIMED_OUT, now);
+            return;
+        }
+        if (precapturePhase != PRECAPTURE_IDLE || !isConverged()) {
+            return;
+        }
+        if (needsPrecapture()) {
+            startPrecapture(now);
+            return;
+        }
+        release(OUTCOME_CONVERGED, now);
+    }
+    
+    private boolean needsPrecapture() {
+        switch (flashMode) {
+            case "on":
+                return true;
+            case "auto":
+                return aeState == CameraHal.AE_STATE_FLASH_REQUIRED;
+            default:
+                return false;
+        }
+    }
+    
+    private void startPrecapture(long now) {
+        precaptureRequest.aeMode = "on".equals(flashMode) ? CaptureSpec.AE_MODE_ON_ALWAYS_FLASH
+            : CaptureSpec.AE_MODE_ON_AUTO_FLASH;
+        try {
+            session.capture(precaptureRequest, resultCallback);
+            precapturePhase = PRECAPTURE_SUBMITTED;
+        } catch (CameraHalException e) {
+            // Better an unmetered flash shot than none
+            release(OUTCOME_TIMED_OUT, now);
+        }
+    }
+    
+    private void release(int outcome, long now) {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        // Callbacks may queue the next capture straight away
+        List<Waiter> released = new ArrayList<>(waiters);
+        waiters.clear();
+        for (Waiter waiter : released) {
+            waiter.callback.onReady(outcome, now - waiter.startNanos);
+        }
+    }
+    
+    private void applyFlashMode() {
+        if (meterFlash) {
+            meteringRequest.aeMode = "off".equals(flashMode) ? CaptureSpec.AE_MODE_ON
+                : CaptureSpec.AE_MODE_ON_AUTO_FLASH;
+        }
+    }
+    
+    private static boolean isFocusSettled(int state) {
+        return state != CameraHal.AF_STATE_PASSIVE_SCAN && state != CameraHal.AF_STATE_ACTIVE_SCAN;
+    }
+    
+    private static boolean isExposureSettled(int state) {
+        return state != CameraHal.AE_STATE_SEARCHING && state != CameraHal.AE_STATE_PRECAPTURE;
+    }
+}
+
@@ -0,0 +1,252 @@
+package com.cameraclicker.protocol;
+
+import com.cameraclicker.service.CameraCommand;
+
+/**
+ * Encoder and decoder for the binary message format described in WireProtocol
+ * Decoding fills a caller-owned CameraCommand and uses only interned strings from the
+ * protocol tables, so a decode allocates nothing.
+ * 
+ * @author DrKhiLL
+ */
+public class BinaryCodec {
+    
+    private long decodedCount = 0;
+    private long rejectedCount = 0;
+    
+    /**
+     * Decode a binary message into a reusable command
+     * Fields absent from the message are left cleared.
+     * @param data Buffer holding the message
+     * @param offset Start of the message
+     * @param length Length of the message
+     * @param out Command to fill; cleared before decoding
+     * @return Message type code, or WireProtocol.TYPE_UNKNOWN if the message was rejected
+     */
+    public int decode(byte[] data, int offset, int length, CameraCommand out) {
+        out.clear();
+        
+        if (length < WireProtocol.HEADER_SIZE || data[offset] != WireProtocol.MAGIC) {
+            return reject();
+        }
+        // Newer major versions may change the header; refuse rather than misread them
+        if ((data[offset + 1] & 0xFF) != WireProtocol.VERSION) {
+            return reject();
+        }
+        
+        int type = data[offset + 2] & 0xFF;
+        if (WireProtocol.lookup(WireProtocol.MESSAGE_TYPES, type) == null) {
+            return reject();
+        }
+        out.action = WireProtocol.lookup(WireProtocol.COMMANDS, data[offset + 3] & 0xFF);
+        out.commandId = readInt(data, offset + 4);
+        out.sentAt = readInt(data, offset + 8) & 0xFFFFFFFFL;
+        
+        int position = offset + WireProtocol.HEADER_SIZE;
+        int end = offset + length;
+        while (position < end) {
+            if (position + 2 > end) {
+                return reject();
+            }
+            int tag = data[position] & 0xFF;
+            int size = data[position + 1] & 0xFF;
+            int value = position + 2;
+            if (value + size > end) {
+                return reject();
+            }
+            
+            switch (tag) {
+                case WireProtocol.TAG_CAMERA:
+                    out.camera = readCode(data, value, size, WireProtocol.CAMERAS);
+                    break;
+                case WireProtocol.TAG_FLASH:
+                    out.flash = readCode(data, value, size, WireProtocol.FLASH_MODES);
+                    break;
+                case WireProtocol.TAG_COUNT:
+                    out.count = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_QUALITY:
+                    out.quality = readCode(data, value, size, WireProtocol.QUALITIES);
+                    break;
+                case WireProtocol.TAG_THUMBNAIL_SIZE:
+                    out.thumbnailSize = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_TRANSFER_ID:
+                    out.transferId = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_NEXT_CHUNK:
+                    out.nextChunk = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_WIDTH:
+                    out.viewfinderWidth = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_HEIGHT:
+                    out.viewfinderHeight = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_BITS:
+                    out.viewfinderBits = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_INTERVAL:
+                    out.intervalMillis = readUnsigned(data, value, size);
+                    break;
+                case WireProtocol.TAG_START_TIME:
+                    out.startAt = readUnsigned(data, value, size) & 0xFFFFFFFFL;
+                    break;
+                default:
+                    // Skipped using the length, so newer tags do not break this version
+                    break;
+            }
+            position = value + size;
+        }
+        
+        decodedCount++;
+        return type;
+    }
+    
+    /**
+     * Encode a message; the inverse of decode
+     * @param type Message type code
+     * @param command Command fields to encode; all are optional, zero counts and sizes are left out
+     * @param sequenceNumber Sequence number carried in the header
+     * @param timestampSeconds Send time carried in the header
+     * @param out Buffer to write into
+     * @param offset Start position in the buffer
+     * @return Number of bytes written, or -1 if the buffer is too small or a value has no code
+     */
+    public static int encode(int type, CameraCommand command, int sequenceNumber, int timestampSeconds,
+                             byte[] out, int offset) {
+        if (out.length - offset < WireProtocol.HEADER_SIZE) {
+            return -1;
+        }
+        
+        int commandCode = 0;
+        if (command.action != null) {
+            commandCode = WireProtocol.indexOf(WireProtocol.COMMANDS, command.action);
+            if (commandCode < 0) {
+                return -1;
+            }
+        }
+        
+        out[offset] = WireProtocol.MAGIC;
+        out[offset + 1] = (byte) WireProtocol.VERSION;
+        out[offset + 2] = (byte) type;
+        out[offset + 3] = (byte) commandCode;
+        writeInt(out, offset + 4, sequenceNumber);
+        writeInt(out, offset + 8, timestampSeconds);
+        
+        int position = offset + WireProtocol.HEADER_SIZE;
+        if (command.camera != null) {
+            position = writeCode(out, position, WireProtocol.TAG_CAMERA, command.camera, WireProtocol.CAMERAS);
+        }
+        if (command.flash != null && position >= 0) {
+            position = writeCode(out, position, WireProtocol.TAG_FLASH, command.flash, WireProtocol.FLASH_MODES);
+        }
+        if (command.quality != null && position >= 0) {
+            position = writeCode(out, position, WireProtocol.TAG_QUALITY, command.quality, WireProtocol.QUALITIES);
+        }
+        if (command.count > 0 && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_COUNT, command.count);
+        }
+        if (command.thumbnailSize > 0 && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_THUMBNAIL_SIZE, command.thumbnailSize);
+        }
+        if (command.viewfinderWidth > 0 && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_WIDTH, command.viewfinderWidth);
+        }
+        if (command.viewfinderHeight > 0 && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_HEIGHT, command.viewfinderHeight);
+        }
+        if (command.viewfinderBits > 0 && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_BITS, command.viewfinderBits);
+        }
+        if (command.intervalMillis > 0 && position >= 0) {
+            position = writeIntTag(out, position, WireProtocol.TAG_INTERVAL, command.intervalMillis);
+        }
+        if (command.startAt > 0 && position >= 0) {
+            position = writeIntTag(out, position, WireProtocol.TAG_START_TIME, (int) command.startAt);
+        }
+        if (type == WireProtocol.TYPE_VIEWFINDER_ACK && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_TRANSFER_ID, command.transferId);
+        }
+        if (type == WireProtocol.TYPE_THUMBNAIL_ACK && position >= 0) {
+            position = writeShort(out, position, WireProtocol.TAG_TRANSFER_ID, command.transferId);
+            if (position >= 0) {
+                position = writeShort(out, position, WireProtocol.TAG_NEXT_CHUNK, command.nextChunk);
+            }
+        }
+        
+        return position < 0 ? -1 : position - offset;
+    }
+    
+    public long getDecodedCount() {
+        return decodedCount;
+    }
+    
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+    
+    private int reject() {
+        rejectedCount++;
+        return WireProtocol.TYPE_UNKNOWN;
+    }
+    
+    private static String readCode(byte[] data, int position, int size, String[] table) {
+        return size == 1 ? WireProtocol.lookup(table, data[position] & 0xFF) : null;
+    }
+    
+    private static int readUnsigned(byte[] data, int position, int size) {
+        int value = 0;
+        for (int i = 0; i < size && i < 4; i++) {
+            value = (value << 8) | (data[position + i] & 0xFF);
+        }
+        return value;
+    }
+    
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) << 24
+            | (data[position + 1] & 0xFF) << 16
+            | (data[position + 2] & 0xFF) << 8
+            | (data[position + 3] & 0xFF);
+    }
+    
+    private static void writeInt(byte[] out, int position, int value) {
+        out[position] = (byte) (value >>> 24);
+        out[position + 1] = (byte) (value >>> 16);
+        out[position + 2] = (byte) (value >>> 8);
+        out[position + 3] = (byte) value;
+    }
+    
+    private static int writeShort(byte[] out, int position, int tag, int value) {
+        if (position + 4 > out.length) {
+            return -1;
+        }
+        out[position] = (byte) tag;
+        out[position + 1] = 2;
+        out[position + 2] = (byte) (value >>> 8);
+        out[position + 3] = (byte) value;
+        return position + 4;
+    }
+    
+    private static int writeIntTag(byte[] out, int position, int tag, int value) {
+        if (position + 6 > out.length) {
+            return -1;
+        }
+        out[position] = (byte) tag;
+        out[position + 1] = 4;
+        writeInt(out, position + 2, value);
+        return position + 6;
+    }
+    
+    private static int writeCode(byte[] out, int position, int tag, String value, String[] table) {
+        int code = WireProtocol.indexOf(table, value);
+        if (code < 0 || position + 3 > out.length) {
+            return -1;
+        }
+        out[position] = (byte) tag;
+        out[position + 1] = 1;
+        out[position + 2] = (byte) code;
+        return position + 3;
+    }
+}
+
@@ -0,0 +1,66 @@
+package com.cameraclicker.protocol;
+
+import com.cameraclicker.service.CameraCommand;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decoder for the original JSON message format
+ * Kept for watches that have not negotiated the binary format.
+ * 
+ * @author DrKhiLL
+ */
+public class JsonCodec {
+    
+    /**
+     * Parse a JSON message into a reusable command
+     * @param message Message text as sent by the watch
+     * @param out Command to fill; cleared before decoding
+     * @return Message type code, or WireProtocol.TYPE_UNKNOWN for types without a code
+     * @throws JSONException if the message is not valid JSON or misses required fields
+     */
+    public static int decode(String message, CameraCommand out) throws JSONException {
+        out.clear();
+        
+        JSONObject json = new JSONObject(message);
+        int type = Math.max(WireProtocol.TYPE_UNKNOWN, WireProtocol.messageTypeCode(json.getString("messageType")));
+        if (json.has("sequenceNumber")) {
+            out.commandId = json.getInt("sequenceNumber");
+        }
+        out.sentAt = json.optLong("timestamp", 0);
+        
+        JSONObject payload = json.optJSONObject("payload");
+        if (payload == null) {
+            return type;
+        }
+        out.action = payload.optString("command", null);
+        
+        if (payload.has("parameters")) {
+            JSONObject params = payload.getJSONObject("parameters");
+            if (params.has("camera")) {
+                out.camera = params.getString("camera");
+            }
+            if (params.has("flash")) {
+                out.flash = params.getString("flash");
+            }
+            if (params.has("quality")) {
+                out.quality = params.getString("quality");
+            }
+            if (params.has("count")) {
+                out.count = params.getInt("count");
+            }
+            out.thumbnailSize = params.optInt("thumbnailSize", 0);
+            out.viewfinderWidth = params.optInt("width", 0);
+            out.viewfinderHeight = params.optInt("height", 0);
+            out.viewfinderBits = params.optInt("bits", 0);
+            out.intervalMillis = params.optInt("interval", 0);
+            out.startAt = params.optLong("startTime", 0);
+            out.transferId = params.optInt("transferId", 0);
+            out.nextChunk = params.optInt("next", 0);
+        }
+        
+        return type;
+    }
+}
+
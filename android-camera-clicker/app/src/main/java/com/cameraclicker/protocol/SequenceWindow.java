@@ -0,0 +1,112 @@
+package com.cameraclicker.protocol;
+
+/**
+ * Sliding window over recently seen sequence numbers for dropping retransmits
+ * A ring of bits indexed by sequence number records which of the last SIZE numbers up to
+ * the highest have been seen. SIZE covers the watch's whole retransmit horizon at high
+ * message rates, so anything older than the window is a late retransmit and is dropped.
+ * The watch numbers messages from FIRST_SEQUENCE again when its app is relaunched, so a
+ * first sequence number sent later than the newest message is the only thing taken as a
+ * restart; send times have one second resolution and cannot tell the two apart alone.
+ * 
+ * @author DrKhiLL
+ */
+public class SequenceWindow {
+    
+    // Power of two; at 60 messages/s this is 17 s, several times the watch's retransmit timeouts
+    public static final int SIZE = 1024;
+    // The watch's first message after a launch
+    public static final int FIRST_SEQUENCE = 1;
+    
+    private final long[] seen = new long[SIZE / 64];
+    private boolean started = false;
+    private int highest;
+    private long highestSentAt;
+    
+    private long duplicateCount = 0;
+    private long resetCount = 0;
+    
+    /**
+     * Record a sequence number
+     * @param sequence Sequence number of the message
+     * @param sentAt Send time from the message envelope, or 0 if unknown
+     * @return true if it has not been seen before and the message should be handled
+     */
+    public boolean accept(int sequence, long sentAt) {
+        if (!started) {
+            restart(sequence, sentAt);
+            return true;
+        }
+        
+        if (sequence > highest) {
+            long shift = (long) sequence - highest;
+            if (shift >= SIZE) {
+                clearAll();
+            } else {
+                // Numbers skipped on the way up have not been seen yet
+                for (int skipped = highest + 1; skipped < sequence; skipped++) {
+                    clear(skipped);
+                }
+            }
+            set(sequence);
+            highest = sequence;
+            highestSentAt = Math.max(highestSentAt, sentAt);
+            return true;
+        }
+        
+        // A retransmit carries its original send time, which cannot be after the newest message
+        if (sequence <= FIRST_SEQUENCE && sentAt > highestSentAt) {
+            resetCount++;
+            restart(sequence, sentAt);
+            return true;
+        }
+        
+        if ((long) highest - sequence >= SIZE || isSet(sequence)) {
+            duplicateCount++;
+            return false;
+        }
+        set(sequence);
+        return true;
+    }
+    
+    /**
+     * Retransmits dropped, including those too old for the window
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+    
+    public long getResetCount() {
+        return resetCount;
+    }
+    
+    private void restart(int sequence, long sentAt) {
+        started = true;
+        clearAll();
+        set(sequence);
+        highest = sequence;
+        highestSentAt = sentAt;
+    }
+    
+    private boolean isSet(int sequence) {
+        int bit = sequence & (SIZE - 1);
+        return (seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+    
+    private void set(int sequence) {
+        int bit = sequence & (SIZE - 1);
+        seen[bit >>> 6] |= 1L << bit;
+    }
+    
+    private void clear(int sequence) {
+        int bit = sequence & (SIZE - 1);
+        seen[bit >>> 6] &= ~(1L << bit);
+    }
+    
+    private void clearAll() {
+        for (int i = 0; i < seen.length; i++) {
+            seen[i] = 0;
+        }
+    }
+}
+
@@ -0,0 +1,103 @@
+package com.cameraclicker.protocol;
+
+/**
+ * Compact thumbnail format sent to the watch after a capture
+ * Pixels are quantised to a 64 colour palette with two bits per channel (RGB222, the
+ * channel levels 0, 85, 170 and 255) and run-length encoded one byte per run, which the
+ * watch can draw without a decoder library and which keeps flat areas such as sky cheap
+ * over Bluetooth LE.
+ * 
+ * Layout: [0] FORMAT_RGB222_RLE  [1..2] width  [3..4] height, big-endian, then runs.
+ * A run byte holds the run length minus one in its top two bits and the colour index
+ * (r << 4 | g << 2 | b) in the low six. Runs continue across row ends.
+ * 
+ * @author DrKhiLL
+ */
+public final class ThumbnailCodec {
+    
+    public static final int FORMAT_RGB222_RLE = 1;
+    public static final int HEADER_SIZE = 5;
+    
+    private static final int MAX_RUN = 4;
+    
+    private ThumbnailCodec() {
+    }
+    
+    /**
+     * Quantise and encode ARGB pixels; alpha is ignored
+     * @param pixels Row-major pixels, as returned by Bitmap.getPixels
+     * @return Encoded thumbnail, header included
+     */
+    public static byte[] encode(int[] pixels, int width, int height) {
+        int count = width * height;
+        // Worst case is one byte per pixel; trimmed to the real length below
+        byte[] out = new byte[HEADER_SIZE + count];
+        out[0] = (byte) FORMAT_RGB222_RLE;
+        out[1] = (byte) (width >>> 8);
+        out[2] = (byte) width;
+        out[3] = (byte) (height >>> 8);
+        out[4] = (byte) height;
+        
+        int position = HEADER_SIZE;
+        int i = 0;
+        while (i < count) {
+            int color = quantize(pixels[i]);
+            int run = 1;
+            while (run < MAX_RUN && i + run < count && quantize(pixels[i + run]) == color) {
+                run++;
+            }
+            out[position++] = (byte) ((run - 1) << 6 | color);
+            i += run;
+        }
+        
+        byte[] trimmed = new byte[position];
+        System.arraycopy(out, 0, trimmed, 0, position);
+        return trimmed;
+    }
+    
+    /**
+     * Decode back to ARGB pixels; the inverse of encode apart from the quantisation
+     * @return Row-major pixels, or null if the data is not a thumbnail in this format
+     */
+    public static int[] decode(byte[] data) {
+        if (data.length < HEADER_SIZE || (data[0] & 0xFF) != FORMAT_RGB222_RLE) {
+            return null;
+        }
+        int width = getWidth(data);
+        int height = getHeight(data);
+        int[] pixels = new int[width * height];
+        
+        int pixel = 0;
+        for (int position = HEADER_SIZE; position < data.length && pixel < pixels.length; position++) {
+            int run = ((data[position] & 0xFF) >>> 6) + 1;
+            int argb = toArgb(data[position] & 0x3F);
+            for (int i = 0; i < run && pixel < pixels.length; i++) {
+                pixels[pixel++] = argb;
+            }
+        }
+        return pixel == pixels.length ? pixels : null;
+    }
+    
+    public static int getWidth(byte[] data) {
+        return (data[1] & 0xFF) << 8 | (data[2] & 0xFF);
+    }
+    
+    public static int getHeight(byte[] data) {
+        return (data[3] & 0xFF) << 8 | (data[4] & 0xFF);
+    }
+    
+    /**
+     * Nearest palette index for an ARGB colour
+     */
+    static int quantize(int argb) {
+        int r = ((argb >>> 16 & 0xFF) + 42) / 85;
+        int g = ((argb >>> 8 & 0xFF) + 42) / 85;
+        int b = ((argb & 0xFF) + 42) / 85;
+        return r << 4 | g << 2 | b;
+    }
+    
+    static int toArgb(int index) {
+        return 0xFF000000 | (index >>> 4 & 3) * 85 << 16 | (index >>> 2 & 3) * 85 << 8 | (index & 3) * 85;
+    }
+}
+
@@ -0,0 +1,194 @@
+package com.cameraclicker.protocol;
+
+/**
+ * Tile format for viewfinder frames sent to the watch
+ * Frames are grayscale at 1, 2 or 4 bits per pixel, cut into TILE_SIZE square tiles, and
+ * only the tiles that differ from what the watch shows are sent. Every tile carries its
+ * full content rather than a difference, so a frame built against an older picture than
+ * the watch has is still drawn correctly, and a lost frame needs no repair.
+ * Dithering is ordered (Bayer 4x4) rather than error diffusion: a still scene dithers to
+ * the same pixels every frame, so sensor noise does not make every tile look changed.
+ * 
+ * Layout: [0] FORMAT_GRAY_TILES  [1..2] width  [3..4] height  [5] bits per pixel
+ * [6] tile size, then per tile [2 bytes] tile index, row-major, and its pixels packed
+ * most significant bits first, row by row. Width and height are multiples of TILE_SIZE.
+ * 
+ * @author DrKhiLL
+ */
+public final class ViewfinderCodec {
+    
+    public static final int FORMAT_GRAY_TILES = 2;
+    public static final int HEADER_SIZE = 7;
+    public static final int TILE_SIZE = 8;
+    
+    private static final int[] BAYER_4X4 = {
+        0, 8, 2, 10,
+        12, 4, 14, 6,
+        3, 11, 1, 9,
+        15, 7, 13, 5
+    };
+    
+    private ViewfinderCodec() {
+    }
+    
+    /**
+     * Check a bit depth the watch asked for
+     */
+    public static boolean isSupportedDepth(int bits) {
+        return bits == 1 || bits == 2 || bits == 4;
+    }
+    
+    /**
+     * Bytes one encoded tile takes, index included
+     */
+    public static int tileBytes(int bits) {
+        return 2 + TILE_SIZE * TILE_SIZE * bits / 8;
+    }
+    
+    /**
+     * Scale a luma plane down to the viewfinder size and dither it to the bit depth
+     * The source is centre-cropped to the target aspect ratio and each target pixel
+     * averages the source pixels it covers.
+     * @param source Luma, one byte per pixel with the given row stride
+     * @param levels Output, one gray level per byte, width * height long
+     */
+    public static void downscale(byte[] source, int sourceWidth, int sourceHeight, int sourceStride,
+                                 byte[] levels, int width, int height, int bits) {
+        // Largest region of the source with the target's aspect ratio
+        int cropWidth = sourceWidth;
+        int cropHeight = (int) ((long) sourceWidth * height / width);
+        if (cropHeight > sourceHeight) {
+            cropHeight = sourceHeight;
+            cropWidth = (int) ((long) sourceHeight * width / height);
+        }
+        int left = (sourceWidth - cropWidth) / 2;
+        int top = (sourceHeight - cropHeight) / 2;
+        int maxLevel = (1 << bits) - 1;
+        
+        for (int y = 0; y < height; y++) {
+            int y0 = top + y * cropHeight / height;
+            int y1 = Math.max(y0 + 1, top + (y + 1) * cropHeight / height);
+            for (int x = 0; x < width; x++) {
+                int x0 = left + x * cropWidth / width;
+                int x1 = Math.max(x0 + 1, left + (x + 1) * cropWidth / width);
+                int sum = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    int row = sy * sourceStride;
+                    for (int sx = x0; sx < x1; sx++) {
+                        sum += source[row + sx] & 0xFF;
+                    }
+                }
+                int value = sum / ((y1 - y0) * (x1 - x0));
+                int threshold = BAYER_4X4[(y & 3) << 2 | (x & 3)];
+                int level = (value * maxLevel * 16 + threshold * 255 + 128) / (255 * 16);
+                levels[y * width + x] = (byte) Math.min(maxLevel, level);
+            }
+        }
+    }
+    
+    /**
+     * True if a tile differs between two level buffers
+     */
+    public static boolean tileDiffers(byte[] a, byte[] b, int width, int tile) {
+        int tilesPerRow = width / TILE_SIZE;
+        int start = (tile / tilesPerRow) * TILE_SIZE * width + (tile % tilesPerRow) * TILE_SIZE;
+        for (int row = 0; row < TILE_SIZE; row++) {
+            int offset = start + row * width;
+            for (int i = 0; i < TILE_SIZE; i++) {
+                if (a[offset + i] != b[offset + i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Copy one tile between level buffers
+     */
+    public static void copyTile(byte[] from, byte[] to, int width, int tile) {
+        int tilesPerRow = width / TILE_SIZE;
+        int start = (tile / tilesPerRow) * TILE_SIZE * width + (tile % tilesPerRow) * TILE_SIZE;
+        for (int row = 0; row < TILE_SIZE; row++) {
+            System.arraycopy(from, start + row * width, to, start + row * width, TILE_SIZE);
+        }
+    }
+    
+    public static int writeHeader(byte[] out, int width, int height, int bits) {
+        out[0] = (byte) FORMAT_GRAY_TILES;
+        out[1] = (byte) (width >>> 8);
+        out[2] = (byte) width;
+        out[3] = (byte) (height >>> 8);
+        out[4] = (byte) height;
+        out[5] = (byte) bits;
+        out[6] = (byte) TILE_SIZE;
+        return HEADER_SIZE;
+    }
+    
+    /**
+     * Append one tile of levels to an encoded frame
+     * @return Position after the tile
+     */
+    public static int writeTile(byte[] out, int position, byte[] levels, int width, int bits, int tile) {
+        int tilesPerRow = width / TILE_SIZE;
+        int start = (tile / tilesPerRow) * TILE_SIZE * width + (tile % tilesPerRow) * TILE_SIZE;
+        out[position++] = (byte) (tile >>> 8);
+        out[position++] = (byte) tile;
+        
+        int current = 0;
+        int filled = 0;
+        for (int row = 0; row < TILE_SIZE; row++) {
+            int offset = start + row * width;
+            for (int i = 0; i < TILE_SIZE; i++) {
+                current = current << bits | levels[offset + i];
+                filled += bits;
+                if (filled == 8) {
+                    out[position++] = (byte) current;
+                    current = 0;
+                    filled = 0;
+                }
+            }
+        }
+        return position;
+    }
+    
+    /**
+     * Apply an encoded frame to a level buffer; the inverse of writeHeader and writeTile
+     * @return False if the data is not a frame of this size and depth
+     */
+    public static boolean apply(byte[] data, int length, byte[] levels, int width, int height, int bits) {
+        if (length < HEADER_SIZE || (data[0] & 0xFF) != FORMAT_GRAY_TILES
+                || ((data[1] & 0xFF) << 8 | (data[2] & 0xFF)) != width
+                || ((data[3] & 0xFF) << 8 | (data[4] & 0xFF)) != height
+                || data[5] != bits || data[6] != TILE_SIZE) {
+            return false;
+        }
+        int tilesPerRow = width / TILE_SIZE;
+        int tileCount = tilesPerRow * (height / TILE_SIZE);
+        int mask = (1 << bits) - 1;
+        
+        int position = HEADER_SIZE;
+        while (position + tileBytes(bits) <= length) {
+            int tile = (data[position] & 0xFF) << 8 | (data[position + 1] & 0xFF);
+            if (tile >= tileCount) {
+                return false;
+            }
+            position += 2;
+            int start = (tile / tilesPerRow) * TILE_SIZE * width + (tile % tilesPerRow) * TILE_SIZE;
+            int shift = 8 - bits;
+            for (int row = 0; row < TILE_SIZE; row++) {
+                int offset = start + row * width;
+                for (int i = 0; i < TILE_SIZE; i++) {
+                    levels[offset + i] = (byte) ((data[position] & 0xFF) >>> shift & mask);
+                    shift -= bits;
+                    if (shift < 0) {
+                        shift = 8 - bits;
+                        position++;
+                    }
+                }
+            }
+        }
+        return position == length;
+    }
+}
+
@@ -0,0 +1,100 @@
+package com.cameraclicker.protocol;
+
+/**
+ * Constants for the compact binary message format shared with the watch
+ * A binary message starts with MAGIC, which can never begin a JSON message, so both
+ * formats can arrive on the same channel and be told apart by their first byte.
+ * 
+ * Layout, big-endian:
+ * [0] MAGIC  [1] VERSION  [2] message type  [3] command
+ * [4..7] sequence number  [8..11] timestamp in seconds
+ * then parameters as (tag, length, value) triples until the end of the message.
+ * Unknown tags are skipped using their length, so new parameters can be added
+ * without bumping the version.
+ * 
+ * @author DrKhiLL
+ */
+public final class WireProtocol {
+    
+    public static final byte MAGIC = (byte) 0xCC;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+    
+    // Names used to advertise and select a format during negotiation
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_BINARY_V1 = "bin1";
+    
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_CAMERA_COMMAND = 1;
+    public static final int TYPE_STATUS_REQUEST = 2;
+    public static final int TYPE_HEARTBEAT = 3;
+    public static final int TYPE_THUMBNAIL_ACK = 4;
+    public static final int TYPE_VIEWFINDER_ACK = 5;
+    
+    public static final int TAG_CAMERA = 1;
+    public static final int TAG_FLASH = 2;
+    public static final int TAG_COUNT = 3;
+    public static final int TAG_QUALITY = 4;
+    public static final int TAG_THUMBNAIL_SIZE = 5;
+    public static final int TAG_TRANSFER_ID = 6;
+    public static final int TAG_NEXT_CHUNK = 7;
+    public static final int TAG_WIDTH = 8;
+    public static final int TAG_HEIGHT = 9;
+    public static final int TAG_BITS = 10;
+    public static final int TAG_INTERVAL = 11;
+    public static final int TAG_START_TIME = 12;
+    
+    // Indexed by wire code; decoding returns these instances so no strings are allocated
+    static final String[] MESSAGE_TYPES = {
+        null, "CAMERA_COMMAND", "STATUS_REQUEST", "HEARTBEAT", "THUMBNAIL_ACK", "VIEWFINDER_ACK"
+    };
+    static final String[] COMMANDS = {
+        null, "CAPTURE_PHOTO", "SWITCH_CAMERA", "SET_FLASH", "GET_STATUS", "BURST", "NOOP",
+        "VIEWFINDER_START", "VIEWFINDER_STOP", "TIMELAPSE", "TIMELAPSE_STOP"
+    };
+    static final String[] CAMERAS = {"rear", "front"};
+    static final String[] FLASH_MODES = {"auto", "on", "off"};
+    static final String[] QUALITIES = {"high", "medium", "low"};
+    
+    private WireProtocol() {
+    }
+    
+    /**
+     * Check whether a received message uses the binary format
+     */
+    public static boolean isBinary(byte[] data, int length) {
+        return length >= 2 && data[0] == MAGIC;
+    }
+    
+    public static String messageTypeName(int type) {
+        return lookup(MESSAGE_TYPES, type);
+    }
+    
+    public static int messageTypeCode(String name) {
+        return indexOf(MESSAGE_TYPES, name);
+    }
+    
+    public static int commandCode(String name) {
+        return indexOf(COMMANDS, name);
+    }
+    
+    static String lookup(String[] table, int code) {
+        return code >= 0 && code < table.length ? table[code] : null;
+    }
+    
+    /**
+     * Wire code for a value, or -1 if it has no code in this version
+     */
+    static int indexOf(String[] table, String value) {
+        if (value == null) {
+            return -1;
+        }
+        for (int i = 0; i < table.length; i++) {
+            if (value.equals(table[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
@@ -1,13 +1,44 @@
 package com.cameraclicker.service;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
+import androidx.core.content.ContextCompat;
+
+import com.cameraclicker.BuildConfig;
+import com.cameraclicker.camera.IdleTier;
+import com.cameraclicker.camera.ThreeAManager;
+import com.cameraclicker.protocol.WireProtocol;
+import com.cameraclicker.util.CaptureRecord;
+import com.cameraclicker.util.CaptureSettings;
+import com.cameraclicker.util.CaptureTrace;
+import com.cameraclicker.util.LatencyHistogram;
+import com.cameraclicker.util.ThumbnailEncoder;
+import com.cameraclicker.util.ViewfinderEncoder;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Service for handling Bluetooth communication with Garmin devices
  * Uses Garmin Connect IQ SDK for device communication
@@ -17,12 +48,288 @@ import org.json.JSONObject;
 public class BluetoothService extends Service {
     
     private static final String TAG = "BluetoothService";
+    private static final long BENCHMARK_INTERVAL_MS = 5;
+    private static final long BENCHMARK_SETTLE_MS = 1000;
+    
+    // Acknowledgments are batched: sent when this many are waiting or after the delay
+    private static final int ACK_BATCH_SIZE = 16;
+    private static final long ACK_DELAY_MS = 50;
+    
+    // Same rule as the watch: nothing heard for this long means it has gone
+    private static final long WATCH_TIMEOUT_MS = 30000;
+    
+    // Commands each client may have waiting for the camera before more are rejected
+    private static final int CLIENT_QUEUE_CAPACITY = 16;
+    
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    
+    // Direct channel to CameraService once it is running; null means use Intents
+    private CameraService cameraService;
+    private final CameraCommand outgoingCommand = new CameraCommand();
+    
+    /**
+     * One controller talking to the phone, such as a watch or an automation script
+     * Each has its own sequence space, acknowledgment batch and outbound link, and its own
+     * queue in the fair command scheduler. Main thread only.
+     */
+    private class ClientSession {
+        final String id;
+        // Connected through the LocalControlServer rather than the watch link
+        final boolean local;
+        final FairCommandScheduler.Client commands;
+        final int[] pendingAcks = new int[ACK_BATCH_SIZE];
+        int pendingAckCount = 0;
+        long lastHeardNanos;
+        
+        final MessageIntake intake = new MessageIntake(new MessageIntake.Listener() {
+            @Override
+            public void onAcknowledge(int sequenceNumber) {
+                queueAcknowledgment(ClientSession.this, sequenceNumber);
+            }
+            
+            @Override
+            public void onStatusRequest() {
+                notifyWatchActivity();
+                sendStatusUpdate(ClientSession.this);
+            }
+            
+            @Override
+            public void onHeartbeat() {
+                notifyWatchActivity();
+            }
+            
+            @Override
+            public void onThumbnailAck(int transferId, int nextChunk) {
+                thumbnailSender.onAck(transferId, nextChunk, SystemClock.elapsedRealtimeNanos());
+                scheduleThumbnailPoll();
+            }
+            
+            @Override
+            public void onViewfinderAck(int frame) {
+                CameraService service = cameraService;
+                if (service != null) {
+                    service.onViewfinderAck(frame);
+                }
+            }
+            
+            @Override
+            public void onUnsupportedFormat(int version) {
+                // Most likely a newer format; tell the watch which formats we accept so it can fall back
+                Log.w(TAG, "Rejected binary message from " + id + ", version " + version);
+                sendError(ClientSession.this, "Unsupported message format");
+            }
+            
+            @Override
+            public void onMalformedMessage(String reason, Exception cause) {
+                Log.e(TAG, id + ": " + reason, cause);
+            }
+            
+            @Override
+            public void onCameraCommand(CameraCommand command) {
+                handleCommand(ClientSession.this, command);
+            }
+        });
+        
+        final OutboundScheduler outbound = new OutboundScheduler(new OutboundScheduler.Listener() {
+            @Override
+            public void onTransmit(String data, int messageCount) {
+                transmitToWatch(ClientSession.this, data, messageCount);
+            }
+        });
+        
+        final Runnable flushAcks = new Runnable() {
+            @Override
+            public void run() {
+                sendAcknowledgments(ClientSession.this);
+            }
+        };
+        
+        final Runnable pollOutbound = new Runnable() {
+            @Override
+            public void run() {
+                scheduleOutboundPoll(ClientSession.this);
+            }
+        };
+        
+        final Runnable transmitComplete = new Runnable() {
+            @Override
+            public void run() {
+                outbound.onTransmitComplete(true, SystemClock.elapsedRealtimeNanos());
+                scheduleOutboundPoll(ClientSession.this);
+            }
+        };
+        
+        ClientSession(String id, boolean local) {
+            this.id = id;
+            this.local = local;
+            this.commands = commandScheduler.addClient(id, FairCommandScheduler.DEFAULT_WEIGHT);
+        }
+    }
+    
+    private final Map<String, ClientSession> sessions = new LinkedHashMap<>();
+    private final FairCommandScheduler commandScheduler = new FairCommandScheduler(CLIENT_QUEUE_CAPACITY);
+    private final DispatchWindow dispatchWindow = new DispatchWindow();
+    private long capturesFinishedSeen;
+    // Latest clients to ask for a thumbnail and for the viewfinder; those go to them alone
+    private ClientSession thumbnailClient;
+    private ClientSession viewfinderClient;
+    
+    private LocalControlServer controlServer;
+    
+    private final Runnable pumpCommands = new Runnable() {
+        @Override
+        public void run() {
+            pumpCommands();
+        }
+    };
+    
+    private final ThumbnailSender thumbnailSender = new ThumbnailSender(new ThumbnailSender.Listener() {
+        @Override
+        public void onSendChunk(int transferId, int index, int count, byte[] data, int offset, int length) {
+            sendThumbnailChunk(transferId, index, count, data, offset, length);
+        }
+        
+        @Override
+        public void onTransferComplete(ThumbnailSender.Transfer transfer) {
+            lastThumbnail = transfer;
+            Log.d(TAG, "Thumbnail " + transfer.id + " delivered: " + transfer.getPayloadBytes() + " bytes in "
+                + transfer.chunkCount + " chunks, " + transfer.bytesSent + " bytes sent, "
+                + transfer.retransmits + " retransmits, " + transfer.resumes + " resumes, "
+                + transfer.getElapsedMillis() + " ms");
+        }
+    });
+    private ThumbnailSender.Transfer lastThumbnail;
+    private ThumbnailEncoder thumbnailEncoder;
+    
+    private final Runnable pollThumbnail = new Runnable() {
+        @Override
+        public void run() {
+            scheduleThumbnailPoll();
+        }
+    };
+    
+    private final ViewfinderEncoder.Listener viewfinderListener = new ViewfinderEncoder.Listener() {
+        @Override
+        public void onViewfinderFrame(final int frame, byte[] data, int length) {
+            // Encoded here, on the encoder thread, since the data is reused once this returns
+            final String encoded = Base64.encodeToString(data, 0, length, Base64.NO_WRAP);
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    sendViewfinderFrame(frame, encoded);
+                }
+            });
+        }
+    };
+    
+    private final ServiceConnection cameraConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            cameraService = ((CameraService.LocalBinder) service).getService();
+            cameraService.setViewfinderListener(viewfinderListener);
+            Log.d(TAG, "Direct command channel to CameraService connected");
+        }
+        
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            cameraService = null;
+            Log.w(TAG, "Direct command channel to CameraService lost");
+        }
+    };
+    
+    private final BroadcastReceiver captureResultReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            sendCaptureResult(intent);
+        }
+    };
+    
+    private final BroadcastReceiver timelapseProgressReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            sendTimelapseProgress(intent);
+        }
+    };
+    
+    private final ServiceStateRegistry stateRegistry = ServiceStateRegistry.getInstance();
+    private String reportedReadiness;
+    private IdleTier reportedIdleTier;
+    
+    private final ServiceStateRegistry.Listener stateListener = new ServiceStateRegistry.Listener() {
+        @Override
+        public void onStateChanged(ServiceState state) {
+            long finished = state.getCapturesFinished();
+            if (finished > capturesFinishedSeen) {
+                // Only captures the window handed out free room in it; older ones are forgotten and expire
+                long first = Math.max(capturesFinishedSeen, finished - ServiceState.FINISHED_HISTORY) + 1;
+                for (long number = first; number <= finished; number++) {
+                    dispatchWindow.onFinished(state.getFinishedCommandId(number));
+                }
+                capturesFinishedSeen = finished;
+                pumpCommands();
+            }
+            // Queue depths and captures change too often to be worth a message of their own
+            if (!state.getReadiness().equals(reportedReadiness) || state.getIdleTier() != reportedIdleTier) {
+                reportedReadiness = state.getReadiness();
+                reportedIdleTier = state.getIdleTier();
+                // Superseded in the outbound queue, so a quick run of changes costs one transmit
+                sendStatusUpdate(null);
+            }
+        }
+    };
+    
+    private final Runnable watchTimeout = new Runnable() {
+        @Override
+        public void run() {
+            expireSessions();
+        }
+    };
+    
+    private final BroadcastReceiver imageSavedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String path = intent.getStringExtra("path");
+            int size = intent.getIntExtra("thumbnailSize", 0);
+            if (path != null && size > 0) {
+                thumbnailEncoder.encode(path, size, intent.getIntExtra("commandId", CaptureRecord.NO_COMMAND_ID));
+            }
+        }
+    };
     
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "BluetoothService created");
         initializeGarminCommunication();
+        startLocalControl();
+        
+        ContextCompat.registerReceiver(this, captureResultReceiver,
+            new IntentFilter(CameraService.ACTION_CAPTURE_RESULT), ContextCompat.RECEIVER_NOT_EXPORTED);
+        ContextCompat.registerReceiver(this, timelapseProgressReceiver,
+            new IntentFilter(CameraService.ACTION_TIMELAPSE_PROGRESS), ContextCompat.RECEIVER_NOT_EXPORTED);
+        
+        // Decoding a saved image takes tens of milliseconds, so it stays off the main thread
+        thumbnailEncoder = new ThumbnailEncoder(new ThumbnailEncoder.Callback() {
+            @Override
+            public void onThumbnailEncoded(final byte[] thumbnail, final int commandId, long encodeNanos) {
+                Log.d(TAG, "Thumbnail encoded: " + thumbnail.length + " bytes in " + encodeNanos / 1000000 + " ms");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        thumbnailSender.start(thumbnail, commandId, SystemClock.elapsedRealtimeNanos());
+                        scheduleThumbnailPoll();
+                    }
+                });
+            }
+        });
+        ContextCompat.registerReceiver(this, imageSavedReceiver,
+            new IntentFilter(CameraService.ACTION_IMAGE_SAVED), ContextCompat.RECEIVER_NOT_EXPORTED);
+        capturesFinishedSeen = stateRegistry.getState().getCapturesFinished();
+        stateRegistry.publishBluetoothService(true);
+        stateRegistry.subscribe(stateListener, mainHandler);
+        
+        // No BIND_AUTO_CREATE: connect whenever CameraService is started, never start it ourselves
+        bindService(new Intent(this, CameraService.class), cameraConnection, 0);
     }
     
     @Override
@@ -39,43 +346,710 @@ public class BluetoothService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        for (ClientSession session : sessions.values()) {
+            sendAcknowledgments(session);
+        }
+        mainHandler.removeCallbacksAndMessages(null);
+        for (ClientSession session : sessions.values()) {
+            session.outbound.drain(SystemClock.elapsedRealtimeNanos());
+        }
+        if (cameraService != null) {
+            cameraService.setViewfinderListener(null);
+        }
+        unbindService(cameraConnection);
+        cameraService = null;
+        unregisterReceiver(captureResultReceiver);
+        unregisterReceiver(timelapseProgressReceiver);
+        unregisterReceiver(imageSavedReceiver);
+        stateRegistry.unsubscribe(stateListener);
+        stateRegistry.publishBluetoothService(false);
+        thumbnailEncoder.shutdown();
+        if (controlServer != null) {
+            controlServer.shutdown();
+            Log.d(TAG, "Local control: " + controlServer.describe());
+        }
+        Log.d(TAG, "Thumbnails: " + thumbnailEncoder.describe() + ", delivered=" + thumbnailSender.getCompletedCount()
+            + ", superseded=" + thumbnailSender.getSupersededCount());
+        for (ClientSession session : sessions.values()) {
+            logSessionStats(session);
+        }
+        Log.d(TAG, "Command dispatch: " + dispatchWindow.describe() + "\n" + commandScheduler.describe());
         Log.d(TAG, "BluetoothService destroyed");
     }
     
+    /**
+     * Report per client stats for {@code adb shell dumpsys activity service BluetoothService}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        writer.println("Command window: " + dispatchWindow.describe());
+        writer.print(commandScheduler.describe());
+        for (ClientSession session : sessions.values()) {
+            writer.println(session.id + " outbound: " + session.outbound.describe(now));
+        }
+        LocalControlServer server = controlServer;
+        if (server != null) {
+            writer.println("Local control on port " + server.getLocalPort() + ": " + server.describe());
+        }
+    }
+    
     private void initializeGarminCommunication() {
         // Initialize Garmin Connect IQ communication
         // This would use the actual Garmin SDK in production
         Log.d(TAG, "Garmin communication initialized");
     }
     
-    private void handleGarminMessage(String message) {
-        try {
-            JSONObject json = new JSONObject(message);
-            String messageType = json.getString("messageType");
+    /**
+     * Handle a raw message from a client in either wire format
+     * @param clientId Identifies the sender, such as the Connect IQ device id
+     */
+    private void handleGarminMessage(String clientId, byte[] data, int length) {
+        ClientSession session = sessions.get(clientId);
+        if (session == null) {
+            session = openSession(clientId, false);
+        }
+        receiveMessage(session, data, length);
+    }
+    
+    private void receiveMessage(ClientSession session, byte[] data, int length) {
+        long receivedNanos = SystemClock.elapsedRealtimeNanos();
+        session.lastHeardNanos = receivedNanos;
+        if (session == thumbnailClient && thumbnailSender.isPaused()) {
+            // The watch is back in range; carry on from the last chunk it acknowledged
+            thumbnailSender.onPeerActive(receivedNanos);
+            scheduleThumbnailPoll();
+        }
+        session.intake.handleMessage(data, length, receivedNanos);
+    }
+    
+    private ClientSession openSession(String clientId, boolean local) {
+        ClientSession session = new ClientSession(clientId, local);
+        sessions.put(clientId, session);
+        Log.d(TAG, "Client " + clientId + " connected, " + sessions.size() + " in total");
+        if (!local) {
+            stateRegistry.publishWatchConnected(true);
+            if (countWatches() == 1) {
+                mainHandler.postDelayed(watchTimeout, WATCH_TIMEOUT_MS);
+            }
+        }
+        return session;
+    }
+    
+    /**
+     * Forget a client along with anything it still has queued
+     */
+    private void closeSession(ClientSession session, String reason) {
+        sessions.remove(session.id);
+        int dropped = commandScheduler.removeClient(session.commands);
+        mainHandler.removeCallbacks(session.flushAcks);
+        mainHandler.removeCallbacks(session.pollOutbound);
+        mainHandler.removeCallbacks(session.transmitComplete);
+        if (session == thumbnailClient) {
+            thumbnailClient = null;
+        }
+        if (session == viewfinderClient) {
+            viewfinderClient = null;
+        }
+        Log.w(TAG, session.id + " " + reason + ", " + dropped + " queued commands dropped");
+        logSessionStats(session);
+        publishOutboundDepth();
+    }
+    
+    private int countWatches() {
+        int watches = 0;
+        for (ClientSession session : sessions.values()) {
+            if (!session.local) {
+                watches++;
+            }
+        }
+        return watches;
+    }
+    
+    /**
+     * Drop watches that have not been heard from, and come back when the next one may expire
+     * Local clients stay until their connection closes.
+     */
+    private void expireSessions() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        long oldest = now;
+        for (ClientSession session : new ArrayList<>(sessions.values())) {
+            if (session.local) {
+                continue;
+            }
+            if (now - session.lastHeardNanos < WATCH_TIMEOUT_MS * 1000000) {
+                oldest = Math.min(oldest, session.lastHeardNanos);
+                continue;
+            }
+            closeSession(session, "not heard from for " + WATCH_TIMEOUT_MS / 1000 + " s");
+        }
+        
+        if (countWatches() == 0) {
+            stateRegistry.publishWatchConnected(false);
+        } else {
+            mainHandler.postDelayed(watchTimeout, WATCH_TIMEOUT_MS - (now - oldest) / 1000000 + 1);
+        }
+    }
+    
+    /**
+     * Open the loopback endpoint if it is turned on in the settings
+     * Its connections become sessions like any watch, sharing the camera through the same scheduler.
+     */
+    private void startLocalControl() {
+        CaptureSettings settings = new CaptureSettings(this);
+        int port = settings.getLocalControlPort();
+        if (port == 0) {
+            return;
+        }
+        String token = settings.getLocalControlToken();
+        if (token == null) {
+            Log.w(TAG, "Local control port is set but no token is, leaving the endpoint off");
+            return;
+        }
+        controlServer = new LocalControlServer(port, token, new LocalControlServer.Listener() {
+            @Override
+            public void onClientConnected(final String clientId) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        openSession(clientId, true);
+                    }
+                });
+            }
             
-            if ("CAMERA_COMMAND".equals(messageType)) {
-                JSONObject payload = json.getJSONObject("payload");
-                String command = payload.getString("command");
-                
-                Intent cameraIntent = new Intent(this, CameraService.class);
-                cameraIntent.putExtra("action", command);
-                
-                if (payload.has("parameters")) {
-                    JSONObject params = payload.getJSONObject("parameters");
-                    if (params.has("camera")) {
-                        cameraIntent.putExtra("camera", params.getString("camera"));
+            @Override
+            public void onClientMessage(final String clientId, byte[] data, int length) {
+                final byte[] message = Arrays.copyOf(data, length);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ClientSession session = sessions.get(clientId);
+                        if (session != null) {
+                            receiveMessage(session, message, message.length);
+                        }
                     }
-                    if (params.has("flash")) {
-                        cameraIntent.putExtra("flash", params.getString("flash"));
+                });
+            }
+            
+            @Override
+            public void onClientDisconnected(final String clientId) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ClientSession session = sessions.get(clientId);
+                        if (session != null) {
+                            closeSession(session, "disconnected");
+                        }
                     }
+                });
+            }
+        });
+        try {
+            controlServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open local control port " + port, e);
+            controlServer = null;
+        }
+    }
+    
+    private void logSessionStats(ClientSession session) {
+        MessageIntake intake = session.intake;
+        Log.d(TAG, session.id + ": messages json=" + intake.getJsonMessageCount() + ", binary="
+            + intake.getBinaryMessageCount() + ", rejected=" + intake.getRejectedCount() + ", duplicates="
+            + intake.getDuplicateCount() + "; commands " + session.commands.describe() + "; outbound "
+            + session.outbound.describe(SystemClock.elapsedRealtimeNanos()));
+    }
+    
+    private void handleCommand(ClientSession session, CameraCommand command) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        command.enqueueNanos = now;
+        
+        // Any client can send these and the benchmark floods the main thread, so only debug builds take them
+        if (!BuildConfig.DEBUG && ("BENCHMARK_DISPATCH".equals(command.action) || "NOOP".equals(command.action))) {
+            sendError(session, "Unsupported command: " + command.action);
+            return;
+        }
+        if ("BENCHMARK_DISPATCH".equals(command.action)) {
+            runDispatchBenchmark(command.count > 0 ? command.count : 200);
+            return;
+        }
+        
+        if (!commandScheduler.offer(session.commands, command, now)) {
+            Log.w(TAG, "Command queue of " + session.id + " full, " + command.action + " rejected");
+            sendError(session, "Command queue full");
+            return;
+        }
+        if (command.thumbnailSize > 0) {
+            thumbnailClient = session;
+        }
+        if ("VIEWFINDER_START".equals(command.action)) {
+            viewfinderClient = session;
+        }
+        pumpCommands();
+    }
+    
+    /**
+     * Hand queued commands to the camera in fair order while it has room for them
+     * Without the direct channel there is no way to see the camera's progress through
+     * finished captures, so the window still applies and expiry keeps it moving.
+     */
+    private void pumpCommands() {
+        mainHandler.removeCallbacks(pumpCommands);
+        long now = SystemClock.elapsedRealtimeNanos();
+        CameraCommand command;
+        while (dispatchWindow.canDispatch(now) && (command = commandScheduler.next(now)) != null) {
+            dispatchWindow.onDispatched(command, now);
+            dispatchCommand(command);
+        }
+        long expiry = dispatchWindow.nanosUntilExpiry(now);
+        if (commandScheduler.getQueuedCount() > 0 && expiry >= 0) {
+            mainHandler.postDelayed(pumpCommands, expiry / 1000000 + 1);
+        }
+    }
+    
+    /**
+     * Hand a command to CameraService, directly if bound, otherwise through an Intent
+     */
+    private void dispatchCommand(CameraCommand command) {
+        CameraService service = cameraService;
+        if (service != null) {
+            command.source = CameraCommand.SOURCE_DIRECT;
+            if (service.submitCommand(command)) {
+                return;
+            }
+        }
+        
+        command.source = CameraCommand.SOURCE_INTENT;
+        startService(createCommandIntent(command));
+    }
+    
+    private Intent createCommandIntent(CameraCommand command) {
+        Intent cameraIntent = new Intent(this, CameraService.class);
+        cameraIntent.putExtra("action", command.action);
+        cameraIntent.putExtra("commandId", command.commandId);
+        cameraIntent.putExtra("enqueueNanos", command.enqueueNanos);
+        cameraIntent.putExtra("receivedNanos", command.receivedNanos);
+        cameraIntent.putExtra("transitMillis", command.transitMillis);
+        if (command.camera != null) {
+            cameraIntent.putExtra("camera", command.camera);
+        }
+        if (command.flash != null) {
+            cameraIntent.putExtra("flash", command.flash);
+        }
+        if (command.quality != null) {
+            cameraIntent.putExtra("quality", command.quality);
+        }
+        if (command.count > 0) {
+            cameraIntent.putExtra("count", command.count);
+        }
+        if (command.thumbnailSize > 0) {
+            cameraIntent.putExtra("thumbnailSize", command.thumbnailSize);
+        }
+        if (command.intervalMillis > 0) {
+            cameraIntent.putExtra("intervalMillis", command.intervalMillis);
+        }
+        if (command.startAt > 0) {
+            cameraIntent.putExtra("startAt", command.startAt);
+        }
+        return cameraIntent;
+    }
+    
+    /**
+     * Compare the Intent and direct dispatch paths by sending no-op commands down each
+     * Pairs are spaced out so the benchmark measures dispatch, not main-thread queueing;
+     * the enqueue-to-dequeue histograms are logged once the last command has settled.
+     * @param iterations Commands to send down each path
+     */
+    private void runDispatchBenchmark(final int iterations) {
+        final CameraService service = cameraService;
+        if (service == null) {
+            Log.w(TAG, "Dispatch benchmark needs a bound CameraService");
+            return;
+        }
+        
+        service.resetDispatchStats();
+        Log.d(TAG, "Dispatch benchmark started, " + iterations + " commands per path");
+        
+        mainHandler.post(new Runnable() {
+            private int sent = 0;
+            
+            @Override
+            public void run() {
+                if (sent == iterations) {
+                    mainHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            Log.d(TAG, "Dispatch benchmark: " + service.describeDispatchStats());
+                        }
+                    }, BENCHMARK_SETTLE_MS);
+                    return;
                 }
                 
-                startService(cameraIntent);
+                CameraCommand command = outgoingCommand;
+                command.clear();
+                command.action = "NOOP";
+                command.enqueueNanos = SystemClock.elapsedRealtimeNanos();
+                command.source = CameraCommand.SOURCE_DIRECT;
+                service.submitCommand(command);
+                
+                command.enqueueNanos = SystemClock.elapsedRealtimeNanos();
+                command.source = CameraCommand.SOURCE_INTENT;
+                startService(createCommandIntent(command));
+                
+                sent++;
+                mainHandler.postDelayed(this, BENCHMARK_INTERVAL_MS);
+            }
+        });
+    }
+    
+    private void sendCaptureResult(Intent result) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("command", result.getStringExtra("command"));
+            payload.put("success", result.getBooleanExtra("success", false));
+            payload.put("requested", result.getIntExtra("requested", 0));
+            payload.put("captured", result.getIntExtra("captured", 0));
+            payload.put("dropped", result.getIntExtra("dropped", 0));
+            payload.put("fps", result.getDoubleExtra("fps", 0));
+            
+            sendMessageToAll(OutboundScheduler.PRIORITY_RESULT, "CAPTURE_RESULT", payload);
+            
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build capture result", e);
+        }
+    }
+    
+    /**
+     * Timelapse summary for every client; shots themselves are not reported one by one
+     */
+    private void sendTimelapseProgress(Intent progress) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("state", progress.getStringExtra("state"));
+            payload.put("count", progress.getIntExtra("count", 0));
+            payload.put("taken", progress.getIntExtra("taken", 0));
+            payload.put("skipped", progress.getIntExtra("skipped", 0));
+            payload.put("saveQueue", progress.getIntExtra("saveQueue", 0));
+            payload.put("nextMs", progress.getLongExtra("nextMs", -1));
+            JSONArray error = new JSONArray();
+            error.put(progress.getDoubleExtra("errorP50Ms", 0));
+            error.put(progress.getDoubleExtra("errorMaxMs", 0));
+            payload.put("errorMs", error);
+            
+            sendMessageToAll(OutboundScheduler.PRIORITY_RESULT, "TIMELAPSE_PROGRESS", payload);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build timelapse progress", e);
+        }
+    }
+    
+    /**
+     * Send one thumbnail chunk; the binary data travels base64 encoded inside the JSON envelope
+     */
+    private void sendThumbnailChunk(int transferId, int index, int count, byte[] data, int offset, int length) {
+        ClientSession client = thumbnailClient;
+        if (client == null) {
+            // Gone before the transfer finished; the sender times out and gives up
+            return;
+        }
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("id", transferId);
+            payload.put("index", index);
+            payload.put("count", count);
+            payload.put("data", Base64.encodeToString(data, offset, length, Base64.NO_WRAP));
+            sendMessageToWatch(client, OutboundScheduler.PRIORITY_BULK, "THUMBNAIL_CHUNK", payload);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build thumbnail chunk", e);
+        }
+    }
+    
+    private void sendViewfinderFrame(int frame, String data) {
+        ClientSession client = viewfinderClient;
+        if (client == null) {
+            return;
+        }
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("frame", frame);
+            payload.put("data", data);
+            sendMessageToWatch(client, OutboundScheduler.PRIORITY_BULK, "VIEWFINDER_FRAME", payload);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build viewfinder frame", e);
+        }
+    }
+    
+    /**
+     * Let the sender resend timed out chunks, and come back when the next timeout is due
+     */
+    private void scheduleThumbnailPoll() {
+        mainHandler.removeCallbacks(pollThumbnail);
+        long delayNanos = thumbnailSender.poll(SystemClock.elapsedRealtimeNanos());
+        if (delayNanos >= 0) {
+            mainHandler.postDelayed(pollThumbnail, delayNanos / 1000000 + 1);
+        }
+    }
+    
+    private void queueAcknowledgment(ClientSession session, int sequenceNumber) {
+        session.pendingAcks[session.pendingAckCount++] = sequenceNumber;
+        if (session.pendingAckCount == ACK_BATCH_SIZE) {
+            mainHandler.removeCallbacks(session.flushAcks);
+            sendAcknowledgments(session);
+        } else if (session.pendingAckCount == 1) {
+            mainHandler.postDelayed(session.flushAcks, ACK_DELAY_MS);
+        }
+    }
+    
+    /**
+     * Acknowledge every queued sequence number in one message
+     * The newest is also sent as sequenceNumber for watches that only read a single one.
+     */
+    private void sendAcknowledgments(ClientSession session) {
+        if (session.pendingAckCount == 0) {
+            return;
+        }
+        
+        try {
+            JSONArray sequenceNumbers = new JSONArray();
+            for (int i = 0; i < session.pendingAckCount; i++) {
+                sequenceNumbers.put(session.pendingAcks[i]);
             }
+            JSONObject payload = new JSONObject();
+            payload.put("sequenceNumbers", sequenceNumbers);
             
+            sendMessageToWatch(session, OutboundScheduler.PRIORITY_CONTROL, "ACKNOWLEDGMENT", payload,
+                session.pendingAcks[session.pendingAckCount - 1]);
         } catch (JSONException e) {
-            Log.e(TAG, "Failed to parse Garmin message", e);
+            Log.e(TAG, "Failed to build acknowledgment", e);
+        }
+        session.pendingAckCount = 0;
+    }
+    
+    /**
+     * Let an idle camera start re-warming before the watch sends a command
+     */
+    private void notifyWatchActivity() {
+        CameraService service = cameraService;
+        if (service != null) {
+            service.onWatchActivity();
+        }
+    }
+    
+    /**
+     * Answer a status request, advertising the message formats we accept
+     * The watch switches to the first format in the list that it also supports.
+     * @param target Client that asked, or null to tell every client about a change
+     */
+    private void sendStatusUpdate(ClientSession target) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("protocolVersion", WireProtocol.VERSION);
+            payload.put("formats", supportedFormats());
+            ServiceState state = stateRegistry.getState();
+            if (state.isCameraServiceRunning()) {
+                payload.put("cameraReady", state.canCapture());
+                payload.put("readiness", describeReadiness(state));
+                payload.put("idleTier", state.getIdleTier().name());
+            }
+            CameraService service = cameraService;
+            if (service != null) {
+                payload.put("latency", describeLatency(service.getCaptureTrace()));
+                payload.put("threeA", describeThreeA(service.getThreeAOutcomes()));
+                payload.put("quality", service.getQualityProfile());
+            }
+            ThumbnailSender.Transfer thumbnail = lastThumbnail;
+            if (thumbnail != null) {
+                JSONObject stats = new JSONObject();
+                stats.put("bytes", thumbnail.getPayloadBytes());
+                stats.put("sent", thumbnail.bytesSent);
+                stats.put("ms", thumbnail.getElapsedMillis());
+                payload.put("thumbnail", stats);
+            }
+            payload.put("clients", describeClients());
+            for (ClientSession session : sessions.values()) {
+                if (target == null || target == session) {
+                    // The link stats differ per client, so each gets its own copy
+                    payload.put("outbound", describeOutbound(session.outbound));
+                    sendMessageToWatch(session, OutboundScheduler.PRIORITY_STATUS, "STATUS_UPDATE", payload);
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build status update", e);
+        }
+    }
+    
+    private void sendError(ClientSession session, String message) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("message", message);
+            payload.put("formats", supportedFormats());
+            sendMessageToWatch(session, OutboundScheduler.PRIORITY_CONTROL, "ERROR", payload);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build error message", e);
+        }
+    }
+    
+    /**
+     * Compact latency summary for the watch: stage -> [p50, p99, max] in milliseconds
+     */
+    private static JSONObject describeLatency(CaptureTrace trace) throws JSONException {
+        JSONObject latency = new JSONObject();
+        for (CaptureTrace.Stage stage : CaptureTrace.Stage.values()) {
+            LatencyHistogram histogram = trace.getHistogram(stage);
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            JSONArray values = new JSONArray();
+            values.put(histogram.getPercentileMicros(50) / 1000);
+            values.put(histogram.getPercentileMicros(99) / 1000);
+            values.put(histogram.getMaxMicros() / 1000);
+            latency.put(stage.key, values);
+        }
+        return latency;
+    }
+    
+    /**
+     * How many still captures were 3A-ready and how many had to wait: outcome -> count
+     */
+    private static JSONObject describeThreeA(long[] outcomes) throws JSONException {
+        JSONObject threeA = new JSONObject();
+        for (int outcome = 0; outcome < outcomes.length; outcome++) {
+            if (outcomes[outcome] > 0) {
+                threeA.put(ThreeAManager.outcomeName(outcome), outcomes[outcome]);
+            }
+        }
+        return threeA;
+    }
+    
+    /**
+     * Readiness state and milliseconds from service start to 3A_READY, -1 if not reached yet
+     */
+    private static JSONObject describeReadiness(ServiceState state) throws JSONException {
+        JSONObject readiness = new JSONObject();
+        readiness.put("state", state.getReadiness());
+        readiness.put("readyMs", state.getReadyMillis());
+        return readiness;
+    }
+    
+    /**
+     * Per client command stats: id, queued, received, dispatched, rejected,
+     * waitMs as [p50, p99] of the time spent queued, and rate in commands per second
+     */
+    private JSONArray describeClients() throws JSONException {
+        JSONArray clients = new JSONArray();
+        for (FairCommandScheduler.Client client : commandScheduler.getClients()) {
+            JSONArray wait = new JSONArray();
+            wait.put(client.getQueueWait().getPercentileMicros(50) / 1000);
+            wait.put(client.getQueueWait().getPercentileMicros(99) / 1000);
+            JSONObject stats = new JSONObject();
+            stats.put("id", client.id);
+            stats.put("queued", client.getQueueDepth());
+            stats.put("received", client.getReceivedCount());
+            stats.put("dispatched", client.getDispatchedCount());
+            stats.put("rejected", client.getRejectedCount());
+            stats.put("waitMs", wait);
+            stats.put("rate", Math.round(client.getThroughput() * 10) / 10.0);
+            clients.put(stats);
+        }
+        return clients;
+    }
+    
+    /**
+     * Outbound queue depths by priority and the share of time the link was busy, in percent
+     */
+    private static JSONObject describeOutbound(OutboundScheduler outbound) throws JSONException {
+        JSONArray queued = new JSONArray();
+        for (int priority = 0; priority < OutboundScheduler.PRIORITY_COUNT; priority++) {
+            queued.put(outbound.getQueueDepth(priority));
+        }
+        JSONObject stats = new JSONObject();
+        stats.put("queued", queued);
+        stats.put("utilisation", Math.round(outbound.getUtilisation(SystemClock.elapsedRealtimeNanos()) * 100));
+        return stats;
+    }
+    
+    private static JSONArray supportedFormats() {
+        JSONArray formats = new JSONArray();
+        formats.put(WireProtocol.FORMAT_BINARY_V1);
+        formats.put(WireProtocol.FORMAT_JSON);
+        return formats;
+    }
+    
+    /**
+     * Queue a message for every connected client
+     */
+    private void sendMessageToAll(int priority, String messageType, JSONObject payload) throws JSONException {
+        for (ClientSession session : sessions.values()) {
+            sendMessageToWatch(session, priority, messageType, payload);
+        }
+    }
+    
+    /**
+     * Queue a message for a client using the same envelope the watch sends to us
+     * @param priority One of the OutboundScheduler priorities
+     * @param messageType Type of message
+     * @param payload Message payload
+     */
+    private void sendMessageToWatch(ClientSession session, int priority, String messageType, JSONObject payload)
+            throws JSONException {
+        sendMessageToWatch(session, priority, messageType, payload, CaptureRecord.NO_COMMAND_ID);
+    }
+    
+    /**
+     * Queue a message for the watch that refers to one of its sequence numbers
+     * Only the newest status update is worth sending, so a queued one is replaced.
+     * @param sequenceNumber Watch sequence number, or CaptureRecord.NO_COMMAND_ID for none
+     */
+    private void sendMessageToWatch(ClientSession session, int priority, String messageType, JSONObject payload,
+            int sequenceNumber) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("messageType", messageType);
+        message.put("timestamp", System.currentTimeMillis() / 1000);
+        if (sequenceNumber != CaptureRecord.NO_COMMAND_ID) {
+            message.put("sequenceNumber", sequenceNumber);
+        }
+        message.put("payload", payload);
+        
+        session.outbound.enqueue(priority, messageType, message.toString(), "STATUS_UPDATE".equals(messageType),
+            SystemClock.elapsedRealtimeNanos());
+        scheduleOutboundPoll(session);
+    }
+    
+    /**
+     * Send when the client's link is ready, and come back when it next needs attention
+     */
+    private void scheduleOutboundPoll(ClientSession session) {
+        mainHandler.removeCallbacks(session.pollOutbound);
+        long delayNanos = session.outbound.poll(SystemClock.elapsedRealtimeNanos());
+        if (delayNanos >= 0) {
+            mainHandler.postDelayed(session.pollOutbound, delayNanos / 1000000 + 1);
+        }
+        publishOutboundDepth();
+    }
+    
+    private void publishOutboundDepth() {
+        int depth = 0;
+        for (ClientSession session : sessions.values()) {
+            for (int priority = 0; priority < OutboundScheduler.PRIORITY_COUNT; priority++) {
+                depth += session.outbound.getQueueDepth(priority);
+            }
+        }
+        stateRegistry.publishOutboundQueueDepth(depth);
+    }
+    
+    private void transmitToWatch(ClientSession session, String data, int messageCount) {
+        LocalControlServer server = controlServer;
+        if (session.local) {
+            // Handed to the server thread, which queues it for the socket; the link is free again at once
+            if (server != null) {
+                server.send(session.id, data);
+            }
+            mainHandler.post(session.transmitComplete);
+            return;
         }
+        // This would use the actual Garmin SDK in production; its message status callback
+        // reports the transmit complete, which lets the next one go
+        Log.d(TAG, "Sending to " + session.id + " (" + messageCount + " messages): " + data);
+        mainHandler.post(session.transmitComplete);
     }
 }
 
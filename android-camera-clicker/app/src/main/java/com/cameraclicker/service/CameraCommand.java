@@ -0,0 +1,102 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.util.CaptureRecord;
+
+/**
+ * Typed camera command passed from the Bluetooth layer to the camera thread
+ * Instances are preallocated in the command ring and reused, so consumers must copy
+ * anything they keep beyond the call that handles the command.
+ * 
+ * @author DrKhiLL
+ */
+public class CameraCommand {
+    
+    public static final int SOURCE_INTENT = 0;
+    public static final int SOURCE_DIRECT = 1;
+    
+    // A burst without a count takes the default; no burst takes more than the maximum
+    public static final int DEFAULT_BURST_FRAMES = 5;
+    public static final int MAX_BURST_FRAMES = 30;
+    
+    public String action;
+    public String camera;
+    public String flash;
+    public String quality; // Quality profile name, or null for the default
+    public int count;
+    public int thumbnailSize; // Long edge of the thumbnail to send back after saving, 0 for none
+    // Viewfinder size and gray bits per pixel on the watch
+    public int viewfinderWidth;
+    public int viewfinderHeight;
+    public int viewfinderBits;
+    // Timelapse schedule: milliseconds between shots and wall clock start in seconds, 0 to start now
+    public int intervalMillis;
+    public long startAt;
+    public int commandId = CaptureRecord.NO_COMMAND_ID;
+    public long sentAt; // Watch send time from the message envelope, seconds
+    public int source = SOURCE_INTENT;
+    
+    // Thumbnail acknowledgment; viewfinder acknowledgments carry the frame number as transferId
+    public int transferId;
+    public int nextChunk;
+    
+    public long transitMillis = -1; // Watch send to phone receive, wall clock
+    
+    // Elapsed realtime clock, nanoseconds
+    public long receivedNanos; // Message arrived from the watch
+    public long enqueueNanos; // Decoded and handed to the camera service
+    public long dequeueNanos;
+    
+    /**
+     * Frames a BURST command captures
+     */
+    public int burstFrames() {
+        return count > 0 ? Math.min(count, MAX_BURST_FRAMES) : DEFAULT_BURST_FRAMES;
+    }
+    
+    public void clear() {
+        action = null;
+        camera = null;
+        flash = null;
+        quality = null;
+        count = 0;
+        thumbnailSize = 0;
+        viewfinderWidth = 0;
+        viewfinderHeight = 0;
+        viewfinderBits = 0;
+        intervalMillis = 0;
+        startAt = 0;
+        commandId = CaptureRecord.NO_COMMAND_ID;
+        sentAt = 0;
+        source = SOURCE_INTENT;
+        transferId = 0;
+        nextChunk = 0;
+        transitMillis = -1;
+        receivedNanos = 0;
+        enqueueNanos = 0;
+        dequeueNanos = 0;
+    }
+    
+    public void copyFrom(CameraCommand other) {
+        action = other.action;
+        camera = other.camera;
+        flash = other.flash;
+        quality = other.quality;
+        count = other.count;
+        thumbnailSize = other.thumbnailSize;
+        viewfinderWidth = other.viewfinderWidth;
+        viewfinderHeight = other.viewfinderHeight;
+        viewfinderBits = other.viewfinderBits;
+        intervalMillis = other.intervalMillis;
+        startAt = other.startAt;
+        commandId = other.commandId;
+        sentAt = other.sentAt;
+        source = other.source;
+        transferId = other.transferId;
+        nextChunk = other.nextChunk;
+        transitMillis = other.transitMillis;
+        receivedNanos = other.receivedNanos;
+        enqueueNanos = other.enqueueNanos;
+        dequeueNanos = other.dequeueNanos;
+    }
+}
+
@@ -6,36 +6,62 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.ImageFormat;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.TotalCaptureResult;
-import android.media.Image;
-import android.media.ImageReader;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.Size;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
 import com.cameraclicker.R;
+import com.cameraclicker.camera.Camera2Hal;
+import com.cameraclicker.camera.CameraCatalog;
+import com.cameraclicker.camera.CameraFrame;
+import com.cameraclicker.camera.CameraHal;
+import com.cameraclicker.camera.CameraHalException;
+import com.cameraclicker.camera.CameraInfo;
+import com.cameraclicker.camera.CaptureSpec;
+import com.cameraclicker.camera.IdleTier;
+import com.cameraclicker.camera.QualityPolicy;
+import com.cameraclicker.camera.QualityProfile;
+import com.cameraclicker.camera.SimulatedCameraHal;
+import com.cameraclicker.camera.SwitchStrategy;
+import com.cameraclicker.camera.ThreeAManager;
+import com.cameraclicker.protocol.ViewfinderCodec;
+import com.cameraclicker.util.BurstTracker;
+import com.cameraclicker.util.CaptureRecord;
+import com.cameraclicker.util.CaptureSettings;
+import com.cameraclicker.util.CaptureTrace;
 import com.cameraclicker.util.ImageSaver;
+import com.cameraclicker.util.LatencyHistogram;
+import com.cameraclicker.util.ReadinessTracker;
+import com.cameraclicker.util.TimelapseScheduler;
+import com.cameraclicker.util.ViewfinderEncoder;
+import com.cameraclicker.util.ZslRingBuffer;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Background service for handling camera operations
- * Uses Camera2 API for professional-quality photo capture
+ * Uses Camera2 API for professional-quality photo capture, through the CameraHal
+ * interface so a simulated camera can stand in for it
  * 
  * @author DrKhiLL
  */
@@ -45,42 +71,277 @@ public class CameraService extends Service {
     private static final String CHANNEL_ID = "CameraClickerChannel";
     private static final int NOTIFICATION_ID = 1001;
     
-    private CameraManager cameraManager;
-    private CameraDevice cameraDevice;
-    private CameraCaptureSession captureSession;
-    private ImageReader imageReader;
+    // Extra reader slots beyond the ZSL ring: one being delivered, one for a still capture
+    private static final int ZSL_READER_HEADROOM = 2;
+    
+    // Reader slots outside ZSL mode; bursts keep at most this many frames in flight
+    private static final int BURST_READER_SLOTS = 4;
+    
+    // Small YUV stream the 3A metering request streams to when ZSL is off; frames are dropped at
+    // once unless the watch viewfinder takes a copy
+    private static final int METERING_READER_SLOTS = 2;
+    
+    // Longest a still capture waits for focus, exposure and a flash precapture before firing anyway
+    private static final long THREE_A_TIMEOUT_MS = 1000;
+    
+    // Quality steps back up only after pressure has stayed lower for this long
+    private static final long QUALITY_STEP_UP_HOLD_MS = 5000;
+    private static final long STORAGE_CHECK_INTERVAL_MS = 2000;
+    
+    public static final String ACTION_CAPTURE_RESULT = "com.cameraclicker.action.CAPTURE_RESULT";
+    // Sent when a timelapse starts and ends, and every TIMELAPSE_PROGRESS_MS in between
+    public static final String ACTION_TIMELAPSE_PROGRESS = "com.cameraclicker.action.TIMELAPSE_PROGRESS";
+    // Sent for each saved image whose command asked for a thumbnail
+    public static final String ACTION_IMAGE_SAVED = "com.cameraclicker.action.IMAGE_SAVED";
+    
+    private static final int COMMAND_RING_CAPACITY = 64;
+    
+    // Shots closer together than this are a burst, not a timelapse
+    private static final int MIN_TIMELAPSE_INTERVAL_MS = 500;
+    // One save may still be running when the next shot fires; more than that means saving is behind
+    private static final int TIMELAPSE_SAVE_BACKLOG = 2;
+    private static final long TIMELAPSE_PROGRESS_MS = 30000;
+    // Longest the timelapse wake lock outlives the next shot if the schedule stops renewing it
+    private static final long TIMELAPSE_WAKE_LOCK_MARGIN_MS = 10000;
+    
+    // How long camera and flash changes wait for a newer one before being applied
+    private static final long STATE_COALESCE_MS = 40;
+    
+    private CameraHal cameraHal;
     private Handler backgroundHandler;
     private HandlerThread backgroundThread;
     
+    private CameraCatalog cameraCatalog;
     private String currentCameraId = "0"; // Default to rear camera
+    
+    // Configured cameras by id; hot-standby strategies keep the inactive one here
+    private final Map<String, CameraSlot> cameraSlots = new HashMap<>();
+    private CameraSlot activeCamera;
+    private SwitchStrategy switchStrategy = SwitchStrategy.FULL_REOPEN;
+    private long switchStartNanos = 0;
+    private final Map<SwitchStrategy, LatencyHistogram> switchLatency = new EnumMap<>(SwitchStrategy.class);
     private boolean flashEnabled = false;
     private String flashMode = "auto"; // auto, on, off
     
     private ImageSaver imageSaver;
+    private CaptureSettings captureSettings;
+    
+    // Commands from the main thread (binder callers and onStartCommand) to the camera thread
+    private final CommandRing commandRing = new CommandRing(COMMAND_RING_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final LatencyHistogram intentDispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram directDispatchLatency = new LatencyHistogram();
+    private final IBinder binder = new LocalBinder();
+    
+    // Stage latencies of every saved capture, recorded from the saver's I/O threads
+    private final CaptureTrace captureTrace = new CaptureTrace();
+    
+    // Latest requested camera and flash, applied once per burst of state commands (camera thread)
+    private String pendingCamera;
+    private String pendingFlash;
+    private boolean stateApplyScheduled = false;
+    private long coalescedCommands = 0;
+    
+    // How still captures were released by the 3A manager (camera thread)
+    private final long[] threeAOutcomes = new long[ThreeAManager.OUTCOME_COUNT];
+    private final LatencyHistogram threeAWait = new LatencyHistogram();
+    
+    // Quality selection (camera thread); the thermal status is written on the main thread
+    private QualityProfile defaultProfile = QualityProfile.HIGH;
+    private QualityProfile activeProfile = QualityProfile.HIGH;
+    private boolean adaptiveQuality = true;
+    private final QualityPolicy qualityPolicy = new QualityPolicy(QUALITY_STEP_UP_HOLD_MS * 1000000);
+    private volatile int thermalStatus = QualityPolicy.THERMAL_STATUS_NONE;
+    private long freeStorageBytes = -1;
+    private long storageCheckedNanos = 0;
+    private long profileRebuilds = 0;
+    
+    // Captures asked for while the active camera's stream is rebuilt for a new resolution
+    private final List<Runnable> capturesAwaitingSession = new ArrayList<>();
+    
+    // Only ever set on Android 10 and later
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    
+    // Releases waiting captures if metering results stop arriving, for example during a burst
+    private final Runnable threeATimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (activeCamera != null && activeCamera.threeA != null) {
+                activeCamera.threeA.checkTimeout();
+            }
+        }
+    };
+    
+    private final Runnable applyPendingState = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingState();
+        }
+    };
+    
+    /**
+     * Binder for in-process clients; hands out the service itself
+     */
+    public class LocalBinder extends Binder {
+        public CameraService getService() {
+            return CameraService.this;
+        }
+    }
+    
+    // Zero-shutter-lag state, only touched on the background thread once the camera is open
+    private boolean zslEnabled = false;
+    
+    // Captures in flight keyed by sensor timestamp, only touched on the background thread
+    private final Map<Long, CaptureRecord> pendingCaptures = new HashMap<>();
+    
+    // Burst state, only touched on the background thread
+    private BurstTracker activeBurst;
+    private final Set<Long> burstTimestamps = new HashSet<>();
+    private CaptureRecord burstCommand;
+    private long burstSubmitNanos = 0;
+    
+    // Timelapse state, only touched on the background thread
+    private TimelapseScheduler timelapse;
+    private int timelapseCommandId = CaptureRecord.NO_COMMAND_ID;
+    private String timelapseQuality;
+    // Latest shot, kept until its sensor timestamp has been measured against its slot
+    private CaptureRecord timelapseShot;
+    private int timelapseShotIndex;
+    private long timelapseFireNanos;
+    private long timelapseProgressNanos;
+    private PowerManager.WakeLock timelapseWakeLock;
+    
+    private final Runnable timelapseTick = new Runnable() {
+        @Override
+        public void run() {
+            runTimelapseShot();
+        }
+    };
+    
+    // Watch viewfinder; started and stopped on the background thread, acknowledged from the main thread
+    private volatile ViewfinderEncoder viewfinder;
+    private volatile ViewfinderEncoder.Listener viewfinderListener;
+    
+    // Moved forward on the camera thread as the camera comes up, read from any thread
+    private ReadinessTracker readiness;
+    private final ServiceStateRegistry stateRegistry = ServiceStateRegistry.getInstance();
+    
+    // Idle tiers, moved on the camera thread; the tier is read from any thread
+    private volatile IdleTier idleTier = IdleTier.WARM;
+    private long idleCoolAfterNanos;
+    private long idleColdAfterNanos;
+    private long lastActivityNanos;
+    private IdleTier rewarmingFrom; // Tier a re-warm started from, until the camera is ready again
+    private long rewarmStartNanos;
+    private final Map<IdleTier, LatencyHistogram> rewarmLatency = new EnumMap<>(IdleTier.class);
+    
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+    
+    private final Runnable markActive = new Runnable() {
+        @Override
+        public void run() {
+            markActive();
+        }
+    };
+    
+    private final Runnable startCamera = new Runnable() {
+        @Override
+        public void run() {
+            startCamera();
+        }
+    };
     
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "CameraService created");
+        readiness = new ReadinessTracker(SystemClock.elapsedRealtimeNanos());
+        stateRegistry.publishCameraService(true);
+        
+        long stepNanos = SystemClock.elapsedRealtimeNanos();
+        captureSettings = new CaptureSettings(this);
+        defaultProfile = captureSettings.getQualityProfile();
+        activeProfile = defaultProfile;
+        adaptiveQuality = captureSettings.isAdaptiveQualityEnabled();
+        for (SwitchStrategy strategy : SwitchStrategy.values()) {
+            switchLatency.put(strategy, new LatencyHistogram());
+        }
+        idleCoolAfterNanos = captureSettings.getIdleCoolAfterNanos();
+        idleColdAfterNanos = captureSettings.getIdleColdAfterNanos();
+        rewarmLatency.put(IdleTier.COOL, new LatencyHistogram());
+        rewarmLatency.put(IdleTier.COLD, new LatencyHistogram());
+        // The camera backend delivers its callbacks on this thread, so it has to exist first
+        startBackgroundThread();
+        cameraHal = createCameraHal();
+        readiness.recordStep("settings", SystemClock.elapsedRealtimeNanos() - stepNanos);
+        
+        // The capability query and the camera open are the slow part; they go ahead on the
+        // camera thread while the rest of the setup runs here. Commands queue behind them.
+        backgroundHandler.post(startCamera);
         
-        cameraManager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
-        imageSaver = new ImageSaver(this);
+        stepNanos = SystemClock.elapsedRealtimeNanos();
+        registerThermalListener();
+        imageSaver = new ImageSaver(this, captureSettings.getSaveQueueCapacity(),
+            captureSettings.getSaveWorkerThreads(), captureSettings.getSaveOverflowPolicy());
+        imageSaver.setOnImageSavedListener(new ImageSaver.OnImageSavedListener() {
+            @Override
+            public void onImageSaved(CaptureRecord record) {
+                captureTrace.record(record);
+                if (record.savedPath != null) {
+                    stateRegistry.publishCapture(record.savedPath, record.commandId, imageSaver.getQueueDepth());
+                } else {
+                    stateRegistry.publishCaptureFailed(record.commandId, 1, imageSaver.getQueueDepth());
+                }
+                if (record.thumbnailSize > 0 && record.savedPath != null) {
+                    Intent saved = new Intent(ACTION_IMAGE_SAVED);
+                    saved.setPackage(getPackageName());
+                    saved.putExtra("path", record.savedPath);
+                    saved.putExtra("thumbnailSize", record.thumbnailSize);
+                    saved.putExtra("commandId", record.commandId);
+                    sendBroadcast(saved);
+                }
+            }
+        });
+        readiness.recordStep("saver", SystemClock.elapsedRealtimeNanos() - stepNanos);
         
+        stepNanos = SystemClock.elapsedRealtimeNanos();
         createNotificationChannel();
         startForeground(NOTIFICATION_ID, createNotification());
-        
-        startBackgroundThread();
-        initializeCamera();
+        readiness.recordStep("notification", SystemClock.elapsedRealtimeNanos() - stepNanos);
     }
     
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "CameraService started");
+        long receivedNanos = SystemClock.elapsedRealtimeNanos();
         
         if (intent != null) {
             String action = intent.getStringExtra("action");
             if (action != null) {
-                handleCameraCommand(action, intent);
+                CameraCommand command = new CameraCommand();
+                command.action = action;
+                command.camera = intent.getStringExtra("camera");
+                command.flash = intent.getStringExtra("flash");
+                command.quality = intent.getStringExtra("quality");
+                command.count = intent.getIntExtra("count", 0);
+                command.thumbnailSize = intent.getIntExtra("thumbnailSize", 0);
+                command.intervalMillis = intent.getIntExtra("intervalMillis", 0);
+                command.startAt = intent.getLongExtra("startAt", 0);
+                command.commandId = intent.getIntExtra("commandId", CaptureRecord.NO_COMMAND_ID);
+                command.source = CameraCommand.SOURCE_INTENT;
+                command.transitMillis = intent.getLongExtra("transitMillis", -1);
+                command.receivedNanos = intent.getLongExtra("receivedNanos", 0);
+                command.enqueueNanos = intent.getLongExtra("enqueueNanos", receivedNanos);
+                
+                if (!submitCommand(command)) {
+                    postCommand(command);
+                }
             }
         }
         
@@ -89,7 +350,121 @@ public class CameraService extends Service {
     
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // Not a bound service
+        return binder;
+    }
+    
+    /**
+     * Queue a command for the camera thread without a trip through the activity manager
+     * Must be called on the main thread, which is the command ring's only producer.
+     * @param command Command to copy into the ring; the caller may reuse it afterwards
+     * @return false if the ring is full or the camera thread is not running
+     */
+    public boolean submitCommand(CameraCommand command) {
+        Handler handler = backgroundHandler;
+        if (handler == null) {
+            return false;
+        }
+        
+        CameraCommand slot = commandRing.claim();
+        if (slot == null) {
+            Log.w(TAG, "Command ring full");
+            return false;
+        }
+        slot.copyFrom(command);
+        if (slot.enqueueNanos == 0) {
+            slot.enqueueNanos = SystemClock.elapsedRealtimeNanos();
+        }
+        commandRing.publish();
+        
+        if (drainScheduled.compareAndSet(false, true)) {
+            handler.post(drainCommands);
+        }
+        return true;
+    }
+    
+    /**
+     * Run a command on the camera thread behind everything already posted there
+     * The fallback for a full ring. The camera thread owns all camera state, so commands never
+     * run on the main thread; posting also keeps this one behind the commands still in the ring.
+     */
+    private void postCommand(CameraCommand command) {
+        Handler handler = backgroundHandler;
+        if (handler == null) {
+            Log.w(TAG, "Camera thread stopped, dropped " + command.action);
+            int frames = DispatchWindow.framesOf(command);
+            if (frames > 0) {
+                stateRegistry.publishCaptureFailed(command.commandId, frames, imageSaver.getQueueDepth());
+            }
+            return;
+        }
+        final CameraCommand copy = new CameraCommand();
+        copy.copyFrom(command);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                copy.dequeueNanos = SystemClock.elapsedRealtimeNanos();
+                executeCommand(copy);
+            }
+        });
+    }
+    
+    private final Runnable drainCommands = new Runnable() {
+        @Override
+        public void run() {
+            // Clear first so a command published during the drain schedules another pass
+            drainScheduled.set(false);
+            
+            CameraCommand command;
+            while ((command = commandRing.peek()) != null) {
+                command.dequeueNanos = SystemClock.elapsedRealtimeNanos();
+                executeCommand(command);
+                commandRing.release();
+            }
+        }
+    };
+    
+    /**
+     * Enqueue-to-dequeue latency of both dispatch paths, for comparing them
+     */
+    public String describeDispatchStats() {
+        return "intent: " + intentDispatchLatency.describe() + ", direct: " + directDispatchLatency.describe();
+    }
+    
+    public void resetDispatchStats() {
+        intentDispatchLatency.reset();
+        directDispatchLatency.reset();
+    }
+    
+    /**
+     * Per-stage capture latencies, from watch send time to the committed file
+     */
+    public CaptureTrace getCaptureTrace() {
+        return captureTrace;
+    }
+    
+    /**
+     * Report latencies for {@code adb shell dumpsys activity service CameraService}
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Capture latency by stage:");
+        writer.print(captureTrace.describe());
+        writer.println("Command dispatch: " + describeDispatchStats());
+        writer.println("3A before still capture: " + describeThreeAStats());
+        writer.println("Quality: " + activeProfile.wireName + ", " + qualityPolicy.describe()
+            + ", stream rebuilds=" + profileRebuilds);
+        writer.println("Camera switch (" + switchStrategy + "): " + describeSwitchStats());
+        writer.println("Image saver: " + imageSaver.describeStats());
+        writer.println("Readiness: " + readiness.describe(SystemClock.elapsedRealtimeNanos()));
+        writer.println("Idle: " + describeIdleStats());
+        TimelapseScheduler schedule = timelapse;
+        if (schedule != null) {
+            writer.println("Timelapse: " + schedule.describe());
+        }
+        ViewfinderEncoder encoder = viewfinder;
+        if (encoder != null) {
+            writer.println("Viewfinder: " + encoder.describe());
+        }
     }
     
     @Override
@@ -97,8 +472,30 @@ public class CameraService extends Service {
         super.onDestroy();
         Log.d(TAG, "CameraService destroyed");
         
-        closeCamera();
+        unregisterThermalListener();
+        stopViewfinder();
+        // The camera is set up on the camera thread, so it is torn down there too, after
+        // anything already queued; quitting the thread lets posted work finish first
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (timelapse != null) {
+                    finishTimelapse("stopped");
+                }
+                closeCamera();
+                cameraHal.release();
+            }
+        });
         stopBackgroundThread();
+        
+        // Queued writes finish on the saver threads; this does not wait for them, a new saver does
+        imageSaver.shutdown();
+        Log.d(TAG, "Image saver stats: " + imageSaver.describeStats());
+        Log.d(TAG, "Coalesced state commands: " + coalescedCommands);
+        Log.d(TAG, "3A before still capture: " + describeThreeAStats());
+        Log.d(TAG, "Camera switch latency: " + describeSwitchStats());
+        Log.d(TAG, "Capture latency by stage:\n" + captureTrace.describe());
+        stateRegistry.publishCameraService(false);
     }
     
     private void createNotificationChannel() {
@@ -144,207 +541,1586 @@ public class CameraService extends Service {
         }
     }
     
-    private void initializeCamera() {
+    private CameraHal createCameraHal() {
+        if (captureSettings.isSimulatedCameraEnabled()) {
+            Log.d(TAG, "Using simulated camera backend");
+            final Handler handler = backgroundHandler;
+            return new SimulatedCameraHal(new SimulatedCameraHal.Config(), new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
+        }
+        return new Camera2Hal((CameraManager) getSystemService(Context.CAMERA_SERVICE), backgroundHandler);
+    }
+    
+    /**
+     * Query the cameras and open the default one; camera thread
+     */
+    private void startCamera() {
+        long stepNanos = SystemClock.elapsedRealtimeNanos();
+        cameraCatalog = CameraCatalog.load(this, cameraHal);
+        readiness.recordStep("catalog", SystemClock.elapsedRealtimeNanos() - stepNanos);
+        currentCameraId = cameraIdForFacing(CameraInfo.FACING_BACK);
+        switchStrategy = SwitchStrategy.choose(captureSettings.getCameraSwitchStrategy(),
+            cameraCatalog.findByFacing(CameraInfo.FACING_BACK), cameraCatalog.findByFacing(CameraInfo.FACING_FRONT));
+        Log.d(TAG, "Camera switch strategy: " + switchStrategy);
+        
+        openCameras();
+        markActive();
+    }
+    
+    /**
+     * Open the current camera, and the other one as well when both stay open; camera thread
+     */
+    private void openCameras() {
         try {
-            setupImageReader();
-            openCamera();
+            activeCamera = prepareCamera(currentCameraId);
+            
+            if (switchStrategy == SwitchStrategy.CONCURRENT && activeCamera != null) {
+                // Bring the other camera up as well so a switch never waits for the HAL
+                int otherFacing = activeCamera.info.facing == CameraInfo.FACING_FRONT
+                    ? CameraInfo.FACING_BACK : CameraInfo.FACING_FRONT;
+                prepareCamera(cameraIdForFacing(otherFacing));
+            }
         } catch (Exception e) {
             Log.e(TAG, "Failed to initialize camera", e);
         }
     }
     
-    private void setupImageReader() {
-        try {
-            CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(currentCameraId);
-            Size[] jpegSizes = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP)
-                .getOutputSizes(ImageFormat.JPEG);
-            
-            // Use the largest available size
-            Size largestSize = Collections.max(Arrays.asList(jpegSizes), new CompareSizesByArea());
-            
-            imageReader = ImageReader.newInstance(largestSize.getWidth(), largestSize.getHeight(),
-                ImageFormat.JPEG, 1);
-            
-            imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-                @Override
-                public void onImageAvailable(ImageReader reader) {
-                    Image image = reader.acquireLatestImage();
-                    if (image != null) {
-                        imageSaver.saveImage(image);
+    /**
+     * Make sure a camera has an output stream and is open or opening
+     * Parts kept from an earlier switch are reused as they are.
+     * @return The camera's slot, or null if the catalog does not know the camera
+     */
+    private CameraSlot prepareCamera(String cameraId) {
+        CameraSlot slot = cameraSlots.get(cameraId);
+        if (slot == null) {
+            CameraInfo info = cameraCatalog.get(cameraId);
+            if (info == null || info.getJpegWidth() == 0) {
+                Log.e(TAG, "No JPEG output known for camera " + cameraId);
+                return null;
+            }
+            slot = new CameraSlot(info);
+            cameraSlots.put(cameraId, slot);
+        }
+        
+        if (slot.stream == null) {
+            setupStream(slot);
+        }
+        if (slot.device == null && !slot.opening) {
+            openCamera(slot);
+        }
+        return slot;
+    }
+    
+    private void setupStream(final CameraSlot slot) {
+        CameraInfo camera = slot.info;
+        
+        int size = camera.findJpegSize(activeProfile.maxPixels);
+        createJpegStream(slot, camera.jpegSizes[size], camera.jpegSizes[size + 1]);
+        
+        // In ZSL mode the ZSL repeating request keeps 3A converged instead, and the stream
+        // is only added when the viewfinder may use it
+        int yuvSizeCount = camera.yuvSizes.length;
+        if ((!zslEnabled || captureSettings.isViewfinderWithZslEnabled()) && yuvSizeCount >= 2) {
+            // Sizes are sorted largest first; the smallest costs the least bandwidth
+            slot.meteringStream = cameraHal.createStream(CameraHal.FORMAT_YUV_420_888,
+                camera.yuvSizes[yuvSizeCount - 2], camera.yuvSizes[yuvSizeCount - 1], METERING_READER_SLOTS,
+                new CameraHal.FrameListener() {
+                    @Override
+                    public void onFrameAvailable(CameraFrame frame) {
+                        // The encoder copies the frame only when one is due, so it can be closed at once
+                        ViewfinderEncoder encoder = viewfinder;
+                        if (encoder != null && slot == activeCamera && activeBurst == null) {
+                            encoder.offer(frame);
+                        }
+                        frame.close();
                     }
+                });
+        }
+        if (!zslEnabled && slot.meteringStream != null) {
+            slot.meteringRequest = new CaptureSpec(CaptureSpec.TEMPLATE_PREVIEW, slot.meteringStream);
+            slot.meteringRequest.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+            slot.threeA = createThreeAManager(slot.meteringRequest, true);
+        }
+    }
+    
+    /**
+     * Create the JPEG stream captures are saved from, with a ZSL ring sized for it when enabled
+     */
+    private void createJpegStream(final CameraSlot slot, int width, int height) {
+        int maxImages = BURST_READER_SLOTS;
+        zslEnabled = captureSettings.isZslEnabled();
+        if (zslEnabled) {
+            int depth = ZslRingBuffer.computeDepth(captureSettings.getZslRingDepth(),
+                captureSettings.getZslMemoryBudgetBytes(), ZslRingBuffer.estimateJpegFrameBytes(width, height));
+            slot.zslRing = new ZslRingBuffer(depth);
+            maxImages = depth + ZSL_READER_HEADROOM;
+            Log.d(TAG, "ZSL enabled with ring depth " + depth);
+        }
+        
+        slot.stream = cameraHal.createStream(activeProfile.format, width, height, maxImages,
+            new CameraHal.FrameListener() {
+                @Override
+                public void onFrameAvailable(CameraFrame frame) {
+                    handleImage(slot, frame);
                 }
-            }, backgroundHandler);
-            
-        } catch (CameraAccessException e) {
-            Log.e(TAG, "Failed to setup image reader", e);
+            });
+    }
+    
+    private ThreeAManager createThreeAManager(CaptureSpec meteringRequest, boolean meterFlash) {
+        ThreeAManager threeA = new ThreeAManager(meteringRequest, meterFlash, THREE_A_TIMEOUT_MS * 1000000);
+        try {
+            threeA.setFlashMode(flashMode);
+        } catch (CameraHalException e) {
+            // Not streaming yet, so nothing is submitted
         }
+        return threeA;
     }
     
-    private void openCamera() {
+    private void openCamera(final CameraSlot slot) {
         try {
-            cameraManager.openCamera(currentCameraId, new CameraDevice.StateCallback() {
+            slot.opening = true;
+            cameraHal.openCamera(slot.info.id, new CameraHal.DeviceCallback() {
                 @Override
-                public void onOpened(@NonNull CameraDevice camera) {
-                    Log.d(TAG, "Camera opened successfully");
-                    cameraDevice = camera;
-                    createCaptureSession();
+                public void onOpened(CameraHal.Device camera) {
+                    slot.opening = false;
+                    if (slot != activeCamera && switchStrategy != SwitchStrategy.CONCURRENT) {
+                        // Switched away while the camera was opening
+                        camera.close();
+                        return;
+                    }
+                    
+                    Log.d(TAG, "Camera " + slot.info.id + " opened successfully");
+                    slot.device = camera;
+                    if (slot == activeCamera) {
+                        moveReadiness(ReadinessTracker.State.CAMERA_OPEN);
+                    }
+                    createCaptureSession(slot);
                 }
                 
                 @Override
-                public void onDisconnected(@NonNull CameraDevice camera) {
+                public void onDisconnected(CameraHal.Device camera) {
                     Log.w(TAG, "Camera disconnected");
                     camera.close();
-                    cameraDevice = null;
+                    slot.opening = false;
+                    slot.device = null;
+                    slot.session = null;
+                    onActiveCameraLost(slot);
                 }
                 
                 @Override
-                public void onError(@NonNull CameraDevice camera, int error) {
+                public void onError(CameraHal.Device camera, int error) {
                     Log.e(TAG, "Camera error: " + error);
                     camera.close();
-                    cameraDevice = null;
+                    slot.opening = false;
+                    slot.device = null;
+                    slot.session = null;
+                    onActiveCameraLost(slot);
                 }
-            }, backgroundHandler);
+            });
             
-        } catch (CameraAccessException | SecurityException e) {
+        } catch (CameraHalException e) {
+            slot.opening = false;
             Log.e(TAG, "Failed to open camera", e);
+            onActiveCameraLost(slot);
+        }
+    }
+    
+    /**
+     * The active camera closed or never opened; captures waiting for it cannot run
+     */
+    private void onActiveCameraLost(CameraSlot slot) {
+        if (slot != activeCamera) {
+            return;
+        }
+        moveReadiness(ReadinessTracker.State.STARTING);
+        // The next activity tries again
+        rewarmingFrom = null;
+        dropDeferredCaptures("camera " + slot.info.id + " is not available");
+    }
+    
+    private void dropDeferredCaptures(String reason) {
+        if (!capturesAwaitingSession.isEmpty()) {
+            Log.w(TAG, "Dropping " + capturesAwaitingSession.size() + " waiting captures: " + reason);
+            capturesAwaitingSession.clear();
         }
     }
     
-    private void createCaptureSession() {
+    private void createCaptureSession(final CameraSlot slot) {
         try {
-            if (cameraDevice == null || imageReader == null) {
-                Log.e(TAG, "Camera device or image reader is null");
+            if (slot.device == null || slot.stream == null) {
+                Log.e(TAG, "Camera device or output stream is null");
                 return;
             }
             
-            cameraDevice.createCaptureSession(
-                Arrays.asList(imageReader.getSurface()),
-                new CameraCaptureSession.StateCallback() {
+            List<CameraHal.Stream> outputs = new ArrayList<>(2);
+            outputs.add(slot.stream);
+            if (slot.meteringStream != null) {
+                outputs.add(slot.meteringStream);
+            }
+            
+            slot.device.createSession(
+                outputs,
+                new CameraHal.SessionCallback() {
                     @Override
-                    public void onConfigured(@NonNull CameraCaptureSession session) {
-                        Log.d(TAG, "Capture session configured");
-                        captureSession = session;
+                    public void onConfigured(CameraHal.Session session) {
+                        Log.d(TAG, "Capture session configured for camera " + slot.info.id);
+                        slot.session = session;
+                        // The previous session no longer streams to it
+                        closeRetiredStream(slot);
+                        
+                        if (slot == activeCamera) {
+                            onCameraReady(slot);
+                        }
                     }
                     
                     @Override
-                    public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                    public void onConfigureFailed() {
                         Log.e(TAG, "Failed to configure capture session");
+                        closeRetiredStream(slot);
+                        if (slot == activeCamera) {
+                            // Captures waiting for the session cannot run
+                            dropDeferredCaptures("session configuration failed");
+                        }
+                        
+                        if (switchStrategy == SwitchStrategy.CONCURRENT && slot != activeCamera) {
+                            // Concurrent stream combinations are limited; keep only one camera open instead
+                            Log.w(TAG, "Standby camera cannot stream concurrently, using " + SwitchStrategy.WARM_REUSE);
+                            switchStrategy = SwitchStrategy.WARM_REUSE;
+                            releaseCamera(slot);
+                        }
                     }
-                },
-                backgroundHandler
+                }
             );
             
-        } catch (CameraAccessException e) {
+        } catch (CameraHalException e) {
             Log.e(TAG, "Failed to create capture session", e);
         }
     }
     
-    private void handleCameraCommand(String action, Intent intent) {
-        switch (action) {
+    /**
+     * Called when the active camera has a configured session
+     */
+    private void onCameraReady(final CameraSlot slot) {
+        moveReadiness(ReadinessTracker.State.SESSION_CONFIGURED);
+        if (zslEnabled) {
+            startZslRepeating(slot);
+        } else {
+            startMetering(slot);
+        }
+        if (slot.threeA == null) {
+            // Captures do not wait for 3A without metering, so the session is as ready as it gets
+            moveReadiness(ReadinessTracker.State.THREE_A_READY);
+        } else {
+            slot.threeA.awaitConverged(new Runnable() {
+                @Override
+                public void run() {
+                    if (slot == activeCamera && slot.isReady()) {
+                        moveReadiness(ReadinessTracker.State.THREE_A_READY);
+                    }
+                }
+            });
+        }
+        
+        List<Runnable> deferred = new ArrayList<>(capturesAwaitingSession);
+        capturesAwaitingSession.clear();
+        for (Runnable capture : deferred) {
+            capture.run();
+        }
+        
+        if (switchStartNanos != 0) {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - switchStartNanos;
+            switchStartNanos = 0;
+            switchLatency.get(switchStrategy).recordNanos(elapsed);
+            Log.d(TAG, "Camera " + slot.info.id + " ready " + elapsed / 1000000.0 + " ms after switch ("
+                + switchStrategy + ")");
+        }
+        if (rewarmingFrom != null) {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - rewarmStartNanos;
+            rewarmLatency.get(rewarmingFrom).recordNanos(elapsed);
+            Log.d(TAG, "Camera " + slot.info.id + " re-warmed from " + rewarmingFrom + " in " + elapsed / 1000000.0
+                + " ms");
+            rewarmingFrom = null;
+        }
+    }
+    
+    private void startZslRepeating(CameraSlot slot) {
+        try {
+            if (slot.zslRequest == null) {
+                slot.zslRequest = slot.meteringStream != null
+                    ? new CaptureSpec(CaptureSpec.TEMPLATE_ZERO_SHUTTER_LAG, slot.stream, slot.meteringStream)
+                    : new CaptureSpec(CaptureSpec.TEMPLATE_ZERO_SHUTTER_LAG, slot.stream);
+                slot.zslRequest.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+                // Flash cannot fire on a repeating stream; flash shots go through a regular still capture
+                slot.zslRequest.aeMode = CaptureSpec.AE_MODE_ON;
+                slot.zslRequest.jpegQuality = activeProfile.jpegQuality;
+                // Its frames are saved, so its AE mode must not follow the flash mode
+                slot.threeA = createThreeAManager(slot.zslRequest, false);
+            }
+            
+            slot.threeA.start(slot.session);
+            Log.d(TAG, "ZSL repeating request started");
+            
+        } catch (CameraHalException e) {
+            Log.e(TAG, "Failed to start ZSL repeating request", e);
+        }
+    }
+    
+    /**
+     * Stream the metering request so focus and exposure are converged before a capture asks
+     */
+    private void startMetering(CameraSlot slot) {
+        if (slot.threeA == null) {
+            Log.w(TAG, "No metering stream for camera " + slot.info.id + ", captures will not wait for 3A");
+            return;
+        }
+        try {
+            slot.threeA.start(slot.session);
+            Log.d(TAG, "3A metering started for camera " + slot.info.id);
+            
+        } catch (CameraHalException e) {
+            Log.e(TAG, "Failed to start 3A metering", e);
+        }
+    }
+    
+    private void handleImage(CameraSlot slot, CameraFrame frame) {
+        long timestamp = frame.getTimestamp();
+        CaptureRecord record = pendingCaptures.remove(timestamp);
+        
+        if (burstTimestamps.remove(timestamp)) {
+            saveCapture(frame, record != null ? record : new CaptureRecord());
+            if (activeBurst != null) {
+                activeBurst.onFrameSaved(timestamp);
+                continueBurst();
+            }
+            return;
+        }
+        
+        // Frames from a regular still capture are saved directly
+        if (record != null) {
+            saveCapture(frame, record);
+            return;
+        }
+        
+        if (zslEnabled) {
+            if (activeBurst != null || slot != activeCamera) {
+                // Late frame from a paused repeating request
+                frame.close();
+                return;
+            }
+            slot.zslRing.add(frame);
+            return;
+        }
+        
+        saveCapture(frame, new CaptureRecord());
+    }
+    
+    private void saveCapture(CameraFrame frame, CaptureRecord record) {
+        record.imageNanos = SystemClock.elapsedRealtimeNanos();
+        imageSaver.saveImage(frame, record);
+        stateRegistry.publishSaveQueueDepth(imageSaver.getQueueDepth());
+    }
+    
+    private void executeCommand(CameraCommand command) {
+        LatencyHistogram dispatchLatency = command.source == CameraCommand.SOURCE_DIRECT
+            ? directDispatchLatency : intentDispatchLatency;
+        dispatchLatency.recordNanos(command.dequeueNanos - command.enqueueNanos);
+        if (!"NOOP".equals(command.action)) {
+            markActive();
+        }
+        
+        switch (command.action) {
             case "CAPTURE_PHOTO":
-                capturePhoto();
+                applyPendingState();
+                applyProfile(selectProfile(command.quality));
+                capturePhoto(createCaptureRecord(command));
+                break;
+            case "BURST":
+                applyPendingState();
+                applyProfile(selectProfile(command.quality));
+                captureBurst(command.burstFrames(), createCaptureRecord(command));
                 break;
             case "SWITCH_CAMERA":
-                String camera = intent.getStringExtra("camera");
-                switchCamera(camera);
+                if (pendingCamera != null) {
+                    coalescedCommands++;
+                }
+                pendingCamera = command.camera;
+                schedulePendingState();
                 break;
             case "SET_FLASH":
-                String flash = intent.getStringExtra("flash");
-                setFlashMode(flash);
+                if (pendingFlash != null) {
+                    coalescedCommands++;
+                }
+                pendingFlash = command.flash;
+                schedulePendingState();
+                break;
+            case "VIEWFINDER_START":
+                startViewfinder(command);
+                break;
+            case "VIEWFINDER_STOP":
+                stopViewfinder();
+                break;
+            case "TIMELAPSE":
+                startTimelapse(command);
+                break;
+            case "TIMELAPSE_STOP":
+                if (timelapse != null) {
+                    finishTimelapse("stopped");
+                }
+                break;
+            case "NOOP":
+                // Used by the dispatch benchmark; only the latency above is of interest
                 break;
             default:
-                Log.w(TAG, "Unknown camera command: " + action);
+                Log.w(TAG, "Unknown camera command: " + command.action);
+        }
+    }
+    
+    /**
+     * Start the trace of a capture with the timings the command has collected so far
+     */
+    private static CaptureRecord createCaptureRecord(CameraCommand command) {
+        // Commands that did not come from the watch start when they were queued
+        long commandNanos = command.receivedNanos != 0 ? command.receivedNanos : command.enqueueNanos;
+        CaptureRecord record = new CaptureRecord(command.commandId, commandNanos);
+        record.transitMillis = command.transitMillis;
+        record.thumbnailSize = command.thumbnailSize;
+        record.parsedNanos = command.enqueueNanos;
+        record.dispatchedNanos = command.dequeueNanos;
+        return record;
+    }
+    
+    private void schedulePendingState() {
+        // Not rescheduled, so a steady stream of toggles still applies within the window
+        if (!stateApplyScheduled) {
+            stateApplyScheduled = true;
+            backgroundHandler.postDelayed(applyPendingState, STATE_COALESCE_MS);
+        }
+    }
+    
+    /**
+     * Apply the latest camera and flash requests; earlier ones were superseded
+     * Runs before any capture so the capture always sees the newest state.
+     */
+    private void applyPendingState() {
+        backgroundHandler.removeCallbacks(applyPendingState);
+        stateApplyScheduled = false;
+        
+        if (pendingFlash != null) {
+            setFlashMode(pendingFlash);
+            pendingFlash = null;
+        }
+        if (pendingCamera != null) {
+            switchCamera(pendingCamera);
+            pendingCamera = null;
         }
     }
     
     public void capturePhoto() {
-        if (captureSession == null || cameraDevice == null) {
+        capturePhoto(new CaptureRecord(CaptureRecord.NO_COMMAND_ID, SystemClock.elapsedRealtimeNanos()));
+    }
+    
+    /**
+     * Capture a photo for a command received at the given time
+     * In ZSL mode the buffered frame closest to the command time is saved instead of
+     * starting a new capture, unless flash is forced on.
+     * @param record Command id and arrival time on the elapsed realtime clock
+     */
+    public void capturePhoto(final CaptureRecord record) {
+        if (isRebuildingStream() || isCameraStarting()) {
+            deferCapture(record, new Runnable() {
+                @Override
+                public void run() {
+                    capturePhoto(record);
+                }
+            });
+            return;
+        }
+        if (!isCameraReady()) {
             Log.e(TAG, "Camera not ready for capture");
+            publishCapturesLost(record, 1);
             return;
         }
         
-        try {
-            CaptureRequest.Builder captureBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(imageReader.getSurface());
-            
-            // Set flash mode
-            setFlashForCapture(captureBuilder);
-            
-            // Set auto-focus and auto-exposure
-            captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-            
-            CaptureRequest captureRequest = captureBuilder.build();
-            
-            captureSession.capture(captureRequest, new CameraCaptureSession.CaptureCallback() {
+        if (zslEnabled && !"on".equals(flashMode)) {
+            backgroundHandler.post(new Runnable() {
                 @Override
-                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                             @NonNull CaptureRequest request,
-                                             @NonNull TotalCaptureResult result) {
-                    Log.d(TAG, "Photo captured successfully");
+                public void run() {
+                    if (!saveZslFrame(record)) {
+                        Log.d(TAG, "ZSL ring empty, falling back to still capture");
+                        captureStillPhoto(record);
+                    }
                 }
-            }, backgroundHandler);
-            
-        } catch (CameraAccessException e) {
-            Log.e(TAG, "Failed to capture photo", e);
+            });
+            return;
         }
+        
+        captureStillPhoto(record);
     }
     
-    private void setFlashForCapture(CaptureRequest.Builder captureBuilder) {
-        switch (flashMode) {
-            case "on":
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH);
-                break;
-            case "off":
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
-                captureBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
-                break;
-            case "auto":
-            default:
-                captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-                break;
-        }
+    /**
+     * Run a capture once the active camera has a session, noting how long it waited to re-warm
+     */
+    private void deferCapture(final CaptureRecord record, final Runnable capture) {
+        final IdleTier rewarmFrom = rewarmingFrom;
+        final long deferredNanos = SystemClock.elapsedRealtimeNanos();
+        capturesAwaitingSession.add(new Runnable() {
+            @Override
+            public void run() {
+                if (rewarmFrom != null) {
+                    record.rewarmWaitNanos = SystemClock.elapsedRealtimeNanos() - deferredNanos;
+                    Log.d(TAG, "Command " + record.commandId + " waited " + record.rewarmWaitNanos / 1000000.0
+                        + " ms for the camera to re-warm from " + rewarmFrom);
+                }
+                capture.run();
+            }
+        });
     }
     
-    public void switchCamera(String camera) {
-        String newCameraId = "front".equals(camera) ? "1" : "0";
+    private boolean saveZslFrame(CaptureRecord record) {
+        long commandTimeNanos = record.commandNanos;
+        if (activeCamera == null || activeCamera.zslRing == null) {
+            return false;
+        }
         
-        if (!newCameraId.equals(currentCameraId)) {
-            currentCameraId = newCameraId;
-            closeCamera();
-            initializeCamera();
-            Log.d(TAG, "Switched to " + camera + " camera");
+        // Frames can only be matched to the command time if the sensor uses the realtime clock
+        boolean realtimeTimestamps = activeCamera.info.realtimeTimestamps;
+        CameraFrame frame = realtimeTimestamps ? activeCamera.zslRing.takeClosest(commandTimeNanos)
+            : activeCamera.zslRing.takeNewest();
+        if (frame == null) {
+            return false;
         }
+        
+        if (realtimeTimestamps) {
+            // Positive age means the frame was exposed before the command arrived
+            double ageMs = (commandTimeNanos - frame.getTimestamp()) / 1000000.0;
+            Log.d(TAG, "ZSL frame selected, age " + ageMs + " ms relative to command");
+        } else {
+            Log.d(TAG, "ZSL frame selected (sensor clock not comparable, newest frame used)");
+        }
+        
+        record.sensorTimestamp = frame.getTimestamp();
+        saveCapture(frame, record);
+        return true;
     }
     
-    public void setFlashMode(String mode) {
-        flashMode = mode;
-        Log.d(TAG, "Flash mode set to: " + mode);
-    }
-    
-    private void closeCamera() {
-        if (captureSession != null) {
-            captureSession.close();
-            captureSession = null;
+    private void captureStillPhoto(final CaptureRecord record) {
+        if (!isCameraReady()) {
+            Log.e(TAG, "Camera not ready for capture");
+            publishCapturesLost(record, 1);
+            return;
         }
         
-        if (cameraDevice != null) {
-            cameraDevice.close();
-            cameraDevice = null;
+        final CameraSlot camera = activeCamera;
+        if (camera.threeA == null) {
+            submitStillCapture(camera, record);
+            return;
         }
         
-        if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
+        camera.threeA.awaitReady(new ThreeAManager.ReadyCallback() {
+            @Override
+            public void onReady(int outcome, long waitNanos) {
+                backgroundHandler.removeCallbacks(threeATimeout);
+                if (outcome == ThreeAManager.OUTCOME_ABORTED && camera == activeCamera && isRebuildingStream()) {
+                    // A new profile is rebuilding the stream; wait for the new session like later captures do
+                    deferCapture(record, new Runnable() {
+                        @Override
+                        public void run() {
+                            captureStillPhoto(record);
+                        }
+                    });
+                    return;
+                }
+                recordThreeA(record, outcome, waitNanos);
+                if (outcome == ThreeAManager.OUTCOME_ABORTED || camera != activeCamera || !camera.isReady()) {
+                    Log.w(TAG, "Camera went away while waiting for 3A, capture dropped");
+                    publishCapturesLost(record, 1);
+                    return;
+                }
+                submitStillCapture(camera, record);
+            }
+        });
+        if (record.threeAOutcome == CaptureRecord.NO_THREE_A) {
+            // Still waiting; in case metering results stop before the manager's own timeout
+            backgroundHandler.removeCallbacks(threeATimeout);
+            backgroundHandler.postDelayed(threeATimeout, THREE_A_TIMEOUT_MS);
         }
     }
     
-    // Helper class for comparing sizes
-    private static class CompareSizesByArea implements Comparator<Size> {
-        @Override
-        public int compare(Size lhs, Size rhs) {
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                             (long) rhs.getWidth() * rhs.getHeight());
+    private void recordThreeA(CaptureRecord record, int outcome, long waitNanos) {
+        record.threeAOutcome = outcome;
+        record.threeAWaitNanos = waitNanos;
+        threeAOutcomes[outcome]++;
+        threeAWait.recordNanos(waitNanos);
+        Log.d(TAG, "3A " + ThreeAManager.outcomeName(outcome) + " after " + waitNanos / 1000000.0 + " ms");
+    }
+    
+    private void submitStillCapture(CameraSlot camera, final CaptureRecord record) {
+        try {
+            if (camera.stillRequest == null) {
+                // Kept for the life of the slot; the backend reuses the request built from it
+                camera.stillRequest = new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, camera.stream);
+                camera.stillRequest.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+            }
+            CaptureSpec captureRequest = camera.stillRequest;
+            
+            // Set flash and auto-exposure, clearing what an earlier capture may have left on the reused spec
+            captureRequest.flashMode = CaptureSpec.FLASH_MODE_OFF;
+            setFlashForCapture(captureRequest);
+            captureRequest.jpegQuality = activeProfile.jpegQuality;
+            
+            record.submitNanos = SystemClock.elapsedRealtimeNanos();
+            camera.session.capture(captureRequest, new CameraHal.CaptureCallback() {
+                private boolean lost = false;
+                
+                @Override
+                public void onCaptureStarted(CaptureSpec spec, long timestamp) {
+                    record.sensorTimestamp = timestamp;
+                    pendingCaptures.put(timestamp, record);
+                }
+                
+                @Override
+                public void onCaptureCompleted(CaptureSpec spec, long timestamp) {
+                    record.completedNanos = SystemClock.elapsedRealtimeNanos();
+                    Log.d(TAG, "Photo captured successfully");
+                }
+                
+                @Override
+                public void onCaptureFailed(CaptureSpec spec, boolean imageCaptured) {
+                    Log.w(TAG, "Photo capture failed" + (imageCaptured ? ", image still saved" : ""));
+                    if (!imageCaptured) {
+                        onImageLost();
+                    }
+                }
+                
+                @Override
+                public void onBufferLost(CaptureSpec spec) {
+                    Log.w(TAG, "Photo capture lost its buffer");
+                    onImageLost();
+                }
+                
+                @Override
+                public void onSequenceAborted(int sequenceId) {
+                    onImageLost();
+                }
+                
+                // More than one of the callbacks above may report the same lost image
+                private void onImageLost() {
+                    if (!lost) {
+                        lost = true;
+                        forgetPendingCapture(record);
+                        publishCapturesLost(record, 1);
+                    }
+                }
+            });
+            
+        } catch (CameraHalException e) {
+            Log.e(TAG, "Failed to capture photo", e);
+            publishCapturesLost(record, 1);
+        }
+    }
+    
+    /**
+     * Report captures of a command that will never reach the saver
+     * The watch's dispatcher counts them as finished, so it hands out the next command
+     * instead of waiting for these to expire.
+     */
+    private void publishCapturesLost(CaptureRecord record, int count) {
+        stateRegistry.publishCaptureFailed(record.commandId, count, imageSaver.getQueueDepth());
+    }
+    
+    /**
+     * Stop waiting for the image of a capture that will never deliver one
+     * Left behind, the entry would count as a capture in flight for good, which keeps the
+     * camera from idling and blocks resolution changes.
+     */
+    private void forgetPendingCapture(CaptureRecord record) {
+        if (record.sensorTimestamp != 0 && pendingCaptures.get(record.sensorTimestamp) == record) {
+            pendingCaptures.remove(record.sensorTimestamp);
+        }
+    }
+    
+    /**
+     * Capture a burst of frames as fast as the sensor and the save path allow
+     * Frames are submitted in windows no larger than the free reader slots, so a
+     * slow save delays the next window instead of losing frames.
+     * @param count Number of frames to capture
+     * @param command Command id and arrival time shared by every frame of the burst
+     */
+    public void captureBurst(final int count, final CaptureRecord command) {
+        if (isRebuildingStream() || isCameraStarting()) {
+            deferCapture(command, new Runnable() {
+                @Override
+                public void run() {
+                    captureBurst(count, command);
+                }
+            });
+            return;
+        }
+        if (!isCameraReady()) {
+            Log.e(TAG, "Camera not ready for burst");
+            publishCapturesLost(command, count);
+            return;
+        }
+        
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startBurst(count, command);
+            }
+        });
+    }
+    
+    private void startBurst(final int count, final CaptureRecord command) {
+        if (activeBurst != null) {
+            Log.w(TAG, "Burst already in progress");
+            publishCapturesLost(command, count);
+            return;
+        }
+        if (!isCameraReady()) {
+            Log.e(TAG, "Camera not ready for burst");
+            publishCapturesLost(command, count);
+            return;
+        }
+        CameraSlot camera = activeCamera;
+        if (zslEnabled && camera.threeA.isWaiting()) {
+            // Stopping 3A below would abort a flash capture in its precapture; released after it fires
+            camera.threeA.awaitReady(new ThreeAManager.ReadyCallback() {
+                @Override
+                public void onReady(int outcome, long waitNanos) {
+                    captureBurst(count, command);
+                }
+            });
+            return;
+        }
+        burstCommand = command;
+        
+        if (camera.burstRequest == null) {
+            camera.burstRequest = new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, camera.stream);
+            camera.burstRequest.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+            // Flash cannot recharge between burst frames
+            camera.burstRequest.aeMode = CaptureSpec.AE_MODE_ON;
+        }
+        camera.burstRequest.jpegQuality = activeProfile.jpegQuality;
+        
+        try {
+            if (zslEnabled) {
+                // Give the ring's reader slots to the burst while it runs
+                camera.session.stopRepeating();
+                camera.threeA.stop();
+                camera.zslRing.clear();
+            }
+            
+        } catch (CameraHalException e) {
+            Log.e(TAG, "Failed to start burst", e);
+            publishCapturesLost(command, count);
+            return;
+        }
+        
+        activeBurst = new BurstTracker(Math.min(count, CameraCommand.MAX_BURST_FRAMES), camera.stream.getMaxFrames());
+        continueBurst();
+    }
+    
+    private void continueBurst() {
+        if (activeBurst == null) {
+            return;
+        }
+        
+        if (activeBurst.isDone()) {
+            finishBurst();
+            return;
+        }
+        
+        int frames = activeBurst.framesToSubmit();
+        if (frames == 0) {
+            // All reader slots busy; the next saved frame resumes submission
+            return;
+        }
+        
+        List<CaptureSpec> requests = new ArrayList<>(frames);
+        for (int i = 0; i < frames; i++) {
+            requests.add(activeCamera.burstRequest);
+        }
+        
+        try {
+            burstSubmitNanos = SystemClock.elapsedRealtimeNanos();
+            activeCamera.session.captureBurst(requests, burstCaptureCallback);
+            activeBurst.onSubmitted(frames);
+        } catch (CameraHalException e) {
+            Log.e(TAG, "Failed to submit burst frames", e);
+            activeBurst.abort();
+            finishBurst();
+        }
+    }
+    
+    private final CameraHal.CaptureCallback burstCaptureCallback = new CameraHal.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(CaptureSpec spec, long timestamp) {
+            burstTimestamps.add(timestamp);
+            
+            CaptureRecord record = new CaptureRecord(burstCommand);
+            record.submitNanos = burstSubmitNanos;
+            record.sensorTimestamp = timestamp;
+            pendingCaptures.put(timestamp, record);
+        }
+        
+        @Override
+        public void onCaptureCompleted(CaptureSpec spec, long timestamp) {
+            // Only recorded if the image has not already been handed to the saver
+            CaptureRecord record = pendingCaptures.get(timestamp);
+            if (record != null) {
+                record.completedNanos = SystemClock.elapsedRealtimeNanos();
+            }
+        }
+        
+        @Override
+        public void onCaptureFailed(CaptureSpec spec, boolean imageCaptured) {
+            if (activeBurst != null && !imageCaptured) {
+                activeBurst.onFrameDropped();
+                continueBurst();
+            }
+        }
+        
+        @Override
+        public void onBufferLost(CaptureSpec spec) {
+            if (activeBurst != null) {
+                activeBurst.onFrameDropped();
+                continueBurst();
+            }
+        }
+        
+        @Override
+        public void onSequenceAborted(int sequenceId) {
+            if (activeBurst != null) {
+                activeBurst.abort();
+                finishBurst();
+            }
+        }
+    };
+    
+    private void finishBurst() {
+        BurstTracker burst = activeBurst;
+        activeBurst = null;
+        // Frames still listed never delivered an image; failure callbacks carry no timestamp to drop them by
+        for (Long timestamp : burstTimestamps) {
+            pendingCaptures.remove(timestamp);
+        }
+        burstTimestamps.clear();
+        // Frames dropped or never submitted; the captured ones are reported by the saver
+        if (burst.getCaptured() < burst.getRequested()) {
+            publishCapturesLost(burstCommand, burst.getRequested() - burst.getCaptured());
+        }
+        
+        long frameDurationNs = activeCamera != null ? activeCamera.info.getJpegFrameDurationNs() : 0;
+        double maxFps = frameDurationNs > 0 ? 1000000000.0 / frameDurationNs : 0;
+        Log.d(TAG, "Burst finished: " + burst.getCaptured() + "/" + burst.getRequested() + " frames, "
+            + burst.getDropped() + " dropped, " + burst.getAchievedFps() + " fps (sensor max " + maxFps + ")");
+        
+        if (zslEnabled && isCameraReady()) {
+            startZslRepeating(activeCamera);
+        }
+        
+        Intent result = new Intent(ACTION_CAPTURE_RESULT);
+        result.setPackage(getPackageName());
+        result.putExtra("command", "BURST");
+        result.putExtra("success", burst.getCaptured() > 0);
+        result.putExtra("requested", burst.getRequested());
+        result.putExtra("captured", burst.getCaptured());
+        result.putExtra("dropped", burst.getDropped());
+        result.putExtra("fps", burst.getAchievedFps());
+        sendBroadcast(result);
+    }
+    
+    /**
+     * Take over a timelapse schedule so the watch does not have to send every shot
+     * A running timelapse is replaced. Camera, flash and quality are applied per shot like
+     * any capture, so the watch can still change them while the timelapse runs.
+     */
+    private void startTimelapse(CameraCommand command) {
+        if (timelapse != null) {
+            finishTimelapse("replaced");
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        long startNanos = now;
+        if (command.startAt > 0) {
+            // Moved from the wall clock onto the elapsed realtime clock the shots are timed on
+            startNanos = Math.max(now, now + (command.startAt * 1000 - System.currentTimeMillis()) * 1000000);
+        }
+        int intervalMs = Math.max(MIN_TIMELAPSE_INTERVAL_MS, command.intervalMillis);
+        timelapse = new TimelapseScheduler(startNanos, intervalMs * 1000000L, command.count);
+        timelapseCommandId = command.commandId;
+        timelapseQuality = command.quality;
+        timelapseShot = null;
+        timelapseProgressNanos = now;
+        Log.d(TAG, "Timelapse of " + (command.count > 0 ? command.count : "unlimited") + " shots every " + intervalMs
+            + " ms, starting in " + (startNanos - now) / 1000000 + " ms");
+        
+        // Handler delays stop while the CPU sleeps, which would stretch long intervals. The lock is
+        // taken with a timeout up to the next shot and renewed by each one, so an unlimited run
+        // that stops ticking cannot keep the CPU awake for good; not reference counted, so each
+        // renewal replaces the previous timeout and releasing an expired lock is harmless.
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        if (powerManager != null) {
+            timelapseWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "CameraClicker:timelapse");
+            timelapseWakeLock.setReferenceCounted(false);
+        }
+        sendTimelapseProgress("running");
+        scheduleTimelapseShot(now);
+    }
+    
+    private void scheduleTimelapseShot(long now) {
+        backgroundHandler.removeCallbacks(timelapseTick);
+        long fireNanos = timelapse.nextFireNanos();
+        if (fireNanos < 0) {
+            finishTimelapse("finished");
+            return;
+        }
+        long delayMs = Math.max(0, (fireNanos - now) / 1000000);
+        if (timelapseWakeLock != null) {
+            timelapseWakeLock.acquire(delayMs + TIMELAPSE_WAKE_LOCK_MARGIN_MS);
+        }
+        backgroundHandler.postDelayed(timelapseTick, delayMs);
+    }
+    
+    private void runTimelapseShot() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        measureTimelapseShot();
+        
+        boolean cameraFree = isCameraReady() && !isRebuildingStream() && !isCameraStarting() && activeBurst == null;
+        boolean saverKeepingUp = imageSaver.getQueueDepth() < TIMELAPSE_SAVE_BACKLOG;
+        int shot = timelapse.takeShot(now, cameraFree && saverKeepingUp);
+        if (shot >= 0) {
+            CaptureRecord record = new CaptureRecord(timelapseCommandId, now);
+            record.parsedNanos = now;
+            record.dispatchedNanos = now;
+            timelapseShot = record;
+            timelapseShotIndex = shot;
+            timelapseFireNanos = now;
+            applyPendingState();
+            applyProfile(selectProfile(timelapseQuality));
+            capturePhoto(record);
+        } else if (!timelapse.isFinished()) {
+            Log.w(TAG, "Timelapse shot skipped: " + (cameraFree ? "saving is behind" : "camera busy"));
+        }
+        
+        if (now - timelapseProgressNanos >= TIMELAPSE_PROGRESS_MS * 1000000) {
+            timelapseProgressNanos = now;
+            sendTimelapseProgress("running");
+        }
+        scheduleTimelapseShot(now);
+    }
+    
+    /**
+     * Compare the latest shot's exposure with its slot, once the sensor has reported it
+     * Only possible when the sensor timestamps use the elapsed realtime clock; otherwise the
+     * shots still keep to the grid, just without correcting for the pipeline delay.
+     */
+    private void measureTimelapseShot() {
+        CaptureRecord shot = timelapseShot;
+        if (shot == null || shot.sensorTimestamp == 0) {
+            return;
+        }
+        timelapseShot = null;
+        if (activeCamera != null && activeCamera.info.realtimeTimestamps) {
+            timelapse.onExposed(timelapseShotIndex, timelapseFireNanos, shot.sensorTimestamp);
+        }
+    }
+    
+    private void finishTimelapse(String state) {
+        backgroundHandler.removeCallbacks(timelapseTick);
+        measureTimelapseShot();
+        Log.d(TAG, "Timelapse " + state + ": " + timelapse.describe());
+        sendTimelapseProgress(state);
+        timelapse = null;
+        timelapseShot = null;
+        if (timelapseWakeLock != null) {
+            timelapseWakeLock.release();
+            timelapseWakeLock = null;
+        }
+    }
+    
+    /**
+     * Summary for the watch, sent now and then instead of a message per shot
+     * @param state running, finished, stopped or replaced
+     */
+    private void sendTimelapseProgress(String state) {
+        TimelapseScheduler schedule = timelapse;
+        long nextNanos = schedule.nextFireNanos();
+        Intent progress = new Intent(ACTION_TIMELAPSE_PROGRESS);
+        progress.setPackage(getPackageName());
+        progress.putExtra("commandId", timelapseCommandId);
+        progress.putExtra("state", state);
+        progress.putExtra("count", schedule.getCount());
+        progress.putExtra("taken", schedule.getTakenCount());
+        progress.putExtra("skipped", schedule.getSkippedCount());
+        progress.putExtra("saveQueue", imageSaver.getQueueDepth());
+        progress.putExtra("nextMs", nextNanos < 0 ? -1 : Math.max(0, nextNanos - SystemClock.elapsedRealtimeNanos()) / 1000000);
+        progress.putExtra("errorP50Ms", schedule.getError().getPercentileMicros(50) / 1000.0);
+        progress.putExtra("errorMaxMs", schedule.getError().getMaxMicros() / 1000.0);
+        sendBroadcast(progress);
+    }
+    
+    private void setFlashForCapture(CaptureSpec captureRequest) {
+        switch (flashMode) {
+            case "on":
+                captureRequest.aeMode = CaptureSpec.AE_MODE_ON_ALWAYS_FLASH;
+                break;
+            case "off":
+                captureRequest.aeMode = CaptureSpec.AE_MODE_ON;
+                captureRequest.flashMode = CaptureSpec.FLASH_MODE_OFF;
+                break;
+            case "auto":
+            default:
+                captureRequest.aeMode = CaptureSpec.AE_MODE_ON_AUTO_FLASH;
+                break;
+        }
+    }
+    
+    public void switchCamera(String camera) {
+        String newCameraId = cameraIdForFacing("front".equals(camera) ? CameraInfo.FACING_FRONT : CameraInfo.FACING_BACK);
+        if (newCameraId.equals(currentCameraId)) {
+            return;
+        }
+        
+        switchStartNanos = SystemClock.elapsedRealtimeNanos();
+        currentCameraId = newCameraId;
+        abortBurst();
+        
+        CameraSlot previous = activeCamera;
+        switch (switchStrategy) {
+            case CONCURRENT:
+                // The previous camera stays open as the standby; it only stops streaming
+                if (previous != null && previous.session != null) {
+                    try {
+                        previous.session.stopRepeating();
+                        if (previous.threeA != null) {
+                            previous.threeA.stop();
+                        }
+                    } catch (CameraHalException e) {
+                        Log.e(TAG, "Failed to stop standby camera", e);
+                    }
+                }
+                if (previous != null && previous.zslRing != null) {
+                    previous.zslRing.clear();
+                }
+                break;
+            case WARM_REUSE:
+                if (previous != null) {
+                    releaseCamera(previous);
+                }
+                pendingCaptures.clear();
+                break;
+            case FULL_REOPEN:
+            default:
+                closeCamera();
+                break;
+        }
+        
+        activeCamera = prepareCamera(newCameraId);
+        if (activeCamera != null && activeCamera.isReady()) {
+            onCameraReady(activeCamera);
+        } else {
+            moveReadiness(activeCamera != null && activeCamera.device != null
+                ? ReadinessTracker.State.CAMERA_OPEN : ReadinessTracker.State.STARTING);
+        }
+        Log.d(TAG, "Switched to " + camera + " camera (" + switchStrategy + ")");
+    }
+    
+    /**
+     * Profile for the next capture: the requested one, stepped down under pressure
+     * @param quality Profile name from the command, or null for the default
+     */
+    private QualityProfile selectProfile(String quality) {
+        QualityProfile requested = QualityProfile.fromName(quality);
+        if (requested == null) {
+            requested = defaultProfile;
+        }
+        if (!adaptiveQuality) {
+            return requested;
+        }
+        
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (storageCheckedNanos == 0 || now - storageCheckedNanos >= STORAGE_CHECK_INTERVAL_MS * 1000000) {
+            freeStorageBytes = imageSaver.getFreeSpaceBytes();
+            storageCheckedNanos = now;
+        }
+        double queueFill = imageSaver.getQueueDepth() / (double) imageSaver.getQueueCapacity();
+        return requested.stepDown(qualityPolicy.update(queueFill, freeStorageBytes, thermalStatus, now));
+    }
+    
+    /**
+     * Make the active camera capture with a profile
+     * JPEG quality is a request control, so a change that keeps the resolution reuses the
+     * session. A new resolution needs a new stream and session on the already open device;
+     * it waits until no capture is in flight, and captures meanwhile keep the old size.
+     */
+    private void applyProfile(QualityProfile profile) {
+        if (profile != activeProfile) {
+            Log.d(TAG, "Quality " + activeProfile.wireName + " -> " + profile.wireName + " (pressure: "
+                + qualityPolicy.getReason() + ")");
+            activeProfile = profile;
+        }
+        
+        CameraSlot camera = activeCamera;
+        if (camera == null || !camera.isReady()) {
+            // Streams created from now on use the new profile
+            return;
+        }
+        
+        int size = camera.info.findJpegSize(profile.maxPixels);
+        int width = camera.info.jpegSizes[size];
+        int height = camera.info.jpegSizes[size + 1];
+        if (width == camera.stream.getWidth() && height == camera.stream.getHeight()) {
+            if (zslEnabled && camera.zslRequest != null && camera.zslRequest.jpegQuality != profile.jpegQuality) {
+                // Its frames are the photos, so the repeating request has to pick up the new quality
+                camera.zslRequest.jpegQuality = profile.jpegQuality;
+                startZslRepeating(camera);
+            }
+            return;
+        }
+        if (activeBurst != null || !pendingCaptures.isEmpty()) {
+            return;
+        }
+        
+        Log.d(TAG, "Rebuilding stream of camera " + camera.info.id + " at " + width + "x" + height);
+        profileRebuilds++;
+        // Marked as rebuilding first, so captures that stopping 3A releases are deferred, not dropped
+        camera.retiredStream = camera.stream;
+        camera.session = null;
+        if (camera.threeA != null) {
+            camera.threeA.stop();
+        }
+        if (camera.zslRing != null) {
+            camera.zslRing.clear();
+        }
+        // Requests target the old stream; they are rebuilt on first use
+        camera.stillRequest = null;
+        camera.burstRequest = null;
+        if (camera.zslRequest != null) {
+            camera.zslRequest = null;
+            camera.threeA = null;
+        }
+        
+        moveReadiness(ReadinessTracker.State.CAMERA_OPEN);
+        createJpegStream(camera, width, height);
+        createCaptureSession(camera);
+    }
+    
+    private boolean isRebuildingStream() {
+        return activeCamera != null && activeCamera.retiredStream != null && activeCamera.device != null;
+    }
+    
+    /**
+     * True while the active camera is opening or configuring its first session
+     * Captures asked for meanwhile run once it is ready instead of being dropped.
+     */
+    private boolean isCameraStarting() {
+        return activeCamera != null && !activeCamera.isReady() && (activeCamera.opening || activeCamera.device != null);
+    }
+    
+    /**
+     * Move the readiness state and tell the UI and the watch; camera thread
+     */
+    private void moveReadiness(ReadinessTracker.State state) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (!readiness.moveTo(state, now)) {
+            return;
+        }
+        if (state == ReadinessTracker.State.THREE_A_READY) {
+            Log.d(TAG, "Ready: " + readiness.describe(now));
+        } else {
+            Log.d(TAG, "Readiness " + state.key);
+        }
+        stateRegistry.publishReadiness(state.key, readiness.canCapture(),
+            readiness.getMillisToReach(ReadinessTracker.State.THREE_A_READY));
+    }
+    
+    /**
+     * The watch app is in use, so a command may follow; safe to call from any thread
+     * An idle camera starts re-warming now instead of when the command arrives.
+     */
+    public void onWatchActivity() {
+        Handler handler = backgroundHandler;
+        if (handler != null) {
+            handler.post(markActive);
+        }
+    }
+    
+    /**
+     * Restart the idle timers and re-warm the camera if it had cooled; camera thread
+     */
+    private void markActive() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        lastActivityNanos = now;
+        if (idleTier != IdleTier.WARM) {
+            rewarm(now);
+        }
+        scheduleIdleCheck(now);
+    }
+    
+    private void scheduleIdleCheck(long now) {
+        backgroundHandler.removeCallbacks(idleCheck);
+        long nextAfter = idleTier.nextAfterNanos(idleCoolAfterNanos, idleColdAfterNanos);
+        if (nextAfter >= 0) {
+            long delayMs = (lastActivityNanos + nextAfter - now) / 1000000;
+            backgroundHandler.postDelayed(idleCheck, Math.max(1, delayMs));
+        }
+    }
+    
+    /**
+     * Move to a deeper idle tier once the watch has been quiet long enough
+     * Streaming the viewfinder and finishing captures count as activity.
+     */
+    private void checkIdle() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (viewfinder != null || activeBurst != null || timelapse != null || !pendingCaptures.isEmpty()
+                || !capturesAwaitingSession.isEmpty() || isRebuildingStream()) {
+            lastActivityNanos = now;
+        } else {
+            IdleTier target = IdleTier.forIdle(now - lastActivityNanos, idleCoolAfterNanos, idleColdAfterNanos);
+            if (target.ordinal() > idleTier.ordinal()) {
+                Log.d(TAG, "Idle for " + (now - lastActivityNanos) / 1000000000 + " s, " + idleTier + " -> " + target);
+                if (target == IdleTier.COOL) {
+                    coolCamera();
+                } else {
+                    closeCamera();
+                    moveReadiness(ReadinessTracker.State.STARTING);
+                }
+                idleTier = target;
+                stateRegistry.publishIdleTier(target);
+            }
+        }
+        scheduleIdleCheck(now);
+    }
+    
+    /**
+     * Release sessions and image buffers but keep the active camera's device open
+     * Standby cameras are released completely; they open again with the re-warm.
+     */
+    private void coolCamera() {
+        Iterator<CameraSlot> slots = cameraSlots.values().iterator();
+        while (slots.hasNext()) {
+            CameraSlot slot = slots.next();
+            if (slot != activeCamera) {
+                releaseCamera(slot);
+                closeStreams(slot);
+                slots.remove();
+            }
+        }
+        
+        CameraSlot slot = activeCamera;
+        if (slot == null) {
+            return;
+        }
+        releaseSession(slot);
+        closeStreams(slot);
+        // Requests target the closed streams; they are rebuilt with the new ones
+        slot.stillRequest = null;
+        slot.burstRequest = null;
+        slot.zslRequest = null;
+        slot.meteringRequest = null;
+        slot.threeA = null;
+        slot.zslRing = null;
+        moveReadiness(slot.device != null ? ReadinessTracker.State.CAMERA_OPEN : ReadinessTracker.State.STARTING);
+    }
+    
+    /**
+     * Bring an idle camera back to warm; captures asked for meanwhile wait for the session
+     */
+    private void rewarm(long now) {
+        Log.d(TAG, "Re-warming camera from " + idleTier);
+        rewarmingFrom = idleTier;
+        rewarmStartNanos = now;
+        idleTier = IdleTier.WARM;
+        stateRegistry.publishIdleTier(IdleTier.WARM);
+        
+        openCameras();
+        CameraSlot slot = activeCamera;
+        if (slot != null && slot.device != null && slot.session == null) {
+            // Cooled with the device still open, so only the session is missing
+            createCaptureSession(slot);
+        }
+    }
+    
+    /**
+     * Re-warm latency per tier it started from
+     */
+    public String describeIdleStats() {
+        StringBuilder stats = new StringBuilder(idleTier.name()).append(", cool after ")
+            .append(idleCoolAfterNanos / 1000000000).append(" s, cold after ").append(idleColdAfterNanos / 1000000000)
+            .append(" s");
+        for (Map.Entry<IdleTier, LatencyHistogram> entry : rewarmLatency.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                stats.append(", re-warm from ").append(entry.getKey()).append(": ").append(entry.getValue().describe());
+            }
+        }
+        return stats.toString();
+    }
+    
+    private void closeRetiredStream(CameraSlot slot) {
+        if (slot.retiredStream != null) {
+            slot.retiredStream.close();
+            slot.retiredStream = null;
+        }
+    }
+    
+    /**
+     * Follow the device's thermal status so captures get cheaper before it throttles
+     */
+    private void registerThermalListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        if (powerManager == null) {
+            return;
+        }
+        thermalStatus = powerManager.getCurrentThermalStatus();
+        thermalListener = new PowerManager.OnThermalStatusChangedListener() {
+            @Override
+            public void onThermalStatusChanged(int status) {
+                Log.d(TAG, "Thermal status " + status);
+                thermalStatus = status;
+            }
+        };
+        powerManager.addThermalStatusListener(thermalListener);
+    }
+    
+    private void unregisterThermalListener() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        if (thermalListener != null) {
+            getSystemService(PowerManager.class).removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+    }
+    
+    /**
+     * Set where viewfinder frames go; null stops a running viewfinder
+     * Frames are delivered on the encoder thread.
+     */
+    public void setViewfinderListener(ViewfinderEncoder.Listener listener) {
+        viewfinderListener = listener;
+        if (listener == null) {
+            stopViewfinder();
+        }
+    }
+    
+    /**
+     * The watch drew a viewfinder frame; safe to call from any thread
+     */
+    public void onViewfinderAck(int frame) {
+        ViewfinderEncoder encoder = viewfinder;
+        if (encoder != null) {
+            encoder.onAck(frame);
+        }
+    }
+    
+    private void startViewfinder(CameraCommand command) {
+        ViewfinderEncoder.Listener listener = viewfinderListener;
+        if (listener == null) {
+            Log.w(TAG, "Viewfinder needs the direct channel from BluetoothService");
+            return;
+        }
+        if (command.viewfinderWidth <= 0 || command.viewfinderHeight <= 0
+                || !ViewfinderCodec.isSupportedDepth(command.viewfinderBits)) {
+            Log.w(TAG, "Unsupported viewfinder " + command.viewfinderWidth + "x" + command.viewfinderHeight
+                + "@" + command.viewfinderBits);
+            return;
+        }
+        
+        // A restart from the watch means it has lost its picture, so start from a full frame
+        stopViewfinder();
+        ViewfinderEncoder encoder = new ViewfinderEncoder(command.viewfinderWidth, command.viewfinderHeight,
+            command.viewfinderBits, listener);
+        viewfinder = encoder;
+        if (activeCamera != null && activeCamera.meteringStream == null) {
+            Log.w(TAG, "No YUV stream to feed the viewfinder" + (zslEnabled ? "; it needs "
+                + CaptureSettings.KEY_VIEWFINDER_WITH_ZSL + " in ZSL mode" : ""));
+        }
+        Log.d(TAG, "Viewfinder started at " + encoder.getWidth() + "x" + encoder.getHeight() + ", "
+            + command.viewfinderBits + " bits per pixel");
+    }
+    
+    private void stopViewfinder() {
+        ViewfinderEncoder encoder = viewfinder;
+        if (encoder != null) {
+            viewfinder = null;
+            encoder.stop();
+            Log.d(TAG, "Viewfinder stopped: " + encoder.describe());
+        }
+    }
+    
+    /**
+     * Name of the profile captures currently run at, after any downshift
+     */
+    public String getQualityProfile() {
+        return activeProfile.wireName;
+    }
+    
+    /**
+     * Switch-to-ready latency for every strategy that has been used
+     */
+    public String describeSwitchStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<SwitchStrategy, LatencyHistogram> entry : switchLatency.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                if (stats.length() > 0) {
+                    stats.append(", ");
+                }
+                stats.append(entry.getKey()).append(": ").append(entry.getValue().describe());
+            }
+        }
+        return stats.length() > 0 ? stats.toString() : "no switches";
+    }
+    
+    /**
+     * How still captures were released by the 3A manager, and how long they waited
+     */
+    public String describeThreeAStats() {
+        StringBuilder stats = new StringBuilder();
+        for (int outcome = 0; outcome < ThreeAManager.OUTCOME_COUNT; outcome++) {
+            stats.append(ThreeAManager.outcomeName(outcome)).append('=').append(threeAOutcomes[outcome]).append(", ");
+        }
+        return stats.append("wait ").append(threeAWait.describe()).toString();
+    }
+    
+    /**
+     * Count of still captures per 3A outcome, indexed by ThreeAManager.OUTCOME_*
+     * Read from other threads for status reports, so the counts may be slightly stale.
+     */
+    public long[] getThreeAOutcomes() {
+        return threeAOutcomes.clone();
+    }
+    
+    public void setFlashMode(String mode) {
+        flashMode = mode;
+        for (CameraSlot slot : cameraSlots.values()) {
+            if (slot.threeA == null) {
+                continue;
+            }
+            try {
+                // Metering has to follow the flash mode for AE to report when flash is needed
+                slot.threeA.setFlashMode(mode);
+            } catch (CameraHalException e) {
+                Log.e(TAG, "Failed to update 3A metering for flash mode " + mode, e);
+            }
+        }
+        Log.d(TAG, "Flash mode set to: " + mode);
+    }
+    
+    private void closeCamera() {
+        for (CameraSlot slot : cameraSlots.values()) {
+            releaseCamera(slot);
+        }
+        
+        // Sessions are gone, so finishing the burst cannot restart the repeating request
+        abortBurst();
+        pendingCaptures.clear();
+        capturesAwaitingSession.clear();
+        
+        for (CameraSlot slot : cameraSlots.values()) {
+            closeStreams(slot);
+        }
+        cameraSlots.clear();
+        activeCamera = null;
+    }
+    
+    /**
+     * Close a camera's session and device but keep its stream and requests for the next open
+     */
+    private void releaseCamera(CameraSlot slot) {
+        releaseSession(slot);
+        if (slot.device != null) {
+            slot.device.close();
+            slot.device = null;
+        }
+    }
+    
+    /**
+     * Stop streaming and close the session, leaving the device open
+     */
+    private void releaseSession(CameraSlot slot) {
+        if (slot.threeA != null) {
+            slot.threeA.stop();
+        }
+        if (slot.session != null) {
+            slot.session.close();
+            slot.session = null;
+        }
+        
+        if (slot.zslRing != null) {
+            slot.zslRing.clear();
+        }
+        closeRetiredStream(slot);
+    }
+    
+    private void closeStreams(CameraSlot slot) {
+        if (slot.stream != null) {
+            slot.stream.close();
+            slot.stream = null;
+        }
+        if (slot.meteringStream != null) {
+            slot.meteringStream.close();
+            slot.meteringStream = null;
+        }
+    }
+    
+    private void abortBurst() {
+        if (activeBurst != null) {
+            activeBurst.abort();
+            finishBurst();
+        }
+    }
+    
+    private boolean isCameraReady() {
+        return activeCamera != null && activeCamera.isReady();
+    }
+    
+    /**
+     * Camera id for a facing, from the catalog rather than assuming the HAL numbering
+     */
+    private String cameraIdForFacing(int facing) {
+        CameraInfo camera = cameraCatalog.findByFacing(facing);
+        if (camera != null) {
+            return camera.id;
+        }
+        return facing == CameraInfo.FACING_FRONT ? "1" : "0";
+    }
+    
+    /**
+     * A camera with the stream, session and requests configured for it
+     * Only touched on the camera thread once the camera has been opened.
+     */
+    private static class CameraSlot {
+        final CameraInfo info;
+        CameraHal.Device device;
+        CameraHal.Session session;
+        CameraHal.Stream stream;
+        CameraHal.Stream meteringStream;
+        CameraHal.Stream retiredStream; // Replaced by a new resolution, closed once the new session is up
+        ZslRingBuffer zslRing;
+        boolean opening;
+        
+        // Built once and reused; the backend keeps the native request for each
+        CaptureSpec stillRequest;
+        CaptureSpec zslRequest;
+        CaptureSpec burstRequest;
+        CaptureSpec meteringRequest;
+        
+        // Keeps 3A converged through the metering request, or the ZSL request in ZSL mode
+        ThreeAManager threeA;
+        
+        CameraSlot(CameraInfo info) {
+            this.info = info;
+        }
+        
+        boolean isReady() {
+            return device != null && session != null;
         }
     }
 }
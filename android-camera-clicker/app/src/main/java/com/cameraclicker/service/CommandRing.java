@@ -0,0 +1,83 @@
+package com.cameraclicker.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of preallocated camera commands
+ * The producer claims a slot, fills it in place and publishes it; the consumer peeks
+ * the oldest command, handles it and releases the slot. Neither side allocates or blocks.
+ * 
+ * @author DrKhiLL
+ */
+public class CommandRing {
+    
+    private final CameraCommand[] slots;
+    private final int mask;
+    
+    private final AtomicLong head = new AtomicLong(); // next slot to consume
+    private final AtomicLong tail = new AtomicLong(); // next slot to publish
+    private long cachedHead = 0; // producer's last view of head
+    
+    /**
+     * @param capacity Requested capacity, rounded up to a power of two
+     */
+    public CommandRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new CameraCommand[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new CameraCommand();
+        }
+        mask = size - 1;
+    }
+    
+    /**
+     * Producer: reserve the next free slot
+     * @return Cleared slot to fill, or null if the ring is full
+     */
+    public CameraCommand claim() {
+        long t = tail.get();
+        if (t - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= slots.length) {
+                return null;
+            }
+        }
+        CameraCommand slot = slots[(int) (t & mask)];
+        slot.clear();
+        return slot;
+    }
+    
+    /**
+     * Producer: make the claimed slot visible to the consumer
+     */
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+    
+    /**
+     * Consumer: the oldest published command, or null if the ring is empty
+     */
+    public CameraCommand peek() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        return slots[(int) (h & mask)];
+    }
+    
+    /**
+     * Consumer: hand the peeked slot back to the producer
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+    
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+    
+    public int capacity() {
+        return slots.length;
+    }
+}
+
@@ -0,0 +1,119 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.util.CaptureRecord;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Limits how much capture work is handed to the camera ahead of it finishing
+ * Commands only wait their turn in the FairCommandScheduler while the camera is busy, so
+ * the camera must not be handed everything at once. Each dispatched capture adds its frames
+ * to the window, and every finished capture, saved or failed, takes one frame off the
+ * command with its id; captures the window never handed out, such as timelapse shots, are
+ * ignored. Frames the camera never reports back expire after a time that grows with the
+ * size of the command, so a lost frame cannot stall dispatch.
+ * Free of Android types; not thread safe, all calls must come from one thread.
+ * 
+ * @author DrKhiLL
+ */
+public class DispatchWindow {
+    
+    // Frames the camera may be working on before the next capture is held back
+    private static final int WINDOW_FRAMES = 2;
+    private static final long EXPIRY_BASE_NANOS = 2000 * 1000000L;
+    private static final long EXPIRY_PER_FRAME_NANOS = 200 * 1000000L;
+    
+    private static class Entry {
+        final int commandId;
+        int frames;
+        final long expiresNanos;
+        
+        Entry(int commandId, int frames, long expiresNanos) {
+            this.commandId = commandId;
+            this.frames = frames;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+    
+    private final ArrayDeque<Entry> inFlight = new ArrayDeque<>();
+    private int inFlightFrames = 0;
+    private long expiredFrames = 0;
+    
+    /**
+     * Frames of camera work a command starts; zero for commands that only change settings
+     */
+    public static int framesOf(CameraCommand command) {
+        if ("CAPTURE_PHOTO".equals(command.action)) {
+            return 1;
+        }
+        if ("BURST".equals(command.action)) {
+            return command.burstFrames();
+        }
+        return 0;
+    }
+    
+    /**
+     * True if another command may go to the camera now
+     */
+    public boolean canDispatch(long nowNanos) {
+        expire(nowNanos);
+        return inFlightFrames < WINDOW_FRAMES;
+    }
+    
+    public void onDispatched(CameraCommand command, long nowNanos) {
+        int frames = framesOf(command);
+        if (frames > 0) {
+            long expiresNanos = nowNanos + EXPIRY_BASE_NANOS + frames * EXPIRY_PER_FRAME_NANOS;
+            inFlight.addLast(new Entry(command.commandId, frames, expiresNanos));
+            inFlightFrames += frames;
+        }
+    }
+    
+    /**
+     * The camera finished a frame, saved or not
+     * @param commandId Command the frame was taken for
+     */
+    public void onFinished(int commandId) {
+        if (commandId == CaptureRecord.NO_COMMAND_ID) {
+            return;
+        }
+        Iterator<Entry> entries = inFlight.iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.commandId == commandId) {
+                entry.frames--;
+                inFlightFrames--;
+                if (entry.frames == 0) {
+                    entries.remove();
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Nanoseconds until the oldest dispatch expires, or -1 if nothing is in flight
+     */
+    public long nanosUntilExpiry(long nowNanos) {
+        Entry oldest = inFlight.peekFirst();
+        return oldest == null ? -1 : Math.max(0, oldest.expiresNanos - nowNanos);
+    }
+    
+    private void expire(long nowNanos) {
+        while (!inFlight.isEmpty() && inFlight.peekFirst().expiresNanos <= nowNanos) {
+            Entry expired = inFlight.removeFirst();
+            inFlightFrames -= expired.frames;
+            expiredFrames += expired.frames;
+        }
+    }
+    
+    public int getInFlightFrames() {
+        return inFlightFrames;
+    }
+    
+    public String describe() {
+        return "in flight=" + inFlightFrames + " frames, expired=" + expiredFrames;
+    }
+}
+
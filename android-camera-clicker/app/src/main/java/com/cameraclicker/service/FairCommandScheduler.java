@@ -0,0 +1,229 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares the single camera between clients with deficit round robin
+ * Each client has its own bounded queue of preallocated commands; a command that finds the
+ * queue full is rejected instead of growing it. Clients take turns, and a turn adds the
+ * client's weight times QUANTUM to its deficit. The client sends queued commands while the
+ * deficit covers their cost, so a burst costs as much as its frames and a client streaming
+ * bursts cannot push another client's single shutter press back by more than one turn.
+ * Free of Android types; not thread safe, all calls must come from one thread.
+ * 
+ * @author DrKhiLL
+ */
+public class FairCommandScheduler {
+    
+    public static final int DEFAULT_WEIGHT = 1;
+    
+    // Cost units a turn adds per unit of weight; a single capture costs one
+    private static final int QUANTUM = 4;
+    
+    public static class Client {
+        public final String id;
+        public final int weight;
+        
+        private final CameraCommand[] slots;
+        private int head = 0;
+        private int size = 0;
+        private int deficit = 0;
+        private boolean inTurn = false;
+        
+        private long received = 0;
+        private long dispatched = 0;
+        private long rejected = 0;
+        private long costDispatched = 0;
+        private long firstNanos = 0;
+        private long lastNanos = 0;
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        
+        Client(String id, int weight, int capacity) {
+            this.id = id;
+            this.weight = weight;
+            slots = new CameraCommand[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new CameraCommand();
+            }
+        }
+        
+        public int getQueueDepth() {
+            return size;
+        }
+        
+        public long getReceivedCount() {
+            return received;
+        }
+        
+        public long getDispatchedCount() {
+            return dispatched;
+        }
+        
+        public long getRejectedCount() {
+            return rejected;
+        }
+        
+        /**
+         * Time commands spent queued before going to the camera
+         */
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+        
+        /**
+         * Commands per second sent to the camera between the first and the latest
+         */
+        public double getThroughput() {
+            long elapsed = lastNanos - firstNanos;
+            return elapsed > 0 ? dispatched * 1e9 / elapsed : 0;
+        }
+        
+        public String describe() {
+            return id + " (weight " + weight + "): queued=" + size + " received=" + received + " dispatched="
+                + dispatched + " rejected=" + rejected + " cost=" + costDispatched + " rate="
+                + Math.round(getThroughput() * 10) / 10.0 + "/s wait " + queueWait.describe();
+        }
+    }
+    
+    private final int queueCapacity;
+    private final List<Client> clients = new ArrayList<>();
+    private int cursor = 0;
+    private int queued = 0;
+    
+    /**
+     * @param queueCapacity Commands each client may have waiting
+     */
+    public FairCommandScheduler(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+    
+    public Client addClient(String id, int weight) {
+        Client client = new Client(id, Math.max(1, weight), queueCapacity);
+        clients.add(client);
+        return client;
+    }
+    
+    /**
+     * Forget a client and drop anything it still has queued
+     * @return Commands dropped
+     */
+    public int removeClient(Client client) {
+        int index = clients.indexOf(client);
+        if (index < 0) {
+            return 0;
+        }
+        clients.remove(index);
+        if (index < cursor) {
+            cursor--;
+        }
+        if (cursor >= clients.size()) {
+            cursor = 0;
+        }
+        int dropped = client.size;
+        queued -= dropped;
+        client.size = 0;
+        return dropped;
+    }
+    
+    /**
+     * Queue a copy of a command for a client
+     * @return False if the client's queue is full and the command was rejected
+     */
+    public boolean offer(Client client, CameraCommand command, long nowNanos) {
+        client.received++;
+        if (client.size == client.slots.length) {
+            client.rejected++;
+            return false;
+        }
+        CameraCommand slot = client.slots[(client.head + client.size) % client.slots.length];
+        slot.copyFrom(command);
+        slot.enqueueNanos = nowNanos;
+        client.size++;
+        queued++;
+        if (client.firstNanos == 0) {
+            client.firstNanos = nowNanos;
+        }
+        return true;
+    }
+    
+    /**
+     * Next command to send to the camera, taking turns between clients
+     * The command stays valid until the next call; copy anything kept beyond that.
+     * @return The command, or null if nothing is queued
+     */
+    public CameraCommand next(long nowNanos) {
+        if (queued == 0) {
+            return null;
+        }
+        while (true) {
+            Client client = clients.get(cursor);
+            if (client.size == 0) {
+                // An idle client does not save up deficit for later
+                client.deficit = 0;
+                client.inTurn = false;
+                advance();
+                continue;
+            }
+            if (!client.inTurn) {
+                client.deficit += QUANTUM * client.weight;
+                client.inTurn = true;
+            }
+            CameraCommand command = client.slots[client.head];
+            int cost = costOf(command);
+            if (client.deficit < cost) {
+                // Carried to its next turn
+                client.inTurn = false;
+                advance();
+                continue;
+            }
+            
+            client.deficit -= cost;
+            client.head = (client.head + 1) % client.slots.length;
+            client.size--;
+            queued--;
+            client.dispatched++;
+            client.costDispatched += cost;
+            client.lastNanos = nowNanos;
+            client.queueWait.recordNanos(nowNanos - command.enqueueNanos);
+            return command;
+        }
+    }
+    
+    private void advance() {
+        cursor = (cursor + 1) % clients.size();
+    }
+    
+    /**
+     * Camera time a command takes, in units of a single capture
+     * A burst costs the frames it will actually capture, the same count the dispatch window holds.
+     */
+    static int costOf(CameraCommand command) {
+        if ("BURST".equals(command.action)) {
+            return command.burstFrames();
+        }
+        return 1;
+    }
+    
+    public int getQueuedCount() {
+        return queued;
+    }
+    
+    public List<Client> getClients() {
+        return clients;
+    }
+    
+    public String describe() {
+        if (clients.isEmpty()) {
+            return "no clients";
+        }
+        StringBuilder text = new StringBuilder();
+        for (Client client : clients) {
+            text.append(client.describe()).append('\n');
+        }
+        return text.toString();
+    }
+}
+
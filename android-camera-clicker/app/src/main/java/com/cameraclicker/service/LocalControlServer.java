@@ -0,0 +1,358 @@
+package com.cameraclicker.service;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Loopback TCP endpoint that lets on-device automation talk to the phone like a watch does
+ * Any app on the phone can reach a loopback port, so a client's first line must be the
+ * shared token from the settings; a connection that sends anything else, or nothing within
+ * AUTH_TIMEOUT_MS, is closed before the listener hears of it. After that, each line a
+ * client sends is one message in the watch's JSON envelope, and each line sent back is one
+ * outbound transmit. A client may send any number of lines without waiting, and
+ * replies stream back as they are produced. One selector thread does all socket work with
+ * non-blocking channels; reads go through one reused buffer and writes are queued per
+ * connection, so a slow reader never holds up the others. Only 127.0.0.1 is bound.
+ * 
+ * @author DrKhiLL
+ */
+public class LocalControlServer {
+    
+    private static final String TAG = "LocalControlServer";
+    
+    // Longest line accepted; longer ones are dropped up to the next newline
+    private static final int MAX_LINE_BYTES = 16384;
+    private static final int READ_BUFFER_BYTES = 8192;
+    // A client that lets this much pile up unread is disconnected rather than buffered forever
+    private static final int MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+    private static final long AUTH_TIMEOUT_MS = 5000;
+    
+    /**
+     * Called on the server thread
+     */
+    public interface Listener {
+        void onClientConnected(String clientId);
+        
+        /**
+         * @param data Valid only during the call; copy anything kept beyond it
+         */
+        void onClientMessage(String clientId, byte[] data, int length);
+        
+        void onClientDisconnected(String clientId);
+    }
+    
+    private static class Connection {
+        final String id;
+        final SocketChannel channel;
+        SelectionKey key;
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        boolean discarding = false;
+        // Set on the server thread, read by send() on any thread
+        volatile boolean authenticated = false;
+        final long acceptedMillis = System.currentTimeMillis();
+        // Written by any thread, drained by the server thread
+        final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        final AtomicLong pendingBytes = new AtomicLong();
+        
+        Connection(String id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+    
+    private final int port;
+    private final byte[] token;
+    private final Listener listener;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Connection> closing = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+    
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread worker;
+    private volatile boolean running = false;
+    
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong oversizedCount = new AtomicLong();
+    private final AtomicLong overrunCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+    
+    /**
+     * @param port Loopback port to listen on, or 0 to let the system pick one
+     * @param token Line a client must send first; must not be empty
+     */
+    public LocalControlServer(int port, String token, Listener listener) {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A local control token is required");
+        }
+        this.port = port;
+        this.token = token.getBytes(UTF_8);
+        this.listener = listener;
+    }
+    
+    public void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            server = null;
+            throw e;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "LocalControlServer");
+        worker.start();
+        Log.d(TAG, "Listening on 127.0.0.1:" + getLocalPort());
+    }
+    
+    public int getLocalPort() {
+        return server != null ? server.socket().getLocalPort() : -1;
+    }
+    
+    /**
+     * Queue one line for a client; safe from any thread
+     * @return False if the client is gone
+     */
+    public boolean send(String clientId, String data) {
+        Connection connection = connections.get(clientId);
+        if (connection == null || !connection.authenticated) {
+            return false;
+        }
+        byte[] bytes = data.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+        buffer.put(bytes).put((byte) '\n');
+        buffer.flip();
+        connection.pendingBytes.addAndGet(buffer.remaining());
+        connection.outgoing.add(buffer);
+        messagesOut.incrementAndGet();
+        writable.add(connection);
+        selector.wakeup();
+        return true;
+    }
+    
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+    
+    private void runWorker() {
+        try {
+            while (running) {
+                selector.select(AUTH_TIMEOUT_MS);
+                Connection connection;
+                while ((connection = writable.poll()) != null) {
+                    write(connection);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (Connection pending : connections.values()) {
+                    if (!pending.authenticated && now - pending.acceptedMillis >= AUTH_TIMEOUT_MS) {
+                        refusedCount.incrementAndGet();
+                        closing.add(pending);
+                    }
+                }
+                while ((connection = closing.poll()) != null) {
+                    close(connection);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Selector failed", e);
+        } finally {
+            for (Connection connection : connections.values()) {
+                close(connection);
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close server socket", e);
+            }
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        // Replies are small and latency matters more than packet count
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection("local:" + channel.socket().getPort(), channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.put(connection.id, connection);
+        acceptedCount.incrementAndGet();
+    }
+    
+    /**
+     * Check a new connection's first line against the token
+     * @return False if the connection was refused
+     */
+    private boolean authenticate(Connection connection, int length) {
+        // Compares in constant time, so the token cannot be guessed byte by byte from timing
+        if (!MessageDigest.isEqual(token, Arrays.copyOf(connection.line, length))) {
+            Log.w(TAG, connection.id + " sent a wrong token, disconnecting");
+            refusedCount.incrementAndGet();
+            closing.add(connection);
+            return false;
+        }
+        connection.authenticated = true;
+        listener.onClientConnected(connection.id);
+        return true;
+    }
+    
+    private void read(Connection connection) {
+        int count;
+        try {
+            readBuffer.clear();
+            count = connection.channel.read(readBuffer);
+        } catch (IOException e) {
+            count = -1;
+        }
+        if (count < 0) {
+            closing.add(connection);
+            return;
+        }
+        bytesIn.addAndGet(count);
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            byte value = readBuffer.get();
+            if (value == '\n') {
+                if (!connection.discarding && connection.lineLength > 0) {
+                    int length = connection.lineLength;
+                    if (connection.line[length - 1] == '\r') {
+                        length--;
+                    }
+                    if (!connection.authenticated) {
+                        if (!authenticate(connection, length)) {
+                            return;
+                        }
+                    } else {
+                        messagesIn.incrementAndGet();
+                        listener.onClientMessage(connection.id, connection.line, length);
+                    }
+                }
+                connection.lineLength = 0;
+                connection.discarding = false;
+            } else if (!connection.discarding) {
+                if (connection.lineLength == MAX_LINE_BYTES) {
+                    oversizedCount.incrementAndGet();
+                    connection.discarding = true;
+                    continue;
+                }
+                if (connection.lineLength == connection.line.length) {
+                    byte[] grown = new byte[Math.min(MAX_LINE_BYTES, connection.line.length * 2)];
+                    System.arraycopy(connection.line, 0, grown, 0, connection.lineLength);
+                    connection.line = grown;
+                }
+                connection.line[connection.lineLength++] = value;
+            }
+        }
+    }
+    
+    private void write(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        if (connection.pendingBytes.get() > MAX_PENDING_WRITE_BYTES) {
+            Log.w(TAG, connection.id + " stopped reading, disconnecting");
+            overrunCount.incrementAndGet();
+            closing.add(connection);
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = connection.outgoing.peek()) != null) {
+                int written = connection.channel.write(buffer);
+                bytesOut.addAndGet(written);
+                connection.pendingBytes.addAndGet(-written);
+                if (buffer.hasRemaining()) {
+                    // Socket buffer full; carry on when the selector says there is room
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.outgoing.poll();
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closing.add(connection);
+        }
+    }
+    
+    private void close(Connection connection) {
+        if (connections.remove(connection.id) == null) {
+            return;
+        }
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + connection.id, e);
+        }
+        if (connection.authenticated) {
+            listener.onClientDisconnected(connection.id);
+        }
+    }
+    
+    public String describe() {
+        return "accepted=" + acceptedCount.get() + ", connected=" + connections.size() + ", messages in="
+            + messagesIn.get() + " out=" + messagesOut.get() + ", bytes in=" + bytesIn.get() + " out="
+            + bytesOut.get() + ", oversized=" + oversizedCount.get() + ", overruns=" + overrunCount.get()
+            + ", refused=" + refusedCount.get();
+    }
+}
+
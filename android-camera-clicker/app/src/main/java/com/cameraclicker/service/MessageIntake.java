@@ -0,0 +1,162 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.protocol.BinaryCodec;
+import com.cameraclicker.protocol.JsonCodec;
+import com.cameraclicker.protocol.SequenceWindow;
+import com.cameraclicker.protocol.WireProtocol;
+import com.cameraclicker.util.CaptureRecord;
+
+import org.json.JSONException;
+
+import java.nio.charset.Charset;
+
+/**
+ * Turns raw watch messages into acknowledgments and camera commands
+ * Detects the wire format, decodes, drops retransmits and fills in the arrival timings.
+ * Free of Android types so the soak harness runs exactly what BluetoothService runs.
+ * Not thread safe; all messages must be handled on one thread.
+ * 
+ * @author DrKhiLL
+ */
+public class MessageIntake {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    public interface Listener {
+        /**
+         * A message carrying a sequence number arrived, duplicates included
+         */
+        void onAcknowledge(int sequenceNumber);
+        
+        void onStatusRequest();
+        
+        /**
+         * The watch app is open and talking to the phone, so a command may follow soon
+         */
+        void onHeartbeat();
+        
+        /**
+         * The watch acknowledged thumbnail chunks up to, not including, nextChunk
+         */
+        void onThumbnailAck(int transferId, int nextChunk);
+        
+        /**
+         * The watch drew a viewfinder frame
+         */
+        void onViewfinderAck(int frame);
+        
+        /**
+         * A binary message this build cannot read, most likely from a newer watch app
+         * @param version Version byte of the message, or -1 if it is too short to have one
+         */
+        void onUnsupportedFormat(int version);
+        
+        void onMalformedMessage(String reason, Exception cause);
+        
+        /**
+         * A new camera command; the instance is reused for the next message
+         */
+        void onCameraCommand(CameraCommand command);
+    }
+    
+    private final Listener listener;
+    private final CameraCommand command = new CameraCommand();
+    private final BinaryCodec binaryCodec = new BinaryCodec();
+    private final SequenceWindow sequenceWindow = new SequenceWindow();
+    private long jsonMessageCount = 0;
+    
+    public MessageIntake(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Handle a raw message in either wire format
+     * Binary messages are recognised by their magic byte; anything else is JSON text.
+     * @param receivedNanos Arrival time on the clock used for the capture records
+     */
+    public void handleMessage(byte[] data, int length, long receivedNanos) {
+        if (!WireProtocol.isBinary(data, length)) {
+            handleMessage(new String(data, 0, length, UTF_8), receivedNanos);
+            return;
+        }
+        
+        int type = binaryCodec.decode(data, 0, length, command);
+        if (type == WireProtocol.TYPE_UNKNOWN) {
+            listener.onUnsupportedFormat(length > 1 ? data[1] & 0xFF : -1);
+            return;
+        }
+        handleCommandMessage(type, receivedNanos);
+    }
+    
+    public void handleMessage(String message, long receivedNanos) {
+        try {
+            int type = JsonCodec.decode(message, command);
+            jsonMessageCount++;
+            handleCommandMessage(type, receivedNanos);
+        } catch (JSONException e) {
+            listener.onMalformedMessage("Failed to parse message", e);
+        }
+    }
+    
+    private void handleCommandMessage(int type, long receivedNanos) {
+        if (command.commandId != CaptureRecord.NO_COMMAND_ID) {
+            // Acknowledge duplicates too: a retransmit means our earlier acknowledgment was lost
+            listener.onAcknowledge(command.commandId);
+            if (!sequenceWindow.accept(command.commandId, command.sentAt)) {
+                return;
+            }
+        }
+        
+        switch (type) {
+            case WireProtocol.TYPE_CAMERA_COMMAND:
+                break;
+            case WireProtocol.TYPE_STATUS_REQUEST:
+                listener.onStatusRequest();
+                return;
+            case WireProtocol.TYPE_HEARTBEAT:
+                listener.onHeartbeat();
+                return;
+            case WireProtocol.TYPE_THUMBNAIL_ACK:
+                listener.onThumbnailAck(command.transferId, command.nextChunk);
+                return;
+            case WireProtocol.TYPE_VIEWFINDER_ACK:
+                listener.onViewfinderAck(command.transferId);
+                return;
+            default:
+                return;
+        }
+        
+        if (command.action == null) {
+            listener.onMalformedMessage("Camera command without an action", null);
+            return;
+        }
+        command.receivedNanos = receivedNanos;
+        if (command.sentAt > 0) {
+            // The watch clock only has one second resolution and may be skewed; ignore negative transit
+            long transitMillis = System.currentTimeMillis() - command.sentAt * 1000;
+            command.transitMillis = transitMillis >= 0 ? transitMillis : -1;
+        }
+        listener.onCameraCommand(command);
+    }
+    
+    public long getJsonMessageCount() {
+        return jsonMessageCount;
+    }
+    
+    public long getBinaryMessageCount() {
+        return binaryCodec.getDecodedCount();
+    }
+    
+    public long getRejectedCount() {
+        return binaryCodec.getRejectedCount();
+    }
+    
+    public long getDuplicateCount() {
+        return sequenceWindow.getDuplicateCount();
+    }
+    
+    public long getSequenceResetCount() {
+        return sequenceWindow.getResetCount();
+    }
+}
+
@@ -0,0 +1,261 @@
+package com.cameraclicker.service;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Queues messages for the watch by priority and merges small ones into a single transmit
+ * One transmit is on the link at a time. A message that finds the link idle waits up to
+ * COALESCE_NANOS for others to join it; messages queued while a transmit is in flight go
+ * out together as soon as it completes. Each transmit takes the higher priorities first,
+ * keeps the order within a priority, and holds up to MAX_TRANSMIT_CHARS; a single larger
+ * message goes out alone. Several messages travel in one BATCH envelope. A superseding
+ * message, such as a status update, replaces a queued one of the same type in place
+ * instead of queueing behind it.
+ * Free of Android types; not thread safe, all calls must come from one thread.
+ * 
+ * @author DrKhiLL
+ */
+public class OutboundScheduler {
+    
+    // Acknowledgments and errors
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_RESULT = 1;
+    public static final int PRIORITY_STATUS = 2;
+    // Thumbnail chunks and viewfinder frames
+    public static final int PRIORITY_BULK = 3;
+    public static final int PRIORITY_COUNT = 4;
+    
+    public static final int MAX_TRANSMIT_CHARS = 2048;
+    
+    private static final long COALESCE_NANOS = 10 * 1000000L;
+    // The link never reported back; count the transmit as failed and move on
+    private static final long TRANSMIT_TIMEOUT_NANOS = 5000 * 1000000L;
+    private static final long UTILISATION_WINDOW_NANOS = 2000 * 1000000L;
+    
+    private static final String BATCH_PREFIX = "{\"messageType\":\"BATCH\",\"messages\":[";
+    private static final String BATCH_SUFFIX = "]}";
+    
+    private static final String[] PRIORITY_NAMES = {"control", "result", "status", "bulk"};
+    
+    public interface Listener {
+        /**
+         * Put one transmit on the link; report the outcome with onTransmitComplete
+         * @param messageCount Messages in the transmit, more than one means a BATCH envelope
+         */
+        void onTransmit(String data, int messageCount);
+    }
+    
+    private static class Entry {
+        final String type;
+        final boolean supersede;
+        String message;
+        final long queuedNanos;
+        
+        Entry(String type, String message, boolean supersede, long queuedNanos) {
+            this.type = type;
+            this.message = message;
+            this.supersede = supersede;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+    
+    private final Listener listener;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Entry>[] queues = new ArrayDeque[PRIORITY_COUNT];
+    private final StringBuilder batch = new StringBuilder(MAX_TRANSMIT_CHARS);
+    
+    private boolean inFlight = false;
+    private long transmitStartNanos;
+    
+    private long windowStartNanos = -1;
+    private long windowBusyNanos = 0;
+    private double utilisation = 0;
+    
+    private final int[] peakDepths = new int[PRIORITY_COUNT];
+    private final long[] sentCounts = new long[PRIORITY_COUNT];
+    private long supersededCount = 0;
+    private long transmitCount = 0;
+    private long batchedCount = 0; // Transmits carrying more than one message
+    private long failedCount = 0;
+    private long charsSent = 0;
+    
+    public OutboundScheduler(Listener listener) {
+        this.listener = listener;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+    
+    /**
+     * Queue a message; call poll afterwards to send it or learn when to
+     * @param type Message type, compared for superseding
+     * @param message The complete message as sent on its own
+     * @param supersede Replace a queued message of the same type and priority instead of adding one
+     */
+    public void enqueue(int priority, String type, String message, boolean supersede, long nowNanos) {
+        ArrayDeque<Entry> queue = queues[priority];
+        if (supersede) {
+            for (Entry entry : queue) {
+                if (entry.supersede && entry.type.equals(type)) {
+                    // Keeps its place, so a stream of updates cannot starve itself
+                    entry.message = message;
+                    supersededCount++;
+                    return;
+                }
+            }
+        }
+        queue.addLast(new Entry(type, message, supersede, nowNanos));
+        peakDepths[priority] = Math.max(peakDepths[priority], queue.size());
+    }
+    
+    /**
+     * Transmit if the link is free and the coalescing window has passed or a transmit is full
+     * @return Nanoseconds until poll should be called again, or -1 if nothing is waiting
+     */
+    public long poll(long nowNanos) {
+        if (inFlight) {
+            long timeout = transmitStartNanos + TRANSMIT_TIMEOUT_NANOS - nowNanos;
+            if (timeout > 0) {
+                return timeout;
+            }
+            onTransmitComplete(false, nowNanos);
+        }
+        
+        long oldest = Long.MAX_VALUE;
+        int pendingChars = 0;
+        for (ArrayDeque<Entry> queue : queues) {
+            for (Entry entry : queue) {
+                oldest = Math.min(oldest, entry.queuedNanos);
+                pendingChars += entry.message.length() + 1;
+            }
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return -1;
+        }
+        long wait = oldest + COALESCE_NANOS - nowNanos;
+        if (wait > 0 && pendingChars + BATCH_PREFIX.length() + BATCH_SUFFIX.length() < MAX_TRANSMIT_CHARS) {
+            return wait;
+        }
+        
+        transmit(nowNanos);
+        return TRANSMIT_TIMEOUT_NANOS;
+    }
+    
+    /**
+     * The link finished the transmit in flight
+     * A failed transmit is not repeated: chunks and frames have their own acknowledgments,
+     * and a lost status or result is replaced by the next one.
+     */
+    public void onTransmitComplete(boolean success, long nowNanos) {
+        if (!inFlight) {
+            return;
+        }
+        inFlight = false;
+        if (!success) {
+            failedCount++;
+        }
+        windowBusyNanos += nowNanos - Math.max(transmitStartNanos, windowStartNanos);
+        rollWindow(nowNanos);
+    }
+    
+    /**
+     * Transmit everything queued at once, ignoring the link state; for shutdown
+     */
+    public void drain(long nowNanos) {
+        while (!isEmpty()) {
+            transmit(nowNanos);
+            inFlight = false;
+        }
+    }
+    
+    private void transmit(long nowNanos) {
+        batch.setLength(0);
+        batch.append(BATCH_PREFIX);
+        int count = 0;
+        String single = null;
+        
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            Iterator<Entry> iterator = queues[priority].iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                int length = batch.length() + entry.message.length() + 1 + BATCH_SUFFIX.length();
+                if (count > 0 && length > MAX_TRANSMIT_CHARS) {
+                    // Order within a priority is kept, so the rest of this one waits as well
+                    break;
+                }
+                if (count > 0) {
+                    batch.append(',');
+                }
+                batch.append(entry.message);
+                single = entry.message;
+                count++;
+                sentCounts[priority]++;
+                iterator.remove();
+            }
+        }
+        batch.append(BATCH_SUFFIX);
+        
+        String data = count == 1 ? single : batch.toString();
+        inFlight = true;
+        transmitStartNanos = nowNanos;
+        if (windowStartNanos < 0) {
+            windowStartNanos = nowNanos;
+        }
+        transmitCount++;
+        if (count > 1) {
+            batchedCount++;
+        }
+        charsSent += data.length();
+        listener.onTransmit(data, count);
+    }
+    
+    private void rollWindow(long nowNanos) {
+        if (windowStartNanos < 0) {
+            return;
+        }
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed >= UTILISATION_WINDOW_NANOS) {
+            utilisation = Math.min(1.0, (double) windowBusyNanos / elapsed);
+            windowStartNanos = nowNanos;
+            windowBusyNanos = 0;
+        }
+    }
+    
+    private boolean isEmpty() {
+        for (ArrayDeque<Entry> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public int getQueueDepth(int priority) {
+        return queues[priority].size();
+    }
+    
+    /**
+     * Share of time the link spent transmitting over the last completed window, 0 to 1
+     */
+    public double getUtilisation(long nowNanos) {
+        if (!inFlight) {
+            rollWindow(nowNanos);
+        }
+        return utilisation;
+    }
+    
+    public String describe(long nowNanos) {
+        StringBuilder text = new StringBuilder("queued");
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            text.append(priority == 0 ? " " : ", ").append(PRIORITY_NAMES[priority]).append('=')
+                .append(queues[priority].size()).append(" (peak ").append(peakDepths[priority])
+                .append(", sent ").append(sentCounts[priority]).append(')');
+        }
+        return text.append("; transmits=").append(transmitCount).append(" batched=").append(batchedCount)
+            .append(" failed=").append(failedCount).append(" superseded=").append(supersededCount)
+            .append(" chars=").append(charsSent).append(" utilisation=")
+            .append(Math.round(getUtilisation(nowNanos) * 100)).append('%').toString();
+    }
+}
+
@@ -0,0 +1,166 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.camera.IdleTier;
+import com.cameraclicker.util.CaptureRecord;
+import com.cameraclicker.util.ReadinessTracker;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of what the services have published to the ServiceStateRegistry
+ * A snapshot never changes once published, so it can be read from any thread without
+ * locking; a later change produces a new snapshot with a higher version.
+ * 
+ * @author DrKhiLL
+ */
+public class ServiceState {
+    
+    // How many of the latest finished captures keep their command id
+    static final int FINISHED_HISTORY = 64;
+    
+    // Only written by the registry, on a copy that has not been published yet
+    long version;
+    boolean cameraServiceRunning;
+    boolean bluetoothServiceRunning;
+    String readiness = ReadinessTracker.State.STARTING.key;
+    boolean canCapture;
+    long readyMillis = -1;
+    IdleTier idleTier = IdleTier.WARM;
+    boolean watchConnected;
+    int saveQueueDepth;
+    int outboundQueueDepth;
+    String lastCapturePath;
+    int lastCaptureCommandId = CaptureRecord.NO_COMMAND_ID;
+    long lastCaptureMillis; // Wall clock, 0 if nothing was saved yet
+    long capturesFinished; // Saved or failed, since the process started
+    // Command id of each recent finished capture, at its number minus one modulo FINISHED_HISTORY;
+    // shared between snapshots, so replaced rather than written once published
+    int[] finishedCommandIds;
+    
+    ServiceState() {
+        finishedCommandIds = new int[FINISHED_HISTORY];
+        Arrays.fill(finishedCommandIds, CaptureRecord.NO_COMMAND_ID);
+    }
+    
+    ServiceState(ServiceState other) {
+        this.version = other.version;
+        this.cameraServiceRunning = other.cameraServiceRunning;
+        this.bluetoothServiceRunning = other.bluetoothServiceRunning;
+        this.readiness = other.readiness;
+        this.canCapture = other.canCapture;
+        this.readyMillis = other.readyMillis;
+        this.idleTier = other.idleTier;
+        this.watchConnected = other.watchConnected;
+        this.saveQueueDepth = other.saveQueueDepth;
+        this.outboundQueueDepth = other.outboundQueueDepth;
+        this.lastCapturePath = other.lastCapturePath;
+        this.lastCaptureCommandId = other.lastCaptureCommandId;
+        this.lastCaptureMillis = other.lastCaptureMillis;
+        this.capturesFinished = other.capturesFinished;
+        this.finishedCommandIds = other.finishedCommandIds;
+    }
+    
+    /**
+     * Count finished captures of a command on an unpublished copy
+     */
+    void addFinished(int commandId, int count) {
+        finishedCommandIds = finishedCommandIds.clone();
+        for (int i = 0; i < count; i++) {
+            finishedCommandIds[(int) (capturesFinished % FINISHED_HISTORY)] = commandId;
+            capturesFinished++;
+        }
+    }
+    
+    /**
+     * Incremented with every published change
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    public boolean isCameraServiceRunning() {
+        return cameraServiceRunning;
+    }
+    
+    public boolean isBluetoothServiceRunning() {
+        return bluetoothServiceRunning;
+    }
+    
+    /**
+     * Key of the camera's ReadinessTracker state
+     */
+    public String getReadiness() {
+        return readiness;
+    }
+    
+    /**
+     * True once captures can run without waiting for the camera to open
+     */
+    public boolean canCapture() {
+        return canCapture;
+    }
+    
+    /**
+     * Milliseconds from the camera service start to 3A_READY, or -1 if not reached yet
+     */
+    public long getReadyMillis() {
+        return readyMillis;
+    }
+    
+    public IdleTier getIdleTier() {
+        return idleTier;
+    }
+    
+    /**
+     * True while the watch has been heard from recently
+     */
+    public boolean isWatchConnected() {
+        return watchConnected;
+    }
+    
+    public int getSaveQueueDepth() {
+        return saveQueueDepth;
+    }
+    
+    /**
+     * Messages waiting for the watch, over all priorities
+     */
+    public int getOutboundQueueDepth() {
+        return outboundQueueDepth;
+    }
+    
+    /**
+     * Path of the last saved capture, or null if nothing was saved since the service started
+     */
+    public String getLastCapturePath() {
+        return lastCapturePath;
+    }
+    
+    public int getLastCaptureCommandId() {
+        return lastCaptureCommandId;
+    }
+    
+    public long getLastCaptureMillis() {
+        return lastCaptureMillis;
+    }
+    
+    /**
+     * Captures the saver has finished with, saved or failed; only ever grows
+     */
+    public long getCapturesFinished() {
+        return capturesFinished;
+    }
+    
+    /**
+     * Command id of a finished capture, so finishes can be told apart however they were coalesced
+     * @param number Position in the order captures finished, from 1 to getCapturesFinished()
+     * @return The id, or NO_COMMAND_ID if the capture had none or is too long ago to be remembered
+     */
+    public int getFinishedCommandId(long number) {
+        if (number < 1 || number > capturesFinished || capturesFinished - number >= FINISHED_HISTORY) {
+            return CaptureRecord.NO_COMMAND_ID;
+        }
+        return finishedCommandIds[(int) ((number - 1) % FINISHED_HISTORY)];
+    }
+}
+
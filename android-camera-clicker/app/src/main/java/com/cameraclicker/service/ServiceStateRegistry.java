@@ -0,0 +1,275 @@
+package com.cameraclicker.service;
+
+import android.os.Handler;
+
+import com.cameraclicker.camera.IdleTier;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-process registry the services publish their state into
+ * Replaces asking the activity manager whether a service runs, which only showed that the
+ * process existed. Publishers copy the current snapshot, change the copy and swap it in
+ * with a compare-and-set, so the camera and saver threads never wait on a lock and readers
+ * always get a consistent snapshot with a single volatile read. Subscribers are told on
+ * their own handler; changes that arrive before a notification runs are folded into it,
+ * so a burst of captures costs one notification per subscriber.
+ * 
+ * @author DrKhiLL
+ */
+public class ServiceStateRegistry {
+    
+    private static final ServiceStateRegistry INSTANCE = new ServiceStateRegistry();
+    
+    public interface Listener {
+        /**
+         * Called on the subscriber's handler with the newest snapshot
+         */
+        void onStateChanged(ServiceState state);
+    }
+    
+    private interface Change {
+        /**
+         * Apply the change to an unpublished copy
+         * @return False if the copy already had the change and nothing needs publishing
+         */
+        boolean apply(ServiceState next);
+    }
+    
+    private class Subscription implements Runnable {
+        final Listener listener;
+        final Executor executor;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        
+        Subscription(Listener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+        
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+        
+        @Override
+        public void run() {
+            // Cleared first, so a change published during the callback schedules another one
+            scheduled.set(false);
+            if (subscriptions.contains(this)) {
+                listener.onStateChanged(state.get());
+            }
+        }
+    }
+    
+    private final AtomicReference<ServiceState> state = new AtomicReference<>(new ServiceState());
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    
+    public static ServiceStateRegistry getInstance() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Latest snapshot; lock-free and safe from any thread
+     */
+    public ServiceState getState() {
+        return state.get();
+    }
+    
+    /**
+     * Be told about changes on a handler's thread, starting with the current state
+     */
+    public void subscribe(Listener listener, final Handler handler) {
+        subscribe(listener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+    
+    /**
+     * Be told about changes through an executor; lets tests run notifications when they choose
+     */
+    void subscribe(Listener listener, Executor executor) {
+        Subscription subscription = new Subscription(listener, executor);
+        subscriptions.add(subscription);
+        subscription.schedule();
+    }
+    
+    public void unsubscribe(Listener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+    
+    public void publishCameraService(final boolean running) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (next.cameraServiceRunning == running) {
+                    return false;
+                }
+                next.cameraServiceRunning = running;
+                if (!running) {
+                    // Nothing below survives the service
+                    ServiceState initial = new ServiceState();
+                    next.readiness = initial.readiness;
+                    next.canCapture = false;
+                    next.readyMillis = -1;
+                    next.idleTier = initial.idleTier;
+                    next.saveQueueDepth = 0;
+                }
+                return true;
+            }
+        });
+    }
+    
+    public void publishBluetoothService(final boolean running) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (next.bluetoothServiceRunning == running) {
+                    return false;
+                }
+                next.bluetoothServiceRunning = running;
+                if (!running) {
+                    next.watchConnected = false;
+                    next.outboundQueueDepth = 0;
+                }
+                return true;
+            }
+        });
+    }
+    
+    /**
+     * @param readiness Key of the ReadinessTracker state
+     * @param readyMillis Milliseconds from the service start to 3A_READY, or -1
+     */
+    public void publishReadiness(final String readiness, final boolean canCapture, final long readyMillis) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (readiness.equals(next.readiness) && next.canCapture == canCapture
+                        && next.readyMillis == readyMillis) {
+                    return false;
+                }
+                next.readiness = readiness;
+                next.canCapture = canCapture;
+                next.readyMillis = readyMillis;
+                return true;
+            }
+        });
+    }
+    
+    public void publishIdleTier(final IdleTier tier) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (next.idleTier == tier) {
+                    return false;
+                }
+                next.idleTier = tier;
+                return true;
+            }
+        });
+    }
+    
+    public void publishWatchConnected(final boolean connected) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (next.watchConnected == connected) {
+                    return false;
+                }
+                next.watchConnected = connected;
+                return true;
+            }
+        });
+    }
+    
+    public void publishSaveQueueDepth(final int depth) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (next.saveQueueDepth == depth) {
+                    return false;
+                }
+                next.saveQueueDepth = depth;
+                return true;
+            }
+        });
+    }
+    
+    public void publishOutboundQueueDepth(final int depth) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                if (next.outboundQueueDepth == depth) {
+                    return false;
+                }
+                next.outboundQueueDepth = depth;
+                return true;
+            }
+        });
+    }
+    
+    /**
+     * A capture was committed to storage
+     * @param saveQueueDepth Captures still waiting to be saved
+     */
+    public void publishCapture(final String path, final int commandId, final int saveQueueDepth) {
+        final long savedMillis = System.currentTimeMillis();
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                next.lastCapturePath = path;
+                next.lastCaptureCommandId = commandId;
+                next.lastCaptureMillis = savedMillis;
+                next.saveQueueDepth = saveQueueDepth;
+                next.addFinished(commandId, 1);
+                return true;
+            }
+        });
+    }
+    
+    /**
+     * Captures of a command will never be saved, because saving failed or they were never taken
+     * @param count Captures lost, for example the frames a burst did not get
+     * @param saveQueueDepth Captures still waiting to be saved
+     */
+    public void publishCaptureFailed(final int commandId, final int count, final int saveQueueDepth) {
+        publish(new Change() {
+            @Override
+            public boolean apply(ServiceState next) {
+                next.saveQueueDepth = saveQueueDepth;
+                next.addFinished(commandId, count);
+                return true;
+            }
+        });
+    }
+    
+    private void publish(Change change) {
+        while (true) {
+            ServiceState current = state.get();
+            ServiceState next = new ServiceState(current);
+            if (!change.apply(next)) {
+                return;
+            }
+            next.version = current.version + 1;
+            if (state.compareAndSet(current, next)) {
+                break;
+            }
+            // Another thread published in between; apply the change to its snapshot instead
+        }
+        for (Subscription subscription : subscriptions) {
+            subscription.schedule();
+        }
+    }
+}
+
@@ -0,0 +1,208 @@
+package com.cameraclicker.service;
+
+/**
+ * Sends thumbnails to the watch in numbered chunks behind a sliding acknowledgment window
+ * At most WINDOW chunks are unacknowledged at a time. The watch acknowledges cumulatively
+ * with the index of the next chunk it needs and drops chunks that arrive out of order, so
+ * a repeated acknowledgment or a timeout resends from that index. After MAX_TIMEOUTS
+ * rounds without progress the transfer is paused rather than dropped: the next
+ * acknowledgment or any other sign of the watch resumes it where the watch left off.
+ * A newer thumbnail replaces an unfinished one, since only the latest capture is shown.
+ * Free of Android types; not thread safe, all calls must come from one thread.
+ * 
+ * @author DrKhiLL
+ */
+public class ThumbnailSender {
+    
+    public static final int CHUNK_SIZE = 512;
+    public static final int WINDOW = 4;
+    
+    private static final long ACK_TIMEOUT_NANOS = 1500 * 1000000L;
+    private static final int MAX_TIMEOUTS = 4;
+    
+    public interface Listener {
+        /**
+         * Send one chunk; data must be copied or encoded before returning
+         */
+        void onSendChunk(int transferId, int index, int count, byte[] data, int offset, int length);
+        
+        void onTransferComplete(Transfer transfer);
+    }
+    
+    /**
+     * One thumbnail on its way to the watch, with the counters reported when it completes
+     */
+    public static class Transfer {
+        public final int id;
+        public final int commandId;
+        public final int chunkCount;
+        public final long startNanos;
+        final byte[] data;
+        
+        public long completedNanos;
+        public long bytesSent; // Chunk payload bytes including retransmits
+        public int chunksSent;
+        public int retransmits;
+        public int resumes;
+        
+        int acked; // Next chunk the watch needs
+        int next; // Next chunk to send
+        int highestSent; // One past the highest chunk sent so far
+        int rewoundAt = -1; // Acknowledged index the last resend started from
+        int timeouts;
+        long deadlineNanos;
+        boolean paused;
+        
+        Transfer(int id, int commandId, byte[] data, long startNanos) {
+            this.id = id;
+            this.commandId = commandId;
+            this.data = data;
+            this.chunkCount = Math.max(1, (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.startNanos = startNanos;
+        }
+        
+        public int getPayloadBytes() {
+            return data.length;
+        }
+        
+        public long getElapsedMillis() {
+            return (completedNanos - startNanos) / 1000000;
+        }
+    }
+    
+    private final Listener listener;
+    private Transfer current;
+    private int nextId = 1;
+    private long completedCount = 0;
+    private long supersededCount = 0;
+    
+    public ThumbnailSender(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Start sending a thumbnail, replacing any unfinished one
+     * @param commandId Watch sequence number of the capture command, sent back with the thumbnail
+     */
+    public Transfer start(byte[] data, int commandId, long nowNanos) {
+        if (current != null) {
+            supersededCount++;
+        }
+        current = new Transfer(nextId++, commandId, data, nowNanos);
+        fill(current, nowNanos);
+        return current;
+    }
+    
+    /**
+     * Cumulative acknowledgment from the watch
+     * @param nextChunk Index of the first chunk the watch does not have yet
+     */
+    public void onAck(int transferId, int nextChunk, long nowNanos) {
+        Transfer transfer = current;
+        if (transfer == null || transfer.id != transferId) {
+            // Late acknowledgment of a finished or replaced transfer
+            return;
+        }
+        
+        if (transfer.paused) {
+            transfer.paused = false;
+            transfer.resumes++;
+            transfer.next = Math.min(nextChunk, transfer.chunkCount);
+        }
+        if (nextChunk > transfer.acked) {
+            transfer.acked = Math.min(nextChunk, transfer.chunkCount);
+            transfer.next = Math.max(transfer.next, transfer.acked);
+            transfer.timeouts = 0;
+            transfer.deadlineNanos = nowNanos + ACK_TIMEOUT_NANOS;
+        } else if (nextChunk < transfer.acked) {
+            // The watch lost what it had, for example because the app restarted
+            transfer.acked = nextChunk;
+            transfer.next = nextChunk;
+        } else if (transfer.next > transfer.acked && transfer.rewoundAt != transfer.acked) {
+            // A repeated acknowledgment means a chunk went missing; resend once per gap
+            transfer.rewoundAt = transfer.acked;
+            transfer.next = transfer.acked;
+        }
+        
+        if (transfer.acked >= transfer.chunkCount) {
+            transfer.completedNanos = nowNanos;
+            current = null;
+            completedCount++;
+            listener.onTransferComplete(transfer);
+            return;
+        }
+        fill(transfer, nowNanos);
+    }
+    
+    /**
+     * Resume a paused transfer because the watch is reachable again
+     */
+    public void onPeerActive(long nowNanos) {
+        Transfer transfer = current;
+        if (transfer != null && transfer.paused) {
+            transfer.paused = false;
+            transfer.resumes++;
+            transfer.timeouts = 0;
+            transfer.next = transfer.acked;
+            fill(transfer, nowNanos);
+        }
+    }
+    
+    /**
+     * Resend after an acknowledgment timeout
+     * @return Nanoseconds until poll should be called again, or -1 if nothing is waiting
+     */
+    public long poll(long nowNanos) {
+        Transfer transfer = current;
+        if (transfer == null || transfer.paused) {
+            return -1;
+        }
+        
+        if (nowNanos >= transfer.deadlineNanos) {
+            transfer.timeouts++;
+            if (transfer.timeouts > MAX_TIMEOUTS) {
+                transfer.paused = true;
+                return -1;
+            }
+            transfer.rewoundAt = transfer.acked;
+            transfer.next = transfer.acked;
+            fill(transfer, nowNanos);
+        }
+        return Math.max(0, transfer.deadlineNanos - nowNanos);
+    }
+    
+    public boolean isPaused() {
+        return current != null && current.paused;
+    }
+    
+    public long getCompletedCount() {
+        return completedCount;
+    }
+    
+    public long getSupersededCount() {
+        return supersededCount;
+    }
+    
+    private void fill(Transfer transfer, long nowNanos) {
+        boolean sent = false;
+        while (transfer.next < transfer.chunkCount && transfer.next < transfer.acked + WINDOW) {
+            int index = transfer.next;
+            int offset = index * CHUNK_SIZE;
+            int length = Math.min(CHUNK_SIZE, transfer.data.length - offset);
+            if (index < transfer.highestSent) {
+                transfer.retransmits++;
+            } else {
+                transfer.highestSent = index + 1;
+            }
+            transfer.bytesSent += length;
+            transfer.chunksSent++;
+            transfer.next++;
+            sent = true;
+            listener.onSendChunk(transfer.id, index, transfer.chunkCount, transfer.data, offset, length);
+        }
+        if (sent) {
+            transfer.deadlineNanos = nowNanos + ACK_TIMEOUT_NANOS;
+        }
+    }
+}
+
@@ -0,0 +1,72 @@
+package com.cameraclicker.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of reusable direct buffers for JPEG data
+ * Buffers are allocated lazily and rounded up so that later, slightly larger frames
+ * still fit. In steady state a save reuses a pooled buffer and allocates nothing.
+ * 
+ * @author DrKhiLL
+ */
+public class BufferPool {
+    
+    private static final int SIZE_GRANULARITY = 512 * 1024;
+    
+    private final ByteBuffer[] free;
+    private int freeCount = 0;
+    private long allocationCount = 0;
+    
+    /**
+     * @param maxRetained Buffers kept for reuse; extra buffers released beyond this are left to the GC
+     */
+    public BufferPool(int maxRetained) {
+        this.free = new ByteBuffer[Math.max(1, maxRetained)];
+    }
+    
+    /**
+     * Take a buffer with at least the given capacity, ready to be filled
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        for (int i = freeCount - 1; i >= 0; i--) {
+            ByteBuffer candidate = free[i];
+            if (candidate.capacity() >= size) {
+                free[i] = free[freeCount - 1];
+                free[freeCount - 1] = null;
+                freeCount--;
+                candidate.clear();
+                candidate.limit(size);
+                return candidate;
+            }
+        }
+        
+        allocationCount++;
+        int capacity = ((size + SIZE_GRANULARITY - 1) / SIZE_GRANULARITY) * SIZE_GRANULARITY;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.limit(size);
+        return buffer;
+    }
+    
+    public synchronized void release(ByteBuffer buffer) {
+        if (freeCount < free.length) {
+            free[freeCount++] = buffer;
+            return;
+        }
+        
+        // Keep the larger buffer so the pool converges on the biggest frame size
+        for (int i = 0; i < freeCount; i++) {
+            if (free[i].capacity() < buffer.capacity()) {
+                free[i] = buffer;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Number of buffers allocated so far; flat in steady state
+     */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+}
+
@@ -0,0 +1,86 @@
+package com.cameraclicker.util;
+
+/**
+ * Bookkeeping for a single burst capture
+ * Limits the number of frames in flight to the free ImageReader slots so that
+ * frames are never dropped by the reader while earlier ones are still being saved.
+ * 
+ * @author DrKhiLL
+ */
+public class BurstTracker {
+    
+    private final int requested;
+    private final int readerSlots;
+    
+    private int submitted = 0;
+    private int captured = 0;
+    private int dropped = 0;
+    private long firstTimestamp = -1;
+    private long lastTimestamp = -1;
+    
+    public BurstTracker(int requested, int readerSlots) {
+        this.requested = Math.max(1, requested);
+        this.readerSlots = Math.max(1, readerSlots);
+    }
+    
+    /**
+     * Number of frames that can be submitted now without overrunning the reader
+     */
+    public int framesToSubmit() {
+        int inFlight = submitted - captured - dropped;
+        int free = readerSlots - inFlight;
+        return Math.max(0, Math.min(free, requested - submitted));
+    }
+    
+    public void onSubmitted(int count) {
+        submitted += count;
+    }
+    
+    public void onFrameSaved(long sensorTimestamp) {
+        captured++;
+        if (firstTimestamp < 0 || sensorTimestamp < firstTimestamp) {
+            firstTimestamp = sensorTimestamp;
+        }
+        if (sensorTimestamp > lastTimestamp) {
+            lastTimestamp = sensorTimestamp;
+        }
+    }
+    
+    public void onFrameDropped() {
+        dropped++;
+    }
+    
+    /**
+     * Count every frame that was submitted but never arrived as dropped
+     */
+    public void abort() {
+        dropped = submitted - captured;
+    }
+    
+    public boolean isDone() {
+        return submitted >= requested && captured + dropped >= submitted;
+    }
+    
+    public int getRequested() {
+        return requested;
+    }
+    
+    public int getCaptured() {
+        return captured;
+    }
+    
+    public int getDropped() {
+        return dropped;
+    }
+    
+    /**
+     * Frame rate achieved between the first and last saved frame, from sensor timestamps
+     */
+    public double getAchievedFps() {
+        if (captured < 2 || lastTimestamp <= firstTimestamp) {
+            return 0;
+        }
+        return (captured - 1) * 1000000000.0 / (lastTimestamp - firstTimestamp);
+    }
+}
+
@@ -0,0 +1,307 @@
+package com.cameraclicker.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of every capture, with an in-memory index of the latest ones
+ * Each save writes a BEGIN record before the temp file and a COMMIT record after the
+ * atomic rename, so a restart can finish or clean up files that were half written.
+ * 
+ * Record formats, one per line, tab separated:
+ * B seq commandId sensorTimestamp size tempPath finalPath
+ * C seq savedAtMillis commandToSubmitMs submitToImageMs imageToSavedMs
+ * A seq
+ * S lastSequence (written by compaction so sequence numbers are never reused)
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureJournal {
+    
+    private static final String TAG = "CaptureJournal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long COMPACT_THRESHOLD_BYTES = 512 * 1024;
+    
+    /**
+     * A committed capture as kept in the index
+     */
+    public static class Entry {
+        public long sequence;
+        public int commandId;
+        public long sensorTimestamp;
+        public long size;
+        public String tempPath;
+        public String path;
+        public long savedAtMillis;
+        public long commandToSubmitMs = -1;
+        public long submitToImageMs = -1;
+        public long imageToSavedMs = -1;
+    }
+    
+    private final File journalFile;
+    private final Entry[] index;
+    private int indexHead = 0; // next slot to overwrite
+    private int indexSize = 0;
+    private final Map<Long, Entry> openEntries = new HashMap<>();
+    private long nextSequence = 1;
+    private Writer writer;
+    private long journalBytes = 0;
+    
+    public CaptureJournal(File journalFile, int indexCapacity) {
+        this.journalFile = journalFile;
+        this.index = new Entry[Math.max(1, indexCapacity)];
+    }
+    
+    /**
+     * Replay the journal, then finish or clean up any capture that never committed
+     * Must be called once before the journal is used.
+     */
+    public synchronized void recover() {
+        replay();
+        
+        List<Entry> unfinished = new ArrayList<>(openEntries.values());
+        openJournal();
+        
+        for (Entry entry : unfinished) {
+            File temp = new File(entry.tempPath);
+            File target = new File(entry.path);
+            
+            if (target.exists() && target.length() == entry.size) {
+                // Renamed before the process died, only the commit is missing
+                Log.i(TAG, "Recovered committed capture " + entry.path);
+                commit(entry.sequence, null);
+            } else if (temp.exists() && temp.length() == entry.size) {
+                if (!temp.getParent().equals(target.getParent())) {
+                    // Spilled to another filesystem; the saver moves it and commits later
+                    continue;
+                }
+                if (temp.renameTo(target)) {
+                    Log.i(TAG, "Recovered complete temp file " + entry.path);
+                    commit(entry.sequence, null);
+                } else {
+                    abort(entry.sequence);
+                }
+            } else {
+                Log.w(TAG, "Discarding half-written capture " + entry.tempPath);
+                temp.delete();
+                abort(entry.sequence);
+            }
+        }
+    }
+    
+    private void replay() {
+        if (!journalFile.exists()) {
+            return;
+        }
+        
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                applyRecord(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to replay capture journal", e);
+        }
+        
+        Log.d(TAG, "Journal replayed: " + indexSize + " indexed, " + openEntries.size() + " unfinished");
+    }
+    
+    private void applyRecord(String line) {
+        String[] fields = line.split("\t");
+        try {
+            long sequence = Long.parseLong(fields[1]);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            
+            switch (fields[0]) {
+                case "B":
+                    Entry entry = new Entry();
+                    entry.sequence = sequence;
+                    entry.commandId = Integer.parseInt(fields[2]);
+                    entry.sensorTimestamp = Long.parseLong(fields[3]);
+                    entry.size = Long.parseLong(fields[4]);
+                    entry.tempPath = fields[5];
+                    entry.path = fields[6];
+                    openEntries.put(sequence, entry);
+                    break;
+                case "C":
+                    Entry committed = openEntries.remove(sequence);
+                    if (committed != null) {
+                        committed.savedAtMillis = Long.parseLong(fields[2]);
+                        committed.commandToSubmitMs = Long.parseLong(fields[3]);
+                        committed.submitToImageMs = Long.parseLong(fields[4]);
+                        committed.imageToSavedMs = Long.parseLong(fields[5]);
+                        addToIndex(committed);
+                    }
+                    break;
+                case "A":
+                    openEntries.remove(sequence);
+                    break;
+                case "S":
+                    break;
+                default:
+                    Log.w(TAG, "Unknown journal record: " + line);
+            }
+        } catch (RuntimeException e) {
+            // A torn final line after a crash is expected; skip it
+            Log.w(TAG, "Skipping malformed journal record: " + line);
+        }
+    }
+    
+    private void openJournal() {
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF_8);
+            journalBytes = journalFile.length();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open capture journal", e);
+        }
+    }
+    
+    /**
+     * Allocate the next capture sequence number; unique across restarts
+     */
+    public synchronized long nextSequence() {
+        return nextSequence++;
+    }
+    
+    public synchronized void begin(CaptureRecord record, File tempFile, File finalFile, long size) {
+        Entry entry = new Entry();
+        entry.sequence = record.sequence;
+        entry.commandId = record.commandId;
+        entry.sensorTimestamp = record.sensorTimestamp;
+        entry.size = size;
+        entry.tempPath = tempFile.getAbsolutePath();
+        entry.path = finalFile.getAbsolutePath();
+        openEntries.put(entry.sequence, entry);
+        
+        append(beginLine(entry));
+    }
+    
+    /**
+     * Mark a capture as durable and add it to the index
+     * @param record Timing for the capture, or null when it is not known
+     */
+    public synchronized void commit(long sequence, CaptureRecord record) {
+        Entry entry = openEntries.remove(sequence);
+        if (entry == null) {
+            Log.w(TAG, "Commit for unknown capture " + sequence);
+            return;
+        }
+        
+        entry.savedAtMillis = System.currentTimeMillis();
+        if (record != null) {
+            entry.commandToSubmitMs = CaptureRecord.elapsedMs(record.commandNanos, record.submitNanos);
+            entry.submitToImageMs = CaptureRecord.elapsedMs(record.submitNanos, record.imageNanos);
+            entry.imageToSavedMs = CaptureRecord.elapsedMs(record.imageNanos, record.savedNanos);
+        }
+        addToIndex(entry);
+        
+        append(commitLine(entry));
+        
+        if (journalBytes > COMPACT_THRESHOLD_BYTES) {
+            compact();
+        }
+    }
+    
+    public synchronized void abort(long sequence) {
+        openEntries.remove(sequence);
+        append("A\t" + sequence);
+    }
+    
+    /**
+     * The most recent committed captures, newest first
+     * Runs in O(n) from the in-memory index without touching storage.
+     */
+    public synchronized List<Entry> getLastCaptures(int n) {
+        int count = Math.min(n, indexSize);
+        List<Entry> result = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            result.add(index[(indexHead - i + index.length) % index.length]);
+        }
+        return result;
+    }
+    
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close capture journal", e);
+            }
+            writer = null;
+        }
+    }
+    
+    private void addToIndex(Entry entry) {
+        index[indexHead] = entry;
+        indexHead = (indexHead + 1) % index.length;
+        indexSize = Math.min(indexSize + 1, index.length);
+    }
+    
+    private static String commitLine(Entry entry) {
+        return "C\t" + entry.sequence + "\t" + entry.savedAtMillis + "\t" + entry.commandToSubmitMs
+            + "\t" + entry.submitToImageMs + "\t" + entry.imageToSavedMs;
+    }
+    
+    private static String beginLine(Entry entry) {
+        return "B\t" + entry.sequence + "\t" + entry.commandId + "\t" + entry.sensorTimestamp + "\t"
+            + entry.size + "\t" + entry.tempPath + "\t" + entry.path;
+    }
+    
+    private void append(String line) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(line);
+            writer.write('\n');
+            // Flushing hands the record to the kernel, which survives a process crash
+            writer.flush();
+            journalBytes += line.length() + 1;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append to capture journal", e);
+        }
+    }
+    
+    /**
+     * Rewrite the journal with only the indexed and unfinished captures
+     * The new journal is written to a temp file and renamed over the old one.
+     */
+    private void compact() {
+        File compacted = new File(journalFile.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(compacted), UTF_8)) {
+            out.write("S\t" + (nextSequence - 1) + "\n");
+            for (int i = indexSize; i >= 1; i--) {
+                Entry entry = index[(indexHead - i + index.length) % index.length];
+                out.write(beginLine(entry) + "\n");
+                out.write(commitLine(entry) + "\n");
+            }
+            for (Entry entry : openEntries.values()) {
+                out.write(beginLine(entry) + "\n");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact capture journal", e);
+            compacted.delete();
+            return;
+        }
+        
+        close();
+        if (!compacted.renameTo(journalFile)) {
+            Log.e(TAG, "Failed to replace capture journal");
+        }
+        openJournal();
+        Log.d(TAG, "Journal compacted to " + journalBytes + " bytes");
+    }
+}
+
@@ -0,0 +1,60 @@
+package com.cameraclicker.util;
+
+/**
+ * Metadata that travels with a captured image from the command to the saved file
+ * Times are on the elapsed realtime clock in nanoseconds; zero means unknown.
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureRecord {
+    
+    public static final int NO_COMMAND_ID = -1;
+    public static final int NO_THREE_A = -1;
+    
+    public long sequence;
+    public int commandId = NO_COMMAND_ID;
+    public int thumbnailSize; // Long edge of the thumbnail the watch asked for, 0 for none
+    public String savedPath; // Final file, set once saved
+    public long sensorTimestamp;
+    public long transitMillis = -1; // Watch send to phone receive, wall clock; -1 if unknown
+    public long commandNanos; // Message received from the watch
+    public long parsedNanos;
+    public long dispatchedNanos; // Picked up by the camera thread
+    public long rewarmWaitNanos; // Held back while an idle camera re-warmed, 0 if it was warm
+    public int threeAOutcome = NO_THREE_A; // ThreeAManager.OUTCOME_*, or NO_THREE_A if it did not wait
+    public long threeAWaitNanos; // Capture requested to 3A ready
+    public long submitNanos;
+    public long completedNanos;
+    public long imageNanos;
+    public long savedNanos;
+    
+    public CaptureRecord() {
+    }
+    
+    public CaptureRecord(int commandId, long commandNanos) {
+        this.commandId = commandId;
+        this.commandNanos = commandNanos;
+    }
+    
+    /**
+     * Start a record for another frame of the same command, such as a burst frame
+     * Copies the command-side timings; the capture-side ones start out unknown.
+     */
+    public CaptureRecord(CaptureRecord command) {
+        this.commandId = command.commandId;
+        this.thumbnailSize = command.thumbnailSize;
+        this.transitMillis = command.transitMillis;
+        this.commandNanos = command.commandNanos;
+        this.parsedNanos = command.parsedNanos;
+        this.dispatchedNanos = command.dispatchedNanos;
+        this.rewarmWaitNanos = command.rewarmWaitNanos;
+    }
+    
+    public static long elapsedMs(long fromNanos, long toNanos) {
+        if (fromNanos == 0 || toNanos == 0) {
+            return -1;
+        }
+        return (toNanos - fromNanos) / 1000000;
+    }
+}
+
@@ -0,0 +1,166 @@
+package com.cameraclicker.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import com.cameraclicker.camera.QualityProfile;
+import com.cameraclicker.camera.SwitchStrategy;
+
+/**
+ * Utility class for reading user-configurable capture settings
+ * Values are stored in the default shared preferences
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureSettings {
+    
+    public static final String KEY_ZSL_ENABLED = "zsl_enabled";
+    public static final String KEY_ZSL_RING_DEPTH = "zsl_ring_depth";
+    public static final String KEY_ZSL_MEMORY_BUDGET_MB = "zsl_memory_budget_mb";
+    public static final String KEY_SAVE_QUEUE_CAPACITY = "save_queue_capacity";
+    public static final String KEY_SAVE_WORKER_THREADS = "save_worker_threads";
+    public static final String KEY_SAVE_OVERFLOW_POLICY = "save_overflow_policy";
+    public static final String KEY_CAMERA_SWITCH_STRATEGY = "camera_switch_strategy";
+    public static final String KEY_SIMULATED_CAMERA = "simulated_camera";
+    public static final String KEY_QUALITY_PROFILE = "quality_profile";
+    public static final String KEY_ADAPTIVE_QUALITY = "adaptive_quality";
+    public static final String KEY_VIEWFINDER_WITH_ZSL = "viewfinder_with_zsl";
+    public static final String KEY_IDLE_COOL_AFTER_S = "idle_cool_after_s";
+    public static final String KEY_IDLE_COLD_AFTER_S = "idle_cold_after_s";
+    public static final String KEY_LOCAL_CONTROL_PORT = "local_control_port";
+    public static final String KEY_LOCAL_CONTROL_TOKEN = "local_control_token";
+    
+    private static final int DEFAULT_ZSL_RING_DEPTH = 4;
+    private static final int DEFAULT_ZSL_MEMORY_BUDGET_MB = 64;
+    private static final int DEFAULT_SAVE_QUEUE_CAPACITY = 8;
+    private static final int DEFAULT_SAVE_WORKER_THREADS = 2;
+    private static final int DEFAULT_IDLE_COOL_AFTER_S = 60;
+    private static final int DEFAULT_IDLE_COLD_AFTER_S = 300;
+    
+    private SharedPreferences preferences;
+    
+    public CaptureSettings(Context context) {
+        this.preferences = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+    
+    /**
+     * Whether to use synthetic frames instead of the real cameras, for load testing
+     */
+    public boolean isSimulatedCameraEnabled() {
+        return preferences.getBoolean(KEY_SIMULATED_CAMERA, false);
+    }
+    
+    public boolean isZslEnabled() {
+        return preferences.getBoolean(KEY_ZSL_ENABLED, false);
+    }
+    
+    public int getZslRingDepth() {
+        return Math.max(1, preferences.getInt(KEY_ZSL_RING_DEPTH, DEFAULT_ZSL_RING_DEPTH));
+    }
+    
+    public long getZslMemoryBudgetBytes() {
+        int megabytes = Math.max(1, preferences.getInt(KEY_ZSL_MEMORY_BUDGET_MB, DEFAULT_ZSL_MEMORY_BUDGET_MB));
+        return megabytes * 1024L * 1024L;
+    }
+    
+    public int getSaveQueueCapacity() {
+        return Math.max(1, preferences.getInt(KEY_SAVE_QUEUE_CAPACITY, DEFAULT_SAVE_QUEUE_CAPACITY));
+    }
+    
+    public int getSaveWorkerThreads() {
+        return Math.max(1, preferences.getInt(KEY_SAVE_WORKER_THREADS, DEFAULT_SAVE_WORKER_THREADS));
+    }
+    
+    public ImageSaver.OverflowPolicy getSaveOverflowPolicy() {
+        String policy = preferences.getString(KEY_SAVE_OVERFLOW_POLICY, "block");
+        switch (policy) {
+            case "drop_oldest":
+                return ImageSaver.OverflowPolicy.DROP_OLDEST;
+            case "spill":
+                return ImageSaver.OverflowPolicy.SPILL;
+            case "block":
+            default:
+                return ImageSaver.OverflowPolicy.BLOCK;
+        }
+    }
+    
+    /**
+     * Profile used when a command does not name one
+     */
+    public QualityProfile getQualityProfile() {
+        QualityProfile profile = QualityProfile.fromName(preferences.getString(KEY_QUALITY_PROFILE, "high"));
+        return profile != null ? profile : QualityProfile.HIGH;
+    }
+    
+    /**
+     * Whether to step down to a smaller profile under save queue, storage or thermal pressure
+     */
+    public boolean isAdaptiveQualityEnabled() {
+        return preferences.getBoolean(KEY_ADAPTIVE_QUALITY, true);
+    }
+    
+    /**
+     * Whether ZSL mode also streams the small YUV output the watch viewfinder is fed from
+     * Off by default: it adds a second output to every ZSL frame. Without ZSL the 3A
+     * metering stream is used and costs nothing extra.
+     */
+    public boolean isViewfinderWithZslEnabled() {
+        return preferences.getBoolean(KEY_VIEWFINDER_WITH_ZSL, false);
+    }
+    
+    /**
+     * Seconds without watch activity before the session and large buffers are released
+     * @return Idle time in nanoseconds, or 0 if the camera never cools
+     */
+    public long getIdleCoolAfterNanos() {
+        return Math.max(0, preferences.getInt(KEY_IDLE_COOL_AFTER_S, DEFAULT_IDLE_COOL_AFTER_S)) * 1000000000L;
+    }
+    
+    /**
+     * Seconds without watch activity before the camera device is closed
+     * @return Idle time in nanoseconds, or 0 if the camera never goes cold
+     */
+    public long getIdleColdAfterNanos() {
+        return Math.max(0, preferences.getInt(KEY_IDLE_COLD_AFTER_S, DEFAULT_IDLE_COLD_AFTER_S)) * 1000000000L;
+    }
+    
+    /**
+     * Loopback port for the local control endpoint used by automation and test rigs
+     * @return Port number, or 0 if the endpoint is off, which is the default
+     */
+    public int getLocalControlPort() {
+        int port = preferences.getInt(KEY_LOCAL_CONTROL_PORT, 0);
+        return port > 0 && port <= 65535 ? port : 0;
+    }
+    
+    /**
+     * Shared secret a local control client must send as its first line
+     * @return The token, or null if none is set, which keeps the endpoint off
+     */
+    public String getLocalControlToken() {
+        String token = preferences.getString(KEY_LOCAL_CONTROL_TOKEN, "");
+        return token == null || token.trim().isEmpty() ? null : token.trim();
+    }
+    
+    /**
+     * Camera switch strategy asked for by the user
+     * @return Requested strategy, or null for "auto" to choose from the device capabilities
+     */
+    public SwitchStrategy getCameraSwitchStrategy() {
+        String strategy = preferences.getString(KEY_CAMERA_SWITCH_STRATEGY, "auto");
+        switch (strategy) {
+            case "concurrent":
+                return SwitchStrategy.CONCURRENT;
+            case "warm":
+                return SwitchStrategy.WARM_REUSE;
+            case "full":
+                return SwitchStrategy.FULL_REOPEN;
+            case "auto":
+            default:
+                return null;
+        }
+    }
+}
+
@@ -0,0 +1,97 @@
+package com.cameraclicker.util;
+
+/**
+ * Per-stage latency histograms for captures, from the watch tap to the saved file
+ * Each saved capture's CaptureRecord is split into consecutive stages; stages whose
+ * timestamps were not recorded (a ZSL frame is never submitted, for example) are skipped.
+ * Memory is fixed and recording is safe from any thread.
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureTrace {
+    
+    public enum Stage {
+        /** Watch send time to phone receive time; wall clocks, one second resolution */
+        TRANSIT("transit"),
+        /** Message received to command decoded */
+        PARSE("parse"),
+        /** Command decoded to picked up by the camera thread */
+        DISPATCH("dispatch"),
+        /** Held back while an idle camera re-warmed; part of submit, only for captures that waited */
+        REWARM("rewarm"),
+        /** Picked up to capture request submitted */
+        SUBMIT("submit"),
+        /** Request submitted to onCaptureCompleted */
+        COMPLETE("complete"),
+        /** Request submitted to image available */
+        IMAGE("image"),
+        /** Image available to file committed */
+        SAVE("save"),
+        /** Message received to file committed */
+        TOTAL("total");
+        
+        public final String key;
+        
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+    
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    
+    public CaptureTrace() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * Record every stage of a saved capture
+     */
+    public void record(CaptureRecord record) {
+        if (record.transitMillis >= 0) {
+            histograms[Stage.TRANSIT.ordinal()].recordMicros(record.transitMillis * 1000);
+        }
+        recordStage(Stage.PARSE, record.commandNanos, record.parsedNanos);
+        recordStage(Stage.DISPATCH, record.parsedNanos, record.dispatchedNanos);
+        if (record.rewarmWaitNanos > 0) {
+            histograms[Stage.REWARM.ordinal()].recordNanos(record.rewarmWaitNanos);
+        }
+        recordStage(Stage.SUBMIT, record.dispatchedNanos, record.submitNanos);
+        recordStage(Stage.COMPLETE, record.submitNanos, record.completedNanos);
+        recordStage(Stage.IMAGE, record.submitNanos, record.imageNanos);
+        recordStage(Stage.SAVE, record.imageNanos, record.savedNanos);
+        recordStage(Stage.TOTAL, record.commandNanos, record.savedNanos);
+    }
+    
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+    
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+    
+    /**
+     * One line per stage that has samples, for dumpsys and the log
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            if (histogram.getCount() > 0) {
+                text.append(stage.key).append(": ").append(histogram.describe()).append('\n');
+            }
+        }
+        return text.length() > 0 ? text.toString() : "no captures traced\n";
+    }
+    
+    private void recordStage(Stage stage, long fromNanos, long toNanos) {
+        if (fromNanos != 0 && toNanos != 0 && toNanos >= fromNanos) {
+            histograms[stage.ordinal()].recordNanos(toNanos - fromNanos);
+        }
+    }
+}
+
@@ -0,0 +1,89 @@
+package com.cameraclicker.util;
+
+import java.util.Calendar;
+
+/**
+ * Builds capture file names without a SimpleDateFormat or Date per call
+ * The date part is formatted once per second into a reusable builder, and the capture
+ * sequence number is appended so two shots in the same second never collide.
+ * 
+ * @author DrKhiLL
+ */
+public class FileNameGenerator {
+    
+    private static final String PREFIX = "CameraClicker_";
+    private static final String EXTENSION = ".jpg";
+    
+    private final Calendar calendar = Calendar.getInstance();
+    private final StringBuilder builder = new StringBuilder(48);
+    private long cachedSecond = Long.MIN_VALUE;
+    private int prefixLength;
+    
+    /**
+     * File name for a capture at the given wall-clock time, in the form
+     * CameraClicker_yyyyMMdd_HHmmss_NNNNNN.jpg
+     */
+    public synchronized String generate(long currentTimeMillis, long sequence) {
+        long second = currentTimeMillis / 1000;
+        if (second != cachedSecond) {
+            formatPrefix(currentTimeMillis);
+            cachedSecond = second;
+        }
+        
+        builder.setLength(prefixLength);
+        if (sequence < 1000000) {
+            appendPadded((int) sequence, 6);
+        } else {
+            builder.append(sequence);
+        }
+        builder.append(EXTENSION);
+        return builder.toString();
+    }
+    
+    /**
+     * Recover the sequence number from a generated file name
+     * @return Sequence number, or -1 if the name was not generated here
+     */
+    public static long parseSequence(String fileName) {
+        int end = fileName.lastIndexOf('.');
+        int start = fileName.lastIndexOf('_', end) + 1;
+        if (!fileName.startsWith(PREFIX) || end < 0 || start <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private void formatPrefix(long currentTimeMillis) {
+        calendar.setTimeInMillis(currentTimeMillis);
+        builder.setLength(0);
+        builder.append(PREFIX);
+        appendPadded(calendar.get(Calendar.YEAR), 4);
+        appendPadded(calendar.get(Calendar.MONTH) + 1, 2);
+        appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+        builder.append('_');
+        appendPadded(calendar.get(Calendar.HOUR_OF_DAY), 2);
+        appendPadded(calendar.get(Calendar.MINUTE), 2);
+        appendPadded(calendar.get(Calendar.SECOND), 2);
+        builder.append('_');
+        prefixLength = builder.length();
+    }
+    
+    private void appendPadded(int value, int digits) {
+        for (int divisor = pow10(digits - 1); divisor > 0; divisor /= 10) {
+            builder.append((char) ('0' + (value / divisor) % 10));
+        }
+    }
+    
+    private static int pow10(int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+}
+
@@ -0,0 +1,53 @@
+package com.cameraclicker.util;
+
+import com.cameraclicker.camera.CameraFrame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copy and write steps of the image save path
+ * Free of Android types so the benchmark module can measure exactly the code the saver runs.
+ * 
+ * @author DrKhiLL
+ */
+public final class ImageFiles {
+    
+    private ImageFiles() {
+    }
+    
+    /**
+     * Copy a frame's encoded data into a pooled buffer and close the frame
+     * @return Buffer ready to be written; give it back to the pool afterwards
+     */
+    public static ByteBuffer copyFrame(CameraFrame frame, BufferPool pool) {
+        try {
+            ByteBuffer plane = frame.getPlaneBuffer(0);
+            ByteBuffer data = pool.acquire(plane.remaining());
+            data.put(plane);
+            data.flip();
+            return data;
+        } finally {
+            frame.close();
+        }
+    }
+    
+    public static void writeFully(File file, ByteBuffer data) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file);
+             FileChannel channel = output.getChannel()) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+    
+    public static void renameOrThrow(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+}
+
@@ -1,56 +1,478 @@
 package com.cameraclicker.util;
 
 import android.content.Context;
-import android.media.Image;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.cameraclicker.camera.CameraFrame;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Utility class for saving captured images to storage
+ * Images are copied into pooled direct buffers and released immediately, then written
+ * through a FileChannel by a pool of I/O workers behind a bounded queue, so storage
+ * stalls never block camera callbacks and steady-state saves allocate no image-sized arrays.
+ * Every file is written under a temp name, renamed into place and recorded in a
+ * capture journal, which is replayed on the spill thread at start to finish or clean up
+ * interrupted saves; the I/O workers wait for that before their first write. A saver
+ * created while an earlier one is still draining waits for it to stop before replaying, so
+ * only one saver at a time in the process uses the journal and the spill directory.
  * 
  * @author DrKhiLL
  */
 public class ImageSaver {
     
     private static final String TAG = "ImageSaver";
+    private static final String SPILL_DIR = "spill";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String JOURNAL_FILE = "capture_journal.log";
+    private static final int JOURNAL_INDEX_CAPACITY = 256;
+    private static final long WORKER_POLL_MS = 200;
+    
+    // Stop latch of the newest saver in the process; guarded by the class lock
+    private static CountDownLatch newestStopped = new CountDownLatch(0);
+    
+    /**
+     * What to do when the write queue is full
+     */
+    public enum OverflowPolicy {
+        /** Wait on the camera thread until a slot frees up */
+        BLOCK,
+        /** Discard the oldest queued image to make room */
+        DROP_OLDEST,
+        /** Have the spill thread write it to app-private cache storage and move it to Pictures later */
+        SPILL
+    }
+    
+    /**
+     * Notified on an I/O thread each time an image has been committed to storage
+     */
+    public interface OnImageSavedListener {
+        void onImageSaved(CaptureRecord record);
+    }
+    
     private Context context;
+    private final BlockingQueue<WriteJob> queue;
+    // Bounded like the write queue; an image that finds both full is dropped, never written inline
+    private final BlockingQueue<WriteJob> spillQueue;
+    private final ConcurrentLinkedQueue<SpilledImage> spilledImages = new ConcurrentLinkedQueue<>();
+    private final CaptureJournal journal;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] workers;
+    private final Thread spillWorker;
+    private final CountDownLatch recovered = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final CountDownLatch previousStopped;
+    // The last thread to finish after shutdown closes the journal
+    private final AtomicInteger liveThreads = new AtomicInteger();
+    private volatile boolean running = true;
+    
+    private final BufferPool bufferPool;
+    private final FileNameGenerator fileNameGenerator = new FileNameGenerator();
+    private volatile File outputDirectory;
+    private volatile OnImageSavedListener savedListener;
+    
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong latencySamples = new AtomicLong();
+    private final AtomicLong totalWriteLatencyNs = new AtomicLong();
+    private final AtomicLong maxWriteLatencyNs = new AtomicLong();
     
     public ImageSaver(Context context) {
+        this(context, 8, 2, OverflowPolicy.BLOCK);
+    }
+    
+    public ImageSaver(Context context, int queueCapacity, int workerThreads, OverflowPolicy overflowPolicy) {
         this.context = context;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.spillQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Thread[Math.max(1, workerThreads)];
+        // One buffer per worker plus one being filled covers single shots; bursts grow past it briefly
+        this.bufferPool = new BufferPool(workers.length + 1);
+        
+        this.journal = new CaptureJournal(new File(context.getFilesDir(), JOURNAL_FILE), JOURNAL_INDEX_CAPACITY);
+        synchronized (ImageSaver.class) {
+            previousStopped = newestStopped;
+            newestStopped = stopped;
+        }
+        
+        // Created from onCreate on the main thread, so the journal replay and the spill
+        // directory listing happen on the spill thread instead
+        liveThreads.set(workers.length + 1);
+        spillWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSpillWorker();
+            }
+        }, "ImageSaverSpill");
+        spillWorker.start();
+        
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "ImageSaverIO-" + i);
+            workers[i].start();
+        }
+    }
+    
+    /**
+     * Hand an image off to the write queue
+     * The frame is closed before this returns, so the camera can reuse its buffer. Only the
+     * BLOCK policy ever waits here; the others drop an image rather than stall the caller.
+     */
+    public void saveImage(CameraFrame frame) {
+        saveImage(frame, new CaptureRecord());
+    }
+    
+    /**
+     * Hand an image off to the write queue along with its capture metadata
+     * @param record Metadata recorded in the capture journal; its sequence number is assigned
+     *               by the thread that writes it, once the journal has been recovered
+     */
+    public void saveImage(CameraFrame frame, CaptureRecord record) {
+        if (record.sensorTimestamp == 0) {
+            record.sensorTimestamp = frame.getTimestamp();
+        }
+        ByteBuffer data = ImageFiles.copyFrame(frame, bufferPool);
+        enqueue(new WriteJob(data, record, System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos()));
+    }
+    
+    private void enqueue(WriteJob job) {
+        if (queue.offer(job)) {
+            return;
+        }
+        
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                // Another producer may refill the slot, so keep evicting until the job fits
+                while (!queue.offer(job)) {
+                    WriteJob evicted = queue.poll();
+                    if (evicted != null) {
+                        bufferPool.release(evicted.data);
+                        droppedCount.incrementAndGet();
+                        Log.w(TAG, "Write queue full, dropped oldest image");
+                    }
+                }
+                break;
+            case SPILL:
+                if (!spillQueue.offer(job)) {
+                    bufferPool.release(job.data);
+                    droppedCount.incrementAndGet();
+                    Log.w(TAG, "Write and spill queues full, dropped image");
+                }
+                break;
+            case BLOCK:
+            default:
+                try {
+                    queue.put(job);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    bufferPool.release(job.data);
+                    droppedCount.incrementAndGet();
+                    Log.e(TAG, "Interrupted while waiting for write queue", e);
+                }
+                break;
+        }
     }
     
-    public void saveImage(Image image) {
-        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-        byte[] bytes = new byte[buffer.remaining()];
-        buffer.get(bytes);
+    /**
+     * Replays the journal, then writes spilled images until shutdown
+     */
+    private void runSpillWorker() {
+        try {
+            // A service restarted in the same process may find the last saver still draining
+            previousStopped.await();
+            recover();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while waiting for the previous image saver", e);
+        } finally {
+            recovered.countDown();
+        }
+        
+        while (running || !spillQueue.isEmpty()) {
+            WriteJob job;
+            try {
+                job = spillQueue.poll(WORKER_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (job != null) {
+                spill(job);
+            }
+        }
+        threadFinished();
+    }
+    
+    private void recover() {
+        journal.recover();
+        
+        // Pick up images spilled before the last shutdown; the journal still has them open
+        File[] leftovers = new File(context.getCacheDir(), SPILL_DIR).listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                CaptureRecord record = new CaptureRecord();
+                record.sequence = FileNameGenerator.parseSequence(leftover.getName());
+                spilledImages.add(new SpilledImage(leftover, record));
+            }
+        }
+    }
+    
+    private void assignName(WriteJob job) {
+        job.record.sequence = journal.nextSequence();
+        job.fileName = fileNameGenerator.generate(job.capturedAtMillis, job.record.sequence);
+    }
+    
+    private void spill(WriteJob job) {
+        File spillDir = new File(context.getCacheDir(), SPILL_DIR);
+        if (!spillDir.exists()) {
+            spillDir.mkdirs();
+        }
         
-        String fileName = generateFileName();
-        File file = new File(getOutputDirectory(), fileName);
+        assignName(job);
+        File file = new File(spillDir, job.fileName);
+        journal.begin(job.record, file, new File(getOutputDirectory(), job.fileName), job.data.remaining());
+        try {
+            ImageFiles.writeFully(file, job.data);
+            spilledImages.add(new SpilledImage(file, job.record));
+            spilledCount.incrementAndGet();
+            Log.w(TAG, "Write queue full, spilled image to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            failedCount.incrementAndGet();
+            file.delete();
+            journal.abort(job.record.sequence);
+            Log.e(TAG, "Failed to spill image", e);
+        } finally {
+            bufferPool.release(job.data);
+        }
+    }
+    
+    private void runWorker() {
+        try {
+            recovered.await();
+        } catch (InterruptedException e) {
+            threadFinished();
+            return;
+        }
+        
+        while (running || !queue.isEmpty()) {
+            WriteJob job;
+            try {
+                job = queue.poll(WORKER_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            
+            if (job != null) {
+                writeJob(job);
+            } else {
+                // Queue is idle, move spilled images to their final location
+                SpilledImage spilled = spilledImages.poll();
+                if (spilled != null) {
+                    moveSpilledFile(spilled);
+                }
+            }
+        }
+        threadFinished();
+    }
+    
+    private void threadFinished() {
+        if (liveThreads.decrementAndGet() == 0) {
+            journal.close();
+            Log.d(TAG, "Image saver stopped: " + describeStats());
+            stopped.countDown();
+        }
+    }
+    
+    private void writeJob(WriteJob job) {
+        assignName(job);
+        File directory = getOutputDirectory();
+        File file = new File(directory, job.fileName);
+        File temp = new File(directory, job.fileName + TEMP_SUFFIX);
         
-        try (FileOutputStream output = new FileOutputStream(file)) {
-            output.write(bytes);
+        journal.begin(job.record, temp, file, job.data.remaining());
+        try {
+            ImageFiles.writeFully(temp, job.data);
+            ImageFiles.renameOrThrow(temp, file);
+            job.record.savedNanos = SystemClock.elapsedRealtimeNanos();
+            job.record.savedPath = file.getAbsolutePath();
+            journal.commit(job.record.sequence, job.record);
+            writtenCount.incrementAndGet();
+            recordWriteLatency(job.record.savedNanos - job.enqueuedAtNanos);
+            notifySaved(job.record);
             Log.d(TAG, "Image saved: " + file.getAbsolutePath());
         } catch (IOException e) {
+            failedCount.incrementAndGet();
+            temp.delete();
+            journal.abort(job.record.sequence);
+            // The directory may have been removed; look it up again next time
+            outputDirectory = null;
             Log.e(TAG, "Failed to save image", e);
         } finally {
-            image.close();
+            bufferPool.release(job.data);
         }
     }
     
-    private String generateFileName() {
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
-        return "CameraClicker_" + formatter.format(new Date()) + ".jpg";
+    private void moveSpilledFile(SpilledImage spilled) {
+        File directory = getOutputDirectory();
+        File target = new File(directory, spilled.file.getName());
+        File temp = new File(directory, spilled.file.getName() + TEMP_SUFFIX);
+        
+        // The cache and Pictures may be on different filesystems, so copy rather than rename
+        try (FileInputStream input = new FileInputStream(spilled.file);
+             FileOutputStream output = new FileOutputStream(temp)) {
+            byte[] chunk = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(chunk)) > 0) {
+                output.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            failedCount.incrementAndGet();
+            temp.delete();
+            Log.e(TAG, "Failed to move spilled image", e);
+            return;
+        }
+        
+        try {
+            ImageFiles.renameOrThrow(temp, target);
+        } catch (IOException e) {
+            failedCount.incrementAndGet();
+            temp.delete();
+            Log.e(TAG, "Failed to move spilled image", e);
+            return;
+        }
+        
+        spilled.record.savedNanos = SystemClock.elapsedRealtimeNanos();
+        spilled.record.savedPath = target.getAbsolutePath();
+        journal.commit(spilled.record.sequence, spilled.record);
+        writtenCount.incrementAndGet();
+        notifySaved(spilled.record);
+        spilled.file.delete();
+        Log.d(TAG, "Spilled image saved: " + target.getAbsolutePath());
+    }
+    
+    public void setOnImageSavedListener(OnImageSavedListener listener) {
+        savedListener = listener;
+    }
+    
+    private void notifySaved(CaptureRecord record) {
+        OnImageSavedListener listener = savedListener;
+        if (listener != null) {
+            listener.onImageSaved(record);
+        }
+    }
+    
+    private void recordWriteLatency(long latencyNs) {
+        latencySamples.incrementAndGet();
+        totalWriteLatencyNs.addAndGet(latencyNs);
+        long max = maxWriteLatencyNs.get();
+        while (latencyNs > max && !maxWriteLatencyNs.compareAndSet(max, latencyNs)) {
+            max = maxWriteLatencyNs.get();
+        }
+    }
+    
+    /**
+     * Let the workers finish the queued writes and stop; returns without waiting for them
+     * The last thread out closes the journal. If the process dies first, the journal
+     * finishes or cleans up the interrupted saves on the next start.
+     */
+    public void shutdown() {
+        running = false;
+    }
+    
+    /**
+     * The most recent saved captures, newest first, without scanning storage
+     */
+    public List<CaptureJournal.Entry> getLastCaptures(int n) {
+        return journal.getLastCaptures(n);
+    }
+    
+    /**
+     * Space left where images are saved; a filesystem query, so callers should not poll it per frame
+     */
+    public long getFreeSpaceBytes() {
+        return getOutputDirectory().getUsableSpace();
+    }
+    
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+    
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+    
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+    
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+    
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+    
+    /**
+     * Average time from hand-off to the write completing, including queueing
+     */
+    public double getAverageWriteLatencyMs() {
+        long samples = latencySamples.get();
+        return samples == 0 ? 0 : totalWriteLatencyNs.get() / (samples * 1000000.0);
+    }
+    
+    public double getMaxWriteLatencyMs() {
+        return maxWriteLatencyNs.get() / 1000000.0;
+    }
+    
+    public String describeStats() {
+        return "queue=" + getQueueDepth() + "/" + getQueueCapacity()
+            + " written=" + getWrittenCount()
+            + " dropped=" + getDroppedCount()
+            + " spilled=" + getSpilledCount()
+            + " failed=" + getFailedCount()
+            + " avgWriteMs=" + getAverageWriteLatencyMs()
+            + " maxWriteMs=" + getMaxWriteLatencyMs()
+            + " bufferAllocations=" + getBufferAllocationCount();
+    }
+    
+    /**
+     * Direct buffers allocated so far; stays flat once the pool has warmed up
+     */
+    public long getBufferAllocationCount() {
+        return bufferPool.getAllocationCount();
     }
     
     private File getOutputDirectory() {
+        File directory = outputDirectory;
+        if (directory != null) {
+            return directory;
+        }
+        
         File picturesDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
         File cameraClickerDir = new File(picturesDir, "CameraClicker");
         
@@ -58,7 +480,34 @@ public class ImageSaver {
             cameraClickerDir.mkdirs();
         }
         
+        outputDirectory = cameraClickerDir;
         return cameraClickerDir;
     }
+    
+    private static class SpilledImage {
+        final File file;
+        final CaptureRecord record;
+        
+        SpilledImage(File file, CaptureRecord record) {
+            this.file = file;
+            this.record = record;
+        }
+    }
+    
+    private static class WriteJob {
+        final ByteBuffer data;
+        final CaptureRecord record;
+        final long capturedAtMillis;
+        final long enqueuedAtNanos;
+        // Set by the thread that writes it
+        String fileName;
+        
+        WriteJob(ByteBuffer data, CaptureRecord record, long capturedAtMillis, long enqueuedAtNanos) {
+            this.data = data;
+            this.record = record;
+            this.capturedAtMillis = capturedAtMillis;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+    }
 }
 
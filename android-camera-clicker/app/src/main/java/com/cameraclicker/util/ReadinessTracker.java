@@ -0,0 +1,122 @@
+package com.cameraclicker.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How far the camera service is from being able to take a shot, with startup timings
+ * The state moves forward as the camera opens, its session is configured and 3A first
+ * converges, and falls back when a switch, a resolution change or an error takes the
+ * session away. The first time each state is reached after the service started is kept,
+ * so the cold start can be broken down per phase even after later fallbacks. Named
+ * initialization steps that overlap the camera opening are timed alongside.
+ * Thread safe: the camera thread moves the state, other threads read it.
+ * 
+ * @author DrKhiLL
+ */
+public class ReadinessTracker {
+    
+    public enum State {
+        STARTING("STARTING"),
+        CAMERA_OPEN("CAMERA_OPEN"),
+        SESSION_CONFIGURED("SESSION_CONFIGURED"),
+        THREE_A_READY("3A_READY");
+        
+        public final String key;
+        
+        State(String key) {
+            this.key = key;
+        }
+    }
+    
+    // Names of the phases between consecutive states, indexed by the later state
+    private static final String[] PHASE_NAMES = {null, "open", "configure", "converge"};
+    
+    private final long startNanos;
+    private State state = State.STARTING;
+    private long stateNanos;
+    private final long[] firstReachedNanos = new long[State.values().length];
+    private final Map<String, Long> stepNanos = new LinkedHashMap<>();
+    private long fallbackCount = 0;
+    
+    public ReadinessTracker(long startNanos) {
+        this.startNanos = startNanos;
+        this.stateNanos = startNanos;
+        firstReachedNanos[State.STARTING.ordinal()] = startNanos;
+    }
+    
+    /**
+     * Move to a state, forward or back
+     * @return True if the state changed
+     */
+    public synchronized boolean moveTo(State next, long nowNanos) {
+        if (next == state) {
+            return false;
+        }
+        if (next.ordinal() < state.ordinal()) {
+            fallbackCount++;
+        }
+        state = next;
+        stateNanos = nowNanos;
+        if (firstReachedNanos[next.ordinal()] == 0) {
+            firstReachedNanos[next.ordinal()] = nowNanos;
+        }
+        return true;
+    }
+    
+    /**
+     * Time an initialization step; steps may run on any thread and overlap each other
+     */
+    public synchronized void recordStep(String name, long nanos) {
+        stepNanos.put(name, nanos);
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    /**
+     * True once captures can run without waiting for the camera to open
+     */
+    public synchronized boolean canCapture() {
+        return state.ordinal() >= State.SESSION_CONFIGURED.ordinal();
+    }
+    
+    /**
+     * Milliseconds from the service start to the first time a state was reached, or -1 if never
+     */
+    public synchronized long getMillisToReach(State target) {
+        long reached = firstReachedNanos[target.ordinal()];
+        return reached == 0 ? -1 : (reached - startNanos) / 1000000;
+    }
+    
+    /**
+     * Milliseconds the current state has been held
+     */
+    public synchronized long getMillisInState(long nowNanos) {
+        return (nowNanos - stateNanos) / 1000000;
+    }
+    
+    public synchronized String describe(long nowNanos) {
+        StringBuilder text = new StringBuilder(state.key).append(" for ").append(getMillisInState(nowNanos))
+            .append(" ms; cold start:");
+        State[] states = State.values();
+        for (int i = 1; i < states.length; i++) {
+            long reached = firstReachedNanos[i];
+            long previous = firstReachedNanos[i - 1];
+            text.append(' ').append(PHASE_NAMES[i]).append('=');
+            if (reached == 0 || previous == 0) {
+                text.append('-');
+            } else {
+                text.append((reached - previous) / 1000000).append("ms");
+            }
+        }
+        long ready = getMillisToReach(State.THREE_A_READY);
+        text.append(", ready after ").append(ready < 0 ? "-" : ready + "ms").append("; steps:");
+        for (Map.Entry<String, Long> step : stepNanos.entrySet()) {
+            text.append(' ').append(step.getKey()).append('=').append(step.getValue() / 1000000.0).append("ms");
+        }
+        return text.append("; fallbacks=").append(fallbackCount).toString();
+    }
+}
+
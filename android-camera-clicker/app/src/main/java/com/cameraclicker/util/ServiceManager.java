@@ -1,6 +1,5 @@
 package com.cameraclicker.util;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent;
 
@@ -39,23 +38,5 @@ public class ServiceManager {
         Intent intent = new Intent(context, BluetoothService.class);
         context.stopService(intent);
     }
-    
-    public boolean isCameraServiceRunning() {
-        return isServiceRunning(CameraService.class);
-    }
-    
-    public boolean isBluetoothServiceRunning() {
-        return isServiceRunning(BluetoothService.class);
-    }
-    
-    private boolean isServiceRunning(Class<?> serviceClass) {
-        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (serviceClass.getName().equals(service.service.getClassName())) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
 
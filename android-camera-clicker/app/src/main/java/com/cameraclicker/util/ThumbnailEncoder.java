@@ -0,0 +1,190 @@
+package com.cameraclicker.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cameraclicker.protocol.ThumbnailCodec;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Turns saved images into watch thumbnails on a thread of its own
+ * The JPEG's embedded EXIF thumbnail is used when it is large enough, which avoids
+ * decoding the full image at all; otherwise the file is decoded subsampled by a power of
+ * two close to the target size. Either way the result is scaled to the requested long
+ * edge and encoded with ThumbnailCodec. Only the newest request is kept: while a burst
+ * saves frame after frame, the ones that were never started are skipped.
+ * 
+ * @author DrKhiLL
+ */
+public class ThumbnailEncoder {
+    
+    private static final String TAG = "ThumbnailEncoder";
+    
+    /**
+     * Called on the encoder thread with a finished thumbnail
+     */
+    public interface Callback {
+        void onThumbnailEncoded(byte[] thumbnail, int commandId, long encodeNanos);
+    }
+    
+    private static class Request {
+        final String path;
+        final int longEdge;
+        final int commandId;
+        
+        Request(String path, int longEdge, int commandId) {
+            this.path = path;
+            this.longEdge = longEdge;
+            this.commandId = commandId;
+        }
+    }
+    
+    private final Callback callback;
+    private final AtomicReference<Request> pending = new AtomicReference<>();
+    private final Object lock = new Object();
+    private final Thread worker;
+    private volatile boolean running = true;
+    
+    private final AtomicLong encodedCount = new AtomicLong();
+    private final AtomicLong exifCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    
+    public ThumbnailEncoder(Callback callback) {
+        this.callback = callback;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "ThumbnailEncoder");
+        worker.start();
+    }
+    
+    /**
+     * Queue a saved image, replacing any request that has not started yet
+     * @param longEdge Long edge of the thumbnail in pixels
+     * @param commandId Watch sequence number of the capture, passed back to the callback
+     */
+    public void encode(String path, int longEdge, int commandId) {
+        if (pending.getAndSet(new Request(path, longEdge, commandId)) != null) {
+            skippedCount.incrementAndGet();
+        }
+        synchronized (lock) {
+            lock.notify();
+        }
+    }
+    
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+    
+    private void runWorker() {
+        while (running) {
+            Request request = pending.getAndSet(null);
+            if (request == null) {
+                synchronized (lock) {
+                    try {
+                        if (pending.get() == null) {
+                            lock.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            
+            long start = SystemClock.elapsedRealtimeNanos();
+            byte[] thumbnail = encodeFile(request.path, request.longEdge);
+            if (thumbnail != null) {
+                encodedCount.incrementAndGet();
+                callback.onThumbnailEncoded(thumbnail, request.commandId, SystemClock.elapsedRealtimeNanos() - start);
+            }
+        }
+    }
+    
+    private byte[] encodeFile(String path, int longEdge) {
+        Bitmap source = decodeExifThumbnail(path, longEdge);
+        if (source != null) {
+            exifCount.incrementAndGet();
+        } else {
+            source = decodeSubsampled(path, longEdge);
+        }
+        if (source == null) {
+            Log.w(TAG, "Could not decode " + path);
+            return null;
+        }
+        
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        double scale = Math.min(1.0, (double) longEdge / Math.max(sourceWidth, sourceHeight));
+        int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+        int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+        
+        Bitmap scaled = width == sourceWidth && height == sourceHeight ? source
+            : Bitmap.createScaledBitmap(source, width, height, true);
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (scaled != source) {
+            scaled.recycle();
+        }
+        source.recycle();
+        
+        return ThumbnailCodec.encode(pixels, width, height);
+    }
+    
+    /**
+     * The embedded EXIF thumbnail, or null if there is none at least longEdge on its long side
+     */
+    private static Bitmap decodeExifThumbnail(String path, int longEdge) {
+        byte[] embedded;
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            embedded = exif.hasThumbnail() ? exif.getThumbnail() : null;
+        } catch (IOException e) {
+            return null;
+        }
+        if (embedded == null) {
+            return null;
+        }
+        
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(embedded, 0, embedded.length, options);
+        if (Math.max(options.outWidth, options.outHeight) < longEdge) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(embedded, 0, embedded.length, null);
+    }
+    
+    private static Bitmap decodeSubsampled(String path, int longEdge) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        int sourceEdge = Math.max(options.outWidth, options.outHeight);
+        if (sourceEdge <= 0) {
+            return null;
+        }
+        
+        // Largest power of two that keeps the decoded image at least as large as the target
+        int sampleSize = 1;
+        while (sourceEdge / (sampleSize * 2) >= longEdge) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(path, options);
+    }
+    
+    public String describe() {
+        return "encoded=" + encodedCount.get() + " (exif=" + exifCount.get() + "), skipped=" + skippedCount.get();
+    }
+}
+
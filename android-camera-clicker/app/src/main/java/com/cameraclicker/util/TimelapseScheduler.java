@@ -0,0 +1,134 @@
+package com.cameraclicker.util;
+
+/**
+ * Shot timing for a timelapse run on the phone
+ * Shots are due on a fixed grid counted from the start, so a late shot never pushes the
+ * later ones back and timing errors cannot add up over a long run. The delay from firing a
+ * shot to the sensor starting its exposure, measured with the frame's sensor timestamp, is
+ * kept as a moving average, and each shot fires that much ahead of its slot so exposures
+ * land on the grid instead of one pipeline delay behind it. A slot that cannot be shot in
+ * time, because the camera or the saver is behind, is skipped rather than queued.
+ * Free of Android types; not thread safe, all calls must come from one thread.
+ * 
+ * @author DrKhiLL
+ */
+public class TimelapseScheduler {
+    
+    // Weight of the newest delay measurement is 1/LEAD_SMOOTHING
+    private static final int LEAD_SMOOTHING = 4;
+    
+    private final long startNanos;
+    private final long intervalNanos;
+    private final int count;
+    
+    private int nextShot = 0;
+    private int taken = 0;
+    private int skipped = 0;
+    private long leadNanos = 0;
+    private int leadSamples = 0;
+    private long lastErrorNanos = 0;
+    // Distance of each exposure from its slot, either side
+    private final LatencyHistogram error = new LatencyHistogram();
+    
+    /**
+     * @param startNanos Slot of the first shot
+     * @param count Number of shots, or 0 to run until stopped
+     */
+    public TimelapseScheduler(long startNanos, long intervalNanos, int count) {
+        this.startNanos = startNanos;
+        this.intervalNanos = Math.max(1, intervalNanos);
+        this.count = Math.max(0, count);
+    }
+    
+    public long slotNanos(int shot) {
+        return startNanos + shot * intervalNanos;
+    }
+    
+    /**
+     * Time to fire the next shot so that it is exposed on its slot
+     * @return Elapsed realtime nanoseconds, or -1 once every shot is taken or skipped
+     */
+    public long nextFireNanos() {
+        return isFinished() ? -1 : slotNanos(nextShot) - leadNanos;
+    }
+    
+    /**
+     * Claim the next shot at its firing time
+     * Slots more than half an interval overdue are skipped first; the next one is closer.
+     * @param canShoot False if the camera or the saver is behind, which skips this slot too
+     * @return Index of the shot to fire, or -1 if there is none to fire now
+     */
+    public int takeShot(long nowNanos, boolean canShoot) {
+        while (!isFinished() && nowNanos > slotNanos(nextShot) + intervalNanos / 2) {
+            nextShot++;
+            skipped++;
+        }
+        if (isFinished()) {
+            return -1;
+        }
+        int shot = nextShot++;
+        if (!canShoot) {
+            skipped++;
+            return -1;
+        }
+        taken++;
+        return shot;
+    }
+    
+    /**
+     * The sensor started exposing a shot
+     * @param fireNanos When the shot was fired
+     * @param sensorNanos Sensor timestamp of the frame, on the elapsed realtime clock
+     */
+    public void onExposed(int shot, long fireNanos, long sensorNanos) {
+        // Bounded so one stalled capture cannot move the next slots by more than half an interval
+        long lead = Math.max(-intervalNanos / 2, Math.min(intervalNanos / 2, sensorNanos - fireNanos));
+        leadNanos = leadSamples == 0 ? lead : leadNanos + (lead - leadNanos) / LEAD_SMOOTHING;
+        leadSamples++;
+        lastErrorNanos = sensorNanos - slotNanos(shot);
+        error.recordNanos(Math.abs(lastErrorNanos));
+    }
+    
+    public boolean isFinished() {
+        return count > 0 && nextShot >= count;
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    public int getTakenCount() {
+        return taken;
+    }
+    
+    public int getSkippedCount() {
+        return skipped;
+    }
+    
+    /**
+     * How far ahead of its slot each shot currently fires
+     */
+    public long getLeadNanos() {
+        return leadNanos;
+    }
+    
+    /**
+     * Exposure minus slot of the latest measured shot; positive means late
+     */
+    public long getLastErrorNanos() {
+        return lastErrorNanos;
+    }
+    
+    /**
+     * Distance of exposures from their slots, for shots with a comparable sensor timestamp
+     */
+    public LatencyHistogram getError() {
+        return error;
+    }
+    
+    public String describe() {
+        return "taken=" + taken + "/" + (count > 0 ? String.valueOf(count) : "unlimited") + " skipped=" + skipped
+            + " lead=" + leadNanos / 1000000.0 + " ms error " + error.describe();
+    }
+}
+
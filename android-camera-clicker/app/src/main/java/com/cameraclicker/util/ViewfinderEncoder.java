@@ -0,0 +1,240 @@
+package com.cameraclicker.util;
+
+import com.cameraclicker.camera.CameraFrame;
+import com.cameraclicker.protocol.ViewfinderCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes viewfinder frames for the watch on a thread of its own
+ * The camera thread only offers frames: when the pacer says a frame is due and the encoder
+ * is idle, the luma plane is copied into a preallocated buffer and the frame can be closed
+ * at once; otherwise the offer returns straight away. The encoder scales and dithers the
+ * copy, then sends the tiles that differ from what the watch has acknowledged, up to the
+ * pacer's byte budget, starting where the previous frame stopped so no part of the picture
+ * starves. Every buffer is allocated up front, so memory use is fixed while streaming.
+ * Free of Android types.
+ * 
+ * @author DrKhiLL
+ */
+public class ViewfinderEncoder {
+    
+    public static final int MAX_SIZE = 256;
+    
+    public interface Listener {
+        /**
+         * Called on the encoder thread; the data is reused once this returns
+         */
+        void onViewfinderFrame(int frame, byte[] data, int length);
+    }
+    
+    private final int width;
+    private final int height;
+    private final int bits;
+    private final int tileCount;
+    private final Listener listener;
+    private final ViewfinderPacer pacer;
+    
+    private final byte[] levels; // Latest frame, one gray level per pixel
+    private final byte[] reference; // What the watch shows, valid where known is set
+    private final boolean[] known;
+    private final byte[] sent; // Tiles of the frame in flight
+    private final boolean[] sentTiles;
+    private final byte[] out;
+    private int nextTile = 0;
+    private int frameNumber = 0;
+    
+    private final Object lock = new Object();
+    private final Thread worker;
+    private byte[] source = new byte[0];
+    private int sourceWidth;
+    private int sourceHeight;
+    private boolean busy = false; // Source buffer is being filled or encoded
+    private boolean sourceReady = false;
+    private volatile boolean running = true;
+    
+    private long offeredCount = 0;
+    private long skippedCount = 0;
+    
+    /**
+     * @param width Viewfinder width on the watch, rounded down to whole tiles
+     * @param height Viewfinder height on the watch, rounded down to whole tiles
+     * @param bits Bits per pixel; must pass ViewfinderCodec.isSupportedDepth
+     */
+    public ViewfinderEncoder(int width, int height, int bits, Listener listener) {
+        this(width, height, bits, listener, new ViewfinderPacer());
+    }
+    
+    /**
+     * @param pacer Decides when frames are due and how large they may be; tests pass their own
+     */
+    ViewfinderEncoder(int width, int height, int bits, Listener listener, ViewfinderPacer pacer) {
+        this.width = clampSize(width);
+        this.height = clampSize(height);
+        this.bits = bits;
+        this.tileCount = (this.width / ViewfinderCodec.TILE_SIZE) * (this.height / ViewfinderCodec.TILE_SIZE);
+        this.listener = listener;
+        this.pacer = pacer;
+        
+        levels = new byte[this.width * this.height];
+        reference = new byte[levels.length];
+        sent = new byte[levels.length];
+        known = new boolean[tileCount];
+        sentTiles = new boolean[tileCount];
+        out = new byte[ViewfinderCodec.HEADER_SIZE + ViewfinderPacer.MAX_BUDGET_BYTES];
+        
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "ViewfinderEncoder");
+        worker.start();
+    }
+    
+    private static int clampSize(int size) {
+        int tiles = Math.max(2, Math.min(MAX_SIZE, size) / ViewfinderCodec.TILE_SIZE);
+        return tiles * ViewfinderCodec.TILE_SIZE;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Offer a YUV frame from the camera thread; the caller still closes the frame
+     * @return True if the frame was taken for encoding
+     */
+    public boolean offer(CameraFrame frame) {
+        synchronized (lock) {
+            offeredCount++;
+            if (!running || busy || !pacer.isFrameDue(System.nanoTime())) {
+                skippedCount++;
+                return false;
+            }
+            busy = true;
+        }
+        
+        // The encoder leaves the source alone until sourceReady is set
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        if (source.length != frameWidth * frameHeight) {
+            // Only when the stream size changes, such as after a camera switch
+            source = new byte[frameWidth * frameHeight];
+        }
+        ByteBuffer luma = frame.getPlaneBuffer(0);
+        int rowStride = frame.getRowStride(0);
+        for (int row = 0; row < frameHeight; row++) {
+            luma.position(row * rowStride);
+            luma.get(source, row * frameWidth, frameWidth);
+        }
+        sourceWidth = frameWidth;
+        sourceHeight = frameHeight;
+        
+        synchronized (lock) {
+            sourceReady = true;
+            lock.notify();
+        }
+        return true;
+    }
+    
+    /**
+     * The watch drew a frame; its tiles become the reference for the next ones
+     */
+    public void onAck(int frame) {
+        synchronized (lock) {
+            if (!pacer.onAck(frame, System.nanoTime())) {
+                return;
+            }
+            for (int tile = 0; tile < tileCount; tile++) {
+                if (sentTiles[tile]) {
+                    ViewfinderCodec.copyTile(sent, reference, width, tile);
+                    known[tile] = true;
+                }
+            }
+        }
+    }
+    
+    public void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notify();
+        }
+    }
+    
+    private void runWorker() {
+        while (true) {
+            synchronized (lock) {
+                while (running && !sourceReady) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+            }
+            
+            long start = System.nanoTime();
+            ViewfinderCodec.downscale(source, sourceWidth, sourceHeight, sourceWidth, levels, width, height, bits);
+            
+            int frame;
+            int length;
+            synchronized (lock) {
+                length = buildFrame();
+                frame = length > 0 ? ++frameNumber : -1;
+                long now = System.nanoTime();
+                pacer.onEncoded(now - start);
+                pacer.onSent(frame, length, now);
+                sourceReady = false;
+                busy = false;
+            }
+            if (length > 0) {
+                listener.onViewfinderFrame(frame, out, length);
+            }
+        }
+    }
+    
+    /**
+     * Pack the tiles the watch does not have yet
+     * @return Frame length, or 0 if nothing changed
+     */
+    private int buildFrame() {
+        int tileBytes = ViewfinderCodec.tileBytes(bits);
+        int limit = ViewfinderCodec.HEADER_SIZE + pacer.getBudgetBytes();
+        int position = ViewfinderCodec.writeHeader(out, width, height, bits);
+        Arrays.fill(sentTiles, false);
+        
+        int first = nextTile;
+        for (int i = 0; i < tileCount; i++) {
+            int tile = (first + i) % tileCount;
+            if (known[tile] && !ViewfinderCodec.tileDiffers(levels, reference, width, tile)) {
+                continue;
+            }
+            if (position + tileBytes > limit) {
+                // Out of budget; the next frame starts with what did not fit
+                nextTile = tile;
+                break;
+            }
+            position = ViewfinderCodec.writeTile(out, position, levels, width, bits, tile);
+            ViewfinderCodec.copyTile(levels, sent, width, tile);
+            sentTiles[tile] = true;
+        }
+        return position > ViewfinderCodec.HEADER_SIZE ? position : 0;
+    }
+    
+    public String describe() {
+        synchronized (lock) {
+            return width + "x" + height + "@" + bits + "bit frames=" + frameNumber + " offered=" + offeredCount
+                + " skipped=" + skippedCount + " " + pacer.describe();
+        }
+    }
+}
+
@@ -0,0 +1,138 @@
+package com.cameraclicker.util;
+
+/**
+ * Decides when the next viewfinder frame may be sent and how large it may be
+ * One frame is in flight at a time and the watch acknowledges each one. Acknowledged
+ * frames speed the rate up and grow the byte budget a step at a time; a frame that is not
+ * acknowledged in time halves the budget and doubles the interval, so a congested link is
+ * relieved quickly and probed again slowly. Two floors apply on top: the last frame's size
+ * over the measured link throughput, which leaves room for commands and acknowledgments,
+ * and the encode time over the CPU share, which caps what the viewfinder costs the phone.
+ * Not thread safe.
+ * 
+ * @author DrKhiLL
+ */
+public class ViewfinderPacer {
+    
+    public static final int MAX_BUDGET_BYTES = 4096;
+    
+    private static final long MIN_INTERVAL_NANOS = 200 * 1000000L;
+    private static final long MAX_INTERVAL_NANOS = 4000 * 1000000L;
+    private static final long START_INTERVAL_NANOS = 500 * 1000000L;
+    private static final long INTERVAL_STEP_NANOS = 50 * 1000000L;
+    private static final long ACK_TIMEOUT_NANOS = 2000 * 1000000L;
+    
+    private static final int MIN_BUDGET_BYTES = 256;
+    private static final int START_BUDGET_BYTES = 1024;
+    private static final int BUDGET_STEP_BYTES = 128;
+    
+    // Share of the measured throughput the viewfinder may use
+    private static final double LINK_SHARE = 0.75;
+    // Share of one core the encoder may use
+    private static final double CPU_SHARE = 0.1;
+    // Frames smaller than this mostly measure latency, not throughput
+    private static final int MIN_SAMPLE_BYTES = 256;
+    
+    private long intervalNanos = START_INTERVAL_NANOS;
+    private int budgetBytes = START_BUDGET_BYTES;
+    private double bytesPerSecond = -1; // Smoothed link throughput, -1 until measured
+    private long encodeNanos = 0; // Smoothed encode time
+    
+    private int inFlightFrame = -1;
+    private long inFlightSentNanos;
+    private int inFlightBytes;
+    private long lastSentNanos;
+    private int lastSentBytes;
+    
+    private long sentCount = 0;
+    private long ackedCount = 0;
+    private long droppedCount = 0;
+    
+    /**
+     * Whether a frame should be encoded now; also expires a frame the watch never acknowledged
+     */
+    public boolean isFrameDue(long nowNanos) {
+        if (inFlightFrame >= 0) {
+            if (nowNanos - inFlightSentNanos < ACK_TIMEOUT_NANOS) {
+                return false;
+            }
+            onDropped();
+        }
+        return nowNanos - lastSentNanos >= getIntervalNanos();
+    }
+    
+    /**
+     * Current spacing between frames, all floors applied
+     */
+    public long getIntervalNanos() {
+        long interval = intervalNanos;
+        if (bytesPerSecond > 0) {
+            interval = Math.max(interval, (long) (lastSentBytes * 1e9 / (bytesPerSecond * LINK_SHARE)));
+        }
+        interval = Math.max(interval, (long) (encodeNanos / CPU_SHARE));
+        return Math.min(interval, MAX_INTERVAL_NANOS);
+    }
+    
+    /**
+     * Most bytes the next frame may take
+     */
+    public int getBudgetBytes() {
+        return budgetBytes;
+    }
+    
+    public void onEncoded(long nanos) {
+        encodeNanos = encodeNanos == 0 ? nanos : (encodeNanos * 7 + nanos) / 8;
+    }
+    
+    /**
+     * An encoded frame went out, or nothing had changed and no frame was needed
+     * @param bytes Size of the frame, or 0 if none was sent
+     */
+    public void onSent(int frame, int bytes, long nowNanos) {
+        lastSentNanos = nowNanos;
+        lastSentBytes = bytes;
+        if (bytes > 0) {
+            inFlightFrame = frame;
+            inFlightSentNanos = nowNanos;
+            inFlightBytes = bytes;
+            sentCount++;
+        }
+    }
+    
+    /**
+     * @return True if this acknowledged the frame in flight; acknowledgments of expired frames are ignored
+     */
+    public boolean onAck(int frame, long nowNanos) {
+        if (frame != inFlightFrame) {
+            return false;
+        }
+        inFlightFrame = -1;
+        ackedCount++;
+        
+        long roundTrip = Math.max(1, nowNanos - inFlightSentNanos);
+        if (inFlightBytes >= MIN_SAMPLE_BYTES) {
+            double sample = inFlightBytes * 1e9 / roundTrip;
+            bytesPerSecond = bytesPerSecond < 0 ? sample : bytesPerSecond * 0.75 + sample * 0.25;
+        }
+        intervalNanos = Math.max(MIN_INTERVAL_NANOS, intervalNanos - INTERVAL_STEP_NANOS);
+        budgetBytes = Math.min(MAX_BUDGET_BYTES, budgetBytes + BUDGET_STEP_BYTES);
+        return true;
+    }
+    
+    private void onDropped() {
+        inFlightFrame = -1;
+        droppedCount++;
+        intervalNanos = Math.min(MAX_INTERVAL_NANOS, intervalNanos * 2);
+        budgetBytes = Math.max(MIN_BUDGET_BYTES, budgetBytes / 2);
+        if (bytesPerSecond > 0) {
+            bytesPerSecond /= 2;
+        }
+    }
+    
+    public String describe() {
+        return "interval=" + getIntervalNanos() / 1000000 + "ms budget=" + budgetBytes + "B link="
+            + (bytesPerSecond < 0 ? "?" : String.valueOf((long) bytesPerSecond)) + "B/s encode="
+            + encodeNanos / 1000 + "us sent=" + sentCount + " acked=" + ackedCount + " dropped=" + droppedCount;
+    }
+}
+
@@ -0,0 +1,111 @@
+package com.cameraclicker.util;
+
+import com.cameraclicker.camera.CameraFrame;
+
+/**
+ * Fixed-size ring of recently captured frames for zero-shutter-lag capture
+ * The oldest frame is closed when a new one arrives and the ring is full.
+ * Not thread-safe: all calls must come from the camera background thread.
+ * 
+ * @author DrKhiLL
+ */
+public class ZslRingBuffer {
+    
+    private final CameraFrame[] frames;
+    private int head = 0; // index of the oldest frame
+    private int size = 0;
+    
+    public ZslRingBuffer(int capacity) {
+        this.frames = new CameraFrame[Math.max(1, capacity)];
+    }
+    
+    /**
+     * Work out how many frames fit in the ring for a given frame size
+     * @param requestedDepth Configured ring depth
+     * @param memoryBudgetBytes Maximum memory the ring may hold
+     * @param frameBytes Estimated size of one buffered frame
+     * @return Depth to use, never less than one frame
+     */
+    public static int computeDepth(int requestedDepth, long memoryBudgetBytes, long frameBytes) {
+        if (frameBytes <= 0) {
+            return Math.max(1, requestedDepth);
+        }
+        long affordable = memoryBudgetBytes / frameBytes;
+        return (int) Math.max(1, Math.min(requestedDepth, affordable));
+    }
+    
+    /**
+     * Estimate the buffer size of a JPEG frame
+     * Camera HALs size JPEG buffers close to one byte per pixel at full quality.
+     */
+    public static long estimateJpegFrameBytes(int width, int height) {
+        return (long) width * height;
+    }
+    
+    public int capacity() {
+        return frames.length;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public void add(CameraFrame frame) {
+        if (size == frames.length) {
+            frames[head].close();
+            frames[head] = frame;
+            head = (head + 1) % frames.length;
+        } else {
+            frames[(head + size) % frames.length] = frame;
+            size++;
+        }
+    }
+    
+    /**
+     * Remove and return the frame whose timestamp is closest to the target
+     * @param targetTimestampNs Timestamp in the sensor time base
+     * @return Closest frame, or null if the ring is empty
+     */
+    public CameraFrame takeClosest(long targetTimestampNs) {
+        if (size == 0) {
+            return null;
+        }
+        
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            long distance = Math.abs(frames[(head + i) % frames.length].getTimestamp() - targetTimestampNs);
+            // Ties go to the newer frame
+            if (distance <= bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        
+        CameraFrame chosen = frames[(head + best) % frames.length];
+        
+        // Close the gap by shifting the newer frames back one slot
+        for (int i = best; i < size - 1; i++) {
+            frames[(head + i) % frames.length] = frames[(head + i + 1) % frames.length];
+        }
+        frames[(head + size - 1) % frames.length] = null;
+        size--;
+        
+        return chosen;
+    }
+    
+    public CameraFrame takeNewest() {
+        return takeClosest(Long.MAX_VALUE);
+    }
+    
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % frames.length;
+            frames[index].close();
+            frames[index] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+}
+
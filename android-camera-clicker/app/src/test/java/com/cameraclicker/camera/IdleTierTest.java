@@ -0,0 +1,74 @@
+package com.cameraclicker.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tier selection and next deadlines for an idle camera
+ * 
+ * @author DrKhiLL
+ */
+public class IdleTierTest {
+    
+    private static final long S = 1000000000L;
+    private static final long COOL = 30 * S;
+    private static final long COLD = 300 * S;
+    
+    @Test
+    public void tierFollowsIdleTime() {
+        assertSame(IdleTier.WARM, IdleTier.forIdle(0, COOL, COLD));
+        assertSame(IdleTier.WARM, IdleTier.forIdle(COOL - 1, COOL, COLD));
+        assertSame(IdleTier.COOL, IdleTier.forIdle(COOL, COOL, COLD));
+        assertSame(IdleTier.COOL, IdleTier.forIdle(COLD - 1, COOL, COLD));
+        assertSame(IdleTier.COLD, IdleTier.forIdle(COLD, COOL, COLD));
+    }
+    
+    @Test
+    public void zeroDisablesTier() {
+        assertSame(IdleTier.WARM, IdleTier.forIdle(1000 * S, 0, 0));
+        assertSame(IdleTier.COOL, IdleTier.forIdle(1000 * S, COOL, 0));
+        assertSame(IdleTier.WARM, IdleTier.forIdle(COOL, 0, COLD));
+        assertSame(IdleTier.COLD, IdleTier.forIdle(COLD, 0, COLD));
+    }
+    
+    @Test
+    public void coldWinsWhenItComesFirst() {
+        assertSame(IdleTier.COLD, IdleTier.forIdle(COOL, COLD, COOL));
+    }
+    
+    @Test
+    public void nextDeadlineStepsThroughTiers() {
+        assertEquals(COOL, IdleTier.WARM.nextAfterNanos(COOL, COLD));
+        assertEquals(COLD, IdleTier.COOL.nextAfterNanos(COOL, COLD));
+        assertEquals(-1, IdleTier.COLD.nextAfterNanos(COOL, COLD));
+    }
+    
+    @Test
+    public void nextDeadlineSkipsDisabledTiers() {
+        assertEquals(COLD, IdleTier.WARM.nextAfterNanos(0, COLD));
+        assertEquals(COOL, IdleTier.WARM.nextAfterNanos(COOL, 0));
+        assertEquals(-1, IdleTier.COOL.nextAfterNanos(COOL, 0));
+        assertEquals(-1, IdleTier.WARM.nextAfterNanos(0, 0));
+    }
+    
+    @Test
+    public void nextDeadlineGoesStraightToColdWhenCoolingComesLater() {
+        assertEquals(COOL, IdleTier.WARM.nextAfterNanos(COLD, COOL));
+        assertEquals(COOL, IdleTier.WARM.nextAfterNanos(COOL, COOL));
+    }
+    
+    @Test
+    public void deadlinesAgreeWithSelection() {
+        IdleTier tier = IdleTier.WARM;
+        long next = tier.nextAfterNanos(COOL, COLD);
+        while (next >= 0) {
+            assertSame(tier, IdleTier.forIdle(next - 1, COOL, COLD));
+            tier = IdleTier.forIdle(next, COOL, COLD);
+            next = tier.nextAfterNanos(COOL, COLD);
+        }
+        assertSame(IdleTier.COLD, tier);
+    }
+}
+
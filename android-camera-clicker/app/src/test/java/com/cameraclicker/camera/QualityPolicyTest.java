@@ -0,0 +1,83 @@
+package com.cameraclicker.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Downshift and recovery of the quality policy, and profile stepping
+ * 
+ * @author DrKhiLL
+ */
+public class QualityPolicyTest {
+    
+    private static final long HOLD_NANOS = 5000000000L;
+    private static final long PLENTY_OF_SPACE = 64L * 1024 * 1024 * 1024;
+    
+    private final QualityPolicy policy = new QualityPolicy(HOLD_NANOS);
+    
+    @Test
+    public void noPressureKeepsRequestedProfile() {
+        assertEquals(0, policy.update(0, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, 0));
+        assertEquals("none", policy.getReason());
+    }
+    
+    @Test
+    public void worstPressureAppliesAtOnce() {
+        assertEquals(1, policy.update(0.5, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, 0));
+        assertEquals("queue", policy.getReason());
+        
+        assertEquals(2, policy.update(0.5, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_SEVERE, 1));
+        assertEquals("thermal", policy.getReason());
+    }
+    
+    @Test
+    public void lowStorageStepsDown() {
+        assertEquals(1, policy.update(0, 512L * 1024 * 1024, QualityPolicy.THERMAL_STATUS_NONE, 0));
+        assertEquals(2, policy.update(0, 100L * 1024 * 1024, QualityPolicy.THERMAL_STATUS_NONE, 1));
+        assertEquals("storage", policy.getReason());
+    }
+    
+    @Test
+    public void unknownStorageIsNoPressure() {
+        assertEquals(0, policy.update(0, -1, QualityPolicy.THERMAL_STATUS_NONE, 0));
+    }
+    
+    @Test
+    public void stepsBackUpOneProfileAtATimeAfterHold() {
+        policy.update(0.9, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, 0);
+        
+        // Pressure gone, but not for long enough
+        assertEquals(2, policy.update(0, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, HOLD_NANOS - 1));
+        assertEquals(1, policy.update(0, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, HOLD_NANOS));
+        // The next step waits a full hold again
+        assertEquals(1, policy.update(0, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, HOLD_NANOS + 1));
+        assertEquals(0, policy.update(0, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, 2 * HOLD_NANOS));
+        assertEquals("none", policy.getReason());
+    }
+    
+    @Test
+    public void renewedPressureRestartsHold() {
+        policy.update(0.6, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, 0);
+        policy.update(0.6, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, HOLD_NANOS - 10);
+        
+        assertEquals(1, policy.update(0, PLENTY_OF_SPACE, QualityPolicy.THERMAL_STATUS_NONE, HOLD_NANOS));
+    }
+    
+    @Test
+    public void profilesStepDownAndStopAtSmallest() {
+        assertSame(QualityProfile.HIGH, QualityProfile.HIGH.stepDown(0));
+        assertSame(QualityProfile.MEDIUM, QualityProfile.HIGH.stepDown(1));
+        assertSame(QualityProfile.LOW, QualityProfile.MEDIUM.stepDown(2));
+        assertSame(QualityProfile.LOW, QualityProfile.LOW.stepDown(1));
+    }
+    
+    @Test
+    public void profilesAreFoundByWireName() {
+        assertSame(QualityProfile.MEDIUM, QualityProfile.fromName("medium"));
+        assertNull(QualityProfile.fromName("ultra"));
+    }
+}
+
@@ -0,0 +1,371 @@
+package com.cameraclicker.camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Open, capture, frame delivery and fault injection of the simulated camera backend
+ * 
+ * @author DrKhiLL
+ */
+public class SimulatedCameraHalTest {
+    
+    private static final long WAIT_MS = 5000;
+    
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final BlockingQueue<CameraFrame> frames = new LinkedBlockingQueue<>();
+    private final List<Long> startedTimestamps = Collections.synchronizedList(new ArrayList<Long>());
+    
+    private SimulatedCameraHal.Config config;
+    private ExecutorService cameraThread;
+    private SimulatedCameraHal hal;
+    private CameraHal.Device device;
+    
+    private final CameraHal.DeviceCallback deviceCallback = new CameraHal.DeviceCallback() {
+        @Override
+        public void onOpened(CameraHal.Device opened) {
+            device = opened;
+            events.add("opened");
+        }
+        
+        @Override
+        public void onDisconnected(CameraHal.Device disconnected) {
+            events.add("disconnected");
+        }
+        
+        @Override
+        public void onError(CameraHal.Device failed, int error) {
+            events.add("error " + error);
+        }
+    };
+    
+    private final CameraHal.FrameListener frameListener = new CameraHal.FrameListener() {
+        @Override
+        public void onFrameAvailable(CameraFrame frame) {
+            frames.add(frame);
+        }
+    };
+    
+    private final CameraHal.CaptureCallback captureCallback = new CameraHal.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(CaptureSpec spec, long timestamp) {
+            startedTimestamps.add(timestamp);
+        }
+        
+        @Override
+        public void onCaptureCompleted(CaptureSpec spec, long timestamp) {
+            events.add("completed");
+        }
+        
+        @Override
+        public void onCaptureFailed(CaptureSpec spec, boolean imageCaptured) {
+            events.add("failed");
+        }
+        
+        @Override
+        public void onBufferLost(CaptureSpec spec) {
+            events.add("buffer lost");
+        }
+        
+        @Override
+        public void onSequenceAborted(int sequenceId) {
+            events.add("aborted " + sequenceId);
+        }
+    };
+    
+    @Before
+    public void setUp() {
+        config = new SimulatedCameraHal.Config();
+        config.openLatencyMs = 5;
+        config.configureLatencyMs = 5;
+        config.captureLatencyMs = 10;
+        config.frameIntervalMs = 5;
+        cameraThread = Executors.newSingleThreadExecutor();
+    }
+    
+    @After
+    public void tearDown() {
+        if (hal != null) {
+            hal.release();
+        }
+        cameraThread.shutdownNow();
+    }
+    
+    @Test
+    public void enumeratesDefaultCameras() {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        List<CameraInfo> cameras = hal.enumerateCameras();
+        
+        assertEquals(2, cameras.size());
+        assertEquals(CameraInfo.FACING_BACK, cameras.get(0).facing);
+        assertEquals(CameraInfo.FACING_FRONT, cameras.get(1).facing);
+    }
+    
+    @Test
+    public void opensCamera() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        hal.openCamera("0", deviceCallback);
+        
+        assertEquals("opened", next());
+        assertEquals("0", device.getId());
+    }
+    
+    @Test(expected = CameraHalException.class)
+    public void unknownCameraIsRefused() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        hal.openCamera("7", deviceCallback);
+    }
+    
+    @Test
+    public void captureDeliversJpegFrame() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 640, 480, 2, frameListener);
+        CameraHal.Session session = openSession(stream);
+        
+        session.capture(new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream), captureCallback);
+        
+        CameraFrame frame = nextFrame();
+        assertEquals(CameraHal.FORMAT_JPEG, frame.getFormat());
+        assertEquals(640, frame.getWidth());
+        assertEquals(1, frame.getPlaneCount());
+        ByteBuffer data = frame.getPlaneBuffer(0);
+        assertTrue(data.remaining() > 1024);
+        assertEquals((byte) 0xFF, data.get(0));
+        assertEquals((byte) 0xD8, data.get(1));
+        assertEquals((byte) 0xFF, data.get(data.limit() - 2));
+        assertEquals((byte) 0xD9, data.get(data.limit() - 1));
+        frame.close();
+        
+        assertEquals("completed", next());
+        assertEquals(1, startedTimestamps.size());
+        assertEquals((long) startedTimestamps.get(0), frame.getTimestamp());
+        assertEquals(1, hal.getFramesDelivered());
+    }
+    
+    @Test
+    public void burstFramesArriveInExposureOrder() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 320, 240, 4, frameListener);
+        CameraHal.Session session = openSession(stream);
+        CaptureSpec spec = new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream);
+        
+        session.captureBurst(Collections.nCopies(5, spec), captureCallback);
+        
+        long previous = Long.MIN_VALUE;
+        for (int i = 0; i < 5; i++) {
+            CameraFrame frame = nextFrame();
+            assertTrue(frame.getTimestamp() > previous);
+            previous = frame.getTimestamp();
+            frame.close();
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals("completed", next());
+        }
+    }
+    
+    @Test
+    public void yuvFrameHasThreePlanes() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_YUV_420_888, 64, 48, 1, frameListener);
+        CameraHal.Session session = openSession(stream);
+        
+        session.capture(new CaptureSpec(CaptureSpec.TEMPLATE_PREVIEW, stream), captureCallback);
+        
+        CameraFrame frame = nextFrame();
+        assertEquals(3, frame.getPlaneCount());
+        assertEquals(64, frame.getRowStride(0));
+        assertEquals(64 * 48, frame.getPlaneBuffer(0).remaining());
+        frame.close();
+    }
+    
+    @Test
+    public void openFailureIsReported() throws Exception {
+        config.openFailureRate = 1;
+        hal = new SimulatedCameraHal(config, cameraThread);
+        hal.openCamera("0", deviceCallback);
+        
+        assertEquals("error " + CameraHal.ERROR_CAMERA_DEVICE, next());
+    }
+    
+    @Test
+    public void configureFailureIsReported() throws Exception {
+        config.configureFailureRate = 1;
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 320, 240, 1, frameListener);
+        hal.openCamera("0", deviceCallback);
+        assertEquals("opened", next());
+        
+        device.createSession(Collections.singletonList(stream), new CameraHal.SessionCallback() {
+            @Override
+            public void onConfigured(CameraHal.Session session) {
+                events.add("configured");
+            }
+            
+            @Override
+            public void onConfigureFailed() {
+                events.add("configure failed");
+            }
+        });
+        
+        assertEquals("configure failed", next());
+    }
+    
+    @Test
+    public void captureFailureDeliversNoFrame() throws Exception {
+        config.captureFailureRate = 1;
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 320, 240, 1, frameListener);
+        CameraHal.Session session = openSession(stream);
+        
+        session.capture(new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream), captureCallback);
+        
+        assertEquals("failed", next());
+        assertNull(frames.poll(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, hal.getCapturesFailed());
+    }
+    
+    @Test
+    public void bufferIsLostWhileEveryFrameIsHeld() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 320, 240, 1, frameListener);
+        CameraHal.Session session = openSession(stream);
+        CaptureSpec spec = new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream);
+        
+        session.capture(spec, captureCallback);
+        CameraFrame held = nextFrame();
+        assertEquals("completed", next());
+        
+        session.capture(spec, captureCallback);
+        assertEquals("buffer lost", next());
+        assertEquals("completed", next());
+        assertEquals(1, hal.getBuffersLost());
+        
+        // Closing the held frame returns its buffer
+        held.close();
+        session.capture(spec, captureCallback);
+        assertNotNull(nextFrame());
+    }
+    
+    @Test
+    public void injectedBufferLossIsReported() throws Exception {
+        config.bufferLossRate = 1;
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 320, 240, 2, frameListener);
+        CameraHal.Session session = openSession(stream);
+        
+        session.capture(new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream), captureCallback);
+        
+        assertEquals("buffer lost", next());
+        assertEquals(0, hal.getFramesDelivered());
+    }
+    
+    @Test
+    public void closingSessionAbortsQueuedCaptures() throws Exception {
+        config.frameIntervalMs = 200;
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_JPEG, 320, 240, 4, frameListener);
+        CameraHal.Session session = openSession(stream);
+        CaptureSpec spec = new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream);
+        
+        int sequenceId = session.captureBurst(Collections.nCopies(4, spec), captureCallback);
+        session.close();
+        
+        assertEquals("aborted " + sequenceId, next());
+        try {
+            session.capture(spec, captureCallback);
+            fail("Capture on a closed session was accepted");
+        } catch (CameraHalException expected) {
+            // Closed sessions refuse new work
+        }
+    }
+    
+    @Test
+    public void injectedDisconnectIsReported() throws Exception {
+        hal = new SimulatedCameraHal(config, cameraThread);
+        hal.openCamera("1", deviceCallback);
+        assertEquals("opened", next());
+        
+        hal.injectDisconnect("1");
+        
+        assertEquals("disconnected", next());
+    }
+    
+    @Test
+    public void threeAConvergesOverRepeatingFrames() throws Exception {
+        config.aeConvergeFrames = 3;
+        config.afConvergeFrames = 3;
+        hal = new SimulatedCameraHal(config, cameraThread);
+        CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_YUV_420_888, 64, 48, 2, frameListener);
+        CameraHal.Session session = openSession(stream);
+        CaptureSpec spec = new CaptureSpec(CaptureSpec.TEMPLATE_PREVIEW, stream);
+        spec.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+        final BlockingQueue<Integer> aeStates = new LinkedBlockingQueue<>();
+        
+        session.setRepeating(spec, new CameraHal.CaptureCallback() {
+            @Override
+            public void onCaptureCompleted(CaptureSpec completed, long timestamp, int afState, int aeState) {
+                aeStates.add(aeState);
+            }
+        });
+        
+        assertEquals(CameraHal.AE_STATE_SEARCHING, (int) aeStates.poll(WAIT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 4; i++) {
+            CameraFrame frame = nextFrame();
+            frame.close();
+            aeStates.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(CameraHal.AE_STATE_CONVERGED, (int) aeStates.poll(WAIT_MS, TimeUnit.MILLISECONDS));
+        session.stopRepeating();
+    }
+    
+    private CameraHal.Session openSession(CameraHal.Stream stream) throws Exception {
+        hal.openCamera("0", deviceCallback);
+        assertEquals("opened", next());
+        
+        final BlockingQueue<CameraHal.Session> configured = new LinkedBlockingQueue<>();
+        device.createSession(Collections.singletonList(stream), new CameraHal.SessionCallback() {
+            @Override
+            public void onConfigured(CameraHal.Session session) {
+                configured.add(session);
+            }
+            
+            @Override
+            public void onConfigureFailed() {
+                events.add("configure failed");
+            }
+        });
+        CameraHal.Session session = configured.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Session was not configured", session);
+        return session;
+    }
+    
+    private String next() throws InterruptedException {
+        String event = events.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("No camera event", event);
+        return event;
+    }
+    
+    private CameraFrame nextFrame() throws InterruptedException {
+        CameraFrame frame = frames.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("No frame delivered", frame);
+        return frame;
+    }
+}
+
@@ -0,0 +1,407 @@
+package com.cameraclicker.camera;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Convergence waits, precapture, timeout, abort and flash re-metering of the 3A manager
+ * Most cases feed results by hand through a scripted session; the last ones run the
+ * manager against the simulated backend's AF and AE model.
+ * 
+ * @author DrKhiLL
+ */
+public class ThreeAManagerTest {
+    
+    private static final long LONG_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long WAIT_MS = 5000;
+    
+    /**
+     * Records requests and hands results to whichever callback the manager registered
+     */
+    private static class ScriptedSession implements CameraHal.Session {
+        CaptureSpec repeating;
+        CameraHal.CaptureCallback repeatingCallback;
+        int repeatingCount = 0;
+        final List<CaptureSpec> captures = new ArrayList<>();
+        CameraHal.CaptureCallback captureCallback;
+        long timestamp = 0;
+        
+        @Override
+        public int capture(CaptureSpec spec, CameraHal.CaptureCallback callback) {
+            captures.add(spec);
+            captureCallback = callback;
+            return captures.size();
+        }
+        
+        @Override
+        public int captureBurst(List<CaptureSpec> specs, CameraHal.CaptureCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public int setRepeating(CaptureSpec spec, CameraHal.CaptureCallback callback) {
+            repeating = spec;
+            repeatingCallback = callback;
+            repeatingCount++;
+            return 0;
+        }
+        
+        @Override
+        public void stopRepeating() {
+            repeating = null;
+        }
+        
+        @Override
+        public void close() {
+        }
+        
+        void result(int af, int ae) {
+            repeatingCallback.onCaptureCompleted(repeating, ++timestamp, af, ae);
+        }
+        
+        void precaptureResult(int af, int ae) {
+            captureCallback.onCaptureCompleted(captures.get(captures.size() - 1), ++timestamp, af, ae);
+        }
+    }
+    
+    private final List<Integer> outcomes = new ArrayList<>();
+    private final ThreeAManager.ReadyCallback recorder = new ThreeAManager.ReadyCallback() {
+        @Override
+        public void onReady(int outcome, long waitNanos) {
+            outcomes.add(outcome);
+        }
+    };
+    
+    private final CaptureSpec metering = new CaptureSpec(CaptureSpec.TEMPLATE_PREVIEW);
+    private final ScriptedSession session = new ScriptedSession();
+    private ExecutorService cameraThread;
+    private SimulatedCameraHal hal;
+    
+    @After
+    public void tearDown() {
+        if (hal != null) {
+            hal.release();
+        }
+        if (cameraThread != null) {
+            cameraThread.shutdownNow();
+        }
+    }
+    
+    private ThreeAManager started(boolean meterFlash, long timeoutNanos) throws CameraHalException {
+        metering.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+        ThreeAManager manager = new ThreeAManager(metering, meterFlash, timeoutNanos);
+        manager.start(session);
+        return manager;
+    }
+    
+    private void converge() {
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_CONVERGED);
+    }
+    
+    @Test
+    public void unmeteredWithoutSession() {
+        ThreeAManager manager = new ThreeAManager(metering, true, LONG_TIMEOUT_NANOS);
+        manager.awaitReady(recorder);
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_UNMETERED), outcomes);
+    }
+    
+    @Test
+    public void convergedReleasesAtOnce() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        manager.setFlashMode("off");
+        converge();
+        
+        manager.awaitReady(recorder);
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_READY), outcomes);
+        assertFalse(manager.isWaiting());
+    }
+    
+    @Test
+    public void waitsForConvergence() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        session.result(CameraHal.AF_STATE_PASSIVE_SCAN, CameraHal.AE_STATE_SEARCHING);
+        
+        manager.awaitReady(recorder);
+        assertTrue(outcomes.isEmpty());
+        assertTrue(manager.isWaiting());
+        
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_SEARCHING);
+        assertTrue(outcomes.isEmpty());
+        converge();
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_CONVERGED), outcomes);
+        assertFalse(manager.isWaiting());
+    }
+    
+    @Test
+    public void waitersAreReleasedTogetherInOrder() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        final List<String> order = new ArrayList<>();
+        for (final String name : new String[] {"first", "second"}) {
+            manager.awaitReady(new ThreeAManager.ReadyCallback() {
+                @Override
+                public void onReady(int outcome, long waitNanos) {
+                    order.add(name);
+                }
+            });
+        }
+        converge();
+        
+        assertEquals(2, order.size());
+        assertEquals("first", order.get(0));
+        assertEquals("second", order.get(1));
+    }
+    
+    @Test
+    public void flashOnRunsPrecaptureThroughBothPhases() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        manager.setFlashMode("on");
+        converge();
+        
+        manager.awaitReady(recorder);
+        assertEquals(1, session.captures.size());
+        CaptureSpec precapture = session.captures.get(0);
+        assertEquals(CaptureSpec.AE_PRECAPTURE_TRIGGER_START, precapture.aePrecaptureTrigger);
+        assertEquals(CaptureSpec.AE_MODE_ON_ALWAYS_FLASH, precapture.aeMode);
+        assertEquals(CaptureSpec.UNSET, metering.aePrecaptureTrigger);
+        
+        // Submitted: a frame exposed before the trigger still reports converged
+        converge();
+        assertTrue(outcomes.isEmpty());
+        // Running until AE leaves the precapture state
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_PRECAPTURE);
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_PRECAPTURE);
+        assertTrue(outcomes.isEmpty());
+        converge();
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_PRECAPTURE), outcomes);
+        assertEquals(1, session.captures.size());
+    }
+    
+    @Test
+    public void triggerResultStartsRunningPhase() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        manager.setFlashMode("on");
+        converge();
+        manager.awaitReady(recorder);
+        
+        // Some devices never report the precapture state; the trigger's own result counts instead
+        session.precaptureResult(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_CONVERGED);
+        assertTrue(outcomes.isEmpty());
+        converge();
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_PRECAPTURE), outcomes);
+    }
+    
+    @Test
+    public void autoFlashRunsPrecaptureOnlyWhenRequired() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        converge();
+        manager.awaitReady(recorder);
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_READY), outcomes);
+        assertTrue(session.captures.isEmpty());
+        
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_FLASH_REQUIRED);
+        manager.awaitReady(recorder);
+        assertEquals(1, session.captures.size());
+        assertEquals(CaptureSpec.AE_MODE_ON_AUTO_FLASH, session.captures.get(0).aeMode);
+    }
+    
+    @Test
+    public void timeoutReleasesUnconverged() throws Exception {
+        ThreeAManager manager = started(true, TimeUnit.MILLISECONDS.toNanos(1));
+        session.result(CameraHal.AF_STATE_PASSIVE_SCAN, CameraHal.AE_STATE_SEARCHING);
+        manager.awaitReady(recorder);
+        Thread.sleep(5);
+        
+        // No result arrives, for example while a burst holds the sensor
+        manager.checkTimeout();
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_TIMED_OUT), outcomes);
+    }
+    
+    @Test
+    public void timeoutAlsoEndsPrecapture() throws Exception {
+        ThreeAManager manager = started(true, TimeUnit.MILLISECONDS.toNanos(1));
+        manager.setFlashMode("on");
+        converge();
+        manager.awaitReady(recorder);
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_PRECAPTURE);
+        Thread.sleep(5);
+        
+        session.result(CameraHal.AF_STATE_PASSIVE_FOCUSED, CameraHal.AE_STATE_PRECAPTURE);
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_TIMED_OUT), outcomes);
+        
+        // The next capture starts a fresh precapture rather than waiting on the stale one
+        converge();
+        manager.awaitReady(recorder);
+        assertEquals(2, session.captures.size());
+    }
+    
+    @Test
+    public void stopAbortsWaitersAndIgnoresLaterResults() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        manager.awaitReady(recorder);
+        
+        manager.stop();
+        assertEquals(Collections.singletonList(ThreeAManager.OUTCOME_ABORTED), outcomes);
+        assertFalse(manager.isWaiting());
+        
+        converge();
+        assertFalse(manager.isConverged());
+        manager.awaitReady(recorder);
+        assertEquals(ThreeAManager.OUTCOME_UNMETERED, (int) outcomes.get(1));
+    }
+    
+    @Test
+    public void awaitConvergedRunsOnceSettled() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        final List<String> converged = new ArrayList<>();
+        manager.awaitConverged(new Runnable() {
+            @Override
+            public void run() {
+                converged.add("converged");
+            }
+        });
+        session.result(CameraHal.AF_STATE_ACTIVE_SCAN, CameraHal.AE_STATE_CONVERGED);
+        assertTrue(converged.isEmpty());
+        converge();
+        assertEquals(1, converged.size());
+        converge();
+        assertEquals(1, converged.size());
+    }
+    
+    @Test
+    public void flashModeChangeRemetersOnlyWhenAeModeChanges() throws Exception {
+        ThreeAManager manager = started(true, LONG_TIMEOUT_NANOS);
+        assertEquals(CaptureSpec.AE_MODE_ON_AUTO_FLASH, metering.aeMode);
+        assertEquals(1, session.repeatingCount);
+        
+        manager.setFlashMode("off");
+        assertEquals(CaptureSpec.AE_MODE_ON, metering.aeMode);
+        assertEquals(2, session.repeatingCount);
+        
+        manager.setFlashMode("on");
+        assertEquals(CaptureSpec.AE_MODE_ON_AUTO_FLASH, metering.aeMode);
+        assertEquals(3, session.repeatingCount);
+        
+        // Auto meters the same way as on
+        manager.setFlashMode("auto");
+        assertEquals(3, session.repeatingCount);
+        assertSame(metering, session.repeating);
+    }
+    
+    @Test
+    public void savedRequestIsNotRemetered() throws Exception {
+        metering.aeMode = CaptureSpec.AE_MODE_ON;
+        ThreeAManager manager = started(false, LONG_TIMEOUT_NANOS);
+        
+        manager.setFlashMode("on");
+        assertEquals(CaptureSpec.AE_MODE_ON, metering.aeMode);
+        assertEquals(1, session.repeatingCount);
+    }
+    
+    @Test
+    public void convergesOnSimulatedCamera() throws Exception {
+        BlockingQueue<Integer> released = runOnSimulatedCamera(new SimulatedCameraHal.Config(), "auto");
+        
+        Integer outcome = released.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("3A never released the capture", outcome);
+        assertEquals(ThreeAManager.OUTCOME_CONVERGED, (int) outcome);
+    }
+    
+    @Test
+    public void lowLightRunsPrecaptureOnSimulatedCamera() throws Exception {
+        SimulatedCameraHal.Config config = new SimulatedCameraHal.Config();
+        config.lowLight = true;
+        BlockingQueue<Integer> released = runOnSimulatedCamera(config, "auto");
+        
+        Integer outcome = released.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("3A never released the capture", outcome);
+        assertEquals(ThreeAManager.OUTCOME_PRECAPTURE, (int) outcome);
+    }
+    
+    /**
+     * Open the simulated camera, start metering and ask for a release, all on its camera thread
+     */
+    private BlockingQueue<Integer> runOnSimulatedCamera(SimulatedCameraHal.Config config, final String flashMode)
+            throws Exception {
+        config.openLatencyMs = 5;
+        config.configureLatencyMs = 5;
+        config.captureLatencyMs = 5;
+        config.frameIntervalMs = 5;
+        cameraThread = Executors.newSingleThreadExecutor();
+        hal = new SimulatedCameraHal(config, cameraThread);
+        
+        final CameraHal.Stream stream = hal.createStream(CameraHal.FORMAT_YUV_420_888, 64, 48, 2,
+            new CameraHal.FrameListener() {
+                @Override
+                public void onFrameAvailable(CameraFrame frame) {
+                    frame.close();
+                }
+            });
+        final BlockingQueue<CameraHal.Session> configured = new LinkedBlockingQueue<>();
+        hal.openCamera("0", new CameraHal.DeviceCallback() {
+            @Override
+            public void onOpened(CameraHal.Device device) {
+                try {
+                    device.createSession(Collections.singletonList(stream), new CameraHal.SessionCallback() {
+                        @Override
+                        public void onConfigured(CameraHal.Session session) {
+                            configured.add(session);
+                        }
+                        
+                        @Override
+                        public void onConfigureFailed() {
+                        }
+                    });
+                } catch (CameraHalException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+            @Override
+            public void onDisconnected(CameraHal.Device device) {
+            }
+            
+            @Override
+            public void onError(CameraHal.Device device, int error) {
+            }
+        });
+        final CameraHal.Session simulated = configured.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Session was not configured", simulated);
+        
+        final BlockingQueue<Integer> released = new LinkedBlockingQueue<>();
+        cameraThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                CaptureSpec request = new CaptureSpec(CaptureSpec.TEMPLATE_PREVIEW, stream);
+                request.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+                ThreeAManager manager = new ThreeAManager(request, true, LONG_TIMEOUT_NANOS);
+                manager.setFlashMode(flashMode);
+                manager.start(simulated);
+                manager.awaitReady(new ThreeAManager.ReadyCallback() {
+                    @Override
+                    public void onReady(int outcome, long waitNanos) {
+                        released.add(outcome);
+                    }
+                });
+                return null;
+            }
+        }).get(WAIT_MS, TimeUnit.MILLISECONDS);
+        return released;
+    }
+}
+
@@ -0,0 +1,164 @@
+package com.cameraclicker.protocol;
+
+import com.cameraclicker.service.CameraCommand;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips, watch byte layout and malformed input for the binary format
+ * 
+ * @author DrKhiLL
+ */
+public class BinaryCodecTest {
+    
+    private final BinaryCodec codec = new BinaryCodec();
+    private final CameraCommand decoded = new CameraCommand();
+    
+    @Test
+    public void captureRoundTrip() {
+        CameraCommand command = new CameraCommand();
+        command.action = "CAPTURE_PHOTO";
+        command.camera = "front";
+        command.flash = "off";
+        command.quality = "medium";
+        command.thumbnailSize = 120;
+        
+        byte[] buffer = new byte[64];
+        int length = BinaryCodec.encode(WireProtocol.TYPE_CAMERA_COMMAND, command, 42, 1760000000, buffer, 0);
+        
+        assertTrue(WireProtocol.isBinary(buffer, length));
+        assertEquals(WireProtocol.TYPE_CAMERA_COMMAND, codec.decode(buffer, 0, length, decoded));
+        assertEquals("CAPTURE_PHOTO", decoded.action);
+        assertEquals("front", decoded.camera);
+        assertEquals("off", decoded.flash);
+        assertEquals("medium", decoded.quality);
+        assertEquals(120, decoded.thumbnailSize);
+        assertEquals(42, decoded.commandId);
+        assertEquals(1760000000L, decoded.sentAt);
+    }
+    
+    @Test
+    public void decodedStringsComeFromTheProtocolTables() {
+        CameraCommand command = new CameraCommand();
+        command.action = new String("BURST");
+        command.camera = new String("rear");
+        command.quality = new String("low");
+        command.count = 10;
+        
+        byte[] buffer = new byte[64];
+        int length = BinaryCodec.encode(WireProtocol.TYPE_CAMERA_COMMAND, command, 1, 0, buffer, 0);
+        codec.decode(buffer, 0, length, decoded);
+        
+        assertSame(WireProtocol.COMMANDS[5], decoded.action);
+        assertSame(WireProtocol.CAMERAS[0], decoded.camera);
+        assertSame(WireProtocol.QUALITIES[2], decoded.quality);
+        assertEquals(10, decoded.count);
+    }
+    
+    @Test
+    public void timelapseRoundTrip() {
+        CameraCommand command = new CameraCommand();
+        command.action = "TIMELAPSE";
+        command.count = 120;
+        command.intervalMillis = 5000;
+        command.startAt = 4000000000L;
+        
+        byte[] buffer = new byte[64];
+        int length = BinaryCodec.encode(WireProtocol.TYPE_CAMERA_COMMAND, command, 7, 0, buffer, 0);
+        codec.decode(buffer, 0, length, decoded);
+        
+        assertEquals("TIMELAPSE", decoded.action);
+        assertEquals(120, decoded.count);
+        assertEquals(5000, decoded.intervalMillis);
+        assertEquals(4000000000L, decoded.startAt);
+    }
+    
+    /**
+     * Bytes as CommunicationManager.encodeBinaryMessage builds them for a capture
+     */
+    @Test
+    public void decodesWatchCapture() {
+        byte[] message = {
+            (byte) 0xCC, 1, 1, 1,
+            0, 0, 0, 9,
+            0x68, (byte) 0xEE, 0x00, 0x00,
+            1, 1, 0,
+            2, 1, 0,
+            4, 1, 0
+        };
+        
+        assertEquals(WireProtocol.TYPE_CAMERA_COMMAND, codec.decode(message, 0, message.length, decoded));
+        assertEquals("CAPTURE_PHOTO", decoded.action);
+        assertEquals("rear", decoded.camera);
+        assertEquals("auto", decoded.flash);
+        assertEquals("high", decoded.quality);
+        assertEquals(9, decoded.commandId);
+    }
+    
+    @Test
+    public void unknownTagsAreSkipped() {
+        byte[] message = {
+            (byte) 0xCC, 1, 1, 5,
+            0, 0, 0, 1,
+            0, 0, 0, 0,
+            (byte) 200, 3, 1, 2, 3,
+            3, 2, 0, 15
+        };
+        
+        assertEquals(WireProtocol.TYPE_CAMERA_COMMAND, codec.decode(message, 0, message.length, decoded));
+        assertEquals("BURST", decoded.action);
+        assertEquals(15, decoded.count);
+    }
+    
+    @Test
+    public void unknownCodeDecodesAsAbsent() {
+        byte[] message = {
+            (byte) 0xCC, 1, 1, 1,
+            0, 0, 0, 1,
+            0, 0, 0, 0,
+            4, 1, 9
+        };
+        
+        assertEquals(WireProtocol.TYPE_CAMERA_COMMAND, codec.decode(message, 0, message.length, decoded));
+        assertNull(decoded.quality);
+    }
+    
+    @Test
+    public void malformedMessagesAreRejected() {
+        byte[] truncatedHeader = {(byte) 0xCC, 1, 1, 1, 0, 0};
+        byte[] newerVersion = {(byte) 0xCC, 2, 1, 1, 0, 0, 0, 1, 0, 0, 0, 0};
+        byte[] unknownType = {(byte) 0xCC, 1, 99, 1, 0, 0, 0, 1, 0, 0, 0, 0};
+        byte[] overrunningValue = {(byte) 0xCC, 1, 1, 1, 0, 0, 0, 1, 0, 0, 0, 0, 3, 2, 0};
+        
+        assertEquals(WireProtocol.TYPE_UNKNOWN, codec.decode(truncatedHeader, 0, truncatedHeader.length, decoded));
+        assertEquals(WireProtocol.TYPE_UNKNOWN, codec.decode(newerVersion, 0, newerVersion.length, decoded));
+        assertEquals(WireProtocol.TYPE_UNKNOWN, codec.decode(unknownType, 0, unknownType.length, decoded));
+        assertEquals(WireProtocol.TYPE_UNKNOWN, codec.decode(overrunningValue, 0, overrunningValue.length, decoded));
+        assertEquals(4, codec.getRejectedCount());
+        assertEquals(0, codec.getDecodedCount());
+    }
+    
+    @Test
+    public void encodeRefusesValuesWithoutACode() {
+        CameraCommand command = new CameraCommand();
+        command.action = "CAPTURE_PHOTO";
+        command.quality = "ultra";
+        
+        assertEquals(-1, BinaryCodec.encode(WireProtocol.TYPE_CAMERA_COMMAND, command, 1, 0, new byte[64], 0));
+    }
+    
+    @Test
+    public void encodeRefusesShortBuffer() {
+        CameraCommand command = new CameraCommand();
+        command.action = "CAPTURE_PHOTO";
+        command.camera = "rear";
+        
+        assertEquals(-1, BinaryCodec.encode(WireProtocol.TYPE_CAMERA_COMMAND, command, 1, 0, new byte[14], 0));
+    }
+}
+
@@ -0,0 +1,25 @@
+package com.cameraclicker.protocol;
+
+import com.cameraclicker.camera.QualityProfile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The binary quality codes, which the watch mirrors, name exactly the quality profiles
+ * 
+ * @author DrKhiLL
+ */
+public class QualityCodesTest {
+    
+    @Test
+    public void everyProfileHasAWireCode() {
+        QualityProfile[] profiles = QualityProfile.values();
+        assertEquals(profiles.length, WireProtocol.QUALITIES.length);
+        for (int i = 0; i < profiles.length; i++) {
+            assertEquals(profiles[i].wireName, WireProtocol.QUALITIES[i]);
+        }
+    }
+}
+
@@ -0,0 +1,124 @@
+package com.cameraclicker.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Retransmit, reordering and restart handling of the sequence window
+ * 
+ * @author DrKhiLL
+ */
+public class SequenceWindowTest {
+    
+    private static final long SENT_AT = 1760000000L;
+    
+    private final SequenceWindow window = new SequenceWindow();
+    
+    @Test
+    public void newSequencesAreAccepted() {
+        for (int sequence = 1; sequence <= 100; sequence++) {
+            assertTrue(window.accept(sequence, SENT_AT));
+        }
+        assertEquals(0, window.getDuplicateCount());
+    }
+    
+    @Test
+    public void retransmitIsDropped() {
+        window.accept(1, SENT_AT);
+        window.accept(2, SENT_AT);
+        
+        assertFalse(window.accept(1, SENT_AT));
+        assertFalse(window.accept(2, SENT_AT));
+        assertEquals(2, window.getDuplicateCount());
+    }
+    
+    @Test
+    public void reorderedMessageIsAcceptedOnce() {
+        window.accept(1, SENT_AT);
+        window.accept(3, SENT_AT);
+        
+        assertTrue(window.accept(2, SENT_AT));
+        assertFalse(window.accept(2, SENT_AT));
+    }
+    
+    @Test
+    public void lostMessageRetransmittedLateIsAccepted() {
+        window.accept(1, SENT_AT);
+        for (int sequence = 3; sequence < 3 + SequenceWindow.SIZE - 2; sequence++) {
+            window.accept(sequence, SENT_AT + sequence / 60);
+        }
+        
+        assertTrue(window.accept(2, SENT_AT));
+    }
+    
+    @Test
+    public void retransmitOlderThanWindowIsDroppedWithoutRestart() {
+        for (int sequence = 1; sequence <= SequenceWindow.SIZE + 10; sequence++) {
+            window.accept(sequence, SENT_AT + sequence / 60);
+        }
+        
+        assertFalse(window.accept(5, SENT_AT));
+        assertFalse(window.accept(6, SENT_AT));
+        assertEquals(0, window.getResetCount());
+        // The window was not cleared by the stale ones
+        assertFalse(window.accept(SequenceWindow.SIZE, SENT_AT + SequenceWindow.SIZE / 60));
+    }
+    
+    @Test
+    public void firstSequenceSentLaterIsARestart() {
+        for (int sequence = 1; sequence <= 30; sequence++) {
+            window.accept(sequence, SENT_AT);
+        }
+        
+        assertTrue(window.accept(1, SENT_AT + 5));
+        assertTrue(window.accept(2, SENT_AT + 5));
+        assertFalse(window.accept(2, SENT_AT + 5));
+        assertEquals(1, window.getResetCount());
+    }
+    
+    @Test
+    public void retransmitOfFirstSequenceIsNotARestart() {
+        window.accept(1, SENT_AT);
+        window.accept(2, SENT_AT + 1);
+        
+        assertFalse(window.accept(1, SENT_AT));
+        assertEquals(0, window.getResetCount());
+    }
+    
+    @Test
+    public void lowSequenceSentLaterIsNotARestart() {
+        for (int sequence = 1; sequence <= 30; sequence++) {
+            window.accept(sequence, SENT_AT);
+        }
+        
+        // Only sequence 1 can start a new run
+        assertFalse(window.accept(7, SENT_AT + 5));
+        assertEquals(0, window.getResetCount());
+    }
+    
+    @Test
+    public void bigJumpForgetsOlderSequences() {
+        window.accept(1, SENT_AT);
+        window.accept(1 + SequenceWindow.SIZE * 3, SENT_AT);
+        
+        assertTrue(window.accept(2 + SequenceWindow.SIZE * 2, SENT_AT));
+        assertFalse(window.accept(1 + SequenceWindow.SIZE, SENT_AT));
+    }
+    
+    @Test
+    public void skippedSequencesAreNotMistakenForSeen() {
+        for (int sequence = 1; sequence <= SequenceWindow.SIZE; sequence++) {
+            window.accept(sequence, SENT_AT);
+        }
+        // Skips over the bits of 1..9, which were set one lap ago
+        window.accept(SequenceWindow.SIZE + 10, SENT_AT);
+        
+        for (int sequence = SequenceWindow.SIZE + 1; sequence < SequenceWindow.SIZE + 10; sequence++) {
+            assertTrue(window.accept(sequence, SENT_AT));
+        }
+    }
+}
+
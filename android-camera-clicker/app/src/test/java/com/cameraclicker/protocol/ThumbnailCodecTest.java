@@ -0,0 +1,90 @@
+package com.cameraclicker.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Palette quantisation and run-length packing of watch thumbnails
+ * 
+ * @author DrKhiLL
+ */
+public class ThumbnailCodecTest {
+    
+    @Test
+    public void headerCarriesFormatAndSize() {
+        byte[] data = ThumbnailCodec.encode(new int[300 * 2], 300, 2);
+        
+        assertEquals(ThumbnailCodec.FORMAT_RGB222_RLE, data[0]);
+        assertEquals(300, ThumbnailCodec.getWidth(data));
+        assertEquals(2, ThumbnailCodec.getHeight(data));
+    }
+    
+    @Test
+    public void flatAreaPacksFourPixelsPerByte() {
+        int[] pixels = new int[16];
+        java.util.Arrays.fill(pixels, 0xFF0000FF);
+        byte[] data = ThumbnailCodec.encode(pixels, 4, 4);
+        
+        assertEquals(ThumbnailCodec.HEADER_SIZE + 4, data.length);
+        // Run of four in the top bits, pure blue (index 3) in the low six
+        assertEquals((byte) (3 << 6 | 3), data[ThumbnailCodec.HEADER_SIZE]);
+    }
+    
+    @Test
+    public void runsContinueAcrossRowEnds() {
+        int[] pixels = {
+            0xFFFFFFFF, 0xFF000000, 0xFF000000,
+            0xFF000000, 0xFF000000, 0xFFFFFFFF
+        };
+        byte[] data = ThumbnailCodec.encode(pixels, 3, 2);
+        
+        assertEquals(ThumbnailCodec.HEADER_SIZE + 3, data.length);
+        assertEquals((byte) 0x3F, data[5]);
+        assertEquals((byte) (3 << 6), data[6]);
+        assertEquals((byte) 0x3F, data[7]);
+    }
+    
+    @Test
+    public void quantizesToNearestLevel() {
+        assertEquals(0, ThumbnailCodec.quantize(0xFF2A2A2A));
+        assertEquals(1 << 4 | 1 << 2 | 1, ThumbnailCodec.quantize(0xFF2B2B2B));
+        assertEquals(2 << 4, ThumbnailCodec.quantize(0xFFAA0000));
+        // Alpha is ignored
+        assertEquals(ThumbnailCodec.quantize(0xFF123456), ThumbnailCodec.quantize(0x00123456));
+    }
+    
+    @Test
+    public void decodeInvertsEncodeOnPaletteColours() {
+        int[] pixels = new int[7 * 5];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = ThumbnailCodec.toArgb((i / 3) % 64);
+        }
+        int[] decoded = ThumbnailCodec.decode(ThumbnailCodec.encode(pixels, 7, 5));
+        
+        assertNotNull(decoded);
+        assertArrayEquals(pixels, decoded);
+    }
+    
+    @Test
+    public void decodeMapsEveryPixelToItsNearestPaletteColour() {
+        int[] pixels = {0xFF101010, 0xFF808080, 0xFFF0F0F0, 0xFFFF0090};
+        int[] decoded = ThumbnailCodec.decode(ThumbnailCodec.encode(pixels, 2, 2));
+        
+        assertArrayEquals(new int[] {0xFF000000, 0xFFAAAAAA, 0xFFFFFFFF, 0xFFFF00AA}, decoded);
+    }
+    
+    @Test
+    public void rejectsOtherFormatsAndTruncatedData() {
+        assertNull(ThumbnailCodec.decode(new byte[] {1, 0, 1}));
+        assertNull(ThumbnailCodec.decode(new byte[] {2, 0, 1, 0, 1, 0}));
+        
+        byte[] data = ThumbnailCodec.encode(new int[] {0xFFFFFFFF, 0xFF000000, 0xFFFFFFFF, 0xFF000000}, 2, 2);
+        byte[] truncated = java.util.Arrays.copyOf(data, data.length - 1);
+        assertNull(ThumbnailCodec.decode(truncated));
+    }
+}
+
@@ -0,0 +1,207 @@
+package com.cameraclicker.protocol;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tile packing, frame application and dithered downscaling of viewfinder frames
+ * 
+ * @author DrKhiLL
+ */
+public class ViewfinderCodecTest {
+    
+    private static final int SIZE = 16;
+    
+    private static byte[] randomLevels(int bits, long seed) {
+        Random random = new Random(seed);
+        byte[] levels = new byte[SIZE * SIZE];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = (byte) random.nextInt(1 << bits);
+        }
+        return levels;
+    }
+    
+    private static byte[] encodeAll(byte[] levels, int bits) {
+        int tiles = (SIZE / ViewfinderCodec.TILE_SIZE) * (SIZE / ViewfinderCodec.TILE_SIZE);
+        byte[] out = new byte[ViewfinderCodec.HEADER_SIZE + tiles * ViewfinderCodec.tileBytes(bits)];
+        int position = ViewfinderCodec.writeHeader(out, SIZE, SIZE, bits);
+        for (int tile = 0; tile < tiles; tile++) {
+            position = ViewfinderCodec.writeTile(out, position, levels, SIZE, bits, tile);
+        }
+        assertEquals(out.length, position);
+        return out;
+    }
+    
+    @Test
+    public void supportsOneTwoAndFourBits() {
+        assertTrue(ViewfinderCodec.isSupportedDepth(1));
+        assertTrue(ViewfinderCodec.isSupportedDepth(2));
+        assertTrue(ViewfinderCodec.isSupportedDepth(4));
+        assertFalse(ViewfinderCodec.isSupportedDepth(3));
+        assertFalse(ViewfinderCodec.isSupportedDepth(8));
+        
+        assertEquals(2 + 8, ViewfinderCodec.tileBytes(1));
+        assertEquals(2 + 16, ViewfinderCodec.tileBytes(2));
+        assertEquals(2 + 32, ViewfinderCodec.tileBytes(4));
+    }
+    
+    @Test
+    public void headerDescribesFrame() {
+        byte[] out = new byte[ViewfinderCodec.HEADER_SIZE];
+        ViewfinderCodec.writeHeader(out, 256, 16, 2);
+        
+        assertArrayEquals(new byte[] {ViewfinderCodec.FORMAT_GRAY_TILES, 1, 0, 0, 16, 2, 8}, out);
+    }
+    
+    @Test
+    public void pixelsPackMostSignificantFirst() {
+        byte[] levels = new byte[SIZE * SIZE];
+        // Tile 3 is the bottom right one
+        int start = ViewfinderCodec.TILE_SIZE * SIZE + ViewfinderCodec.TILE_SIZE;
+        levels[start] = 0x3;
+        levels[start + 1] = 0xA;
+        
+        byte[] out = new byte[ViewfinderCodec.tileBytes(4)];
+        assertEquals(out.length, ViewfinderCodec.writeTile(out, 0, levels, SIZE, 4, 3));
+        assertEquals(0, out[0]);
+        assertEquals(3, out[1]);
+        assertEquals(0x3A, out[2]);
+        assertEquals(0, out[3]);
+        
+        levels[start + 1] = 1;
+        ViewfinderCodec.writeTile(out, 0, levels, SIZE, 1, 3);
+        assertEquals((byte) 0xC0, out[2]);
+    }
+    
+    @Test
+    public void applyInvertsWriteAtEveryDepth() {
+        for (int bits = 1; bits <= 4; bits *= 2) {
+            byte[] levels = randomLevels(bits, bits);
+            byte[] decoded = new byte[levels.length];
+            byte[] frame = encodeAll(levels, bits);
+            
+            assertTrue(ViewfinderCodec.apply(frame, frame.length, decoded, SIZE, SIZE, bits));
+            assertArrayEquals("bits=" + bits, levels, decoded);
+        }
+    }
+    
+    @Test
+    public void applyTouchesOnlyTheTilesSent() {
+        byte[] levels = randomLevels(2, 7);
+        byte[] out = new byte[ViewfinderCodec.HEADER_SIZE + ViewfinderCodec.tileBytes(2)];
+        int position = ViewfinderCodec.writeHeader(out, SIZE, SIZE, 2);
+        position = ViewfinderCodec.writeTile(out, position, levels, SIZE, 2, 1);
+        
+        byte[] shown = new byte[levels.length];
+        assertTrue(ViewfinderCodec.apply(out, position, shown, SIZE, SIZE, 2));
+        for (int tile = 0; tile < 4; tile++) {
+            assertEquals("tile " + tile, tile != 1, ViewfinderCodec.tileDiffers(levels, shown, SIZE, tile));
+        }
+    }
+    
+    @Test
+    public void applyRejectsFramesThatDoNotFit() {
+        byte[] levels = new byte[SIZE * SIZE];
+        byte[] frame = encodeAll(randomLevels(1, 3), 1);
+        
+        assertFalse(ViewfinderCodec.apply(frame, frame.length, new byte[32 * SIZE], 32, SIZE, 1));
+        assertFalse(ViewfinderCodec.apply(frame, frame.length, levels, SIZE, SIZE, 2));
+        assertFalse(ViewfinderCodec.apply(frame, frame.length - 1, levels, SIZE, SIZE, 1));
+        assertFalse(ViewfinderCodec.apply(frame, 3, levels, SIZE, SIZE, 1));
+        
+        frame[ViewfinderCodec.HEADER_SIZE + 1] = 4;
+        assertFalse(ViewfinderCodec.apply(frame, frame.length, levels, SIZE, SIZE, 1));
+        
+        frame[0] = ThumbnailCodec.FORMAT_RGB222_RLE;
+        assertFalse(ViewfinderCodec.apply(frame, frame.length, levels, SIZE, SIZE, 1));
+    }
+    
+    @Test
+    public void copyTileMakesTilesEqual() {
+        byte[] a = randomLevels(4, 1);
+        byte[] b = randomLevels(4, 2);
+        
+        ViewfinderCodec.copyTile(a, b, SIZE, 2);
+        assertFalse(ViewfinderCodec.tileDiffers(a, b, SIZE, 2));
+        assertTrue(ViewfinderCodec.tileDiffers(a, b, SIZE, 0));
+        assertTrue(ViewfinderCodec.tileDiffers(a, b, SIZE, 3));
+    }
+    
+    @Test
+    public void flatGrayDithersToStablePattern() {
+        byte[] source = new byte[SIZE * SIZE];
+        java.util.Arrays.fill(source, (byte) 128);
+        byte[] levels = new byte[SIZE * SIZE];
+        byte[] again = new byte[SIZE * SIZE];
+        
+        ViewfinderCodec.downscale(source, SIZE, SIZE, SIZE, levels, SIZE, SIZE, 1);
+        ViewfinderCodec.downscale(source, SIZE, SIZE, SIZE, again, SIZE, SIZE, 1);
+        
+        assertArrayEquals(levels, again);
+        int lit = 0;
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                lit += levels[y * SIZE + x];
+            }
+        }
+        assertEquals(8, lit);
+    }
+    
+    @Test
+    public void blackAndWhiteStayPure() {
+        byte[] source = new byte[SIZE * SIZE];
+        byte[] levels = new byte[SIZE * SIZE];
+        ViewfinderCodec.downscale(source, SIZE, SIZE, SIZE, levels, SIZE, SIZE, 4);
+        assertArrayEquals(new byte[SIZE * SIZE], levels);
+        
+        java.util.Arrays.fill(source, (byte) 255);
+        ViewfinderCodec.downscale(source, SIZE, SIZE, SIZE, levels, SIZE, SIZE, 4);
+        for (byte level : levels) {
+            assertEquals(15, level);
+        }
+    }
+    
+    @Test
+    public void widerSourceIsCroppedToTheCentre() {
+        // 64x16 with a stride of 80: white margins outside the centre 16x16, padding beyond
+        int width = 64;
+        int stride = 80;
+        byte[] source = new byte[stride * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < stride; x++) {
+                boolean centre = x >= 24 && x < 40;
+                source[y * stride + x] = centre ? 0 : (byte) 255;
+            }
+        }
+        byte[] levels = new byte[SIZE * SIZE];
+        ViewfinderCodec.downscale(source, width, SIZE, stride, levels, SIZE, SIZE, 2);
+        
+        assertArrayEquals(new byte[SIZE * SIZE], levels);
+    }
+    
+    @Test
+    public void downscaleAveragesCoveredPixels() {
+        // 32x32 checkerboard of black and white averages to mid gray at half the size
+        byte[] source = new byte[32 * 32];
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                source[y * 32 + x] = (x + y) % 2 == 0 ? 0 : (byte) 255;
+            }
+        }
+        byte[] levels = new byte[SIZE * SIZE];
+        byte[] flat = new byte[32 * 32];
+        java.util.Arrays.fill(flat, (byte) 127);
+        byte[] expected = new byte[SIZE * SIZE];
+        ViewfinderCodec.downscale(source, 32, 32, 32, levels, SIZE, SIZE, 2);
+        ViewfinderCodec.downscale(flat, 32, 32, 32, expected, SIZE, SIZE, 2);
+        
+        assertArrayEquals(expected, levels);
+    }
+}
+
@@ -0,0 +1,127 @@
+package com.cameraclicker.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordering, capacity and cross-thread hand-off of the command ring
+ * 
+ * @author DrKhiLL
+ */
+public class CommandRingTest {
+    
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(2, new CommandRing(1).capacity());
+        assertEquals(8, new CommandRing(5).capacity());
+        assertEquals(8, new CommandRing(8).capacity());
+        assertEquals(16, new CommandRing(9).capacity());
+    }
+    
+    @Test
+    public void commandsComeOutInOrder() {
+        CommandRing ring = new CommandRing(4);
+        for (int i = 0; i < 3; i++) {
+            CameraCommand command = ring.claim();
+            command.action = "CAPTURE_PHOTO";
+            command.commandId = i;
+            ring.publish();
+        }
+        
+        assertEquals(3, ring.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, ring.peek().commandId);
+            ring.release();
+        }
+        assertNull(ring.peek());
+        assertEquals(0, ring.size());
+    }
+    
+    @Test
+    public void claimFailsWhenFullAndRecoversAfterRelease() {
+        CommandRing ring = new CommandRing(2);
+        assertNotNull(ring.claim());
+        ring.publish();
+        assertNotNull(ring.claim());
+        ring.publish();
+        
+        assertNull(ring.claim());
+        
+        ring.peek();
+        ring.release();
+        assertNotNull(ring.claim());
+    }
+    
+    @Test
+    public void claimedSlotIsCleared() {
+        CommandRing ring = new CommandRing(2);
+        for (int i = 0; i < 2; i++) {
+            CameraCommand command = ring.claim();
+            command.action = "BURST";
+            command.count = 10;
+            ring.publish();
+            ring.peek();
+            ring.release();
+        }
+        
+        CameraCommand reused = ring.claim();
+        assertNull(reused.action);
+        assertEquals(0, reused.count);
+    }
+    
+    @Test
+    public void unpublishedCommandIsNotVisible() {
+        CommandRing ring = new CommandRing(4);
+        ring.claim().action = "CAPTURE_PHOTO";
+        assertNull(ring.peek());
+        ring.publish();
+        assertEquals("CAPTURE_PHOTO", ring.peek().action);
+    }
+    
+    @Test
+    public void consumerThreadSeesEveryCommandInOrder() throws InterruptedException {
+        final int total = 100000;
+        final CommandRing ring = new CommandRing(16);
+        final long[] received = new long[1];
+        final boolean[] ordered = {true};
+        
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int expected = 0;
+                while (expected < total) {
+                    CameraCommand command = ring.peek();
+                    if (command == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (command.commandId != expected) {
+                        ordered[0] = false;
+                    }
+                    expected++;
+                    ring.release();
+                }
+                received[0] = expected;
+            }
+        });
+        consumer.start();
+        
+        for (int i = 0; i < total; i++) {
+            CameraCommand command;
+            while ((command = ring.claim()) == null) {
+                Thread.yield();
+            }
+            command.commandId = i;
+            ring.publish();
+        }
+        consumer.join(10000);
+        
+        assertEquals(total, received[0]);
+        assertTrue(ordered[0]);
+    }
+}
+
@@ -0,0 +1,122 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.util.CaptureRecord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frame accounting, completion and expiry of the dispatch window
+ * 
+ * @author DrKhiLL
+ */
+public class DispatchWindowTest {
+    
+    private static final long MS = 1000000L;
+    
+    private final DispatchWindow window = new DispatchWindow();
+    
+    private static CameraCommand command(String action, int count) {
+        return command(action, count, 1);
+    }
+    
+    private static CameraCommand command(String action, int count, int commandId) {
+        CameraCommand command = new CameraCommand();
+        command.action = action;
+        command.count = count;
+        command.commandId = commandId;
+        return command;
+    }
+    
+    @Test
+    public void framesFollowTheCommand() {
+        assertEquals(1, DispatchWindow.framesOf(command("CAPTURE_PHOTO", 0)));
+        assertEquals(8, DispatchWindow.framesOf(command("BURST", 8)));
+        assertEquals(0, DispatchWindow.framesOf(command("SET_FLASH", 0)));
+    }
+    
+    @Test
+    public void burstWithoutCountTakesDefaultFrames() {
+        assertEquals(CameraCommand.DEFAULT_BURST_FRAMES, DispatchWindow.framesOf(command("BURST", 0)));
+    }
+    
+    @Test
+    public void burstFramesAreCappedLikeTheCamera() {
+        assertEquals(CameraCommand.MAX_BURST_FRAMES, DispatchWindow.framesOf(command("BURST", 500)));
+    }
+    
+    @Test
+    public void holdsBackOnceWindowIsFull() {
+        assertTrue(window.canDispatch(0));
+        window.onDispatched(command("CAPTURE_PHOTO", 0, 1), 0);
+        assertTrue(window.canDispatch(0));
+        window.onDispatched(command("CAPTURE_PHOTO", 0, 2), 0);
+        assertFalse(window.canDispatch(0));
+        
+        window.onFinished(1);
+        assertTrue(window.canDispatch(0));
+        assertEquals(1, window.getInFlightFrames());
+    }
+    
+    @Test
+    public void settingsCommandsTakeNoRoom() {
+        window.onDispatched(command("SET_FLASH", 0), 0);
+        assertEquals(0, window.getInFlightFrames());
+        assertEquals(-1, window.nanosUntilExpiry(0));
+    }
+    
+    @Test
+    public void finishedFramesComeOffTheirOwnCommand() {
+        window.onDispatched(command("BURST", 3, 1), 0);
+        window.onDispatched(command("CAPTURE_PHOTO", 0, 2), 0);
+        
+        window.onFinished(2);
+        assertEquals(3, window.getInFlightFrames());
+        window.onFinished(1);
+        window.onFinished(1);
+        assertEquals(1, window.getInFlightFrames());
+        window.onFinished(1);
+        assertEquals(0, window.getInFlightFrames());
+        assertEquals(-1, window.nanosUntilExpiry(0));
+        // Frames beyond what was dispatched are ignored
+        window.onFinished(1);
+        assertEquals(0, window.getInFlightFrames());
+    }
+    
+    @Test
+    public void capturesNeverDispatchedAreIgnored() {
+        window.onDispatched(command("CAPTURE_PHOTO", 0, 5), 0);
+        
+        // A timelapse shot, and one without any command
+        window.onFinished(9);
+        window.onFinished(CaptureRecord.NO_COMMAND_ID);
+        assertEquals(1, window.getInFlightFrames());
+    }
+    
+    @Test
+    public void commandWithoutIdOnlyExpires() {
+        window.onDispatched(command("CAPTURE_PHOTO", 0, CaptureRecord.NO_COMMAND_ID), 0);
+        
+        window.onFinished(CaptureRecord.NO_COMMAND_ID);
+        assertEquals(1, window.getInFlightFrames());
+        assertTrue(window.canDispatch(2200 * MS));
+        assertEquals(0, window.getInFlightFrames());
+    }
+    
+    @Test
+    public void lostFramesExpireAfterTimeGrowingWithSize() {
+        window.onDispatched(command("BURST", 10), 0);
+        assertFalse(window.canDispatch(0));
+        
+        long expiry = window.nanosUntilExpiry(0);
+        assertEquals(2000 * MS + 10 * 200 * MS, expiry);
+        assertFalse(window.canDispatch(expiry - 1));
+        assertTrue(window.canDispatch(expiry));
+        assertEquals(0, window.getInFlightFrames());
+        assertTrue(window.describe().contains("expired=10"));
+    }
+}
+
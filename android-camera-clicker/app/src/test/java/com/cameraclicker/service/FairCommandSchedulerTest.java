@@ -0,0 +1,122 @@
+package com.cameraclicker.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Turn taking, burst cost and queue bounds of the fair command scheduler
+ * 
+ * @author DrKhiLL
+ */
+public class FairCommandSchedulerTest {
+    
+    private final FairCommandScheduler scheduler = new FairCommandScheduler(8);
+    private final CameraCommand command = new CameraCommand();
+    
+    private boolean offer(FairCommandScheduler.Client client, String action, int count, int commandId) {
+        command.clear();
+        command.action = action;
+        command.count = count;
+        command.commandId = commandId;
+        return scheduler.offer(client, command, 0);
+    }
+    
+    @Test
+    public void emptySchedulerHasNothingToSend() {
+        scheduler.addClient("watch", FairCommandScheduler.DEFAULT_WEIGHT);
+        assertNull(scheduler.next(0));
+    }
+    
+    @Test
+    public void burstCostsItsFrames() {
+        assertEquals(1, FairCommandScheduler.costOf(withCount("CAPTURE_PHOTO", 0)));
+        assertEquals(12, FairCommandScheduler.costOf(withCount("BURST", 12)));
+    }
+    
+    @Test
+    public void burstCostMatchesDispatchWindowFrames() {
+        for (int count : new int[] {0, 1, 5, 30, 31, 1000}) {
+            CameraCommand burst = withCount("BURST", count);
+            assertEquals(DispatchWindow.framesOf(burst), FairCommandScheduler.costOf(burst));
+        }
+    }
+    
+    @Test
+    public void keepsOrderWithinClient() {
+        FairCommandScheduler.Client client = scheduler.addClient("watch", FairCommandScheduler.DEFAULT_WEIGHT);
+        for (int i = 1; i <= 5; i++) {
+            offer(client, "CAPTURE_PHOTO", 0, i);
+        }
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, scheduler.next(0).commandId);
+        }
+        assertNull(scheduler.next(0));
+    }
+    
+    @Test
+    public void fullQueueRejects() {
+        FairCommandScheduler.Client client = scheduler.addClient("watch", FairCommandScheduler.DEFAULT_WEIGHT);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(offer(client, "CAPTURE_PHOTO", 0, i));
+        }
+        assertFalse(offer(client, "CAPTURE_PHOTO", 0, 8));
+        assertEquals(1, client.getRejectedCount());
+        assertEquals(9, client.getReceivedCount());
+    }
+    
+    @Test
+    public void burstsCannotHoldBackAnotherClientsShot() {
+        FairCommandScheduler.Client bursts = scheduler.addClient("bursts", FairCommandScheduler.DEFAULT_WEIGHT);
+        FairCommandScheduler.Client shutter = scheduler.addClient("shutter", FairCommandScheduler.DEFAULT_WEIGHT);
+        for (int i = 0; i < 4; i++) {
+            offer(bursts, "BURST", 30, 100 + i);
+        }
+        offer(shutter, "CAPTURE_PHOTO", 0, 1);
+        
+        // The first burst waits while its client saves up; the shot goes in the meantime
+        assertEquals(1, scheduler.next(0).commandId);
+        assertEquals(100, scheduler.next(0).commandId);
+    }
+    
+    @Test
+    public void weightSharesTurns() {
+        FairCommandScheduler.Client heavy = scheduler.addClient("heavy", 2);
+        FairCommandScheduler.Client light = scheduler.addClient("light", 1);
+        for (int i = 0; i < 8; i++) {
+            offer(heavy, "CAPTURE_PHOTO", 0, 1);
+            offer(light, "CAPTURE_PHOTO", 0, 2);
+        }
+        
+        int heavyCount = 0;
+        for (int i = 0; i < 12; i++) {
+            if (scheduler.next(0).commandId == 1) {
+                heavyCount++;
+            }
+        }
+        assertEquals(8, heavyCount);
+    }
+    
+    @Test
+    public void removedClientDropsItsQueue() {
+        FairCommandScheduler.Client gone = scheduler.addClient("gone", FairCommandScheduler.DEFAULT_WEIGHT);
+        FairCommandScheduler.Client stays = scheduler.addClient("stays", FairCommandScheduler.DEFAULT_WEIGHT);
+        offer(gone, "CAPTURE_PHOTO", 0, 1);
+        offer(gone, "CAPTURE_PHOTO", 0, 2);
+        offer(stays, "CAPTURE_PHOTO", 0, 3);
+        
+        assertEquals(2, scheduler.removeClient(gone));
+        assertEquals(1, scheduler.getQueuedCount());
+        assertEquals(3, scheduler.next(0).commandId);
+    }
+    
+    private static CameraCommand withCount(String action, int count) {
+        CameraCommand command = new CameraCommand();
+        command.action = action;
+        command.count = count;
+        return command;
+    }
+}
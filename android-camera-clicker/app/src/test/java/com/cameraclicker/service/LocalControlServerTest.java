@@ -0,0 +1,224 @@
+package com.cameraclicker.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Token check, line framing and flow control of the local control server over real loopback sockets
+ * 
+ * @author DrKhiLL
+ */
+public class LocalControlServerTest {
+    
+    private static final String TOKEN = "s3cret";
+    
+    // Listener callbacks as "connected", "message <text>" and "disconnected", in order
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private volatile String clientId;
+    
+    private final LocalControlServer server = new LocalControlServer(0, TOKEN, new LocalControlServer.Listener() {
+        @Override
+        public void onClientConnected(String id) {
+            clientId = id;
+            events.add("connected");
+        }
+        
+        @Override
+        public void onClientMessage(String id, byte[] data, int length) {
+            events.add("message " + new String(data, 0, length, UTF_8));
+        }
+        
+        @Override
+        public void onClientDisconnected(String id) {
+            events.add("disconnected");
+        }
+    });
+    
+    private Socket client;
+    
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        client.setSoTimeout(2000);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.shutdown();
+    }
+    
+    private void write(String text) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(text.getBytes(UTF_8));
+        out.flush();
+    }
+    
+    private String nextEvent(long timeoutMs) throws InterruptedException {
+        return events.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    
+    private String nextEvent() throws InterruptedException {
+        String event = nextEvent(2000);
+        assertNotNull("No listener callback", event);
+        return event;
+    }
+    
+    private void authenticate() throws IOException, InterruptedException {
+        write(TOKEN + "\n");
+        assertEquals("connected", nextEvent());
+    }
+    
+    /**
+     * True once the server has closed the connection
+     */
+    private boolean closedByServer(int timeoutMs) throws IOException {
+        client.setSoTimeout(timeoutMs);
+        try {
+            while (true) {
+                if (client.getInputStream().read() < 0) {
+                    return true;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // Reset by the server
+            return true;
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void tokenIsRequired() {
+        new LocalControlServer(0, "", null);
+    }
+    
+    @Test
+    public void linesAfterTheTokenAreMessages() throws IOException, InterruptedException {
+        // Everything in one packet, with a Windows line ending and an empty line in between
+        write(TOKEN + "\r\n{\"a\":1}\r\n\n{\"b\":2}\n");
+        
+        assertEquals("connected", nextEvent());
+        assertEquals("message {\"a\":1}", nextEvent());
+        assertEquals("message {\"b\":2}", nextEvent());
+        assertNull(nextEvent(100));
+    }
+    
+    @Test
+    public void lineSplitAcrossWritesIsJoined() throws IOException, InterruptedException {
+        authenticate();
+        
+        write("{\"messageType\":");
+        assertNull(nextEvent(100));
+        write("\"PING\"}\n");
+        assertEquals("message {\"messageType\":\"PING\"}", nextEvent());
+    }
+    
+    @Test
+    public void wrongTokenIsRefused() throws IOException, InterruptedException {
+        write("guess\n{\"a\":1}\n");
+        
+        assertTrue(closedByServer(2000));
+        assertNull(nextEvent(100));
+        assertTrue(server.describe().contains("refused=1"));
+    }
+    
+    @Test
+    public void tokenPrefixIsRefused() throws IOException, InterruptedException {
+        write(TOKEN.substring(0, 3) + "\n");
+        
+        assertTrue(closedByServer(2000));
+        assertNull(nextEvent(100));
+    }
+    
+    @Test
+    public void silentClientIsDroppedAfterTimeout() throws IOException, InterruptedException {
+        // The server checks once per five second select, so allow for two rounds
+        assertTrue(closedByServer(12000));
+        assertNull(nextEvent(100));
+        assertTrue(server.describe().contains("refused=1"));
+    }
+    
+    @Test
+    public void nothingIsSentBeforeAuthentication() throws IOException, InterruptedException {
+        authenticate();
+        String id = clientId;
+        
+        assertFalse(server.send("local:0", "{}"));
+        assertTrue(server.send(id, "{\"messageType\":\"ACK\"}"));
+        assertTrue(server.send(id, "{\"messageType\":\"RESULT\"}"));
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), UTF_8));
+        assertEquals("{\"messageType\":\"ACK\"}", reader.readLine());
+        assertEquals("{\"messageType\":\"RESULT\"}", reader.readLine());
+    }
+    
+    @Test
+    public void oversizedLineIsDroppedUpToNextNewline() throws IOException, InterruptedException {
+        authenticate();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            large.append('x');
+        }
+        
+        write(large + "\n{\"after\":true}\n");
+        
+        assertEquals("message {\"after\":true}", nextEvent());
+        assertNull(nextEvent(100));
+        assertTrue(server.describe().contains("oversized=1"));
+    }
+    
+    @Test
+    public void clientClosingIsReported() throws IOException, InterruptedException {
+        authenticate();
+        
+        client.close();
+        
+        assertEquals("disconnected", nextEvent());
+        assertFalse(server.send(clientId, "{}"));
+    }
+    
+    @Test
+    public void clientThatStopsReadingIsDisconnected() throws IOException, InterruptedException {
+        authenticate();
+        String id = clientId;
+        StringBuilder chunk = new StringBuilder();
+        for (int i = 0; i < 65536; i++) {
+            chunk.append('y');
+        }
+        String line = chunk.toString();
+        
+        // Far more than the socket buffers hold; the client never reads any of it
+        int sent = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.send(id, line) && System.nanoTime() < deadline) {
+            sent++;
+            Thread.sleep(sent % 16 == 0 ? 5 : 0);
+        }
+        
+        assertEquals("disconnected", nextEvent());
+        assertFalse(server.send(id, line));
+        assertTrue(server.describe().contains("overruns=1"));
+    }
+}
+
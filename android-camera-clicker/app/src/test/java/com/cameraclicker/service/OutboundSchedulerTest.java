@@ -0,0 +1,158 @@
+package com.cameraclicker.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalescing, priority order, size limits and superseding of the outbound scheduler
+ * 
+ * @author DrKhiLL
+ */
+public class OutboundSchedulerTest {
+    
+    private static final long MS = 1000000L;
+    
+    private final List<String> transmits = new ArrayList<>();
+    private final List<Integer> messageCounts = new ArrayList<>();
+    
+    private final OutboundScheduler scheduler = new OutboundScheduler(new OutboundScheduler.Listener() {
+        @Override
+        public void onTransmit(String data, int messageCount) {
+            transmits.add(data);
+            messageCounts.add(messageCount);
+        }
+    });
+    
+    private static String message(String type, int number) {
+        return "{\"messageType\":\"" + type + "\",\"n\":" + number + "}";
+    }
+    
+    @Test
+    public void nothingQueuedMeansNothingToWaitFor() {
+        assertEquals(-1, scheduler.poll(0));
+        assertEquals(0, transmits.size());
+    }
+    
+    @Test
+    public void singleMessageWaitsForCoalescingWindowThenGoesAlone() {
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 1), false, 0);
+        
+        assertEquals(10 * MS, scheduler.poll(0));
+        assertEquals(4 * MS, scheduler.poll(6 * MS));
+        assertEquals(0, transmits.size());
+        
+        scheduler.poll(10 * MS);
+        assertEquals(1, transmits.size());
+        assertEquals(message("RESULT", 1), transmits.get(0));
+        assertEquals(1, (int) messageCounts.get(0));
+    }
+    
+    @Test
+    public void messagesInWindowShareOneBatchByPriority() {
+        scheduler.enqueue(OutboundScheduler.PRIORITY_BULK, "FRAME", message("FRAME", 1), false, 0);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_STATUS, "STATUS", message("STATUS", 2), false, 1 * MS);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_CONTROL, "ACK", message("ACK", 3), false, 2 * MS);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_BULK, "FRAME", message("FRAME", 4), false, 3 * MS);
+        
+        scheduler.poll(10 * MS);
+        
+        assertEquals(1, transmits.size());
+        assertEquals(4, (int) messageCounts.get(0));
+        assertEquals("{\"messageType\":\"BATCH\",\"messages\":[" + message("ACK", 3) + "," + message("STATUS", 2)
+            + "," + message("FRAME", 1) + "," + message("FRAME", 4) + "]}", transmits.get(0));
+    }
+    
+    @Test
+    public void oneTransmitInFlightAtATime() {
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 1), false, 0);
+        scheduler.poll(10 * MS);
+        
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 2), false, 11 * MS);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 3), false, 12 * MS);
+        assertTrue(scheduler.poll(30 * MS) > 0);
+        assertEquals(1, transmits.size());
+        
+        // Everything queued behind the transmit goes together once it completes
+        scheduler.onTransmitComplete(true, 40 * MS);
+        scheduler.poll(40 * MS);
+        assertEquals(2, transmits.size());
+        assertEquals(2, (int) messageCounts.get(1));
+    }
+    
+    @Test
+    public void lostCompletionTimesOut() {
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 1), false, 0);
+        scheduler.poll(10 * MS);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 2), false, 20 * MS);
+        
+        assertEquals(5000 * MS - 10 * MS, scheduler.poll(20 * MS));
+        scheduler.poll(5010 * MS);
+        assertEquals(2, transmits.size());
+        assertTrue(scheduler.describe(5010 * MS).contains("failed=1"));
+    }
+    
+    @Test
+    public void fullTransmitDoesNotWaitForWindow() {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < 4; i++) {
+            scheduler.enqueue(OutboundScheduler.PRIORITY_BULK, "FRAME",
+                "{\"messageType\":\"FRAME\",\"n\":" + i + ",\"data\":\"" + padding + "\"}", false, 0);
+        }
+        
+        scheduler.poll(0);
+        
+        assertEquals(1, transmits.size());
+        assertTrue(transmits.get(0).length() <= OutboundScheduler.MAX_TRANSMIT_CHARS);
+        assertEquals(3, (int) messageCounts.get(0));
+        assertEquals(1, scheduler.getQueueDepth(OutboundScheduler.PRIORITY_BULK));
+    }
+    
+    @Test
+    public void oversizedMessageGoesAlone() {
+        StringBuilder large = new StringBuilder("{\"data\":\"");
+        while (large.length() < OutboundScheduler.MAX_TRANSMIT_CHARS + 100) {
+            large.append('x');
+        }
+        large.append("\"}");
+        scheduler.enqueue(OutboundScheduler.PRIORITY_BULK, "FRAME", large.toString(), false, 0);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_BULK, "FRAME", message("FRAME", 2), false, 0);
+        
+        scheduler.poll(0);
+        
+        assertEquals(large.toString(), transmits.get(0));
+        assertEquals(1, scheduler.getQueueDepth(OutboundScheduler.PRIORITY_BULK));
+    }
+    
+    @Test
+    public void supersedingMessageReplacesQueuedOneInPlace() {
+        scheduler.enqueue(OutboundScheduler.PRIORITY_STATUS, "STATUS", message("STATUS", 1), true, 0);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_STATUS, "OTHER", message("OTHER", 2), false, 0);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_STATUS, "STATUS", message("STATUS", 3), true, 1 * MS);
+        
+        assertEquals(2, scheduler.getQueueDepth(OutboundScheduler.PRIORITY_STATUS));
+        scheduler.poll(10 * MS);
+        assertEquals("{\"messageType\":\"BATCH\",\"messages\":[" + message("STATUS", 3) + "," + message("OTHER", 2)
+            + "]}", transmits.get(0));
+    }
+    
+    @Test
+    public void drainSendsEverythingRegardlessOfLink() {
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 1), false, 0);
+        scheduler.poll(10 * MS);
+        scheduler.enqueue(OutboundScheduler.PRIORITY_RESULT, "RESULT", message("RESULT", 2), false, 11 * MS);
+        
+        scheduler.drain(12 * MS);
+        
+        assertEquals(2, transmits.size());
+        assertEquals(0, scheduler.getQueueDepth(OutboundScheduler.PRIORITY_RESULT));
+    }
+}
+
@@ -0,0 +1,297 @@
+package com.cameraclicker.service;
+
+import com.cameraclicker.camera.IdleTier;
+import com.cameraclicker.util.CaptureRecord;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compare-and-set publishing and coalesced notifications of the service state registry
+ * 
+ * @author DrKhiLL
+ */
+public class ServiceStateRegistryTest {
+    
+    private final ServiceStateRegistry registry = new ServiceStateRegistry();
+    
+    /**
+     * Holds notifications until the test runs them, like a handler whose thread is busy
+     */
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> queued = new ArrayList<>();
+        
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+        
+        void runQueued() {
+            List<Runnable> commands = new ArrayList<>(queued);
+            queued.clear();
+            for (Runnable command : commands) {
+                command.run();
+            }
+        }
+    }
+    
+    private static class RecordingListener implements ServiceStateRegistry.Listener {
+        final List<ServiceState> states = new ArrayList<>();
+        
+        @Override
+        public void onStateChanged(ServiceState state) {
+            states.add(state);
+        }
+    }
+    
+    @Test
+    public void subscriberStartsWithCurrentState() {
+        registry.publishWatchConnected(true);
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        
+        registry.subscribe(listener, executor);
+        assertEquals(1, executor.queued.size());
+        executor.runQueued();
+        
+        assertEquals(1, listener.states.size());
+        assertTrue(listener.states.get(0).isWatchConnected());
+    }
+    
+    @Test
+    public void burstOfChangesCostsOneNotification() {
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        registry.subscribe(listener, executor);
+        executor.runQueued();
+        
+        for (int i = 0; i < 5; i++) {
+            registry.publishCapture("/photos/" + i + ".jpg", i, 4 - i);
+        }
+        assertEquals(1, executor.queued.size());
+        executor.runQueued();
+        
+        assertEquals(2, listener.states.size());
+        ServiceState state = listener.states.get(1);
+        assertEquals(5, state.getVersion());
+        assertEquals(5, state.getCapturesFinished());
+        assertEquals("/photos/4.jpg", state.getLastCapturePath());
+        assertEquals(4, state.getLastCaptureCommandId());
+        assertEquals(0, state.getSaveQueueDepth());
+    }
+    
+    @Test
+    public void unchangedValueIsNotPublished() {
+        QueuedExecutor executor = new QueuedExecutor();
+        registry.subscribe(new RecordingListener(), executor);
+        executor.runQueued();
+        ServiceState before = registry.getState();
+        
+        registry.publishIdleTier(IdleTier.WARM);
+        registry.publishSaveQueueDepth(0);
+        registry.publishReadiness(before.getReadiness(), false, -1);
+        
+        assertSame(before, registry.getState());
+        assertTrue(executor.queued.isEmpty());
+    }
+    
+    @Test
+    public void publishedSnapshotNeverChanges() {
+        registry.publishSaveQueueDepth(3);
+        ServiceState before = registry.getState();
+        
+        registry.publishSaveQueueDepth(7);
+        
+        assertEquals(3, before.getSaveQueueDepth());
+        assertEquals(1, before.getVersion());
+        assertEquals(7, registry.getState().getSaveQueueDepth());
+        assertEquals(2, registry.getState().getVersion());
+    }
+    
+    @Test
+    public void changeDuringCallbackSchedulesAnother() {
+        final QueuedExecutor executor = new QueuedExecutor();
+        final List<Long> versions = new ArrayList<>();
+        registry.subscribe(new ServiceStateRegistry.Listener() {
+            @Override
+            public void onStateChanged(ServiceState state) {
+                versions.add(state.getVersion());
+                if (versions.size() == 1) {
+                    registry.publishOutboundQueueDepth(2);
+                }
+            }
+        }, executor);
+        
+        executor.runQueued();
+        assertEquals(1, executor.queued.size());
+        executor.runQueued();
+        
+        assertEquals(2, versions.size());
+        assertEquals(1L, (long) versions.get(1));
+    }
+    
+    @Test
+    public void everySubscriberIsToldOnItsOwnExecutor() {
+        QueuedExecutor first = new QueuedExecutor();
+        QueuedExecutor second = new QueuedExecutor();
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        registry.subscribe(firstListener, first);
+        registry.subscribe(secondListener, second);
+        first.runQueued();
+        
+        registry.publishWatchConnected(true);
+        first.runQueued();
+        
+        assertEquals(2, firstListener.states.size());
+        assertEquals(0, secondListener.states.size());
+        assertEquals(1, second.queued.size());
+        second.runQueued();
+        assertEquals(1, secondListener.states.get(0).getVersion());
+    }
+    
+    @Test
+    public void unsubscribedListenerIsNotCalled() {
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        registry.subscribe(listener, executor);
+        
+        registry.unsubscribe(listener);
+        executor.runQueued();
+        registry.publishWatchConnected(true);
+        
+        assertTrue(listener.states.isEmpty());
+        assertTrue(executor.queued.isEmpty());
+    }
+    
+    @Test
+    public void cameraServiceStopResetsWhatDoesNotSurviveIt() {
+        registry.publishCameraService(true);
+        registry.publishReadiness("3A_READY", true, 180);
+        registry.publishIdleTier(IdleTier.COLD);
+        registry.publishCapture("/photos/1.jpg", 9, 3);
+        
+        registry.publishCameraService(false);
+        
+        ServiceState state = registry.getState();
+        assertFalse(state.isCameraServiceRunning());
+        assertEquals("STARTING", state.getReadiness());
+        assertFalse(state.canCapture());
+        assertEquals(-1, state.getReadyMillis());
+        assertSame(IdleTier.WARM, state.getIdleTier());
+        assertEquals(0, state.getSaveQueueDepth());
+        // What was saved stays saved
+        assertEquals("/photos/1.jpg", state.getLastCapturePath());
+        assertEquals(1, state.getCapturesFinished());
+    }
+    
+    @Test
+    public void bluetoothServiceStopDisconnectsWatch() {
+        registry.publishBluetoothService(true);
+        registry.publishWatchConnected(true);
+        registry.publishOutboundQueueDepth(5);
+        
+        registry.publishBluetoothService(false);
+        
+        ServiceState state = registry.getState();
+        assertFalse(state.isBluetoothServiceRunning());
+        assertFalse(state.isWatchConnected());
+        assertEquals(0, state.getOutboundQueueDepth());
+    }
+    
+    @Test
+    public void failedCapturesCountAsFinished() {
+        registry.publishCaptureFailed(7, 3, 2);
+        
+        ServiceState state = registry.getState();
+        assertEquals(3, state.getCapturesFinished());
+        assertEquals(2, state.getSaveQueueDepth());
+        assertNull(state.getLastCapturePath());
+        assertEquals(7, state.getFinishedCommandId(1));
+        assertEquals(7, state.getFinishedCommandId(3));
+    }
+    
+    @Test
+    public void coalescedFinishesKeepTheirCommandIds() {
+        QueuedExecutor executor = new QueuedExecutor();
+        RecordingListener listener = new RecordingListener();
+        registry.subscribe(listener, executor);
+        executor.runQueued();
+        
+        registry.publishCapture("/photos/1.jpg", 11, 0);
+        registry.publishCaptureFailed(12, 2, 0);
+        registry.publishCapture("/photos/2.jpg", CaptureRecord.NO_COMMAND_ID, 0);
+        executor.runQueued();
+        
+        ServiceState state = listener.states.get(1);
+        assertEquals(4, state.getCapturesFinished());
+        assertEquals(11, state.getFinishedCommandId(1));
+        assertEquals(12, state.getFinishedCommandId(2));
+        assertEquals(12, state.getFinishedCommandId(3));
+        assertEquals(CaptureRecord.NO_COMMAND_ID, state.getFinishedCommandId(4));
+        assertEquals(CaptureRecord.NO_COMMAND_ID, state.getFinishedCommandId(5));
+        assertEquals(CaptureRecord.NO_COMMAND_ID, state.getFinishedCommandId(0));
+    }
+    
+    @Test
+    public void oldFinishesAreForgotten() {
+        ServiceState early = null;
+        for (int i = 1; i <= ServiceState.FINISHED_HISTORY + 10; i++) {
+            registry.publishCapture("/photos/x.jpg", i, 0);
+            if (i == 1) {
+                early = registry.getState();
+            }
+        }
+        
+        ServiceState state = registry.getState();
+        assertEquals(CaptureRecord.NO_COMMAND_ID, state.getFinishedCommandId(10));
+        assertEquals(11, state.getFinishedCommandId(11));
+        assertEquals(ServiceState.FINISHED_HISTORY + 10, state.getFinishedCommandId(state.getCapturesFinished()));
+        // Earlier snapshots keep what they had
+        assertEquals(1, early.getFinishedCommandId(1));
+    }
+    
+    @Test
+    public void concurrentPublishersLoseNoChanges() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 2000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread publisher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        registry.publishCapture("/photos/x.jpg", i, 0);
+                    }
+                }
+            });
+            publisher.start();
+            publishers.add(publisher);
+        }
+        start.countDown();
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        
+        ServiceState state = registry.getState();
+        assertEquals(threads * perThread, state.getCapturesFinished());
+        assertEquals(threads * perThread, state.getVersion());
+    }
+}
+
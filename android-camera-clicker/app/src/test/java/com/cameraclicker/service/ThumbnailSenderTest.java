@@ -0,0 +1,227 @@
+package com.cameraclicker.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sliding window, resends, pausing and resuming of thumbnail transfers
+ * 
+ * @author DrKhiLL
+ */
+public class ThumbnailSenderTest {
+    
+    private static final long MS = 1000000L;
+    private static final long ACK_TIMEOUT = 1500 * MS;
+    private static final int CHUNKS = 10;
+    
+    private final List<Integer> sent = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private final List<ThumbnailSender.Transfer> completed = new ArrayList<>();
+    
+    private final ThumbnailSender sender = new ThumbnailSender(new ThumbnailSender.Listener() {
+        @Override
+        public void onSendChunk(int transferId, int index, int count, byte[] data, int offset, int length) {
+            sent.add(index);
+            lengths.add(length);
+        }
+        
+        @Override
+        public void onTransferComplete(ThumbnailSender.Transfer transfer) {
+            completed.add(transfer);
+        }
+    });
+    
+    private ThumbnailSender.Transfer start() {
+        ThumbnailSender.Transfer transfer = sender.start(new byte[CHUNKS * ThumbnailSender.CHUNK_SIZE], 42, 0);
+        assertEquals(CHUNKS, transfer.chunkCount);
+        return transfer;
+    }
+    
+    private List<Integer> takeSent() {
+        List<Integer> chunks = new ArrayList<>(sent);
+        sent.clear();
+        return chunks;
+    }
+    
+    private static List<Integer> range(int from, int to) {
+        List<Integer> chunks = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            chunks.add(i);
+        }
+        return chunks;
+    }
+    
+    @Test
+    public void startFillsOneWindow() {
+        start();
+        assertEquals(range(0, ThumbnailSender.WINDOW), takeSent());
+    }
+    
+    @Test
+    public void acknowledgmentSlidesWindow() {
+        ThumbnailSender.Transfer transfer = start();
+        takeSent();
+        
+        sender.onAck(transfer.id, 2, 10 * MS);
+        assertEquals(range(4, 6), takeSent());
+        assertEquals(0, transfer.retransmits);
+    }
+    
+    @Test
+    public void finalAcknowledgmentCompletes() {
+        ThumbnailSender.Transfer transfer = start();
+        for (int next = 4; next <= CHUNKS; next += 2) {
+            sender.onAck(transfer.id, next, next * MS);
+        }
+        
+        assertEquals(1, completed.size());
+        assertSame(transfer, completed.get(0));
+        assertEquals(CHUNKS * MS, transfer.completedNanos);
+        assertEquals(CHUNKS, transfer.chunksSent);
+        assertEquals(CHUNKS * ThumbnailSender.CHUNK_SIZE, transfer.bytesSent);
+        assertEquals(1, sender.getCompletedCount());
+        assertEquals(-1, sender.poll(ACK_TIMEOUT * 10));
+        
+        // Late acknowledgments of the finished transfer change nothing
+        sender.onAck(transfer.id, 3, 20 * MS);
+        assertEquals(1, completed.size());
+    }
+    
+    @Test
+    public void repeatedAcknowledgmentRewindsOncePerGap() {
+        ThumbnailSender.Transfer transfer = start();
+        sender.onAck(transfer.id, 1, 10 * MS);
+        takeSent();
+        
+        // Chunk 1 went missing, so the watch keeps asking for it
+        sender.onAck(transfer.id, 1, 20 * MS);
+        assertEquals(range(1, 5), takeSent());
+        assertEquals(4, transfer.retransmits);
+        
+        sender.onAck(transfer.id, 1, 30 * MS);
+        assertTrue(takeSent().isEmpty());
+        
+        // A new gap further on rewinds again
+        sender.onAck(transfer.id, 3, 40 * MS);
+        takeSent();
+        sender.onAck(transfer.id, 3, 50 * MS);
+        assertEquals(range(3, 7), takeSent());
+    }
+    
+    @Test
+    public void timeoutResendsFromAcknowledged() {
+        ThumbnailSender.Transfer transfer = start();
+        sender.onAck(transfer.id, 2, 10 * MS);
+        takeSent();
+        
+        assertEquals(ACK_TIMEOUT - 10 * MS, sender.poll(20 * MS));
+        assertTrue(takeSent().isEmpty());
+        
+        long deadline = 10 * MS + ACK_TIMEOUT;
+        assertEquals(ACK_TIMEOUT, sender.poll(deadline));
+        assertEquals(range(2, 6), takeSent());
+        assertEquals(4, transfer.retransmits);
+    }
+    
+    @Test
+    public void pausesAfterRepeatedTimeoutsAndResumesOnPeerActivity() {
+        ThumbnailSender.Transfer transfer = start();
+        sender.onAck(transfer.id, 2, 0);
+        takeSent();
+        
+        long now = 0;
+        for (int round = 0; round < 4; round++) {
+            now += ACK_TIMEOUT;
+            assertTrue(sender.poll(now) > 0);
+            assertEquals(range(2, 6), takeSent());
+        }
+        now += ACK_TIMEOUT;
+        assertEquals(-1, sender.poll(now));
+        assertTrue(sender.isPaused());
+        assertTrue(takeSent().isEmpty());
+        assertEquals(-1, sender.poll(now + ACK_TIMEOUT));
+        
+        sender.onPeerActive(now + 10 * MS);
+        assertFalse(sender.isPaused());
+        assertEquals(1, transfer.resumes);
+        assertEquals(range(2, 6), takeSent());
+        assertEquals(ACK_TIMEOUT, sender.poll(now + 10 * MS));
+    }
+    
+    @Test
+    public void acknowledgmentResumesPausedTransferWhereWatchLeftOff() {
+        ThumbnailSender.Transfer transfer = start();
+        long now = 0;
+        for (int round = 0; round <= 4; round++) {
+            now += ACK_TIMEOUT;
+            sender.poll(now);
+        }
+        assertTrue(sender.isPaused());
+        takeSent();
+        
+        // The watch got further than the phone heard before it went away
+        sender.onAck(transfer.id, 3, now);
+        assertEquals(1, transfer.resumes);
+        assertEquals(range(3, 7), takeSent());
+    }
+    
+    @Test
+    public void peerActivityDoesNothingUnlessPaused() {
+        start();
+        takeSent();
+        sender.onPeerActive(10 * MS);
+        assertTrue(takeSent().isEmpty());
+    }
+    
+    @Test
+    public void watchRegressingItsAcknowledgmentStartsOver() {
+        ThumbnailSender.Transfer transfer = start();
+        sender.onAck(transfer.id, 4, 10 * MS);
+        takeSent();
+        
+        // The watch app restarted and lost what it had
+        sender.onAck(transfer.id, 0, 20 * MS);
+        assertEquals(range(0, 4), takeSent());
+    }
+    
+    @Test
+    public void newerThumbnailReplacesUnfinishedOne() {
+        ThumbnailSender.Transfer first = start();
+        ThumbnailSender.Transfer second = sender.start(new byte[100], 43, 10 * MS);
+        
+        assertEquals(1, sender.getSupersededCount());
+        sender.onAck(first.id, CHUNKS, 20 * MS);
+        assertTrue(completed.isEmpty());
+        sender.onAck(second.id, 1, 30 * MS);
+        assertEquals(1, completed.size());
+        assertSame(second, completed.get(0));
+    }
+    
+    @Test
+    public void lastChunkCarriesTheRemainder() {
+        ThumbnailSender.Transfer transfer = sender.start(new byte[ThumbnailSender.CHUNK_SIZE + 100], 1, 0);
+        
+        assertEquals(2, transfer.chunkCount);
+        assertEquals(range(0, 2), takeSent());
+        assertEquals(ThumbnailSender.CHUNK_SIZE, (int) lengths.get(0));
+        assertEquals(100, (int) lengths.get(1));
+        assertEquals(transfer.getPayloadBytes(), (int) transfer.bytesSent);
+    }
+    
+    @Test
+    public void unknownTransferIsIgnored() {
+        start();
+        takeSent();
+        sender.onAck(999, 4, 10 * MS);
+        assertTrue(takeSent().isEmpty());
+        assertTrue(completed.isEmpty());
+    }
+}
+
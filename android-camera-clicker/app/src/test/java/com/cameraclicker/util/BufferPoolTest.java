@@ -0,0 +1,180 @@
+package com.cameraclicker.util;
+
+import com.cameraclicker.camera.CameraFrame;
+import com.cameraclicker.camera.CameraHal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Steady-state allocation of the image save path
+ * 
+ * @author DrKhiLL
+ */
+public class BufferPoolTest {
+    
+    private static final int WARM_UP_SAVES = 16;
+    private static final int MEASURED_SAVES = 200;
+    
+    private File directory;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("buffer-pool-test").toFile();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+    
+    @Test
+    public void savesAllocateNothingOnceWarm() throws IOException {
+        // Two writers and one frame being copied, as ImageSaver sizes it for two workers
+        BufferPool pool = new BufferPool(3);
+        File file = new File(directory, "frame.jpg");
+        
+        for (int i = 0; i < WARM_UP_SAVES; i++) {
+            save(pool, file, frameSize(i));
+        }
+        long warm = pool.getAllocationCount();
+        
+        for (int i = 0; i < MEASURED_SAVES; i++) {
+            save(pool, file, frameSize(i));
+        }
+        
+        assertEquals(warm, pool.getAllocationCount());
+    }
+    
+    @Test
+    public void overlappingSavesReuseUpToRetainedBuffers() {
+        BufferPool pool = new BufferPool(3);
+        
+        for (int round = 0; round < 50; round++) {
+            ByteBuffer[] inFlight = new ByteBuffer[3];
+            for (int i = 0; i < inFlight.length; i++) {
+                inFlight[i] = ImageFiles.copyFrame(new TestFrame(frameSize(round + i)), pool);
+            }
+            for (ByteBuffer buffer : inFlight) {
+                pool.release(buffer);
+            }
+        }
+        
+        assertTrue("allocations " + pool.getAllocationCount(), pool.getAllocationCount() <= 6);
+    }
+    
+    @Test
+    public void writtenFileMatchesFrame() throws IOException {
+        BufferPool pool = new BufferPool(1);
+        File file = new File(directory, "frame.jpg");
+        byte[] expected = content(300 * 1024);
+        
+        ByteBuffer data = ImageFiles.copyFrame(new TestFrame(expected), pool);
+        ImageFiles.writeFully(file, data);
+        pool.release(data);
+        
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+    
+    private static void save(BufferPool pool, File file, int size) throws IOException {
+        TestFrame frame = new TestFrame(size);
+        ByteBuffer data = ImageFiles.copyFrame(frame, pool);
+        try {
+            ImageFiles.writeFully(file, data);
+        } finally {
+            pool.release(data);
+        }
+        assertTrue(frame.closed);
+        assertEquals(size, file.length());
+    }
+    
+    /**
+     * JPEG sizes vary from shot to shot with scene content; the warm-up sees every size once
+     */
+    private static int frameSize(int shot) {
+        return 900 * 1024 + (shot % 8) * 64 * 1024 + shot % 1000;
+    }
+    
+    private static byte[] content(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+    
+    private static class TestFrame implements CameraFrame {
+        final ByteBuffer buffer;
+        boolean closed = false;
+        
+        TestFrame(int size) {
+            this(new byte[size]);
+        }
+        
+        TestFrame(byte[] data) {
+            buffer = ByteBuffer.wrap(data);
+        }
+        
+        @Override
+        public int getFormat() {
+            return CameraHal.FORMAT_JPEG;
+        }
+        
+        @Override
+        public int getWidth() {
+            return 4000;
+        }
+        
+        @Override
+        public int getHeight() {
+            return 3000;
+        }
+        
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+        
+        @Override
+        public int getPlaneCount() {
+            return 1;
+        }
+        
+        @Override
+        public ByteBuffer getPlaneBuffer(int plane) {
+            return buffer;
+        }
+        
+        @Override
+        public int getRowStride(int plane) {
+            return 0;
+        }
+        
+        @Override
+        public int getPixelStride(int plane) {
+            return 0;
+        }
+        
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
+
@@ -0,0 +1,98 @@
+package com.cameraclicker.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splitting capture records into stages
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureTraceTest {
+    
+    private static final long MS = 1000000L;
+    
+    private final CaptureTrace trace = new CaptureTrace();
+    
+    private static CaptureRecord fullRecord() {
+        CaptureRecord record = new CaptureRecord(7, 100 * MS);
+        record.transitMillis = 1000;
+        record.parsedNanos = 101 * MS;
+        record.dispatchedNanos = 103 * MS;
+        record.submitNanos = 110 * MS;
+        record.completedNanos = 150 * MS;
+        record.imageNanos = 160 * MS;
+        record.savedNanos = 200 * MS;
+        return record;
+    }
+    
+    private long micros(CaptureTrace.Stage stage) {
+        return trace.getHistogram(stage).getMaxMicros();
+    }
+    
+    @Test
+    public void everyStageIsTheGapBetweenItsTimestamps() {
+        trace.record(fullRecord());
+        
+        assertEquals(1000000, micros(CaptureTrace.Stage.TRANSIT));
+        assertEquals(1000, micros(CaptureTrace.Stage.PARSE));
+        assertEquals(2000, micros(CaptureTrace.Stage.DISPATCH));
+        assertEquals(7000, micros(CaptureTrace.Stage.SUBMIT));
+        assertEquals(40000, micros(CaptureTrace.Stage.COMPLETE));
+        assertEquals(50000, micros(CaptureTrace.Stage.IMAGE));
+        assertEquals(40000, micros(CaptureTrace.Stage.SAVE));
+        assertEquals(100000, micros(CaptureTrace.Stage.TOTAL));
+        assertEquals(0, trace.getHistogram(CaptureTrace.Stage.REWARM).getCount());
+    }
+    
+    @Test
+    public void missingTimestampsSkipTheirStages() {
+        CaptureRecord record = fullRecord();
+        // A ZSL frame is never submitted
+        record.submitNanos = 0;
+        record.transitMillis = -1;
+        trace.record(record);
+        
+        assertEquals(0, trace.getHistogram(CaptureTrace.Stage.SUBMIT).getCount());
+        assertEquals(0, trace.getHistogram(CaptureTrace.Stage.COMPLETE).getCount());
+        assertEquals(0, trace.getHistogram(CaptureTrace.Stage.TRANSIT).getCount());
+        assertEquals(1, trace.getHistogram(CaptureTrace.Stage.SAVE).getCount());
+        assertEquals(1, trace.getHistogram(CaptureTrace.Stage.TOTAL).getCount());
+    }
+    
+    @Test
+    public void timestampsOutOfOrderAreIgnored() {
+        CaptureRecord record = fullRecord();
+        record.imageNanos = 300 * MS;
+        trace.record(record);
+        
+        assertEquals(0, trace.getHistogram(CaptureTrace.Stage.SAVE).getCount());
+    }
+    
+    @Test
+    public void rewarmIsRecordedOnlyWhenTheCaptureWaited() {
+        CaptureRecord record = fullRecord();
+        record.rewarmWaitNanos = 5 * MS;
+        trace.record(record);
+        trace.record(fullRecord());
+        
+        assertEquals(1, trace.getHistogram(CaptureTrace.Stage.REWARM).getCount());
+        assertEquals(5000, micros(CaptureTrace.Stage.REWARM));
+    }
+    
+    @Test
+    public void describeListsStagesWithSamples() {
+        assertEquals("no captures traced\n", trace.describe());
+        
+        trace.record(fullRecord());
+        String text = trace.describe();
+        assertTrue(text.startsWith("transit: n=1"));
+        assertTrue(text.contains("total: n=1"));
+        assertTrue(!text.contains("rewarm"));
+        
+        trace.reset();
+        assertEquals("no captures traced\n", trace.describe());
+    }
+}
@@ -0,0 +1,99 @@
+package com.cameraclicker.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bucketing, percentiles and summary of the latency histogram
+ * 
+ * @author DrKhiLL
+ */
+public class LatencyHistogramTest {
+    
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    
+    @Test
+    public void emptyHistogramReportsZero() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(0.0, histogram.getMeanMicros(), 0);
+    }
+    
+    @Test
+    public void smallValuesAreExact() {
+        for (int micros = 0; micros < 16; micros++) {
+            histogram.recordMicros(micros);
+        }
+        assertEquals(7, histogram.getPercentileMicros(50));
+        assertEquals(15, histogram.getPercentileMicros(100));
+        assertEquals(0, histogram.getPercentileMicros(0));
+    }
+    
+    @Test
+    public void percentilesStayWithinBucketError() {
+        for (long micros = 1; micros <= 100000; micros++) {
+            histogram.recordMicros(micros);
+        }
+        for (int percentile : new int[] {1, 10, 50, 90, 99}) {
+            long exact = 100000L * percentile / 100;
+            long reported = histogram.getPercentileMicros(percentile);
+            assertTrue(percentile + ": " + reported, reported >= exact);
+            assertTrue(percentile + ": " + reported, reported <= exact * 1.125 + 1);
+        }
+    }
+    
+    @Test
+    public void percentileNeverExceedsMax() {
+        histogram.recordMicros(1000);
+        assertEquals(1000, histogram.getPercentileMicros(99));
+        assertEquals(1000, histogram.getMaxMicros());
+    }
+    
+    @Test
+    public void tailIsReportedSeparately() {
+        for (int i = 0; i < 99; i++) {
+            histogram.recordMicros(100);
+        }
+        histogram.recordMicros(50000);
+        
+        assertTrue(histogram.getPercentileMicros(50) < 120);
+        assertTrue(histogram.getPercentileMicros(99) < 120);
+        assertEquals(50000, histogram.getPercentileMicros(100));
+        assertEquals((99 * 100 + 50000) / 100.0, histogram.getMeanMicros(), 0.001);
+    }
+    
+    @Test
+    public void nanosAreRecordedAsMicrosAndNegativesAsZero() {
+        histogram.recordNanos(2500000);
+        histogram.recordMicros(-5);
+        assertEquals(2500, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(2, histogram.getCount());
+    }
+    
+    @Test
+    public void hugeValuesSaturateInLastBucket() {
+        histogram.recordMicros(Long.MAX_VALUE / 2);
+        assertEquals(1, histogram.getCount());
+        // Past about 12 days only the max is exact
+        assertEquals((1L << 41) - 1, histogram.getPercentileMicros(100));
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMaxMicros());
+    }
+    
+    @Test
+    public void resetClearsEverything() {
+        histogram.recordMicros(500);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(99));
+    }
+    
+    @Test
+    public void describesInMilliseconds() {
+        histogram.recordMicros(12345);
+        assertEquals("n=1 p50=12.3ms p99=12.3ms max=12.3ms", histogram.describe());
+    }
+}
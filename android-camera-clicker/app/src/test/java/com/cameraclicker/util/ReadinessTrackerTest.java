@@ -0,0 +1,94 @@
+package com.cameraclicker.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * State moves, fallbacks and cold start timings of the readiness tracker
+ * 
+ * @author DrKhiLL
+ */
+public class ReadinessTrackerTest {
+    
+    private static final long MS = 1000000L;
+    private static final long T = 1000 * MS;
+    
+    private final ReadinessTracker tracker = new ReadinessTracker(T);
+    
+    @Test
+    public void startsWithNothingReached() {
+        assertSame(ReadinessTracker.State.STARTING, tracker.getState());
+        assertFalse(tracker.canCapture());
+        assertEquals(0, tracker.getMillisToReach(ReadinessTracker.State.STARTING));
+        assertEquals(-1, tracker.getMillisToReach(ReadinessTracker.State.CAMERA_OPEN));
+        assertEquals(-1, tracker.getMillisToReach(ReadinessTracker.State.THREE_A_READY));
+    }
+    
+    @Test
+    public void capturesAllowedOnceSessionIsConfigured() {
+        assertTrue(tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 100 * MS));
+        assertFalse(tracker.canCapture());
+        assertTrue(tracker.moveTo(ReadinessTracker.State.SESSION_CONFIGURED, T + 150 * MS));
+        assertTrue(tracker.canCapture());
+        assertTrue(tracker.moveTo(ReadinessTracker.State.THREE_A_READY, T + 180 * MS));
+        assertTrue(tracker.canCapture());
+    }
+    
+    @Test
+    public void movingToCurrentStateChangesNothing() {
+        tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 100 * MS);
+        
+        assertFalse(tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 300 * MS));
+        assertEquals(250, tracker.getMillisInState(T + 350 * MS));
+    }
+    
+    @Test
+    public void fallbackKeepsFirstTimings() {
+        tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 100 * MS);
+        tracker.moveTo(ReadinessTracker.State.SESSION_CONFIGURED, T + 150 * MS);
+        
+        // A camera switch takes the session away and it comes back later
+        assertTrue(tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 2000 * MS));
+        assertFalse(tracker.canCapture());
+        tracker.moveTo(ReadinessTracker.State.SESSION_CONFIGURED, T + 2100 * MS);
+        
+        assertEquals(100, tracker.getMillisToReach(ReadinessTracker.State.CAMERA_OPEN));
+        assertEquals(150, tracker.getMillisToReach(ReadinessTracker.State.SESSION_CONFIGURED));
+        assertEquals(50, tracker.getMillisInState(T + 2150 * MS));
+        assertTrue(tracker.describe(T + 2150 * MS).endsWith("fallbacks=1"));
+    }
+    
+    @Test
+    public void describeBreaksColdStartIntoPhases() {
+        tracker.recordStep("bluetooth", 12500000L);
+        tracker.recordStep("saver", 3 * MS);
+        tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 100 * MS);
+        tracker.moveTo(ReadinessTracker.State.SESSION_CONFIGURED, T + 150 * MS);
+        tracker.moveTo(ReadinessTracker.State.THREE_A_READY, T + 180 * MS);
+        
+        assertEquals("3A_READY for 20 ms; cold start: open=100ms configure=50ms converge=30ms, ready after 180ms;"
+            + " steps: bluetooth=12.5ms saver=3.0ms; fallbacks=0", tracker.describe(T + 200 * MS));
+    }
+    
+    @Test
+    public void describeMarksPhasesNotReached() {
+        tracker.moveTo(ReadinessTracker.State.CAMERA_OPEN, T + 100 * MS);
+        
+        assertEquals("CAMERA_OPEN for 0 ms; cold start: open=100ms configure=- converge=-, ready after -;"
+            + " steps:; fallbacks=0", tracker.describe(T + 100 * MS));
+    }
+    
+    @Test
+    public void repeatedStepKeepsLatestTimeInFirstPosition() {
+        tracker.recordStep("a", MS);
+        tracker.recordStep("b", 2 * MS);
+        tracker.recordStep("a", 4 * MS);
+        
+        assertTrue(tracker.describe(T).contains("steps: a=4.0ms b=2.0ms;"));
+    }
+}
+
@@ -0,0 +1,112 @@
+package com.cameraclicker.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Grid timing, skipping and lead correction of the timelapse scheduler
+ * 
+ * @author DrKhiLL
+ */
+public class TimelapseSchedulerTest {
+    
+    private static final long MS = 1000000L;
+    private static final long START = 1000 * MS;
+    private static final long INTERVAL = 1000 * MS;
+    
+    @Test
+    public void shotsFollowTheGrid() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 3);
+        for (int shot = 0; shot < 3; shot++) {
+            assertEquals(START + shot * INTERVAL, schedule.nextFireNanos());
+            assertEquals(shot, schedule.takeShot(schedule.nextFireNanos(), true));
+        }
+        assertTrue(schedule.isFinished());
+        assertEquals(-1, schedule.nextFireNanos());
+        assertEquals(3, schedule.getTakenCount());
+    }
+    
+    @Test
+    public void lateShotDoesNotMoveLaterSlots() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 0);
+        schedule.takeShot(START + 400 * MS, true);
+        
+        assertEquals(START + INTERVAL, schedule.nextFireNanos());
+    }
+    
+    @Test
+    public void overdueSlotsAreSkipped() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 10);
+        
+        // Slots 0 to 2 are more than half an interval late; slot 3 is the nearest
+        assertEquals(3, schedule.takeShot(START + 3 * INTERVAL + 100 * MS, true));
+        assertEquals(3, schedule.getSkippedCount());
+        assertEquals(1, schedule.getTakenCount());
+    }
+    
+    @Test
+    public void busyCameraSkipsTheSlot() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 2);
+        
+        assertEquals(-1, schedule.takeShot(START, false));
+        assertEquals(1, schedule.getSkippedCount());
+        assertEquals(START + INTERVAL, schedule.nextFireNanos());
+    }
+    
+    @Test
+    public void finishesWhenLastSlotIsSkipped() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 2);
+        
+        assertEquals(-1, schedule.takeShot(START + 5 * INTERVAL, true));
+        assertTrue(schedule.isFinished());
+        assertEquals(2, schedule.getSkippedCount());
+    }
+    
+    @Test
+    public void unlimitedRunNeverFinishes() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 0);
+        for (int shot = 0; shot < 1000; shot++) {
+            schedule.takeShot(schedule.nextFireNanos(), true);
+        }
+        assertFalse(schedule.isFinished());
+        assertTrue(schedule.describe().contains("unlimited"));
+    }
+    
+    @Test
+    public void firesAheadByMeasuredDelay() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 0);
+        int shot = schedule.takeShot(START, true);
+        schedule.onExposed(shot, START, START + 80 * MS);
+        
+        assertEquals(80 * MS, schedule.getLeadNanos());
+        assertEquals(80 * MS, schedule.getLastErrorNanos());
+        assertEquals(START + INTERVAL - 80 * MS, schedule.nextFireNanos());
+    }
+    
+    @Test
+    public void leadIsSmoothedAndBounded() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 0);
+        int shot = schedule.takeShot(START, true);
+        schedule.onExposed(shot, START, START + 80 * MS);
+        
+        // A stalled capture moves the lead by a quarter of at most half an interval
+        long fire = schedule.nextFireNanos();
+        shot = schedule.takeShot(fire, true);
+        schedule.onExposed(shot, fire, fire + 10 * INTERVAL);
+        assertEquals(80 * MS + (INTERVAL / 2 - 80 * MS) / 4, schedule.getLeadNanos());
+    }
+    
+    @Test
+    public void exposureErrorIsRecordedEitherSide() {
+        TimelapseScheduler schedule = new TimelapseScheduler(START, INTERVAL, 0);
+        int shot = schedule.takeShot(START, true);
+        schedule.onExposed(shot, START, START - 5 * MS);
+        
+        assertEquals(-5 * MS, schedule.getLastErrorNanos());
+        assertEquals(1, schedule.getError().getCount());
+    }
+}
+
@@ -0,0 +1,254 @@
+package com.cameraclicker.util;
+
+import com.cameraclicker.camera.CameraFrame;
+import com.cameraclicker.camera.CameraHal;
+import com.cameraclicker.protocol.ViewfinderCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tile selection of the viewfinder encoder: what the watch already has, the byte budget and
+ * the round-robin start
+ * 
+ * @author DrKhiLL
+ */
+public class ViewfinderEncoderTest {
+    
+    // 16x16 at one bit per pixel: four tiles of ten bytes each
+    private static final int SIZE = 16;
+    private static final int TILE_BYTES = ViewfinderCodec.tileBytes(1);
+    
+    private static final int BLACK = 0;
+    private static final int WHITE = 255;
+    
+    private static class Frame {
+        final int number;
+        final byte[] data;
+        
+        Frame(int number, byte[] data) {
+            this.number = number;
+            this.data = data;
+        }
+        
+        List<Integer> tiles() {
+            List<Integer> tiles = new ArrayList<>();
+            for (int position = ViewfinderCodec.HEADER_SIZE; position < data.length; position += TILE_BYTES) {
+                tiles.add((data[position] & 0xFF) << 8 | (data[position + 1] & 0xFF));
+            }
+            return tiles;
+        }
+    }
+    
+    /**
+     * Always ready for a frame, so the tests need not wait out the real intervals
+     */
+    private static class EagerPacer extends ViewfinderPacer {
+        volatile int budget = MAX_BUDGET_BYTES;
+        
+        @Override
+        public boolean isFrameDue(long nowNanos) {
+            return true;
+        }
+        
+        @Override
+        public int getBudgetBytes() {
+            return budget;
+        }
+    }
+    
+    private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+    private final EagerPacer pacer = new EagerPacer();
+    private final ViewfinderEncoder encoder = new ViewfinderEncoder(SIZE, SIZE, 1, new ViewfinderEncoder.Listener() {
+        @Override
+        public void onViewfinderFrame(int frame, byte[] data, int length) {
+            frames.add(new Frame(frame, Arrays.copyOf(data, length)));
+        }
+    }, pacer);
+    
+    @After
+    public void tearDown() {
+        encoder.stop();
+    }
+    
+    /**
+     * Luma plane with every tile flat, tiles numbered row-major
+     */
+    private static CameraFrame lumaFrame(int... tileLuma) {
+        final byte[] luma = new byte[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int tile = (y / ViewfinderCodec.TILE_SIZE) * 2 + x / ViewfinderCodec.TILE_SIZE;
+                luma[y * SIZE + x] = (byte) tileLuma[tile];
+            }
+        }
+        return new CameraFrame() {
+            @Override
+            public int getFormat() {
+                return CameraHal.FORMAT_YUV_420_888;
+            }
+            
+            @Override
+            public int getWidth() {
+                return SIZE;
+            }
+            
+            @Override
+            public int getHeight() {
+                return SIZE;
+            }
+            
+            @Override
+            public long getTimestamp() {
+                return 0;
+            }
+            
+            @Override
+            public int getPlaneCount() {
+                return 3;
+            }
+            
+            @Override
+            public ByteBuffer getPlaneBuffer(int plane) {
+                return ByteBuffer.wrap(luma);
+            }
+            
+            @Override
+            public int getRowStride(int plane) {
+                return SIZE;
+            }
+            
+            @Override
+            public int getPixelStride(int plane) {
+                return 1;
+            }
+            
+            @Override
+            public void close() {
+            }
+        };
+    }
+    
+    /**
+     * Offer once the encoder has finished the previous frame
+     */
+    private void offer(CameraFrame frame) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!encoder.offer(frame)) {
+            if (System.nanoTime() > deadline) {
+                fail("Encoder stayed busy");
+            }
+            Thread.sleep(1);
+        }
+    }
+    
+    private Frame next() throws InterruptedException {
+        Frame frame = frames.poll(2, TimeUnit.SECONDS);
+        assertNotNull("No frame encoded", frame);
+        return frame;
+    }
+    
+    @Test
+    public void firstFrameSendsEveryTile() throws InterruptedException {
+        offer(lumaFrame(BLACK, WHITE, BLACK, WHITE));
+        Frame frame = next();
+        
+        assertEquals(1, frame.number);
+        assertEquals(Arrays.asList(0, 1, 2, 3), frame.tiles());
+        byte[] levels = new byte[SIZE * SIZE];
+        assertTrue(ViewfinderCodec.apply(frame.data, frame.data.length, levels, SIZE, SIZE, 1));
+        assertEquals(0, levels[0]);
+        assertEquals(1, levels[ViewfinderCodec.TILE_SIZE]);
+    }
+    
+    @Test
+    public void acknowledgedTilesAreNotSentAgain() throws InterruptedException {
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        encoder.onAck(next().number);
+        
+        offer(lumaFrame(BLACK, BLACK, BLACK, WHITE));
+        Frame frame = next();
+        assertEquals(Arrays.asList(3), frame.tiles());
+        assertEquals(2, frame.number);
+    }
+    
+    @Test
+    public void unchangedPictureSendsNothing() throws InterruptedException {
+        offer(lumaFrame(WHITE, WHITE, WHITE, WHITE));
+        encoder.onAck(next().number);
+        
+        offer(lumaFrame(WHITE, WHITE, WHITE, WHITE));
+        offer(lumaFrame(WHITE, WHITE, WHITE, WHITE));
+        assertNull(frames.poll(100, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void unacknowledgedTilesAreSentAgain() throws InterruptedException {
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        next();
+        
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        assertEquals(Arrays.asList(0, 1, 2, 3), next().tiles());
+    }
+    
+    @Test
+    public void budgetCutsFrameAndNextOneStartsWhereItStopped() throws InterruptedException {
+        pacer.budget = 2 * TILE_BYTES;
+        
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        Frame first = next();
+        assertEquals(ViewfinderCodec.HEADER_SIZE + 2 * TILE_BYTES, first.data.length);
+        assertEquals(Arrays.asList(0, 1), first.tiles());
+        
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        assertEquals(Arrays.asList(2, 3), next().tiles());
+        
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        assertEquals(Arrays.asList(0, 1), next().tiles());
+    }
+    
+    @Test
+    public void referenceIsWhatTheWatchAcknowledged() throws InterruptedException {
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        encoder.onAck(next().number);
+        
+        // Only the first two white tiles fit, and only those reach the watch
+        pacer.budget = 2 * TILE_BYTES;
+        offer(lumaFrame(WHITE, WHITE, WHITE, WHITE));
+        Frame partial = next();
+        assertEquals(Arrays.asList(0, 1), partial.tiles());
+        encoder.onAck(partial.number);
+        
+        // Back to black: the watch shows white only where it was told to
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        assertEquals(Arrays.asList(0, 1), next().tiles());
+    }
+    
+    @Test
+    public void lateAcknowledgmentIsIgnored() throws InterruptedException {
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        Frame first = next();
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        next();
+        
+        // Frame 1 is no longer in flight, so its tiles do not become the reference
+        encoder.onAck(first.number);
+        offer(lumaFrame(BLACK, BLACK, BLACK, BLACK));
+        assertEquals(Arrays.asList(0, 1, 2, 3), next().tiles());
+    }
+}
+
@@ -0,0 +1,128 @@
+package com.cameraclicker.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Additive speed-up, multiplicative back-off and the link and CPU floors of the viewfinder pacer
+ * 
+ * @author DrKhiLL
+ */
+public class ViewfinderPacerTest {
+    
+    private static final long MS = 1000000L;
+    private static final long T = 10000 * MS;
+    
+    private final ViewfinderPacer pacer = new ViewfinderPacer();
+    
+    @Test
+    public void firstFrameIsDueAtOnce() {
+        assertTrue(pacer.isFrameDue(T));
+        assertEquals(500 * MS, pacer.getIntervalNanos());
+        assertEquals(1024, pacer.getBudgetBytes());
+    }
+    
+    @Test
+    public void frameInFlightHoldsTheNextOne() {
+        pacer.onSent(1, 100, T);
+        assertFalse(pacer.isFrameDue(T + 600 * MS));
+        
+        assertTrue(pacer.onAck(1, T + 50 * MS));
+        assertTrue(pacer.isFrameDue(T + 600 * MS));
+    }
+    
+    @Test
+    public void acknowledgmentSpeedsUpOneStep() {
+        pacer.onSent(1, 100, T);
+        pacer.onAck(1, T + 50 * MS);
+        
+        assertEquals(450 * MS, pacer.getIntervalNanos());
+        assertEquals(1024 + 128, pacer.getBudgetBytes());
+        assertFalse(pacer.isFrameDue(T + 449 * MS));
+        assertTrue(pacer.isFrameDue(T + 450 * MS));
+    }
+    
+    @Test
+    public void speedUpStopsAtLimits() {
+        long now = T;
+        for (int frame = 1; frame <= 40; frame++) {
+            pacer.onSent(frame, 100, now);
+            pacer.onAck(frame, now + MS);
+            now += 10 * MS;
+        }
+        
+        assertEquals(200 * MS, pacer.getIntervalNanos());
+        assertEquals(ViewfinderPacer.MAX_BUDGET_BYTES, pacer.getBudgetBytes());
+    }
+    
+    @Test
+    public void unacknowledgedFrameHalvesRateAndBudget() {
+        pacer.onSent(1, 100, T);
+        assertFalse(pacer.isFrameDue(T + 1999 * MS));
+        
+        assertTrue(pacer.isFrameDue(T + 2000 * MS));
+        assertEquals(1000 * MS, pacer.getIntervalNanos());
+        assertEquals(512, pacer.getBudgetBytes());
+        assertTrue(pacer.describe().contains("dropped=1"));
+        
+        // The watch answering late does not count
+        assertFalse(pacer.onAck(1, T + 2100 * MS));
+        assertEquals(512, pacer.getBudgetBytes());
+    }
+    
+    @Test
+    public void backOffStopsAtLimits() {
+        long now = T;
+        for (int frame = 1; frame <= 10; frame++) {
+            pacer.onSent(frame, 100, now);
+            now += 10000 * MS;
+            pacer.isFrameDue(now);
+        }
+        
+        assertEquals(4000 * MS, pacer.getIntervalNanos());
+        assertEquals(256, pacer.getBudgetBytes());
+    }
+    
+    @Test
+    public void slowLinkStretchesInterval() {
+        // 3000 bytes took a second, so a 3000 byte frame at 75% of the link needs 1.33 s
+        pacer.onSent(1, 3000, T);
+        pacer.onAck(1, T + 1000 * MS);
+        
+        assertEquals(1333 * MS, pacer.getIntervalNanos(), MS);
+        assertTrue(pacer.describe().contains("link=3000B/s"));
+    }
+    
+    @Test
+    public void smallFramesDoNotMeasureTheLink() {
+        pacer.onSent(1, 100, T);
+        pacer.onAck(1, T + 1000 * MS);
+        
+        assertEquals(450 * MS, pacer.getIntervalNanos());
+        assertTrue(pacer.describe().contains("link=?"));
+    }
+    
+    @Test
+    public void slowEncodeStretchesInterval() {
+        pacer.onEncoded(100 * MS);
+        assertEquals(1000 * MS, pacer.getIntervalNanos(), 1);
+        
+        // Smoothed over eight samples, so one slow encode moves it only part of the way
+        pacer.onEncoded(1000 * MS);
+        assertEquals(2125 * MS, pacer.getIntervalNanos(), 1);
+        pacer.onEncoded(5000 * MS);
+        assertEquals(4000 * MS, pacer.getIntervalNanos());
+    }
+    
+    @Test
+    public void emptyFrameIsNotInFlight() {
+        pacer.onSent(-1, 0, T);
+        
+        assertTrue(pacer.isFrameDue(T + 500 * MS));
+        assertTrue(pacer.describe().contains("sent=0"));
+    }
+}
+
@@ -0,0 +1,114 @@
+package com.cameraclicker.benchmark;
+
+import com.cameraclicker.service.CameraCommand;
+import com.cameraclicker.service.CommandRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off of a decoded command from BluetoothService to CameraService
+ * The direct path is the command ring, measured both as a single-thread round trip and
+ * with a producer and consumer thread as in the app. The Intent path needs the framework
+ * for parceling and the activity manager, so only its JVM-side part is measured here: the
+ * boxed extras map an Intent keeps, written and read back. BENCHMARK_DISPATCH in a debug
+ * build of the app compares both complete paths on a device.
+ * 
+ * @author DrKhiLL
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandDispatchBenchmark {
+    
+    private final CameraCommand command = new CameraCommand();
+    private final CommandRing ring = new CommandRing(64);
+    
+    @Setup
+    public void setUp() {
+        command.action = "CAPTURE_PHOTO";
+        command.camera = "rear";
+        command.flash = "auto";
+        command.commandId = 42;
+        command.source = CameraCommand.SOURCE_DIRECT;
+    }
+    
+    @Benchmark
+    @Group("direct")
+    public long directRoundTrip() {
+        CameraCommand slot = ring.claim();
+        slot.copyFrom(command);
+        slot.enqueueNanos = System.nanoTime();
+        ring.publish();
+        
+        CameraCommand received = ring.peek();
+        received.dequeueNanos = System.nanoTime();
+        long latency = received.dequeueNanos - received.enqueueNanos;
+        ring.release();
+        return latency;
+    }
+    
+    @Benchmark
+    @Group("directThreaded")
+    @GroupThreads(1)
+    public boolean produce() {
+        CameraCommand slot = ring.claim();
+        if (slot == null) {
+            return false;
+        }
+        slot.copyFrom(command);
+        slot.enqueueNanos = System.nanoTime();
+        ring.publish();
+        return true;
+    }
+    
+    @Benchmark
+    @Group("directThreaded")
+    @GroupThreads(1)
+    public long consume() {
+        CameraCommand received = ring.peek();
+        if (received == null) {
+            return 0;
+        }
+        long latency = System.nanoTime() - received.enqueueNanos;
+        ring.release();
+        return latency;
+    }
+    
+    @Benchmark
+    @Group("intentExtras")
+    public int intentExtras() {
+        // The extras BluetoothService.createCommandIntent puts, boxed as in a Bundle
+        Map<String, Object> extras = new HashMap<>();
+        extras.put("action", command.action);
+        extras.put("commandId", command.commandId);
+        extras.put("enqueueNanos", System.nanoTime());
+        extras.put("receivedNanos", command.receivedNanos);
+        extras.put("transitMillis", command.transitMillis);
+        extras.put("camera", command.camera);
+        extras.put("flash", command.flash);
+        
+        // And read back as CameraService.onStartCommand does
+        CameraCommand received = new CameraCommand();
+        received.action = (String) extras.get("action");
+        received.camera = (String) extras.get("camera");
+        received.flash = (String) extras.get("flash");
+        received.commandId = (Integer) extras.get("commandId");
+        received.transitMillis = (Long) extras.get("transitMillis");
+        received.receivedNanos = (Long) extras.get("receivedNanos");
+        received.enqueueNanos = (Long) extras.get("enqueueNanos");
+        return received.commandId;
+    }
+}
+
@@ -0,0 +1,53 @@
+package com.cameraclicker.benchmark;
+
+import com.cameraclicker.util.FileNameGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture file name generation
+ * sameSecond is a burst, where the date prefix is reused; newSecond formats the prefix
+ * every time. simpleDateFormat is the formatter plus Date the saver used to create per file.
+ * 
+ * @author DrKhiLL
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileNameBenchmark {
+    
+    private static final long START_MILLIS = 1760000000000L;
+    
+    private final FileNameGenerator generator = new FileNameGenerator();
+    private long sequence = 0;
+    private long millis = START_MILLIS;
+    
+    @Benchmark
+    public String sameSecond() {
+        return generator.generate(START_MILLIS, ++sequence);
+    }
+    
+    @Benchmark
+    public String newSecond() {
+        millis += 1000;
+        return generator.generate(millis, ++sequence);
+    }
+    
+    @Benchmark
+    public String simpleDateFormat() {
+        millis += 1000;
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        return "CameraClicker_" + formatter.format(new Date(millis)) + ".jpg";
+    }
+}
+
@@ -0,0 +1,218 @@
+package com.cameraclicker.benchmark;
+
+import com.cameraclicker.camera.CameraFrame;
+import com.cameraclicker.camera.CameraHal;
+import com.cameraclicker.util.BufferPool;
+import com.cameraclicker.util.FileNameGenerator;
+import com.cameraclicker.util.ImageFiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work ImageSaver.saveImage and its I/O worker do for one image, by buffer and write strategy
+ * pooled_channel is the shipped path: copy into a pooled direct buffer, write through a
+ * FileChannel to a temp file and rename it into place. The others show what it replaced
+ * or could be changed to: a heap array per image written with a stream, a new direct
+ * buffer per image, and the shipped path plus an fsync before the rename.
+ * Queueing and the journal are left out; the capture trace covers them on a device.
+ * 
+ * @author DrKhiLL
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ImageSaveBenchmark {
+    
+    // Files are overwritten in rotation so the directory does not grow during a run
+    private static final int FILE_ROTATION = 16;
+    
+    @Param({"pooled_channel", "heap_stream", "direct_channel", "pooled_channel_sync"})
+    public String strategy;
+    
+    @Param({"500000", "3000000"})
+    public int frameBytes;
+    
+    private File directory;
+    private File[] targets;
+    private File[] temps;
+    private int next = 0;
+    
+    private final BufferPool bufferPool = new BufferPool(3);
+    private final FileNameGenerator fileNameGenerator = new FileNameGenerator();
+    private BufferFrame frame;
+    
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("image-save").toFile();
+        targets = new File[FILE_ROTATION];
+        temps = new File[FILE_ROTATION];
+        for (int i = 0; i < FILE_ROTATION; i++) {
+            String name = fileNameGenerator.generate(System.currentTimeMillis(), i);
+            targets[i] = new File(directory, name);
+            temps[i] = new File(directory, name + ".tmp");
+        }
+        
+        // Camera buffers are direct; fill with something JPEG-shaped
+        ByteBuffer data = ByteBuffer.allocateDirect(frameBytes);
+        data.put((byte) 0xFF).put((byte) 0xD8);
+        for (int i = 2; i < frameBytes - 2; i++) {
+            data.put((byte) (i * 31));
+        }
+        data.put((byte) 0xFF).put((byte) 0xD9);
+        data.flip();
+        frame = new BufferFrame(data);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+    
+    @Benchmark
+    public long save() throws IOException {
+        File target = targets[next];
+        File temp = temps[next];
+        next = (next + 1) % FILE_ROTATION;
+        
+        switch (strategy) {
+            case "heap_stream":
+                saveHeapStream(temp);
+                break;
+            case "direct_channel":
+                saveDirectChannel(temp);
+                break;
+            case "pooled_channel_sync":
+                savePooled(temp, true);
+                break;
+            case "pooled_channel":
+            default:
+                savePooled(temp, false);
+                break;
+        }
+        
+        ImageFiles.renameOrThrow(temp, target);
+        return frameBytes;
+    }
+    
+    private void savePooled(File temp, boolean sync) throws IOException {
+        ByteBuffer data = ImageFiles.copyFrame(frame, bufferPool);
+        try {
+            if (sync) {
+                writeAndSync(temp, data);
+            } else {
+                ImageFiles.writeFully(temp, data);
+            }
+        } finally {
+            bufferPool.release(data);
+        }
+    }
+    
+    private void saveHeapStream(File temp) throws IOException {
+        ByteBuffer plane = frame.getPlaneBuffer(0);
+        byte[] bytes = new byte[plane.remaining()];
+        plane.get(bytes);
+        frame.close();
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            output.write(bytes);
+        }
+    }
+    
+    private void saveDirectChannel(File temp) throws IOException {
+        ByteBuffer plane = frame.getPlaneBuffer(0);
+        ByteBuffer data = ByteBuffer.allocateDirect(plane.remaining());
+        data.put(plane);
+        data.flip();
+        frame.close();
+        ImageFiles.writeFully(temp, data);
+    }
+    
+    private static void writeAndSync(File file, ByteBuffer data) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file);
+             FileChannel channel = output.getChannel()) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+    }
+    
+    /**
+     * Frame over a fixed buffer, rewound each time it is read
+     */
+    private static class BufferFrame implements CameraFrame {
+        private final ByteBuffer data;
+        
+        BufferFrame(ByteBuffer data) {
+            this.data = data;
+        }
+        
+        @Override
+        public int getFormat() {
+            return CameraHal.FORMAT_JPEG;
+        }
+        
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+        
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+        
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+        
+        @Override
+        public int getPlaneCount() {
+            return 1;
+        }
+        
+        @Override
+        public ByteBuffer getPlaneBuffer(int plane) {
+            data.rewind();
+            return data;
+        }
+        
+        @Override
+        public int getRowStride(int plane) {
+            return 0;
+        }
+        
+        @Override
+        public int getPixelStride(int plane) {
+            return 0;
+        }
+        
+        @Override
+        public void close() {
+            // The buffer is reused by every operation
+        }
+    }
+}
+
@@ -0,0 +1,92 @@
+package com.cameraclicker.benchmark;
+
+import com.cameraclicker.protocol.BinaryCodec;
+import com.cameraclicker.protocol.JsonCodec;
+import com.cameraclicker.protocol.SequenceWindow;
+import com.cameraclicker.protocol.WireProtocol;
+import com.cameraclicker.service.CameraCommand;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing done by BluetoothService.handleGarminMessage for each watch message
+ * Each operation takes the received bytes through format detection, decoding into the
+ * reused command and the duplicate check, in both wire formats.
+ * 
+ * @author DrKhiLL
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageParsingBenchmark {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TIMESTAMP = 1760000000;
+    
+    @Param({"CAPTURE_PHOTO", "BURST"})
+    public String command;
+    
+    private final BinaryCodec binaryCodec = new BinaryCodec();
+    private final CameraCommand decoded = new CameraCommand();
+    private final SequenceWindow sequenceWindow = new SequenceWindow();
+    private int sequence = 0;
+    
+    private byte[] binaryMessage;
+    private int binaryLength;
+    private byte[] jsonMessage;
+    
+    @Setup
+    public void setUp() {
+        CameraCommand message = new CameraCommand();
+        message.action = command;
+        message.camera = "front";
+        message.flash = "off";
+        message.quality = "high";
+        message.count = "BURST".equals(command) ? 10 : 0;
+        
+        binaryMessage = new byte[64];
+        binaryLength = BinaryCodec.encode(WireProtocol.TYPE_CAMERA_COMMAND, message, 1, TIMESTAMP, binaryMessage, 0);
+        
+        // Same envelope as CommunicationManager.createMessage on the watch
+        String json = "{\"messageType\":\"CAMERA_COMMAND\",\"timestamp\":" + TIMESTAMP + ",\"sequenceNumber\":1,"
+            + "\"payload\":{\"command\":\"" + command + "\",\"parameters\":{\"camera\":\"front\",\"flash\":\"off\","
+            + "\"quality\":\"high\"" + (message.count > 0 ? ",\"count\":" + message.count : "") + "}}}";
+        jsonMessage = json.getBytes(UTF_8);
+    }
+    
+    @Benchmark
+    public int binary() {
+        if (!WireProtocol.isBinary(binaryMessage, binaryLength)) {
+            throw new IllegalStateException("Binary message not detected");
+        }
+        int type = binaryCodec.decode(binaryMessage, 0, binaryLength, decoded);
+        return accept(type);
+    }
+    
+    @Benchmark
+    public int json() throws JSONException {
+        if (WireProtocol.isBinary(jsonMessage, jsonMessage.length)) {
+            throw new IllegalStateException("JSON message taken for binary");
+        }
+        int type = JsonCodec.decode(new String(jsonMessage, 0, jsonMessage.length, UTF_8), decoded);
+        return accept(type);
+    }
+    
+    private int accept(int type) {
+        // A fresh sequence number each time, as for a stream of new messages
+        boolean accepted = sequenceWindow.accept(++sequence, decoded.sentAt);
+        return accepted ? type + decoded.count : -1;
+    }
+}
+
@@ -0,0 +1,83 @@
+package com.cameraclicker.benchmark;
+
+import com.cameraclicker.camera.CameraInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking the largest output size from a camera's size list
+ * sortLargestFirst is what the camera catalog does once per camera on packed width, height
+ * pairs. compareSizesByArea is the Collections.max over size objects that CameraService used
+ * to run on every reader setup, with a stand-in for android.util.Size.
+ * 
+ * @author DrKhiLL
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SizeSelectionBenchmark {
+    
+    @Param({"16", "64", "256"})
+    public int sizeCount;
+    
+    private int[] packed;
+    private int[] work;
+    private Dimension[] dimensions;
+    
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        packed = new int[sizeCount * 2];
+        dimensions = new Dimension[sizeCount];
+        for (int i = 0; i < sizeCount; i++) {
+            int width = 160 + random.nextInt(8000);
+            int height = 120 + random.nextInt(6000);
+            packed[i * 2] = width;
+            packed[i * 2 + 1] = height;
+            dimensions[i] = new Dimension(width, height);
+        }
+        work = new int[packed.length];
+    }
+    
+    @Benchmark
+    public int sortLargestFirst() {
+        System.arraycopy(packed, 0, work, 0, packed.length);
+        return CameraInfo.sortLargestFirst(work)[0];
+    }
+    
+    @Benchmark
+    public int compareSizesByArea() {
+        return Collections.max(Arrays.asList(dimensions), new CompareSizesByArea()).width;
+    }
+    
+    private static class Dimension {
+        final int width;
+        final int height;
+        
+        Dimension(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+    
+    private static class CompareSizesByArea implements Comparator<Dimension> {
+        @Override
+        public int compare(Dimension lhs, Dimension rhs) {
+            return Long.signum((long) lhs.width * lhs.height - (long) rhs.width * rhs.height);
+        }
+    }
+}
+
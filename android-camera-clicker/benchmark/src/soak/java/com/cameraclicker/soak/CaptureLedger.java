@@ -0,0 +1,148 @@
+package com.cameraclicker.soak;
+
+import com.cameraclicker.util.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Images the watch asked for against images the phone saved, per command sequence number
+ * The watch side registers a capture command when it first sends it; the phone side reports
+ * every saved or failed image. Entries are settled once they have been quiet for a while,
+ * so memory stays flat over a long run: complete ones are counted and removed, incomplete
+ * ones count their missing images as dropped. An image for an entry that is no longer
+ * held is late, which for a completed command means a duplicate capture.
+ * 
+ * @author DrKhiLL
+ */
+public class CaptureLedger {
+    
+    private static class Entry {
+        final int expected;
+        final long sentNanos;
+        long lastChangeNanos;
+        int saved;
+        int unsaved; // Failed or aborted
+        
+        Entry(int expected, long sentNanos) {
+            this.expected = expected;
+            this.sentNanos = sentNanos;
+            this.lastChangeNanos = sentNanos;
+        }
+    }
+    
+    // Guarded by this
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private long commands = 0;
+    private long imagesExpected = 0;
+    private long imagesSaved = 0;
+    private long imagesFailed = 0;
+    private long imagesAborted = 0;
+    private long imagesDropped = 0;
+    private long imagesDuplicated = 0;
+    private long imagesLate = 0;
+    
+    // Watch send to file saved, first image of each command
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    
+    public synchronized void expect(int commandId, int images, long sentNanos) {
+        commands++;
+        imagesExpected += images;
+        entries.put(commandId, new Entry(images, sentNanos));
+    }
+    
+    public void recordSaved(int commandId, long savedNanos) {
+        long latencyNanos = -1;
+        synchronized (this) {
+            Entry entry = entries.get(commandId);
+            if (entry == null) {
+                imagesLate++;
+                return;
+            }
+            imagesSaved++;
+            entry.saved++;
+            entry.lastChangeNanos = savedNanos;
+            if (entry.saved > entry.expected) {
+                imagesDuplicated++;
+            } else if (entry.saved == 1) {
+                latencyNanos = savedNanos - entry.sentNanos;
+            }
+        }
+        if (latencyNanos >= 0) {
+            endToEnd.recordNanos(latencyNanos);
+        }
+    }
+    
+    /**
+     * The camera reported images of a command as failed or lost; they are not counted as dropped
+     */
+    public synchronized void recordFailed(int commandId, int images, long nowNanos) {
+        imagesFailed += images;
+        account(commandId, images, nowNanos);
+    }
+    
+    /**
+     * Images discarded by the phone before capture, such as by a camera switch; not counted as dropped
+     */
+    public synchronized void recordAborted(int commandId, int images, long nowNanos) {
+        imagesAborted += images;
+        account(commandId, images, nowNanos);
+    }
+    
+    /**
+     * Settle every entry that has not changed for the given time
+     * @param quietNanos Use 0 once the run has drained to settle everything
+     */
+    public synchronized void settle(long nowNanos, long quietNanos) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (nowNanos - entry.lastChangeNanos < quietNanos) {
+                continue;
+            }
+            int accounted = Math.min(entry.expected, entry.saved + entry.unsaved);
+            imagesDropped += entry.expected - accounted;
+            iterator.remove();
+        }
+    }
+    
+    private void account(int commandId, int images, long nowNanos) {
+        Entry entry = entries.get(commandId);
+        if (entry != null) {
+            entry.unsaved += images;
+            entry.lastChangeNanos = nowNanos;
+        }
+    }
+    
+    public synchronized long getCommands() {
+        return commands;
+    }
+    
+    public synchronized long getImagesSaved() {
+        return imagesSaved;
+    }
+    
+    public synchronized long getImagesDropped() {
+        return imagesDropped;
+    }
+    
+    public synchronized long getImagesDuplicated() {
+        return imagesDuplicated + imagesLate;
+    }
+    
+    public synchronized int getOpenEntries() {
+        return entries.size();
+    }
+    
+    public LatencyHistogram getEndToEnd() {
+        return endToEnd;
+    }
+    
+    public synchronized String describe() {
+        return "commands=" + commands + ", expected=" + imagesExpected + ", saved=" + imagesSaved
+            + ", failed=" + imagesFailed + ", aborted=" + imagesAborted + ", dropped=" + imagesDropped
+            + ", duplicated=" + imagesDuplicated + ", late=" + imagesLate + ", open=" + entries.size();
+    }
+}
+
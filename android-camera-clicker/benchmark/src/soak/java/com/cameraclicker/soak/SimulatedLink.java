@@ -0,0 +1,138 @@
+package com.cameraclicker.soak;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One direction of the watch-phone connection
+ * Messages arrive in order after the base latency plus jitter, like Connect IQ over BLE.
+ * Configured fractions are lost, delivered twice or held back so that later messages
+ * overtake them. Deliveries run on the link's own thread, one at a time.
+ * 
+ * @author DrKhiLL
+ */
+public class SimulatedLink {
+    
+    public interface Receiver {
+        /**
+         * @param data Message bytes; not reused by the link, but shared between duplicate deliveries
+         */
+        void onMessage(byte[] data, int length);
+    }
+    
+    public static class Config {
+        public long latencyMs = 40;
+        public long jitterMs = 30;
+        public double lossRate = 0;
+        public double duplicateRate = 0;
+        public double reorderRate = 0;
+        // Extra delay of a reordered message, enough for several later ones to pass it
+        public long reorderDelayMs = 400;
+        public long seed = 1;
+    }
+    
+    private final Config config;
+    private final Receiver receiver;
+    private final ScheduledExecutorService deliveryThread;
+    private final Random random;
+    
+    // Guarded by this
+    private long lastDeliveryNanos = 0;
+    
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+    private final AtomicLong duplicatedCount = new AtomicLong();
+    private final AtomicLong reorderedCount = new AtomicLong();
+    
+    public SimulatedLink(final String name, Config config, Receiver receiver) {
+        this.config = config;
+        this.receiver = receiver;
+        this.random = new Random(config.seed);
+        this.deliveryThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    public void send(byte[] data, int length) {
+        sentCount.incrementAndGet();
+        long now = System.nanoTime();
+        long firstNanos;
+        long secondNanos = -1;
+        synchronized (this) {
+            if (random.nextDouble() < config.lossRate) {
+                lostCount.incrementAndGet();
+                return;
+            }
+            firstNanos = deliveryTime(now);
+            if (random.nextDouble() < config.duplicateRate) {
+                duplicatedCount.incrementAndGet();
+                secondNanos = deliveryTime(now);
+            }
+        }
+        
+        schedule(data, length, firstNanos - now);
+        if (secondNanos >= 0) {
+            schedule(data, length, secondNanos - now);
+        }
+    }
+    
+    public void shutdown() {
+        deliveryThread.shutdownNow();
+    }
+    
+    public long getSentCount() {
+        return sentCount.get();
+    }
+    
+    public long getLostCount() {
+        return lostCount.get();
+    }
+    
+    public long getDuplicatedCount() {
+        return duplicatedCount.get();
+    }
+    
+    public long getReorderedCount() {
+        return reorderedCount.get();
+    }
+    
+    public String describe() {
+        return "sent=" + sentCount.get() + ", lost=" + lostCount.get() + ", duplicated=" + duplicatedCount.get()
+            + ", reordered=" + reorderedCount.get();
+    }
+    
+    /**
+     * Arrival time of the next delivery; in order unless this one is picked to be held back
+     */
+    private long deliveryTime(long now) {
+        long delay = TimeUnit.MILLISECONDS.toNanos(config.latencyMs);
+        if (config.jitterMs > 0) {
+            delay += (long) (random.nextDouble() * TimeUnit.MILLISECONDS.toNanos(config.jitterMs));
+        }
+        if (random.nextDouble() < config.reorderRate) {
+            reorderedCount.incrementAndGet();
+            return now + delay + TimeUnit.MILLISECONDS.toNanos(config.reorderDelayMs);
+        }
+        lastDeliveryNanos = Math.max(now + delay, lastDeliveryNanos);
+        return lastDeliveryNanos;
+    }
+    
+    private void schedule(final byte[] data, final int length, long delayNanos) {
+        deliveryThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                receiver.onMessage(data, length);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
+
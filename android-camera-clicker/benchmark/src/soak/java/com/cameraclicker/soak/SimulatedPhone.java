@@ -0,0 +1,682 @@
+package com.cameraclicker.soak;
+
+import com.cameraclicker.camera.CameraHal;
+import com.cameraclicker.camera.CameraHalException;
+import com.cameraclicker.camera.CameraFrame;
+import com.cameraclicker.camera.CameraInfo;
+import com.cameraclicker.camera.CaptureSpec;
+import com.cameraclicker.camera.SimulatedCameraHal;
+import com.cameraclicker.protocol.WireProtocol;
+import com.cameraclicker.service.CameraCommand;
+import com.cameraclicker.service.CommandRing;
+import com.cameraclicker.service.MessageIntake;
+import com.cameraclicker.util.BufferPool;
+import com.cameraclicker.util.CaptureRecord;
+import com.cameraclicker.util.CaptureTrace;
+import com.cameraclicker.util.FileNameGenerator;
+import com.cameraclicker.util.ImageFiles;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phone side of the soak test, threaded like BluetoothService and CameraService
+ * Messages are handled by the app's MessageIntake on a main thread, acknowledgments are
+ * batched the same way, and commands cross to a camera thread through the app's
+ * CommandRing. The camera thread drives the simulated camera backend and copies images
+ * out with ImageFiles into a BufferPool; an I/O thread writes them or just drops them.
+ * Camera and flash changes are coalesced as CameraService does, but a switch is always a
+ * full teardown and there is no ZSL ring, so the capture part approximates CameraService
+ * rather than running it.
+ * 
+ * @author DrKhiLL
+ */
+public class SimulatedPhone implements SimulatedLink.Receiver {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int ACK_BATCH_SIZE = 16;
+    private static final long ACK_DELAY_MS = 50;
+    private static final int COMMAND_RING_CAPACITY = 64;
+    private static final int MAX_STREAM_FRAMES = 4;
+    private static final long REOPEN_DELAY_MS = 500;
+    private static final int FILE_ROTATION = 32;
+    private static final long STATE_COALESCE_MS = 40;
+    
+    private final CaptureLedger ledger;
+    private final SimulatedCameraHal cameraHal;
+    private final File outputDirectory;
+    private SimulatedLink toWatch;
+    
+    private final ScheduledExecutorService mainThread;
+    private final ScheduledExecutorService cameraThread;
+    private final ExecutorService ioThread;
+    
+    // Main thread only
+    private final MessageIntake messageIntake;
+    private final int[] pendingAcks = new int[ACK_BATCH_SIZE];
+    private int pendingAckCount = 0;
+    
+    private final CommandRing commandRing = new CommandRing(COMMAND_RING_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    
+    // Camera thread only
+    private final Map<String, String> cameraIds = new HashMap<>();
+    private final ArrayDeque<CameraCommand> deferredCommands = new ArrayDeque<>();
+    private final Map<Long, Exposure> exposures = new HashMap<>();
+    private String currentCamera = "rear";
+    private CameraHal.Stream stream;
+    private CameraHal.Device device;
+    private CameraHal.Session session;
+    private boolean opening = false;
+    private CaptureSpec stillRequest;
+    private String flashMode = "auto";
+    private String pendingCamera;
+    private String pendingFlash;
+    private boolean stateApplyScheduled = false;
+    
+    private final BufferPool bufferPool = new BufferPool(MAX_STREAM_FRAMES);
+    private final FileNameGenerator fileNameGenerator = new FileNameGenerator();
+    private final CaptureTrace captureTrace = new CaptureTrace();
+    private long fileSequence = 0;
+    
+    private final AtomicLong commandsExecuted = new AtomicLong();
+    private final AtomicLong ringFull = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong cameraErrors = new AtomicLong();
+    private final AtomicLong orphanFrames = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    
+    /**
+     * One exposure of a capture command, from onCaptureStarted to its image or failure
+     */
+    private static class Exposure {
+        final CaptureRecord record;
+        final CommandCapture owner;
+        
+        Exposure(CaptureRecord record, CommandCapture owner) {
+            this.record = record;
+            this.owner = owner;
+        }
+    }
+    
+    /**
+     * Callback for the requests of one command; the backend reports them in submission order
+     */
+    private class CommandCapture extends CameraHal.CaptureCallback {
+        final CaptureRecord command;
+        final int requests;
+        final ArrayDeque<Exposure> started = new ArrayDeque<>();
+        int finished = 0;
+        
+        CommandCapture(CaptureRecord command, int requests) {
+            this.command = command;
+            this.requests = requests;
+        }
+        
+        @Override
+        public void onCaptureStarted(CaptureSpec spec, long timestamp) {
+            CaptureRecord record = new CaptureRecord(command);
+            record.submitNanos = command.submitNanos;
+            record.sensorTimestamp = timestamp;
+            Exposure exposure = new Exposure(record, this);
+            started.add(exposure);
+            exposures.put(timestamp, exposure);
+        }
+        
+        @Override
+        public void onCaptureCompleted(CaptureSpec spec, long timestamp) {
+            Exposure exposure = exposures.get(timestamp);
+            if (exposure != null) {
+                exposure.record.completedNanos = System.nanoTime();
+            }
+        }
+        
+        @Override
+        public void onCaptureFailed(CaptureSpec spec, boolean imageCaptured) {
+            failOldest();
+        }
+        
+        @Override
+        public void onBufferLost(CaptureSpec spec) {
+            failOldest();
+        }
+        
+        @Override
+        public void onSequenceAborted(int sequenceId) {
+            for (Exposure exposure : started) {
+                exposures.remove(exposure.record.sensorTimestamp);
+            }
+            started.clear();
+            int remaining = requests - finished;
+            finished = requests;
+            if (remaining > 0) {
+                ledger.recordAborted(command.commandId, remaining, System.nanoTime());
+            }
+        }
+        
+        void onImage(Exposure exposure) {
+            started.remove(exposure);
+            finished++;
+        }
+        
+        private void failOldest() {
+            Exposure exposure = started.poll();
+            if (exposure != null) {
+                exposures.remove(exposure.record.sensorTimestamp);
+            }
+            finished++;
+            ledger.recordFailed(command.commandId, 1, System.nanoTime());
+        }
+    }
+    
+    private final Runnable flushAcks = new Runnable() {
+        @Override
+        public void run() {
+            sendAcknowledgments();
+        }
+    };
+    
+    private final Runnable applyPendingState = new Runnable() {
+        @Override
+        public void run() {
+            stateApplyScheduled = false;
+            applyPendingState();
+        }
+    };
+    
+    private final Runnable drainCommands = new Runnable() {
+        @Override
+        public void run() {
+            // Clear first so a command published during the drain schedules another pass
+            drainScheduled.set(false);
+            
+            CameraCommand command;
+            while ((command = commandRing.peek()) != null) {
+                command.dequeueNanos = System.nanoTime();
+                executeCommand(command);
+                commandRing.release();
+            }
+        }
+    };
+    
+    /**
+     * @param outputDirectory Where images are written, or null to copy them out and discard them
+     */
+    public SimulatedPhone(SimulatedCameraHal.Config cameraConfig, CaptureLedger ledger, File outputDirectory) {
+        this.ledger = ledger;
+        this.outputDirectory = outputDirectory;
+        this.mainThread = Executors.newSingleThreadScheduledExecutor(namedThreads("phone-main"));
+        this.cameraThread = Executors.newSingleThreadScheduledExecutor(namedThreads("phone-camera"));
+        this.ioThread = Executors.newSingleThreadExecutor(namedThreads("phone-io"));
+        this.cameraHal = new SimulatedCameraHal(cameraConfig, cameraThread);
+        this.messageIntake = new MessageIntake(new MessageIntake.Listener() {
+            @Override
+            public void onAcknowledge(int sequenceNumber) {
+                queueAcknowledgment(sequenceNumber);
+            }
+            
+            @Override
+            public void onStatusRequest() {
+                sendStatusUpdate();
+            }
+            
+            @Override
+            public void onHeartbeat() {
+                // The simulated camera never idles
+            }
+            
+            @Override
+            public void onThumbnailAck(int transferId, int nextChunk) {
+                // The simulated watch never asks for thumbnails
+            }
+            
+            @Override
+            public void onViewfinderAck(int frame) {
+                // Nor for the viewfinder
+            }
+            
+            @Override
+            public void onUnsupportedFormat(int version) {
+                malformed.incrementAndGet();
+                sendMessageToWatch("ERROR", new JSONObject(), -1);
+            }
+            
+            @Override
+            public void onMalformedMessage(String reason, Exception cause) {
+                malformed.incrementAndGet();
+            }
+            
+            @Override
+            public void onCameraCommand(CameraCommand command) {
+                submitCommand(command);
+            }
+        });
+        
+        for (CameraInfo info : cameraConfig.cameras) {
+            String name = info.facing == CameraInfo.FACING_FRONT ? "front" : "rear";
+            if (!cameraIds.containsKey(name)) {
+                cameraIds.put(name, info.id);
+            }
+        }
+    }
+    
+    public void start(SimulatedLink toWatch) {
+        this.toWatch = toWatch;
+        cameraThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                openCamera();
+            }
+        });
+    }
+    
+    public void shutdown() {
+        mainThread.shutdownNow();
+        cameraThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                cameraHal.release();
+            }
+        });
+        cameraThread.shutdown();
+        ioThread.shutdown();
+        try {
+            cameraThread.awaitTermination(5, TimeUnit.SECONDS);
+            ioThread.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Message from the watch, on the link's delivery thread
+     */
+    @Override
+    public void onMessage(final byte[] data, final int length) {
+        mainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                messageIntake.handleMessage(data, length, System.nanoTime());
+            }
+        });
+    }
+    
+    public CaptureTrace getCaptureTrace() {
+        return captureTrace;
+    }
+    
+    public MessageIntake getMessageIntake() {
+        return messageIntake;
+    }
+    
+    public SimulatedCameraHal getCameraHal() {
+        return cameraHal;
+    }
+    
+    public long getBufferAllocations() {
+        return bufferPool.getAllocationCount();
+    }
+    
+    public String describe() {
+        return "commands=" + commandsExecuted.get() + ", ringFull=" + ringFull.get() + ", malformed=" + malformed.get()
+            + ", cameraErrors=" + cameraErrors.get() + ", orphanFrames=" + orphanFrames.get()
+            + ", writeErrors=" + writeErrors.get() + ", bufferAllocations=" + bufferPool.getAllocationCount()
+            + ", framesDelivered=" + cameraHal.getFramesDelivered() + ", buffersLost=" + cameraHal.getBuffersLost()
+            + ", capturesFailed=" + cameraHal.getCapturesFailed();
+    }
+    
+    // Main thread
+    
+    private void submitCommand(CameraCommand command) {
+        command.enqueueNanos = System.nanoTime();
+        CameraCommand slot = commandRing.claim();
+        if (slot == null) {
+            // BluetoothService falls back to an Intent here; count it and hand over a copy
+            ringFull.incrementAndGet();
+            final CameraCommand copy = new CameraCommand();
+            copy.copyFrom(command);
+            cameraThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    copy.dequeueNanos = System.nanoTime();
+                    executeCommand(copy);
+                }
+            });
+            return;
+        }
+        slot.copyFrom(command);
+        commandRing.publish();
+        if (drainScheduled.compareAndSet(false, true)) {
+            cameraThread.execute(drainCommands);
+        }
+    }
+    
+    private void queueAcknowledgment(int sequenceNumber) {
+        pendingAcks[pendingAckCount++] = sequenceNumber;
+        if (pendingAckCount == ACK_BATCH_SIZE) {
+            sendAcknowledgments();
+        } else if (pendingAckCount == 1) {
+            mainThread.schedule(flushAcks, ACK_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void sendAcknowledgments() {
+        if (pendingAckCount == 0) {
+            return;
+        }
+        try {
+            JSONArray sequenceNumbers = new JSONArray();
+            for (int i = 0; i < pendingAckCount; i++) {
+                sequenceNumbers.put(pendingAcks[i]);
+            }
+            JSONObject payload = new JSONObject();
+            payload.put("sequenceNumbers", sequenceNumbers);
+            sendMessageToWatch("ACKNOWLEDGMENT", payload, pendingAcks[pendingAckCount - 1]);
+        } catch (JSONException e) {
+            malformed.incrementAndGet();
+        }
+        pendingAckCount = 0;
+    }
+    
+    private void sendStatusUpdate() {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("protocolVersion", WireProtocol.VERSION);
+            payload.put("formats", new JSONArray().put(WireProtocol.FORMAT_BINARY_V1).put(WireProtocol.FORMAT_JSON));
+            sendMessageToWatch("STATUS_UPDATE", payload, -1);
+        } catch (JSONException e) {
+            malformed.incrementAndGet();
+        }
+    }
+    
+    private void sendMessageToWatch(String messageType, JSONObject payload, int sequenceNumber) {
+        try {
+            JSONObject message = new JSONObject();
+            message.put("messageType", messageType);
+            message.put("timestamp", System.currentTimeMillis() / 1000);
+            if (sequenceNumber >= 0) {
+                message.put("sequenceNumber", sequenceNumber);
+            }
+            message.put("payload", payload);
+            byte[] data = message.toString().getBytes(UTF_8);
+            toWatch.send(data, data.length);
+        } catch (JSONException e) {
+            malformed.incrementAndGet();
+        }
+    }
+    
+    // Camera thread
+    
+    private void executeCommand(CameraCommand command) {
+        commandsExecuted.incrementAndGet();
+        switch (command.action) {
+            case "CAPTURE_PHOTO":
+                if (command.flash != null) {
+                    pendingFlash = command.flash;
+                }
+                applyPendingState();
+                capture(command, 1);
+                break;
+            case "BURST":
+                applyPendingState();
+                capture(command, command.count > 0 ? command.count : 1);
+                break;
+            case "SWITCH_CAMERA":
+                pendingCamera = command.camera;
+                schedulePendingState();
+                break;
+            case "SET_FLASH":
+                pendingFlash = command.flash;
+                schedulePendingState();
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void schedulePendingState() {
+        if (!stateApplyScheduled) {
+            stateApplyScheduled = true;
+            cameraThread.schedule(applyPendingState, STATE_COALESCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Apply the latest camera and flash requests; a switch waits until the camera is ready
+     */
+    private void applyPendingState() {
+        if (pendingFlash != null) {
+            flashMode = pendingFlash;
+            pendingFlash = null;
+        }
+        if (pendingCamera != null && session != null) {
+            if (!pendingCamera.equals(currentCamera)) {
+                currentCamera = pendingCamera;
+                closeCamera();
+                openCamera();
+            }
+            pendingCamera = null;
+        }
+    }
+    
+    private void capture(CameraCommand command, int frames) {
+        if (session == null) {
+            // Opening or switching; keep a copy, the ring slot is reused once we return
+            CameraCommand copy = new CameraCommand();
+            copy.copyFrom(command);
+            deferredCommands.add(copy);
+            return;
+        }
+        
+        CaptureRecord record = new CaptureRecord(command.commandId, command.receivedNanos);
+        record.transitMillis = command.transitMillis;
+        record.parsedNanos = command.enqueueNanos;
+        record.dispatchedNanos = command.dequeueNanos;
+        
+        applyFlash(stillRequest);
+        CommandCapture callback = new CommandCapture(record, frames);
+        record.submitNanos = System.nanoTime();
+        try {
+            if (frames == 1) {
+                session.capture(stillRequest, callback);
+            } else {
+                session.captureBurst(Collections.nCopies(frames, stillRequest), callback);
+            }
+        } catch (CameraHalException e) {
+            cameraErrors.incrementAndGet();
+            ledger.recordFailed(command.commandId, frames, System.nanoTime());
+        }
+    }
+    
+    private void applyFlash(CaptureSpec spec) {
+        spec.aeMode = "on".equals(flashMode) ? CaptureSpec.AE_MODE_ON_ALWAYS_FLASH
+            : "auto".equals(flashMode) ? CaptureSpec.AE_MODE_ON_AUTO_FLASH : CaptureSpec.AE_MODE_ON;
+    }
+    
+    private void onFrameAvailable(CameraFrame frame) {
+        Exposure exposure = exposures.remove(frame.getTimestamp());
+        if (exposure == null) {
+            orphanFrames.incrementAndGet();
+            frame.close();
+            return;
+        }
+        exposure.owner.onImage(exposure);
+        
+        final CaptureRecord record = exposure.record;
+        record.imageNanos = System.nanoTime();
+        final ByteBuffer data = ImageFiles.copyFrame(frame, bufferPool);
+        final long sequence = ++fileSequence;
+        ioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                save(record, data, sequence);
+            }
+        });
+    }
+    
+    // I/O thread
+    
+    private void save(CaptureRecord record, ByteBuffer data, long sequence) {
+        try {
+            if (outputDirectory != null) {
+                // Names rotate so a long run does not fill the disk
+                String name = fileNameGenerator.generate(System.currentTimeMillis(), sequence % FILE_ROTATION);
+                File target = new File(outputDirectory, name);
+                File temp = new File(outputDirectory, name + ".tmp");
+                ImageFiles.writeFully(temp, data);
+                ImageFiles.renameOrThrow(temp, target);
+            }
+            record.savedNanos = System.nanoTime();
+            captureTrace.record(record);
+            ledger.recordSaved(record.commandId, record.savedNanos);
+        } catch (IOException e) {
+            writeErrors.incrementAndGet();
+            ledger.recordFailed(record.commandId, 1, System.nanoTime());
+        } finally {
+            bufferPool.release(data);
+        }
+    }
+    
+    // Camera lifecycle, camera thread
+    
+    private void openCamera() {
+        String cameraId = cameraIds.get(currentCamera);
+        if (cameraId == null) {
+            cameraId = cameraIds.values().iterator().next();
+        }
+        opening = true;
+        try {
+            cameraHal.openCamera(cameraId, new CameraHal.DeviceCallback() {
+                @Override
+                public void onOpened(CameraHal.Device opened) {
+                    opening = false;
+                    device = opened;
+                    createSession(opened);
+                }
+                
+                @Override
+                public void onDisconnected(CameraHal.Device disconnected) {
+                    cameraErrors.incrementAndGet();
+                    reopen();
+                }
+                
+                @Override
+                public void onError(CameraHal.Device failed, int error) {
+                    opening = false;
+                    cameraErrors.incrementAndGet();
+                    reopen();
+                }
+            });
+        } catch (CameraHalException e) {
+            opening = false;
+            cameraErrors.incrementAndGet();
+        }
+    }
+    
+    private void createSession(CameraHal.Device opened) {
+        CameraInfo info = findCamera(opened.getId());
+        if (stream == null || stream.getWidth() != info.getJpegWidth() || stream.getHeight() != info.getJpegHeight()) {
+            if (stream != null) {
+                stream.close();
+            }
+            stream = cameraHal.createStream(CameraHal.FORMAT_JPEG, info.getJpegWidth(), info.getJpegHeight(),
+                MAX_STREAM_FRAMES, new CameraHal.FrameListener() {
+                    @Override
+                    public void onFrameAvailable(CameraFrame frame) {
+                        SimulatedPhone.this.onFrameAvailable(frame);
+                    }
+                });
+            stillRequest = new CaptureSpec(CaptureSpec.TEMPLATE_STILL_CAPTURE, stream);
+            stillRequest.afMode = CaptureSpec.AF_MODE_CONTINUOUS_PICTURE;
+        }
+        
+        List<CameraHal.Stream> outputs = new ArrayList<>();
+        outputs.add(stream);
+        try {
+            opened.createSession(outputs, new CameraHal.SessionCallback() {
+                @Override
+                public void onConfigured(CameraHal.Session configured) {
+                    session = configured;
+                    applyPendingState();
+                    CameraCommand command;
+                    while (session != null && (command = deferredCommands.poll()) != null) {
+                        capture(command, "BURST".equals(command.action) && command.count > 0 ? command.count : 1);
+                    }
+                }
+                
+                @Override
+                public void onConfigureFailed() {
+                    cameraErrors.incrementAndGet();
+                    reopen();
+                }
+            });
+        } catch (CameraHalException e) {
+            cameraErrors.incrementAndGet();
+            reopen();
+        }
+    }
+    
+    private void reopen() {
+        closeCamera();
+        cameraThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (device == null && !opening) {
+                    openCamera();
+                }
+            }
+        }, REOPEN_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    private void closeCamera() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (device != null) {
+            device.close();
+            device = null;
+        }
+    }
+    
+    private CameraInfo findCamera(String cameraId) {
+        for (CameraInfo info : cameraHal.enumerateCameras()) {
+            if (info.id.equals(cameraId)) {
+                return info;
+            }
+        }
+        throw new IllegalStateException("Unknown camera " + cameraId);
+    }
+    
+    private static ThreadFactory namedThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
+
@@ -0,0 +1,299 @@
+package com.cameraclicker.soak;
+
+import com.cameraclicker.camera.SimulatedCameraHal;
+import com.cameraclicker.service.MessageIntake;
+import com.cameraclicker.util.CaptureTrace;
+import com.cameraclicker.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running load test of the phone's message and capture path against a simulated watch
+ * Runs on any JVM: the watch, the Bluetooth link and the camera are all simulated. Prints a
+ * line per report interval and a summary at the end; exits with status 1 if any image was
+ * dropped or captured twice. Options are given as --name=value, see usage().
+ * 
+ * @author DrKhiLL
+ */
+public class SoakTest {
+    
+    private static final double MB = 1024 * 1024;
+    
+    private long durationMs = TimeUnit.MINUTES.toMillis(10);
+    private long reportIntervalMs = TimeUnit.MINUTES.toMillis(1);
+    // Ledger entries quiet for this long are settled; must exceed the watch's retransmit span
+    private long settleMs = 30000;
+    private File outputDirectory = null;
+    
+    private final WatchPeer.Config watchConfig = new WatchPeer.Config();
+    private final SimulatedLink.Config toPhoneConfig = new SimulatedLink.Config();
+    private final SimulatedLink.Config toWatchConfig = new SimulatedLink.Config();
+    private final SimulatedCameraHal.Config cameraConfig = new SimulatedCameraHal.Config();
+    
+    // Heap in use after a full collection, sampled each report
+    private int heapSamples = 0;
+    private double firstHeapMb;
+    private double lastHeapMb;
+    private long firstHeapMillis;
+    private long lastHeapMillis;
+    
+    public static void main(String[] args) throws Exception {
+        SoakTest test = new SoakTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage());
+            System.exit(2);
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+    
+    /**
+     * @return true if every requested image was saved exactly once
+     */
+    public boolean run() throws InterruptedException {
+        CaptureLedger ledger = new CaptureLedger();
+        WatchPeer watch = new WatchPeer(watchConfig, ledger);
+        SimulatedPhone phone = new SimulatedPhone(cameraConfig, ledger, outputDirectory);
+        SimulatedLink toPhone = new SimulatedLink("link-to-phone", toPhoneConfig, phone);
+        toWatchConfig.seed = toPhoneConfig.seed + 1;
+        SimulatedLink toWatch = new SimulatedLink("link-to-watch", toWatchConfig, watch);
+        
+        System.out.println("Soak test for " + formatDuration(durationMs) + ", " + watchConfig.messagesPerSecond
+            + " messages/s, mix " + watchConfig.mix);
+        long startMillis = System.currentTimeMillis();
+        sampleHeap(startMillis);
+        phone.start(toWatch);
+        watch.start(toPhone);
+        
+        long endMillis = startMillis + durationMs;
+        long lastSaved = 0;
+        long lastReportMillis = startMillis;
+        while (System.currentTimeMillis() < endMillis) {
+            Thread.sleep(Math.min(reportIntervalMs, Math.max(1, endMillis - System.currentTimeMillis())));
+            long now = System.currentTimeMillis();
+            ledger.settle(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(settleMs));
+            sampleHeap(now);
+            
+            long saved = ledger.getImagesSaved();
+            double imagesPerSecond = (saved - lastSaved) * 1000.0 / Math.max(1, now - lastReportMillis);
+            LatencyHistogram endToEnd = ledger.getEndToEnd();
+            System.out.println(String.format(Locale.US,
+                "%s  sent=%d saved=%d (%.1f/s) dropped=%d duplicated=%d e2e p50=%dms p99=%dms max=%dms heap=%.1fMB",
+                formatDuration(now - startMillis), watch.getMessagesSent(), saved, imagesPerSecond,
+                ledger.getImagesDropped(), ledger.getImagesDuplicated(), endToEnd.getPercentileMicros(50) / 1000,
+                endToEnd.getPercentileMicros(99) / 1000, endToEnd.getMaxMicros() / 1000, lastHeapMb));
+            lastSaved = saved;
+            lastReportMillis = now;
+        }
+        
+        // Let retransmits and in-flight captures finish, then account for everything
+        watch.stopSending();
+        long retransmitSpanMs = watchConfig.ackTimeoutMs * (watchConfig.maxRetransmits + 1);
+        Thread.sleep(retransmitSpanMs + TimeUnit.SECONDS.toMillis(2));
+        ledger.settle(System.nanoTime(), 0);
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        
+        watch.shutdown();
+        toPhone.shutdown();
+        toWatch.shutdown();
+        phone.shutdown();
+        
+        printSummary(elapsedMillis, ledger, watch, phone, toPhone, toWatch);
+        return ledger.getImagesDropped() == 0 && ledger.getImagesDuplicated() == 0;
+    }
+    
+    private void printSummary(long elapsedMillis, CaptureLedger ledger, WatchPeer watch, SimulatedPhone phone,
+                              SimulatedLink toPhone, SimulatedLink toWatch) {
+        MessageIntake intake = phone.getMessageIntake();
+        System.out.println();
+        System.out.println("Elapsed " + formatDuration(elapsedMillis) + String.format(Locale.US,
+            ", %.1f messages/s, %.2f images/s", watch.getMessagesSent() * 1000.0 / elapsedMillis,
+            ledger.getImagesSaved() * 1000.0 / elapsedMillis));
+        System.out.println("Captures:    " + ledger.describe());
+        System.out.println("Watch:       " + watch.describe());
+        System.out.println("Phone:       " + phone.describe());
+        System.out.println("Intake:      json=" + intake.getJsonMessageCount() + ", binary="
+            + intake.getBinaryMessageCount() + ", rejected=" + intake.getRejectedCount() + ", duplicates="
+            + intake.getDuplicateCount() + ", sequenceResets=" + intake.getSequenceResetCount());
+        System.out.println("To phone:    " + toPhone.describe());
+        System.out.println("To watch:    " + toWatch.describe());
+        System.out.println("Watch send to saved: " + ledger.getEndToEnd().describe());
+        System.out.println("Acknowledged:        " + watch.getAckLatency().describe());
+        System.out.println("Stages:");
+        System.out.println(phone.getCaptureTrace().describe());
+        
+        double hours = (lastHeapMillis - firstHeapMillis) / 3600000.0;
+        System.out.println(String.format(Locale.US, "Heap after GC: %.1fMB -> %.1fMB%s", firstHeapMb, lastHeapMb,
+            hours > 0 ? String.format(Locale.US, " (%+.1fMB/hour)", (lastHeapMb - firstHeapMb) / hours) : ""));
+    }
+    
+    /**
+     * Heap of the whole process, which is dominated by the phone side once warmed up
+     */
+    private void sampleHeap(long nowMillis) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        double usedMb = (runtime.totalMemory() - runtime.freeMemory()) / MB;
+        heapSamples++;
+        if (heapSamples <= 2) {
+            // The first interval includes class loading and pool warm-up; measure growth from the end of it
+            firstHeapMb = usedMb;
+            firstHeapMillis = nowMillis;
+        }
+        lastHeapMb = usedMb;
+        lastHeapMillis = nowMillis;
+    }
+    
+    void parse(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Unrecognised argument " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "duration":
+                    durationMs = parseDuration(value);
+                    break;
+                case "report":
+                    reportIntervalMs = parseDuration(value);
+                    break;
+                case "settle":
+                    settleMs = parseDuration(value);
+                    break;
+                case "output":
+                    outputDirectory = createOutputDirectory(value);
+                    break;
+                case "rate":
+                    watchConfig.messagesPerSecond = Double.parseDouble(value);
+                    break;
+                case "rate-jitter":
+                    watchConfig.rateJitter = Double.parseDouble(value);
+                    break;
+                case "mix":
+                    watchConfig.mix = parseMix(value);
+                    break;
+                case "burst":
+                    watchConfig.burstCount = Integer.parseInt(value);
+                    break;
+                case "binary":
+                    watchConfig.binaryRatio = Double.parseDouble(value);
+                    break;
+                case "ack-timeout":
+                    watchConfig.ackTimeoutMs = parseDuration(value);
+                    break;
+                case "retransmits":
+                    watchConfig.maxRetransmits = Integer.parseInt(value);
+                    break;
+                case "latency":
+                    toPhoneConfig.latencyMs = parseDuration(value);
+                    toWatchConfig.latencyMs = toPhoneConfig.latencyMs;
+                    break;
+                case "jitter":
+                    toPhoneConfig.jitterMs = parseDuration(value);
+                    toWatchConfig.jitterMs = toPhoneConfig.jitterMs;
+                    break;
+                case "loss":
+                    toPhoneConfig.lossRate = Double.parseDouble(value);
+                    toWatchConfig.lossRate = toPhoneConfig.lossRate;
+                    break;
+                case "duplicate":
+                    toPhoneConfig.duplicateRate = Double.parseDouble(value);
+                    break;
+                case "reorder":
+                    toPhoneConfig.reorderRate = Double.parseDouble(value);
+                    break;
+                case "capture-failure":
+                    cameraConfig.captureFailureRate = Double.parseDouble(value);
+                    break;
+                case "buffer-loss":
+                    cameraConfig.bufferLossRate = Double.parseDouble(value);
+                    break;
+                case "seed":
+                    long seed = Long.parseLong(value);
+                    watchConfig.seed = seed;
+                    toPhoneConfig.seed = seed + 1;
+                    cameraConfig.seed = seed + 3;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+    }
+    
+    static String usage() {
+        return "Options (durations take ms, s, m or h):\n"
+            + "  --duration=10m        how long to send commands\n"
+            + "  --report=1m           interval between progress lines\n"
+            + "  --settle=30s          quiet time before a command's images are counted\n"
+            + "  --output=DIR          write images to DIR (rotating names) instead of discarding them\n"
+            + "  --rate=5              watch messages per second\n"
+            + "  --rate-jitter=0.5     +/- fraction applied to each send interval\n"
+            + "  --mix=CAPTURE_PHOTO:70,BURST:5,SWITCH_CAMERA:10,SET_FLASH:10,GET_STATUS:5\n"
+            + "  --burst=3             images per BURST command\n"
+            + "  --binary=0.5          fraction of messages sent in the binary format\n"
+            + "  --ack-timeout=1500ms  watch retransmits unacknowledged messages after this\n"
+            + "  --retransmits=3       retransmits before the watch gives up on a message\n"
+            + "  --latency=40ms        one-way link latency, both directions\n"
+            + "  --jitter=30ms         extra random latency, both directions\n"
+            + "  --loss=0              fraction of messages lost, both directions\n"
+            + "  --duplicate=0         fraction of watch messages delivered twice\n"
+            + "  --reorder=0           fraction of watch messages overtaken by later ones\n"
+            + "  --capture-failure=0   fraction of captures the camera fails\n"
+            + "  --buffer-loss=0       fraction of images the camera loses\n"
+            + "  --seed=1              seed for every random choice";
+    }
+    
+    static long parseDuration(String value) {
+        String number = value.replaceAll("[a-z]+$", "");
+        String unit = value.substring(number.length());
+        double amount = Double.parseDouble(number);
+        switch (unit) {
+            case "":
+            case "ms":
+                return (long) amount;
+            case "s":
+                return (long) (amount * 1000);
+            case "m":
+                return (long) (amount * 60000);
+            case "h":
+                return (long) (amount * 3600000);
+            default:
+                throw new IllegalArgumentException("Unknown duration unit in " + value);
+        }
+    }
+    
+    static Map<String, Integer> parseMix(String value) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Mix entries are COMMAND:weight, got " + entry);
+            }
+            mix.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return mix;
+    }
+    
+    private static File createOutputDirectory(String path) {
+        try {
+            return Files.createDirectories(new File(path).toPath()).toFile();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot create output directory " + path);
+        }
+    }
+    
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return String.format(Locale.US, "%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
+
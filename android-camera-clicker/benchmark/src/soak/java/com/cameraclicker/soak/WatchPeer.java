@@ -0,0 +1,376 @@
+package com.cameraclicker.soak;
+
+import com.cameraclicker.protocol.BinaryCodec;
+import com.cameraclicker.protocol.WireProtocol;
+import com.cameraclicker.service.CameraCommand;
+import com.cameraclicker.util.LatencyHistogram;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the watch app's CommunicationManager
+ * Sends a weighted random mix of commands in the same envelope createMessage builds,
+ * as binary or JSON, keeps every message pending until the phone acknowledges it and
+ * retransmits the original bytes when the acknowledgment is late. All state lives on
+ * the peer's own thread.
+ * 
+ * @author DrKhiLL
+ */
+public class WatchPeer implements SimulatedLink.Receiver {
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long PENDING_CHECK_MS = 100;
+    
+    public static final String STATUS = "GET_STATUS";
+    
+    public static class Config {
+        public double messagesPerSecond = 5;
+        // Each interval varies by up to this fraction either way
+        public double rateJitter = 0.5;
+        // Relative weights; GET_STATUS sends a STATUS_REQUEST
+        public Map<String, Integer> mix = defaultMix();
+        public int burstCount = 3;
+        public double binaryRatio = 0.5;
+        public long ackTimeoutMs = 1500;
+        public int maxRetransmits = 3;
+        public long heartbeatIntervalMs = 5000;
+        public long seed = 2;
+    }
+    
+    private static class Pending {
+        final byte[] data;
+        final long firstSentNanos;
+        long lastSentNanos;
+        int retransmits;
+        
+        Pending(byte[] data, long sentNanos) {
+            this.data = data;
+            this.firstSentNanos = sentNanos;
+            this.lastSentNanos = sentNanos;
+        }
+    }
+    
+    private final Config config;
+    private final CaptureLedger ledger;
+    private final ScheduledExecutorService peerThread;
+    private final Random random;
+    private final String[] mixCommands;
+    private final int[] mixWeights;
+    private int mixTotal = 0;
+    private SimulatedLink toPhone;
+    
+    // Peer thread only
+    private final Map<Integer, Pending> pending = new LinkedHashMap<>();
+    private final CameraCommand encodeScratch = new CameraCommand();
+    private final byte[] binaryBuffer = new byte[64];
+    private int sequenceNumber = 0;
+    private String camera = "rear";
+    private String flash = "auto";
+    private volatile boolean sending = false;
+    
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong binaryMessages = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong statusUpdates = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    
+    private final Runnable sendNext = new Runnable() {
+        @Override
+        public void run() {
+            if (!sending) {
+                return;
+            }
+            sendCommand(pickCommand());
+            peerThread.schedule(this, nextIntervalNanos(), TimeUnit.NANOSECONDS);
+        }
+    };
+    
+    private final Runnable checkPending = new Runnable() {
+        @Override
+        public void run() {
+            retransmitLate();
+        }
+    };
+    
+    private final Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            if (sending) {
+                send("HEARTBEAT", null, new JSONObject(), 0);
+            }
+        }
+    };
+    
+    public WatchPeer(Config config, CaptureLedger ledger) {
+        this.config = config;
+        this.ledger = ledger;
+        this.random = new Random(config.seed);
+        this.mixCommands = config.mix.keySet().toArray(new String[0]);
+        this.mixWeights = new int[mixCommands.length];
+        for (int i = 0; i < mixCommands.length; i++) {
+            mixWeights[i] = config.mix.get(mixCommands[i]);
+            mixTotal += mixWeights[i];
+        }
+        this.peerThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "watch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    public static Map<String, Integer> defaultMix() {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        mix.put("CAPTURE_PHOTO", 70);
+        mix.put("BURST", 5);
+        mix.put("SWITCH_CAMERA", 10);
+        mix.put("SET_FLASH", 10);
+        mix.put(STATUS, 5);
+        return mix;
+    }
+    
+    public void start(SimulatedLink toPhone) {
+        this.toPhone = toPhone;
+        sending = true;
+        peerThread.execute(sendNext);
+        peerThread.scheduleWithFixedDelay(checkPending, PENDING_CHECK_MS, PENDING_CHECK_MS, TimeUnit.MILLISECONDS);
+        if (config.heartbeatIntervalMs > 0) {
+            peerThread.scheduleAtFixedRate(heartbeat, config.heartbeatIntervalMs, config.heartbeatIntervalMs,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Stop sending new messages; pending ones are still retransmitted until acknowledged or abandoned
+     */
+    public void stopSending() {
+        sending = false;
+    }
+    
+    public void shutdown() {
+        peerThread.shutdownNow();
+    }
+    
+    /**
+     * Message from the phone, on the link's delivery thread
+     */
+    @Override
+    public void onMessage(byte[] data, int length) {
+        final String message = new String(data, 0, length, UTF_8);
+        peerThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                handlePhoneMessage(message);
+            }
+        });
+    }
+    
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+    
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+    
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+    
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+    
+    public String describe() {
+        return "sent=" + messagesSent.get() + ", binary=" + binaryMessages.get() + ", retransmits=" + retransmits.get()
+            + ", abandoned=" + abandoned.get() + ", statusUpdates=" + statusUpdates.get() + ", errors=" + errors.get();
+    }
+    
+    private String pickCommand() {
+        int pick = random.nextInt(mixTotal);
+        for (int i = 0; i < mixCommands.length; i++) {
+            pick -= mixWeights[i];
+            if (pick < 0) {
+                return mixCommands[i];
+            }
+        }
+        return mixCommands[mixCommands.length - 1];
+    }
+    
+    private long nextIntervalNanos() {
+        double interval = 1e9 / config.messagesPerSecond;
+        double spread = config.rateJitter * (2 * random.nextDouble() - 1);
+        return (long) Math.max(0, interval * (1 + spread));
+    }
+    
+    /**
+     * Build a command the way the watch's send*Command functions do
+     */
+    private void sendCommand(String command) {
+        JSONObject parameters = new JSONObject();
+        int images = 0;
+        try {
+            switch (command) {
+                case "CAPTURE_PHOTO":
+                    parameters.put("camera", camera);
+                    parameters.put("flash", flash);
+                    parameters.put("quality", "high");
+                    images = 1;
+                    break;
+                case "BURST":
+                    parameters.put("count", config.burstCount);
+                    images = config.burstCount;
+                    break;
+                case "SWITCH_CAMERA":
+                    camera = "rear".equals(camera) ? "front" : "rear";
+                    parameters.put("camera", camera);
+                    break;
+                case "SET_FLASH":
+                    flash = "auto".equals(flash) ? "off" : "off".equals(flash) ? "on" : "auto";
+                    parameters.put("flash", flash);
+                    break;
+                case STATUS:
+                    JSONObject status = new JSONObject();
+                    status.put("command", STATUS);
+                    send("STATUS_REQUEST", STATUS, status, 0);
+                    return;
+                default:
+                    break;
+            }
+            
+            JSONObject payload = new JSONObject();
+            payload.put("command", command);
+            payload.put("parameters", parameters);
+            send("CAMERA_COMMAND", command, payload, images);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Envelope, encode and send a message, tracking it until acknowledged
+     * @param images Images the phone should save for it; registered with the ledger
+     */
+    private void send(String messageType, String command, JSONObject payload, int images) {
+        sequenceNumber++;
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        
+        byte[] data = null;
+        if (random.nextDouble() < config.binaryRatio) {
+            data = encodeBinary(messageType, command, payload, timestamp);
+        }
+        if (data == null) {
+            try {
+                JSONObject message = new JSONObject();
+                message.put("messageType", messageType);
+                message.put("timestamp", timestamp);
+                message.put("sequenceNumber", sequenceNumber);
+                message.put("payload", payload);
+                data = message.toString().getBytes(UTF_8);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            binaryMessages.incrementAndGet();
+        }
+        
+        long now = System.nanoTime();
+        if (images > 0) {
+            ledger.expect(sequenceNumber, images, now);
+        }
+        pending.put(sequenceNumber, new Pending(data, now));
+        messagesSent.incrementAndGet();
+        toPhone.send(data, data.length);
+    }
+    
+    private byte[] encodeBinary(String messageType, String command, JSONObject payload, int timestamp) {
+        CameraCommand fields = encodeScratch;
+        fields.clear();
+        fields.action = command;
+        JSONObject parameters = payload.optJSONObject("parameters");
+        if (parameters != null) {
+            fields.camera = parameters.optString("camera", null);
+            fields.flash = parameters.optString("flash", null);
+            fields.count = parameters.optInt("count", 0);
+        }
+        int length = BinaryCodec.encode(WireProtocol.messageTypeCode(messageType), fields, sequenceNumber, timestamp,
+            binaryBuffer, 0);
+        return length < 0 ? null : Arrays.copyOf(binaryBuffer, length);
+    }
+    
+    private void retransmitLate() {
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.ackTimeoutMs);
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending message = iterator.next();
+            if (now - message.lastSentNanos < timeoutNanos) {
+                continue;
+            }
+            if (message.retransmits >= config.maxRetransmits) {
+                abandoned.incrementAndGet();
+                iterator.remove();
+                continue;
+            }
+            message.retransmits++;
+            message.lastSentNanos = now;
+            retransmits.incrementAndGet();
+            toPhone.send(message.data, message.data.length);
+        }
+    }
+    
+    private void handlePhoneMessage(String text) {
+        try {
+            JSONObject message = new JSONObject(text);
+            String messageType = message.optString("messageType");
+            switch (messageType) {
+                case "ACKNOWLEDGMENT":
+                    JSONArray sequenceNumbers = message.getJSONObject("payload").optJSONArray("sequenceNumbers");
+                    if (sequenceNumbers != null) {
+                        for (int i = 0; i < sequenceNumbers.length(); i++) {
+                            acknowledge(sequenceNumbers.getInt(i));
+                        }
+                    } else if (message.has("sequenceNumber")) {
+                        acknowledge(message.getInt("sequenceNumber"));
+                    }
+                    break;
+                case "STATUS_UPDATE":
+                    statusUpdates.incrementAndGet();
+                    break;
+                case "ERROR":
+                    errors.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+        } catch (JSONException e) {
+            errors.incrementAndGet();
+        }
+    }
+    
+    private void acknowledge(int sequence) {
+        Pending message = pending.remove(sequence);
+        if (message != null) {
+            ackLatency.recordNanos(System.nanoTime() - message.firstSentNanos);
+        }
+    }
+}
+